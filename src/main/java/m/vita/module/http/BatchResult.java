@@ -0,0 +1,113 @@
+package m.vita.module.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import m.vita.module.http.annotation.Immutable;
+
+/**
+ * Outcome of a batch of requests started with
+ * {@link JEBAsyncHttpClient#executeBatch(android.content.Context, java.util.Collection,
+ * m.vita.module.http.handler.ResponseConverter, int)}. Outcomes are indexed in the order the
+ * requests were passed in, not in the order they were executed. A request still running when the
+ * batch completed is reported as cancelled.
+ *
+ * @param <T> type of the converted responses
+ */
+@Immutable
+public final class BatchResult<T> {
+
+    private final List<T> results;
+    private final List<Exception> failures;
+    private final boolean[] succeeded;
+    private final int succeededCount;
+    private final int failedCount;
+    private final int quorum;
+
+    BatchResult(final Object[] results, final Exception[] failures, final boolean[] succeeded, final int quorum) {
+        final List<T> resultList = new ArrayList<T>(results.length);
+        final List<Exception> failureList = new ArrayList<Exception>(failures.length);
+        int succeededCount = 0;
+        int failedCount = 0;
+        for (int i = 0; i < results.length; i++) {
+            @SuppressWarnings("unchecked")
+            final T result = (T) results[i];
+            resultList.add(result);
+            failureList.add(failures[i]);
+            if (succeeded[i]) {
+                succeededCount++;
+            } else if (failures[i] != null) {
+                failedCount++;
+            }
+        }
+        this.results = Collections.unmodifiableList(resultList);
+        this.failures = Collections.unmodifiableList(failureList);
+        this.succeeded = succeeded.clone();
+        this.succeededCount = succeededCount;
+        this.failedCount = failedCount;
+        this.quorum = quorum;
+    }
+
+    /**
+     * @return number of requests in the batch
+     */
+    public int size() {
+        return this.succeeded.length;
+    }
+
+    public boolean isSucceeded(final int index) {
+        return this.succeeded[index];
+    }
+
+    /**
+     * @param index position of the request in the batch
+     * @return converted response, null if the request did not succeed
+     */
+    public T getResult(final int index) {
+        return this.results.get(index);
+    }
+
+    /**
+     * @param index position of the request in the batch
+     * @return cause of the failure, null if the request succeeded or was cancelled
+     */
+    public Exception getFailure(final int index) {
+        return this.failures.get(index);
+    }
+
+    /**
+     * @return converted responses in request order, null for requests which did not succeed
+     */
+    public List<T> getResults() {
+        return this.results;
+    }
+
+    public int getSucceededCount() {
+        return this.succeededCount;
+    }
+
+    public int getFailedCount() {
+        return this.failedCount;
+    }
+
+    /**
+     * @return number of requests which were cancelled before they completed
+     */
+    public int getCancelledCount() {
+        return size() - this.succeededCount - this.failedCount;
+    }
+
+    /**
+     * @return true if at least as many requests succeeded as the batch required
+     */
+    public boolean isQuorumReached() {
+        return this.succeededCount >= this.quorum;
+    }
+
+    @Override
+    public String toString() {
+        return "[succeeded: " + this.succeededCount + "; failed: " + this.failedCount
+                + "; cancelled: " + getCancelledCount() + "; quorum: " + this.quorum + "]";
+    }
+}
@@ -0,0 +1,348 @@
+package m.vita.module.http;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.client.AbstractHttpClient;
+import m.vita.module.http.concurrent.DaemonThreadFactory;
+import m.vita.module.http.concurrent.TimerWheel;
+import m.vita.module.http.execute.BasicHttpContext;
+import m.vita.module.http.execute.CloseableHttpResponse;
+import m.vita.module.http.header.HttpContext;
+import m.vita.module.http.header.HttpUriRequest;
+import m.vita.module.http.method.AbstractExecutionAwareRequest;
+import m.vita.module.http.method.HttpGet;
+import m.vita.module.http.method.HttpHead;
+import m.vita.module.http.method.HttpRequestBase;
+import m.vita.module.http.util.Args;
+import m.vita.module.http.util.EntityUtils;
+
+/**
+ * Hedging of GET and HEAD requests. When the response headers of a request have not arrived
+ * after the hedge delay, an identical second request is sent on another connection and whichever
+ * response arrives first is used. The other request is aborted, or its response is consumed so
+ * that its connection goes back to the pool.
+ * <p>&nbsp;</p>
+ * The delay is the 95th percentile of the recent response times of the target host once enough
+ * of them have been observed, the configured delay before. Hedges are limited by a budget to a
+ * share of the hedgeable requests, 5% by default, so that a slow backend does not receive twice
+ * the traffic.
+ * <p>&nbsp;</p>
+ * Hedging is enabled per client through {@link JEBAsyncHttpClient#setHedgePolicy(HedgePolicy)}.
+ */
+@ThreadSafe
+public class HedgePolicy {
+    private static final String LOG_TAG = "HedgePolicy";
+
+    public static final long DEFAULT_HEDGE_DELAY_MILLIS = 500;
+    public static final float DEFAULT_HEDGE_RATIO = 0.05f;
+    public static final int DEFAULT_MAX_HEDGES = 4;
+
+    private static final int MIN_SAMPLES = 20;
+    private static final int MAX_SAMPLES = 64;
+    private static final int MAX_ROUTES = 64;
+
+    private final long hedgeDelayMillis;
+    private final RetryBudget budget;
+    private final ThreadPoolExecutor hedgeExecutor;
+    private final Map<String, LatencyWindow> latencies;
+    private final AtomicLong hedgesIssued = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    /**
+     * Creates policy hedging after 500 ms until response times are known, for at most 5% of the
+     * requests and at most 4 hedges at a time
+     */
+    public HedgePolicy() {
+        this(DEFAULT_HEDGE_DELAY_MILLIS, DEFAULT_HEDGE_RATIO, DEFAULT_MAX_HEDGES);
+    }
+
+    /**
+     * Creates new policy
+     *
+     * @param hedgeDelayMillis delay used while too few response times of a host are known
+     * @param hedgeRatio       hedges allowed per hedgeable request
+     * @param maxHedges        maximum number of hedges running at the same time
+     */
+    public HedgePolicy(long hedgeDelayMillis, float hedgeRatio, int maxHedges) {
+        this.hedgeDelayMillis = Args.notNegative(hedgeDelayMillis, "Hedge delay");
+        this.budget = new RetryBudget(hedgeRatio, 1);
+        this.hedgeExecutor = DaemonThreadFactory.newCachedExecutor("JEBAsyncHttp-hedge-",
+                Args.positive(maxHedges, "Max hedges"));
+        this.latencies = new LinkedHashMap<String, LatencyWindow>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LatencyWindow> eldest) {
+                return size() > MAX_ROUTES;
+            }
+        };
+    }
+
+    /**
+     * @return number of hedge requests sent
+     */
+    public long getHedgesIssued() {
+        return hedgesIssued.get();
+    }
+
+    /**
+     * @return number of hedge requests whose response was used
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * Returns the delay after which a request to the host of the URI gets hedged
+     *
+     * @param uri request URI
+     * @return delay in milliseconds
+     */
+    public long getHedgeDelay(URI uri) {
+        LatencyWindow window;
+        synchronized (latencies) {
+            window = latencies.get(routeKey(uri));
+        }
+        long percentile = window == null ? -1 : window.percentile95();
+        return percentile < 0 ? hedgeDelayMillis : percentile;
+    }
+
+    static boolean isHedgeable(HttpUriRequest request) {
+        String method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method);
+    }
+
+    /**
+     * Executes the request, hedging it if the response is late
+     *
+     * @param client  client executing the request
+     * @param request request to execute
+     * @param context execution context of the request
+     * @param owner   request being processed, consulted for cancellation
+     * @return first response received
+     * @throws IOException if neither request succeeded
+     */
+    CloseableHttpResponse execute(AbstractHttpClient client, HttpUriRequest request, HttpContext context, JEBAsyncHttpRequest owner) throws IOException {
+        if (!isHedgeable(request)) {
+            return client.execute(request, context);
+        }
+        budget.onRequest();
+        long start = SystemClock.uptimeMillis();
+        final Race race = new Race(client, request, context, owner);
+        owner.setHedgeRequest(null);
+        TimerWheel.Timeout timer = RetryHandler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                startHedge(race);
+            }
+        }, getHedgeDelay(request.getURI()));
+
+        CloseableHttpResponse response = null;
+        IOException error = null;
+        try {
+            response = client.execute(request, context);
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            timer.cancel();
+        }
+
+        CloseableHttpResponse winner;
+        boolean isHedgeWinner;
+        synchronized (race) {
+            race.isPrimaryDone = true;
+            if (race.winner == null && response != null) {
+                race.winner = response;
+            }
+            // the primary request failed, the hedge may still succeed
+            while (race.winner == null && race.isHedgeRunning && !owner.isCancelled()) {
+                try {
+                    race.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            race.isSettled = true;
+            winner = race.winner;
+            isHedgeWinner = winner != null && winner != response;
+        }
+
+        if (!isHedgeWinner) {
+            // primary response used or both failed, stop the hedge
+            race.abortHedge();
+            owner.setHedgeRequest(null);
+        } else {
+            hedgesWon.incrementAndGet();
+            if (response != null) {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+            if (request instanceof AbstractExecutionAwareRequest && request.isAborted() && !owner.isCancelled()) {
+                // aborted because the hedge won, make the request usable for further attempts
+                ((AbstractExecutionAwareRequest) request).reset();
+            }
+        }
+        if (winner == null) {
+            throw error != null ? error : new IOException("Request aborted");
+        }
+        record(request.getURI(), SystemClock.uptimeMillis() - start);
+        return winner;
+    }
+
+    private void startHedge(final Race race) {
+        final HttpUriRequest hedge = copyOf(race.request);
+        synchronized (race) {
+            if (race.isPrimaryDone || race.winner != null || race.owner.isCancelled()) {
+                return;
+            }
+            if (!budget.tryAcquire()) {
+                return;
+            }
+            race.hedge = hedge;
+            race.isHedgeRunning = true;
+        }
+        // cancelling or timing out the owner aborts the hedge as well, it may become the live request
+        race.owner.setHedgeRequest(hedge);
+        try {
+            hedgeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runHedge(race, hedge);
+                }
+            });
+            hedgesIssued.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            JEBAsyncHttpClient.log.d(LOG_TAG, "Too many hedges running, not hedging " + race.request.getURI());
+            synchronized (race) {
+                race.isHedgeRunning = false;
+                race.notifyAll();
+            }
+        }
+    }
+
+    private void runHedge(Race race, HttpUriRequest hedge) {
+        CloseableHttpResponse response = null;
+        try {
+            response = race.client.execute(hedge, new BasicHttpContext(race.context));
+        } catch (IOException e) {
+            JEBAsyncHttpClient.log.d(LOG_TAG, "Hedge of " + hedge.getURI() + " failed: " + e);
+        }
+        boolean isWinner = false;
+        synchronized (race) {
+            race.isHedgeRunning = false;
+            if (response != null && race.winner == null && !race.isSettled) {
+                race.winner = response;
+                isWinner = true;
+            }
+            race.notifyAll();
+        }
+        if (isWinner) {
+            // unblocks the thread waiting for the primary response, if still running
+            race.request.abort();
+        } else if (response != null) {
+            // lost the race, release the connection
+            EntityUtils.consumeQuietly(response.getEntity());
+        }
+    }
+
+    // the legacy client still reads timeouts, redirects and the virtual host from the params
+    @SuppressWarnings("deprecation")
+    private static HttpUriRequest copyOf(HttpUriRequest request) {
+        HttpRequestBase copy = "HEAD".equals(request.getMethod()) ? new HttpHead(request.getURI()) : new HttpGet(request.getURI());
+        copy.setHeaders(request.getAllHeaders());
+        copy.setParams(request.getParams());
+        if (request instanceof HttpRequestBase) {
+            copy.setConfig(((HttpRequestBase) request).getConfig());
+        }
+        return copy;
+    }
+
+    private void record(URI uri, long elapsedMillis) {
+        String key = routeKey(uri);
+        LatencyWindow window;
+        synchronized (latencies) {
+            window = latencies.get(key);
+            if (window == null) {
+                window = new LatencyWindow();
+                latencies.put(key, window);
+            }
+        }
+        window.add(elapsedMillis);
+    }
+
+    private static String routeKey(URI uri) {
+        return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+    }
+
+    @Override
+    public String toString() {
+        return "[issued: " + hedgesIssued.get() + "; won: " + hedgesWon.get() + "]";
+    }
+
+    /**
+     * State shared by a request and its hedge.
+     */
+    private static final class Race {
+        final AbstractHttpClient client;
+        final HttpUriRequest request;
+        final HttpContext context;
+        final JEBAsyncHttpRequest owner;
+        HttpUriRequest hedge;
+        CloseableHttpResponse winner;
+        boolean isPrimaryDone;
+        // set once the primary thread took the winner, a hedge finishing later loses
+        boolean isSettled;
+        boolean isHedgeRunning;
+
+        Race(AbstractHttpClient client, HttpUriRequest request, HttpContext context, JEBAsyncHttpRequest owner) {
+            this.client = client;
+            this.request = request;
+            this.context = context;
+            this.owner = owner;
+        }
+
+        void abortHedge() {
+            HttpUriRequest running;
+            synchronized (this) {
+                running = isHedgeRunning ? hedge : null;
+            }
+            if (running != null) {
+                running.abort();
+            }
+        }
+    }
+
+    /**
+     * Response times of the most recent requests to a host.
+     */
+    private static final class LatencyWindow {
+        private final long[] samples = new long[MAX_SAMPLES];
+        private int count;
+        private int next;
+
+        synchronized void add(long elapsedMillis) {
+            samples[next] = elapsedMillis;
+            next = (next + 1) % MAX_SAMPLES;
+            count = Math.min(count + 1, MAX_SAMPLES);
+        }
+
+        synchronized long percentile95() {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(count * 0.95) - 1];
+        }
+    }
+}
@@ -25,6 +25,8 @@ public class JEBAMultipartEntity implements HttpEntity {
     private static final byte[] TRANSFER_ENCODING_BINARY =
             ("Content-Transfer-Encoding: binary" + STR_CR_LF).getBytes();
 
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
     private final static char[] MULTIPART_CHARS =
             "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
 
@@ -188,11 +190,41 @@ public class JEBAMultipartEntity implements HttpEntity {
         out.writeTo(outstream);
         updateProgress(out.size());
 
+        // a single buffer for all files, part headers and boundaries are written together with file content
+        long remaining = totalSize - out.size();
+        byte[] buffer = new byte[remaining > 0 ? (int) Math.min(WRITE_BUFFER_SIZE, remaining) : WRITE_BUFFER_SIZE];
+        int buffered = 0;
         for (FilePart filePart : fileParts) {
-            filePart.writeTo(outstream);
+            buffered = filePart.writeTo(outstream, buffer, buffered);
+        }
+        buffered = append(outstream, buffer, buffered, boundaryEnd);
+        flush(outstream, buffer, buffered);
+    }
+
+    /**
+     * Adds the bytes to the buffer, writing the buffer first if they do not fit
+     *
+     * @return number of bytes in the buffer
+     */
+    private int append(OutputStream outstream, byte[] buffer, int buffered, byte[] bytes) throws IOException {
+        if (buffered + bytes.length > buffer.length) {
+            flush(outstream, buffer, buffered);
+            buffered = 0;
+        }
+        if (bytes.length > buffer.length) {
+            outstream.write(bytes);
+            updateProgress(bytes.length);
+            return 0;
+        }
+        System.arraycopy(bytes, 0, buffer, buffered, bytes.length);
+        return buffered + bytes.length;
+    }
+
+    private void flush(OutputStream outstream, byte[] buffer, int buffered) throws IOException {
+        if (buffered > 0) {
+            outstream.write(buffer, 0, buffered);
+            updateProgress(buffered);
         }
-        outstream.write(boundaryEnd);
-        updateProgress(boundaryEnd.length);
     }
 
     @Override
@@ -250,21 +282,33 @@ public class JEBAMultipartEntity implements HttpEntity {
             return header.length + streamLength;
         }
 
-        public void writeTo(OutputStream out) throws IOException {
-            out.write(header);
-            updateProgress(header.length);
+        /**
+         * Writes the part through the buffer shared by all parts
+         *
+         * @param out      stream to write to
+         * @param buffer   write buffer
+         * @param buffered number of bytes already in the buffer
+         * @return number of bytes left in the buffer
+         * @throws IOException if the file cannot be read or the stream written
+         */
+        public int writeTo(OutputStream out, byte[] buffer, int buffered) throws IOException {
+            buffered = append(out, buffer, buffered, header);
 
             FileInputStream inputStream = new FileInputStream(file);
-            final byte[] tmp = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(tmp)) != -1) {
-                out.write(tmp, 0, bytesRead);
-                updateProgress(bytesRead);
+            try {
+                int bytesRead;
+                // read straight into the free space of the buffer, it is written once full
+                while ((bytesRead = inputStream.read(buffer, buffered, buffer.length - buffered)) != -1) {
+                    buffered += bytesRead;
+                    if (buffered == buffer.length) {
+                        flush(out, buffer, buffered);
+                        buffered = 0;
+                    }
+                }
+            } finally {
+                JEBAsyncHttpClient.silentCloseInputStream(inputStream);
             }
-            out.write(CR_LF);
-            updateProgress(CR_LF.length);
-            out.flush();
-            JEBAsyncHttpClient.silentCloseInputStream(inputStream);
+            return append(out, buffer, buffered, CR_LF);
         }
     }
 }
@@ -11,44 +11,56 @@ import java.lang.reflect.Field;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLDecoder;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
+import m.vita.module.http.client.AbstractHttpClient;
 import m.vita.module.http.client.CredentialsProvider;
+import m.vita.module.http.client.DefaultHttpRequestRetryHandler;
 import m.vita.module.http.client.Scheme;
 import m.vita.module.http.client.auth.AuthScope;
 import m.vita.module.http.client.auth.AuthState;
 import m.vita.module.http.client.auth.BasicScheme;
 import m.vita.module.http.client.auth.Credentials;
 import m.vita.module.http.client.auth.UsernamePasswordCredentials;
+import m.vita.module.http.client.cache.ResponseCache;
 import m.vita.module.http.client.impl.client.DefaultHttpClient;
 import m.vita.module.http.client.impl.client.HttpClient;
 import m.vita.module.http.client.protocol.ClientContext;
 import m.vita.module.http.client.protocol.ExecutionContext;
 import m.vita.module.http.client.protocol.SyncBasicHttpContext;
+import m.vita.module.http.concurrent.Cancellable;
+import m.vita.module.http.concurrent.ComposableFuture;
+import m.vita.module.http.concurrent.DaemonThreadFactory;
+import m.vita.module.http.concurrent.Deadline;
 import m.vita.module.http.config.HttpEntityWrapper;
 import m.vita.module.http.connect.HttpConnectionParams;
+import m.vita.module.http.connect.ConnectionValidationPolicy;
+import m.vita.module.http.connect.IdleConnectionEvictor;
+import m.vita.module.http.connect.PrewarmResult;
 import m.vita.module.http.connect.tsccm.ThreadSafeClientConnManager;
 import m.vita.module.http.cookie.CookieStore;
 import m.vita.module.http.cookie.PersistentCookieStore;
 import m.vita.module.http.entity.StringEntity;
+import m.vita.module.http.exception.DeadlineExceededException;
 import m.vita.module.http.exception.HttpException;
 import m.vita.module.http.execute.BasicHttpContext;
 import m.vita.module.http.factory.PlainSocketFactory;
 import m.vita.module.http.factory.SSLSocketFactory;
 import m.vita.module.http.factory.SchemeRegistry;
 import m.vita.module.http.factory.JEBSSLSocketFactory;
+import m.vita.module.http.handler.FutureResponseHandler;
 import m.vita.module.http.handler.LogHandler;
 import m.vita.module.http.handler.LogInterface;
 import m.vita.module.http.handler.RequestHandle;
+import m.vita.module.http.handler.ResponseConverter;
 import m.vita.module.http.handler.ResponseHandlerInterface;
 import m.vita.module.http.handler.JEBAsyncHttpResponseHandler;
 import m.vita.module.http.handler.JEBRedirectHandler;
@@ -58,9 +70,11 @@ import m.vita.module.http.header.Header;
 import m.vita.module.http.header.HeaderElement;
 import m.vita.module.http.header.HttpContext;
 import m.vita.module.http.header.HttpHost;
+import m.vita.module.http.header.HttpRoute;
 import m.vita.module.http.header.HttpParams;
 import m.vita.module.http.header.HttpRequest;
 import m.vita.module.http.header.HttpUriRequest;
+import m.vita.module.http.header.URIUtils;
 import m.vita.module.http.interceptor.HttpRequestInterceptor;
 import m.vita.module.http.interceptor.HttpResponseInterceptor;
 import m.vita.module.http.interceptor.PreemptiveAuthorizationHttpRequestInterceptor;
@@ -96,16 +110,27 @@ public class JEBAsyncHttpClient {
     public static final int DEFAULT_MAX_RETRIES = 5;
     public static final int DEFAULT_RETRY_SLEEP_TIME_MILLIS = 1500;
     public static final int DEFAULT_SOCKET_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_MAX_QUEUED_REQUESTS = RequestDispatcher.DEFAULT_QUEUE_CAPACITY;
     public static LogInterface log = new LogHandler();
+    // aborts requests cancelled from the main thread, aborting may block on the connection
+    private static final ExecutorService cancelExecutor =
+            DaemonThreadFactory.newFixedExecutor("JEBAsyncHttp-cancel-", 1, new LinkedBlockingQueue<Runnable>());
     private final DefaultHttpClient httpClient;
     private final HttpContext httpContext;
-    private final Map<Context, List<RequestHandle>> requestMap;
+    private final RequestRegistry requestRegistry = new RequestRegistry();
+    private final RetryBudget retryBudget = new RetryBudget();
+    private volatile RetryHandler retryHandler;
     private final Map<String, String> clientHeaderMap;
+    private final RequestCoalescer requestCoalescer = new RequestCoalescer();
     private int maxConnections = DEFAULT_MAX_CONNECTIONS;
     private int connectTimeout = DEFAULT_SOCKET_TIMEOUT;
     private int responseTimeout = DEFAULT_SOCKET_TIMEOUT;
     private ExecutorService threadPool;
     private boolean isUrlEncodingEnabled = true;
+    private volatile boolean isRequestCoalescingEnabled = false;
+    private volatile HedgePolicy hedgePolicy;
+    private volatile ResponseCache responseCache;
+    private volatile int requestDeadline;
 
     /**
      * Creates a new JEBAsyncHttpClient with default constructor arguments values
@@ -168,10 +193,14 @@ public class JEBAsyncHttpClient {
         Utils.asserts(cm != null, "Custom implementation of #createConnectionManager(SchemeRegistry, BasicHttpParams) returned null");
 
         threadPool = getDefaultThreadPool();
-        requestMap = Collections.synchronizedMap(new WeakHashMap<Context, List<RequestHandle>>());
+        if (threadPool instanceof RequestDispatcher) {
+            // share per route limits with the connection manager
+            ((RequestDispatcher) threadPool).setConnPerRoute(ConnManagerParams.getMaxConnectionsPerRoute(httpParams));
+        }
         clientHeaderMap = new HashMap<String, String>();
 
         httpContext = new SyncBasicHttpContext(new BasicHttpContext());
+        httpContext.setAttribute(RetryBudget.ATTRIBUTE, retryBudget);
         httpClient = new DefaultHttpClient(cm, httpParams);
         httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
             @Override
@@ -234,7 +263,9 @@ public class JEBAsyncHttpClient {
             }
         }, 0);
 
-        httpClient.setHttpRequestRetryHandler(new RetryHandler(DEFAULT_MAX_RETRIES, DEFAULT_RETRY_SLEEP_TIME_MILLIS));
+        // retries are made by the requests, after a backoff and within the retry budget
+        httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        retryHandler = new RetryHandler(DEFAULT_MAX_RETRIES, DEFAULT_RETRY_SLEEP_TIME_MILLIS, retryBudget);
     }
 
     /**
@@ -506,8 +537,7 @@ public class JEBAsyncHttpClient {
     }
 
     /**
-     * Returns the current executor service used. By default, Executors.newCachedThreadPool() is
-     * used.
+     * Returns the current executor service used. By default, a {@link RequestDispatcher} is used.
      *
      * @return current executor service used
      */
@@ -517,7 +547,7 @@ public class JEBAsyncHttpClient {
 
     /**
      * Overrides the threadpool implementation used when queuing/pooling requests. By default,
-     * Executors.newCachedThreadPool() is used.
+     * a {@link RequestDispatcher} is used.
      *
      * @param threadPool an instance of {@link ExecutorService} to use for queuing/pooling
      *                   requests.
@@ -527,12 +557,32 @@ public class JEBAsyncHttpClient {
     }
 
     /**
-     * Get the default threading pool to be used for this HTTP client.
+     * Get the default threading pool to be used for this HTTP client. The default pool runs at most
+     * {@link #getMaxConnections()} requests at once, queues up to {@link
+     * #DEFAULT_MAX_QUEUED_REQUESTS} more and respects per route connection limits.
      *
      * @return The default threading pool to be used
      */
     protected ExecutorService getDefaultThreadPool() {
-        return Executors.newCachedThreadPool();
+        return new RequestDispatcher(maxConnections, DEFAULT_MAX_QUEUED_REQUESTS, new ConnPerRouteBean(maxConnections));
+    }
+
+    /**
+     * Returns number of requests sent through this client which are queued or running
+     *
+     * @return number of pending requests
+     */
+    public int getPendingRequestCount() {
+        return requestRegistry.size();
+    }
+
+    /**
+     * Returns the built-in dispatcher, if it is the executor currently used
+     *
+     * @return RequestDispatcher instance or null if custom thread pool has been set
+     */
+    public RequestDispatcher getRequestDispatcher() {
+        return threadPool instanceof RequestDispatcher ? (RequestDispatcher) threadPool : null;
     }
 
     /**
@@ -620,7 +670,13 @@ public class JEBAsyncHttpClient {
             maxConnections = DEFAULT_MAX_CONNECTIONS;
         this.maxConnections = maxConnections;
         final HttpParams httpParams = this.httpClient.getParams();
-        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(this.maxConnections));
+        final ConnPerRouteBean connPerRoute = new ConnPerRouteBean(this.maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, connPerRoute);
+        if (threadPool instanceof RequestDispatcher) {
+            final RequestDispatcher dispatcher = (RequestDispatcher) threadPool;
+            dispatcher.setConnPerRoute(connPerRoute);
+            dispatcher.setMaxWorkers(this.maxConnections);
+        }
     }
 
     /**
@@ -682,6 +738,29 @@ public class JEBAsyncHttpClient {
         HttpConnectionParams.setSoTimeout(httpParams, responseTimeout);
     }
 
+    /**
+     * Returns the total time allowed per request (milliseconds), 0 if requests are only limited
+     * by the connect and response timeouts. By default, there is no deadline.
+     *
+     * @return request deadline in milliseconds
+     */
+    public int getRequestDeadline() {
+        return requestDeadline;
+    }
+
+    /**
+     * Set the total time allowed per request (milliseconds), counted from the moment the request
+     * is sent. Unlike the connect and response timeouts, which apply to every single attempt, the
+     * deadline spans the connection lease wait, all retries, redirects and authentication round
+     * trips and the reading of the response. A request still running when the deadline expires
+     * is aborted and fails with a {@link DeadlineExceededException}.
+     *
+     * @param value request deadline in milliseconds, 0 to disable
+     */
+    public void setRequestDeadline(int value) {
+        requestDeadline = Math.max(value, 0);
+    }
+
     /**
      * Sets the Proxy by it's hostname and port
      *
@@ -722,13 +801,156 @@ public class JEBAsyncHttpClient {
     }
 
     /**
-     * Sets the maximum number of retries and timeout for a particular Request.
+     * Sets the maximum number of retries and timeout for a particular Request. The wait before a
+     * retry is chosen randomly up to the timeout doubled for every previous retry (exponential
+     * backoff with full jitter), the request does not occupy a worker thread while waiting.
      *
      * @param retries maximum number of retries per request
-     * @param timeout sleep between retries in milliseconds
+     * @param timeout base of the wait between retries in milliseconds
      */
     public void setMaxRetriesAndTimeout(int retries, int timeout) {
-        this.httpClient.setHttpRequestRetryHandler(new RetryHandler(retries, timeout));
+        this.retryHandler = new RetryHandler(retries, timeout, retryBudget);
+    }
+
+    /**
+     * Returns the budget limiting retries of this client to a share of its requests, 10% by
+     * default with a reserve of 10 retries
+     *
+     * @return retry budget shared by all requests of this client
+     */
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Enables hedging of GET and HEAD requests: when the response of such a request is late, a
+     * second identical request is sent and the first response received is used. Disabled by
+     * default.
+     *
+     * @param hedgePolicy policy deciding when to hedge, null to disable hedging
+     */
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
+    /**
+     * @return policy hedging late GET and HEAD requests, null if hedging is disabled
+     */
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * Sets the cache storing responses to GET requests as allowed by their Cache-Control,
+     * Expires and validator headers. Fresh responses are then delivered without a network round
+     * trip and stale ones are revalidated with conditional requests. Disabled by default.
+     *
+     * @param responseCache cache to use, may be shared by several clients, null to disable caching
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * @return cache of this client, null if caching is disabled
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Sets the evictor closing pooled connections in the background once they have been idle for
+     * too long or have expired, so that requests do not pick up connections the server has
+     * already closed. Disabled by default, has no effect with a custom connection manager.
+     *
+     * @param evictor evictor to use, may be shared by several clients, null to disable eviction
+     */
+    public void setIdleConnectionEvictor(IdleConnectionEvictor evictor) {
+        ClientConnectionManager cm = httpClient.getConnectionManager();
+        if (cm instanceof ThreadSafeClientConnManager) {
+            ((ThreadSafeClientConnManager) cm).setIdleConnectionEvictor(evictor);
+        } else {
+            log.w(LOG_TAG, "Connection eviction needs a ThreadSafeClientConnManager");
+        }
+    }
+
+    /**
+     * @return evictor of the pooled connections, null if eviction is disabled
+     */
+    public IdleConnectionEvictor getIdleConnectionEvictor() {
+        ClientConnectionManager cm = httpClient.getConnectionManager();
+        if (cm instanceof ThreadSafeClientConnManager) {
+            return ((ThreadSafeClientConnManager) cm).getIdleConnectionEvictor();
+        }
+        return null;
+    }
+
+    /**
+     * Sets the policy replacing the stale connection check made before every request: pooled
+     * connections are only checked once they have been idle for longer than the threshold of the
+     * policy, and a request failing on a reused connection the server had already closed is sent
+     * again on a new one. Disabled by default, has no effect with a custom connection manager.
+     *
+     * @param policy policy to use, may be shared by several clients, null to check every lease
+     */
+    public void setConnectionValidationPolicy(ConnectionValidationPolicy policy) {
+        ClientConnectionManager cm = httpClient.getConnectionManager();
+        if (cm instanceof ThreadSafeClientConnManager) {
+            ((ThreadSafeClientConnManager) cm).setConnectionValidationPolicy(policy);
+        } else {
+            log.w(LOG_TAG, "Connection validation policy needs a ThreadSafeClientConnManager");
+        }
+    }
+
+    /**
+     * @return policy validating pooled connections, null if every lease is checked
+     */
+    public ConnectionValidationPolicy getConnectionValidationPolicy() {
+        ClientConnectionManager cm = httpClient.getConnectionManager();
+        if (cm instanceof ThreadSafeClientConnManager) {
+            return ((ThreadSafeClientConnManager) cm).getConnectionValidationPolicy();
+        }
+        return null;
+    }
+
+    /**
+     * Opens connections to the host of the given URL in the background, through the proxy if one
+     * is set, so that the first requests to it do not pay for the DNS lookup, TCP connect and TLS
+     * handshake. The connections are parked in the pool and count towards its limits.
+     *
+     * @param url   URL of the host to connect to, only the scheme, host and port are used
+     * @param count number of connections to open, capped at the maximum connections per route
+     * @return future of the number of connections opened and how long each handshake phase took,
+     * failed if no route to the host can be determined or with a custom connection manager
+     */
+    public ComposableFuture<PrewarmResult> prewarm(String url, int count) {
+        Utils.notNull(url, "url");
+        ComposableFuture<PrewarmResult> future = new ComposableFuture<PrewarmResult>();
+        ClientConnectionManager cm = httpClient.getConnectionManager();
+        if (!(cm instanceof ThreadSafeClientConnManager)) {
+            future.failed(new IllegalStateException("Pre-warming needs a ThreadSafeClientConnManager"));
+            return future;
+        }
+        HttpRoute route;
+        try {
+            HttpGet request = new HttpGet(url);
+            HttpHost target = URIUtils.extractHost(request.getURI());
+            if (target == null) {
+                throw new HttpException("URL has no host: " + url);
+            }
+            route = httpClient.getRoutePlanner().determineRoute(target, request, httpContext);
+        } catch (IllegalArgumentException e) {
+            future.failed(e);
+            return future;
+        } catch (HttpException e) {
+            future.failed(e);
+            return future;
+        }
+        if (route.isTunnelled()) {
+            future.failed(new HttpException("Tunnelled route cannot be pre-warmed: " + route));
+            return future;
+        }
+        return ((ThreadSafeClientConnManager) cm).prewarm(route, count, httpClient.getParams());
     }
 
     /**
@@ -855,8 +1077,7 @@ public class JEBAsyncHttpClient {
             return;
         }
 
-        final List<RequestHandle> requestList = requestMap.get(context);
-        requestMap.remove(context);
+        final List<RequestHandle> requestList = requestRegistry.removeByContext(context);
 
         if (Looper.myLooper() == Looper.getMainLooper()) {
             Runnable runnable = new Runnable() {
@@ -865,7 +1086,8 @@ public class JEBAsyncHttpClient {
                     cancelRequests(requestList, mayInterruptIfRunning);
                 }
             };
-            threadPool.submit(runnable);
+            // not through the request queue, which may be full or drop the task
+            cancelExecutor.execute(runnable);
         } else {
             cancelRequests(requestList, mayInterruptIfRunning);
         }
@@ -889,20 +1111,14 @@ public class JEBAsyncHttpClient {
      *                              pending requests.
      */
     public void cancelAllRequests(boolean mayInterruptIfRunning) {
-        for (List<RequestHandle> requestList : requestMap.values()) {
-            if (requestList != null) {
-                for (RequestHandle requestHandle : requestList) {
-                    requestHandle.cancel(mayInterruptIfRunning);
-                }
-            }
-        }
-        requestMap.clear();
+        cancelRequests(requestRegistry.removeAllWithContext(), mayInterruptIfRunning);
     }
 
     /**
      * Allows you to cancel all requests currently in queue or running, by set TAG,
      * if passed TAG is null, will not attempt to cancel any requests, if TAG is null
-     * on RequestHandle, it cannot be canceled by this call
+     * on RequestHandle, it cannot be canceled by this call. The TAG has to be set on the
+     * response handler before the request is sent, or later through {@link RequestHandle#setTag(Object)}.
      *
      * @param TAG                   TAG to be matched in RequestHandle
      * @param mayInterruptIfRunning specifies if active requests should be cancelled along with
@@ -913,14 +1129,7 @@ public class JEBAsyncHttpClient {
             log.d(LOG_TAG, "cancelRequestsByTAG, passed TAG is null, cannot proceed");
             return;
         }
-        for (List<RequestHandle> requestList : requestMap.values()) {
-            if (requestList != null) {
-                for (RequestHandle requestHandle : requestList) {
-                    if (TAG.equals(requestHandle.getTag()))
-                        requestHandle.cancel(mayInterruptIfRunning);
-                }
-            }
-        }
+        cancelRequests(requestRegistry.getByTag(TAG), mayInterruptIfRunning);
     }
 
     // [-] HTTP HEAD
@@ -1419,6 +1628,74 @@ public class JEBAsyncHttpClient {
         return sendRequest(httpClient, httpContext, addEntityToRequestBase(new HttpDelete(URI.create(url).normalize()), entity), contentType, responseHandler, context);
     }
 
+    /**
+     * Performs the request and returns a future completed with the converted response. The
+     * conversion runs on the thread executing the request, responses with status 300 and above
+     * fail the future with a {@link m.vita.module.http.exception.HttpResponseException}.
+     * Cancelling the future, or any stage derived from it, cancels the request.
+     *
+     * @param context   the Android Context which initiated the request, may be null
+     * @param request   the request to perform
+     * @param converter conversion of the response into the result
+     * @param <T>       type of the result
+     * @return future of the converted response
+     */
+    public <T> ComposableFuture<T> execute(Context context, HttpUriRequest request, ResponseConverter<? extends T> converter) {
+        return execute(context, request, converter, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Performs the request and returns a future completed with the converted response, see
+     * {@link #execute(Context, HttpUriRequest, ResponseConverter)}. If the response is not
+     * converted within the timeout, the future fails with a
+     * {@link java.util.concurrent.TimeoutException} and the request gets cancelled.
+     *
+     * @param context   the Android Context which initiated the request, may be null
+     * @param request   the request to perform
+     * @param converter conversion of the response into the result
+     * @param timeout   time limit including retries, 0 for no limit
+     * @param unit      unit of the timeout
+     * @param <T>       type of the result
+     * @return future of the converted response
+     */
+    public <T> ComposableFuture<T> execute(Context context, HttpUriRequest request, ResponseConverter<? extends T> converter, long timeout, TimeUnit unit) {
+        Utils.notNull(converter, "converter");
+        ComposableFuture<T> future = new ComposableFuture<T>();
+        final RequestHandle handle = sendRequest(httpClient, httpContext, request, null, new FutureResponseHandler<T>(future, converter), context);
+        future.setCancellable(new Cancellable() {
+            @Override
+            public boolean cancel() {
+                return handle.cancel(true);
+            }
+        });
+        if (timeout > 0) {
+            future.withTimeout(timeout, unit);
+        }
+        return future;
+    }
+
+    /**
+     * Performs a group of requests as a unit. Requests to the same host are submitted one after
+     * another to make the best use of pooled connections. The returned future completes with the
+     * outcome of every request once all of them are done or, if a quorum is given, as soon as that
+     * many requests succeeded or the quorum can no longer be reached; requests still running at
+     * that point are cancelled. Cancelling the future cancels all requests of the batch.
+     *
+     * @param context   the Android Context which initiated the requests, may be null
+     * @param requests  requests to perform
+     * @param converter conversion of the responses into results
+     * @param quorum    number of successful requests the batch needs, 0 to wait for all requests
+     * @param <T>       type of the results
+     * @return future of the batch outcome
+     * @throws RejectedExecutionException if the batch does not fit into the free capacity of the
+     *                                    request queue, in which case no request was started
+     */
+    public <T> ComposableFuture<BatchResult<T>> executeBatch(Context context, Collection<? extends HttpUriRequest> requests, ResponseConverter<? extends T> converter, int quorum) {
+        Utils.notNull(requests, "requests");
+        Utils.notNull(converter, "converter");
+        return RequestBatch.execute(this, context, requests, converter, quorum);
+    }
+
     /**
      * Instantiate a new asynchronous HTTP request for the passed parameters.
      *
@@ -1435,6 +1712,18 @@ public class JEBAsyncHttpClient {
         return new JEBAsyncHttpRequest(client, httpContext, uriRequest, responseHandler);
     }
 
+    /**
+     * Instantiates the request shared by coalesced callers, through {@link #newAsyncHttpRequest}
+     * so that subclasses customize it like any other request.
+     */
+    @SuppressWarnings("deprecation")
+    JEBAsyncHttpRequest newFlightRequest(AbstractHttpClient client, HttpContext httpContext, HttpUriRequest uriRequest, String contentType, ResponseHandlerInterface responseHandler, Context context) {
+        if (client instanceof DefaultHttpClient) {
+            return newAsyncHttpRequest((DefaultHttpClient) client, httpContext, uriRequest, contentType, responseHandler, context);
+        }
+        return new JEBAsyncHttpRequest(client, httpContext, uriRequest, responseHandler);
+    }
+
     /**
      * Puts a new request in queue as a new thread in pool to be executed
      *
@@ -1470,33 +1759,43 @@ public class JEBAsyncHttpClient {
 
         responseHandler.setRequestHeaders(uriRequest.getAllHeaders());
         responseHandler.setRequestURI(uriRequest.getURI());
+        retryBudget.onRequest();
 
-        JEBAsyncHttpRequest request = newAsyncHttpRequest(client, httpContext, uriRequest, contentType, responseHandler, context);
-        threadPool.submit(request);
+        JEBAsyncHttpRequest request;
+        if (isRequestCoalescingEnabled && RequestCoalescer.isCoalescable(uriRequest, responseHandler)) {
+            String key = RequestCoalescer.keyOf(uriRequest, clientHeaderMap);
+            request = requestCoalescer.send(this, client, httpContext, uriRequest, contentType, responseHandler, context, key);
+        } else {
+            request = newAsyncHttpRequest(client, httpContext, uriRequest, contentType, responseHandler, context);
+            submitRequest(request);
+        }
         RequestHandle requestHandle = new RequestHandle(request);
+        requestRegistry.register(request, requestHandle, context);
 
-        if (context != null) {
-            List<RequestHandle> requestList;
-            // Add request to request map
-            synchronized (requestMap) {
-                requestList = requestMap.get(context);
-                if (requestList == null) {
-                    requestList = Collections.synchronizedList(new LinkedList<RequestHandle>());
-                    requestMap.put(context, requestList);
-                }
-            }
-
-            requestList.add(requestHandle);
+        return requestHandle;
+    }
 
-            Iterator<RequestHandle> iterator = requestList.iterator();
-            while (iterator.hasNext()) {
-                if (iterator.next().shouldBeGarbageCollected()) {
-                    iterator.remove();
-                }
-            }
+    /**
+     * Hands the request to the thread pool, which will also run its retries
+     *
+     * @param request request to execute
+     */
+    void submitRequest(JEBAsyncHttpRequest request) {
+        request.setRetryExecutor(threadPool);
+        request.setRetryHandler(retryHandler);
+        request.setHedgePolicy(hedgePolicy);
+        request.setResponseCache(responseCache);
+        int deadline = requestDeadline;
+        if (deadline > 0) {
+            request.setDeadline(Deadline.after(deadline, TimeUnit.MILLISECONDS));
+        }
+        try {
+            threadPool.submit(request);
+        } catch (RejectedExecutionException e) {
+            // reported like any other failure, get() and post() must not throw on a full queue
+            log.w(LOG_TAG, "Request queue rejected " + request.getRequest().getURI(), e);
+            request.fail(new IOException("Request rejected: " + e.getMessage()));
         }
-
-        return requestHandle;
     }
 
     /**
@@ -1548,6 +1847,23 @@ public class JEBAsyncHttpClient {
         return isUrlEncodingEnabled;
     }
 
+    /**
+     * Enables single-flight mode: GET and HEAD requests identical to a request which is still in
+     * flight (same URI, same headers) do not open their own connection, they are attached to the
+     * running request and receive a copy of its response. Every attached request keeps its own
+     * RequestHandle and can be cancelled independently. Requests of file and streaming handlers
+     * are never coalesced, as they do not buffer the response. Disabled by default.
+     *
+     * @param enabled desired state of feature
+     */
+    public void setRequestCoalescingEnabled(boolean enabled) {
+        this.isRequestCoalescingEnabled = enabled;
+    }
+
+    public boolean isRequestCoalescingEnabled() {
+        return isRequestCoalescingEnabled;
+    }
+
     /**
      * Applicable only to HttpRequest methods extending HttpEntityEnclosingRequestBase, which is for
      * example not DELETE
@@ -1,16 +1,43 @@
 package m.vita.module.http;
 
+import android.os.SystemClock;
+
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import m.vita.module.http.client.AbstractHttpClient;
 import m.vita.module.http.client.HttpRequestRetryHandler;
-import m.vita.module.http.handler.RangeFileJEBAsyncHttpResponseHandler;
+import m.vita.module.http.client.cache.CachingExec;
+import m.vita.module.http.client.cache.ResponseCache;
+import m.vita.module.http.client.execchain.ClientExecChain;
+import m.vita.module.http.client.protocol.ClientContext;
+import m.vita.module.http.client.protocol.HttpClientContext;
+import m.vita.module.http.concurrent.Cancellable;
+import m.vita.module.http.concurrent.Deadline;
+import m.vita.module.http.concurrent.TimerWheel;
+import m.vita.module.http.concurrent.cancellable.HttpExecutionAware;
+import m.vita.module.http.exception.ClientProtocolException;
+import m.vita.module.http.exception.DeadlineExceededException;
+import m.vita.module.http.exception.HttpException;
+import m.vita.module.http.execute.BasicHttpContext;
+import m.vita.module.http.execute.CloseableHttpResponse;
+import m.vita.module.http.handler.FileJEBAsyncHttpResponseHandler;
 import m.vita.module.http.handler.ResponseHandlerInterface;
+import m.vita.module.http.handler.SegmentedFileJEBAsyncHttpResponseHandler;
+import m.vita.module.http.handler.StreamingJEBAsyncHttpResponseHandler;
 import m.vita.module.http.header.HttpContext;
+import m.vita.module.http.header.HttpHost;
+import m.vita.module.http.header.HttpRoute;
 import m.vita.module.http.header.HttpUriRequest;
+import m.vita.module.http.header.URIUtils;
+import m.vita.module.http.method.HttpGet;
+import m.vita.module.http.method.HttpRequestBase;
+import m.vita.module.http.method.HttpRequestWrapper;
+import m.vita.module.http.util.EntityUtils;
 import m.vita.module.http.util.Utils;
 
 public class JEBAsyncHttpRequest implements Runnable {
@@ -23,6 +50,16 @@ public class JEBAsyncHttpRequest implements Runnable {
     private boolean cancelIsNotified;
     private volatile boolean isFinished;
     private boolean isRequestPreProcessed;
+    private boolean isStarted;
+    private volatile RequestRegistry.Registration registration;
+    private volatile Executor retryExecutor;
+    private volatile TimerWheel.Timeout pendingRetry;
+    private volatile HttpRequestRetryHandler retryHandler;
+    private volatile HedgePolicy hedgePolicy;
+    private volatile HttpUriRequest hedgeRequest;
+    private volatile ResponseCache responseCache;
+    private volatile Deadline deadline;
+    private volatile TimerWheel.Timeout deadlineTimer;
 
     public JEBAsyncHttpRequest(AbstractHttpClient client, HttpContext context, HttpUriRequest request, ResponseHandlerInterface responseHandler) {
         this.client = Utils.notNull(client, "client");
@@ -63,8 +100,25 @@ public class JEBAsyncHttpRequest implements Runnable {
 
     @Override
     public void run() {
+        boolean isRetryScheduled = false;
+        try {
+            isRetryScheduled = execute();
+        } finally {
+            if (!isRetryScheduled) {
+                cancelDeadlineTimer();
+                unregister();
+            }
+        }
+    }
+
+    /**
+     * Executes the request, or continues it when it is run again for a scheduled retry
+     *
+     * @return true if a retry has been scheduled and the request will run again
+     */
+    private boolean execute() {
         if (isCancelled()) {
-            return;
+            return false;
         }
 
         // Carry out pre-processing for this request only once.
@@ -74,17 +128,22 @@ public class JEBAsyncHttpRequest implements Runnable {
         }
 
         if (isCancelled()) {
-            return;
+            return false;
         }
 
-        responseHandler.sendStartMessage();
+        if (!isStarted) {
+            isStarted = true;
+            responseHandler.sendStartMessage();
+        }
 
         if (isCancelled()) {
-            return;
+            return false;
         }
 
         try {
-            makeRequestWithRetries();
+            if (makeRequestWithRetries()) {
+                return true;
+            }
         } catch (IOException e) {
             if (!isCancelled()) {
                 responseHandler.sendFailureMessage(0, null, null, e);
@@ -93,6 +152,11 @@ public class JEBAsyncHttpRequest implements Runnable {
             }
         }
 
+        finish();
+        return false;
+    }
+
+    private void finish() {
         if (isCancelled()) {
             return;
         }
@@ -109,9 +173,12 @@ public class JEBAsyncHttpRequest implements Runnable {
         isFinished = true;
     }
 
-    private void makeRequest() throws IOException {
+    /**
+     * @return delay in milliseconds after which the server asked to retry, or -1
+     */
+    private long makeRequest(HttpRequestRetryHandler retryHandler) throws IOException {
         if (isCancelled()) {
-            return;
+            return -1;
         }
 
         // Fixes #115
@@ -120,65 +187,131 @@ public class JEBAsyncHttpRequest implements Runnable {
             throw new MalformedURLException("No valid URI scheme was provided");
         }
 
-        if (responseHandler instanceof RangeFileJEBAsyncHttpResponseHandler) {
-            ((RangeFileJEBAsyncHttpResponseHandler) responseHandler).updateRequestHeaders(request);
+        if (responseHandler instanceof FileJEBAsyncHttpResponseHandler) {
+            ((FileJEBAsyncHttpResponseHandler) responseHandler).updateRequestHeaders(request);
+        } else if (responseHandler instanceof StreamingJEBAsyncHttpResponseHandler) {
+            ((StreamingJEBAsyncHttpResponseHandler) responseHandler).resetStream();
+        }
+
+        HttpContext executionContext = context;
+        Deadline deadline = this.deadline;
+        if (deadline != null) {
+            deadline.check("sending request");
+            // the context is shared by all requests of the client
+            executionContext = new BasicHttpContext(context);
+            executionContext.setAttribute(ClientContext.REQUEST_DEADLINE, deadline);
         }
 
-        HttpResponse response = client.execute(request, context);
+        if (responseHandler instanceof SegmentedFileJEBAsyncHttpResponseHandler) {
+            ((SegmentedFileJEBAsyncHttpResponseHandler) responseHandler).setHttpClient(client, executionContext);
+        }
+
+        HttpResponse response;
+        ResponseCache responseCache = this.responseCache;
+        HttpHost target = URIUtils.extractHost(request.getURI());
+        if (responseCache != null && target != null) {
+            try {
+                response = new CachingExec(new NetworkExec(), responseCache).execute(new HttpRoute(target),
+                        HttpRequestWrapper.wrap(request), HttpClientContext.adapt(executionContext),
+                        request instanceof HttpExecutionAware ? (HttpExecutionAware) request : null);
+            } catch (HttpException e) {
+                throw new ClientProtocolException(e);
+            }
+        } else {
+            response = executeOnNetwork(request, executionContext);
+        }
 
         if (isCancelled()) {
-            return;
+            return -1;
+        }
+
+        if (retryHandler instanceof RetryHandler) {
+            long retryAfter = ((RetryHandler) retryHandler).getRetryAfterDelay(response, executionCount + 1);
+            if (retryAfter >= 0) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                return retryAfter;
+            }
         }
 
         // Carry out pre-processing for this response.
         responseHandler.onPreProcessResponse(responseHandler, response);
 
         if (isCancelled()) {
-            return;
+            return -1;
         }
 
         // The response is ready, handle it.
         responseHandler.sendResponseMessage(response);
 
         if (isCancelled()) {
-            return;
+            return -1;
         }
 
         // Carry out post-processing for this response.
         responseHandler.onPostProcessResponse(responseHandler, response);
+        return -1;
     }
 
-    private void makeRequestWithRetries() throws IOException {
+    /**
+     * @return true if a retry has been scheduled, false if the request completed
+     * @throws IOException if the request failed and will not be retried
+     */
+    private boolean makeRequestWithRetries() throws IOException {
         boolean retry = true;
         IOException cause = null;
-        HttpRequestRetryHandler retryHandler = client.getHttpRequestRetryHandler();
+        HttpRequestRetryHandler retryHandler = this.retryHandler != null ? this.retryHandler : client.getHttpRequestRetryHandler();
         try {
             while (retry) {
+                long delay;
                 try {
-                    makeRequest();
-                    return;
+                    long retryAfter = makeRequest(retryHandler);
+                    if (retryAfter < 0) {
+                        return false;
+                    }
+                    ++executionCount;
+                    delay = retryAfter;
                 } catch (UnknownHostException e) {
                     // switching between WI-FI and mobile data networks can cause a retry which then results in an UnknownHostException
                     // while the WI-FI is initialising. The retry logic will be invoked here, if this is NOT the first retry
                     // (to assist in genuine cases of unknown host) which seems better than outright failure
                     cause = new IOException("UnknownHostException exception: " + e.getMessage());
                     retry = (executionCount > 0) && retryHandler.retryRequest(e, ++executionCount, context);
+                    delay = getRetryDelay(retryHandler);
                 } catch (NullPointerException e) {
                     // there's a bug in HttpClient 4.0.x that on some occasions causes
                     // DefaultRequestExecutor to throw an NPE, see
                     // https://code.google.com/p/android/issues/detail?id=5255
                     cause = new IOException("NPE in HttpClient: " + e.getMessage());
                     retry = retryHandler.retryRequest(cause, ++executionCount, context);
+                    delay = getRetryDelay(retryHandler);
                 } catch (IOException e) {
                     if (isCancelled()) {
                         // Eating exception, as the request was cancelled
-                        return;
+                        return false;
                     }
                     cause = e;
                     retry = retryHandler.retryRequest(cause, ++executionCount, context);
+                    delay = getRetryDelay(retryHandler);
+                }
+                Deadline deadline = this.deadline;
+                if (deadline != null && (deadline.isExpired() || (retry && delay >= deadline.remainingMillis()))) {
+                    // no time left for another attempt
+                    if (!(cause instanceof DeadlineExceededException)) {
+                        IOException timeout = deadline.newException(retry ? "retrying" : null);
+                        timeout.initCause(cause);
+                        cause = timeout;
+                    }
+                    retry = false;
                 }
                 if (retry) {
                     responseHandler.sendRetryMessage(executionCount);
+                    if (scheduleRetry(delay)) {
+                        return true;
+                    }
+                    // no executor to hand the request back to, wait on this thread
+                    if (delay > 0) {
+                        SystemClock.sleep(delay);
+                    }
                 }
             }
         } catch (Exception e) {
@@ -191,6 +324,137 @@ public class JEBAsyncHttpRequest implements Runnable {
         throw (cause);
     }
 
+    private long getRetryDelay(HttpRequestRetryHandler retryHandler) {
+        return retryHandler instanceof RetryHandler ? ((RetryHandler) retryHandler).getRetryDelay(executionCount) : 0;
+    }
+
+    /**
+     * Hands the request back to the executor once the delay elapsed, so that no worker is blocked
+     * while waiting for the next attempt
+     *
+     * @return false if no executor has been set
+     */
+    private boolean scheduleRetry(long delayMillis) {
+        final Executor executor = retryExecutor;
+        if (executor == null || isCancelled()) {
+            return false;
+        }
+        pendingRetry = RetryHandler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                pendingRetry = null;
+                try {
+                    executor.execute(JEBAsyncHttpRequest.this);
+                } catch (RejectedExecutionException e) {
+                    JEBAsyncHttpClient.log.w("JEBAsyncHttpRequest", "Executor rejected retry of request", e);
+                    fail(new IOException("Retry rejected: " + e.getMessage()));
+                }
+            }
+        }, delayMillis);
+        return true;
+    }
+
+    /**
+     * Completes the request with a failure without running it, e.g. when no executor accepted it
+     *
+     * @param cause failure reported to the response handler
+     */
+    void fail(IOException cause) {
+        if (!isCancelled()) {
+            responseHandler.sendFailureMessage(0, null, null, cause);
+        }
+        finish();
+        cancelDeadlineTimer();
+        unregister();
+    }
+
+    /**
+     * Sets the executor the request is handed back to for retries. Without executor, the thread
+     * running the request waits for the next attempt.
+     *
+     * @param retryExecutor executor running the request, typically the client's thread pool
+     */
+    void setRetryExecutor(Executor retryExecutor) {
+        this.retryExecutor = retryExecutor;
+    }
+
+    /**
+     * Limits the total time of the request including all retries, redirects and authentication
+     * round trips. Once the deadline expires, the request is aborted and fails with a
+     * {@link DeadlineExceededException}.
+     *
+     * @param deadline deadline starting when the request is sent, null for none
+     */
+    void setDeadline(Deadline deadline) {
+        cancelDeadlineTimer();
+        this.deadline = deadline;
+        if (deadline != null) {
+            deadlineTimer = deadline.onExpiry(new Runnable() {
+                @Override
+                public void run() {
+                    abortExecution(false);
+                }
+            });
+        }
+    }
+
+    private void cancelDeadlineTimer() {
+        TimerWheel.Timeout timer = deadlineTimer;
+        if (timer != null) {
+            deadlineTimer = null;
+            timer.cancel();
+        }
+    }
+
+    private CloseableHttpResponse executeOnNetwork(HttpUriRequest request, HttpContext executionContext) throws IOException {
+        HedgePolicy hedgePolicy = this.hedgePolicy;
+        return hedgePolicy != null
+                ? hedgePolicy.execute(client, request, executionContext, this)
+                : client.execute(request, executionContext);
+    }
+
+    /**
+     * Sets the handler deciding on the retries of this request, in place of the retry handler of
+     * the client. The client then should not retry on its own, as it would retry without backoff.
+     *
+     * @param retryHandler handler of the retries, or null to use the one of the client
+     */
+    void setRetryHandler(HttpRequestRetryHandler retryHandler) {
+        this.retryHandler = retryHandler;
+    }
+
+    /**
+     * Sets the cache serving and storing the responses of this request
+     *
+     * @param responseCache cache of the client, or null to not cache
+     */
+    void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Sets the policy hedging GET and HEAD requests whose response is late
+     *
+     * @param hedgePolicy policy of the client, or null to not hedge
+     */
+    void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
+    /**
+     * Sets the hedge of the request being sent, aborted along with it on cancellation or expiry
+     * of the deadline, as its response may be the one being read
+     *
+     * @param hedgeRequest running or winning hedge, null once there is none
+     */
+    void setHedgeRequest(HttpUriRequest hedgeRequest) {
+        this.hedgeRequest = hedgeRequest;
+        Deadline deadline = this.deadline;
+        if (hedgeRequest != null && (isCancelled.get() || (deadline != null && deadline.isExpired()))) {
+            hedgeRequest.abort();
+        }
+    }
+
     public boolean isCancelled() {
         boolean cancelled = isCancelled.get();
         if (cancelled) {
@@ -212,10 +476,57 @@ public class JEBAsyncHttpRequest implements Runnable {
 
     public boolean cancel(boolean mayInterruptIfRunning) {
         isCancelled.set(true);
-        request.abort();
+        cancelDeadlineTimer();
+        unregister();
+        TimerWheel.Timeout retry = pendingRetry;
+        if (retry != null) {
+            retry.cancel();
+        }
+        abortExecution(true);
         return isCancelled();
     }
 
+    private void abortExecution(boolean cancelled) {
+        request.abort();
+        HttpUriRequest hedge = hedgeRequest;
+        if (hedge != null) {
+            hedge.abort();
+        }
+        if (responseHandler instanceof StreamingJEBAsyncHttpResponseHandler) {
+            // wake up reader blocked by backpressure, an expired deadline fails the read
+            StreamingJEBAsyncHttpResponseHandler handler = (StreamingJEBAsyncHttpResponseHandler) responseHandler;
+            if (cancelled) {
+                handler.cancelStream();
+            } else {
+                handler.abortStream();
+            }
+        }
+    }
+
+    void setRegistration(RequestRegistry.Registration registration) {
+        this.registration = registration;
+    }
+
+    /**
+     * Removes this request from the registry of its client, called once the request is done
+     */
+    void unregister() {
+        RequestRegistry.Registration registration = this.registration;
+        if (registration != null) {
+            this.registration = null;
+            registration.unregister();
+        }
+    }
+
+    /**
+     * Returns the request which will be executed
+     *
+     * @return HttpUriRequest instance, never null
+     */
+    public HttpUriRequest getRequest() {
+        return this.request;
+    }
+
     /**
      * Will set Object as TAG to this request, wrapped by WeakReference
      *
@@ -224,6 +535,10 @@ public class JEBAsyncHttpRequest implements Runnable {
      */
     public JEBAsyncHttpRequest setRequestTag(Object TAG) {
         this.responseHandler.setTag(TAG);
+        RequestRegistry.Registration registration = this.registration;
+        if (registration != null) {
+            registration.setTag(TAG);
+        }
         return this;
     }
 
@@ -235,4 +550,37 @@ public class JEBAsyncHttpRequest implements Runnable {
     public Object getTag() {
         return this.responseHandler.getTag();
     }
+
+    /**
+     * Last stage below the response cache, sending requests through the client of this request.
+     * Conditional requests created by the cache are sent as copies of the original request.
+     */
+    private final class NetworkExec implements ClientExecChain {
+
+        // the legacy client still reads timeouts, redirects and the virtual host from the params
+        @SuppressWarnings("deprecation")
+        @Override
+        public CloseableHttpResponse execute(HttpRoute route, HttpRequestWrapper wrapper,
+                HttpClientContext context, HttpExecutionAware execAware) throws IOException {
+            if (wrapper.getOriginal() == request) {
+                return executeOnNetwork(request, context);
+            }
+            final HttpGet copy = new HttpGet(request.getURI());
+            copy.setHeaders(wrapper.getAllHeaders());
+            copy.setParams(request.getParams());
+            if (request instanceof HttpRequestBase) {
+                copy.setConfig(((HttpRequestBase) request).getConfig());
+            }
+            if (execAware != null) {
+                execAware.setCancellable(new Cancellable() {
+                    @Override
+                    public boolean cancel() {
+                        copy.abort();
+                        return true;
+                    }
+                });
+            }
+            return executeOnNetwork(copy, context);
+        }
+    }
 }
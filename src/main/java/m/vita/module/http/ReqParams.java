@@ -380,7 +380,8 @@ public class ReqParams implements Parcelable {
     /**
      * Sets an additional field when upload a JSON object through the streamer
      * to hold the time, in milliseconds, it took to upload the payload. By
-     * default, this field is set to "_elapsed".
+     * default, this field is set to "_elapsed". The value is padded with spaces
+     * to a fixed width, so that the length of the upload is still known.
      * <p>&nbsp;</p>
      * To disable this feature, call this method with null as the field value.
      *
@@ -0,0 +1,197 @@
+package m.vita.module.http;
+
+import android.content.Context;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.concurrent.Cancellable;
+import m.vita.module.http.concurrent.ComposableFuture;
+import m.vita.module.http.concurrent.FutureCallback;
+import m.vita.module.http.handler.ResponseConverter;
+import m.vita.module.http.header.HttpUriRequest;
+
+/**
+ * Group of requests executed as a unit, see
+ * {@link JEBAsyncHttpClient#executeBatch(Context, Collection, ResponseConverter, int)}.
+ * <p>&nbsp;</p>
+ * Requests are submitted grouped by target host, so that requests sharing a route follow each
+ * other and reuse the connections released by their predecessors. The batch completes once all
+ * requests are done or, with a quorum, as soon as the quorum is reached or can no longer be
+ * reached; requests still running at that point get cancelled.
+ */
+@ThreadSafe
+final class RequestBatch<T> implements Cancellable {
+    private static final String LOG_TAG = "RequestBatch";
+
+    private final ComposableFuture<BatchResult<T>> future = new ComposableFuture<BatchResult<T>>();
+    private final List<ComposableFuture<T>> members;
+    private final Object[] results;
+    private final Exception[] failures;
+    private final boolean[] succeeded;
+    private final int quorum;
+    private final boolean waitForAll;
+    private int succeededCount;
+    private int failedCount;
+    private boolean isCompleted;
+
+    private RequestBatch(final int size, final int quorum) {
+        this.members = new ArrayList<ComposableFuture<T>>(Collections.<ComposableFuture<T>>nCopies(size, null));
+        this.results = new Object[size];
+        this.failures = new Exception[size];
+        this.succeeded = new boolean[size];
+        this.waitForAll = quorum <= 0 || quorum >= size;
+        this.quorum = this.waitForAll ? size : quorum;
+    }
+
+    static <T> ComposableFuture<BatchResult<T>> execute(final JEBAsyncHttpClient client, final Context context,
+                                                       final Collection<? extends HttpUriRequest> requests,
+                                                       final ResponseConverter<? extends T> converter, final int quorum) {
+        final List<HttpUriRequest> list = new ArrayList<HttpUriRequest>(requests);
+        final RequestBatch<T> batch = new RequestBatch<T>(list.size(), quorum);
+        batch.future.setCancellable(batch);
+        if (list.isEmpty()) {
+            batch.complete();
+            return batch.future;
+        }
+
+        final int freeCapacity = freeQueueCapacity(client);
+        if (list.size() > freeCapacity) {
+            throw new RejectedExecutionException("Batch of " + list.size() + " requests exceeds free request queue capacity of " + freeCapacity);
+        }
+
+        // submit requests of the same route one after another
+        final List<Integer> order = new ArrayList<Integer>(list.size());
+        final List<String> routes = new ArrayList<String>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            order.add(i);
+            routes.add(routeKey(list.get(i)));
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer lhs, final Integer rhs) {
+                final int result = routes.get(lhs).compareTo(routes.get(rhs));
+                return result != 0 ? result : lhs.compareTo(rhs);
+            }
+        });
+
+        for (final int index : order) {
+            synchronized (batch) {
+                if (batch.isCompleted) {
+                    // cancelled, or decided by the members submitted so far
+                    break;
+                }
+            }
+            final ComposableFuture<T> member;
+            try {
+                member = client.execute(context, list.get(index), converter);
+            } catch (final RuntimeException e) {
+                JEBAsyncHttpClient.log.w(LOG_TAG, "Submitting batch request failed, cancelling batch", e);
+                batch.cancel();
+                batch.future.failed(e);
+                return batch.future;
+            }
+            final boolean isLate;
+            synchronized (batch) {
+                batch.members.set(index, member);
+                isLate = batch.isCompleted;
+            }
+            if (isLate) {
+                // the batch completed while the request was submitted, cancelMembers() missed it
+                member.cancel(true);
+                break;
+            }
+            member.addCallback(new FutureCallback<T>() {
+                @Override
+                public void completed(final T result) {
+                    batch.onMemberDone(index, result, null);
+                }
+
+                @Override
+                public void failed(final Exception ex) {
+                    batch.onMemberDone(index, null, ex);
+                }
+
+                @Override
+                public void cancelled() {
+                    batch.onMemberDone(index, null, null);
+                }
+            });
+        }
+        return batch.future;
+    }
+
+    private static int freeQueueCapacity(final JEBAsyncHttpClient client) {
+        final RequestDispatcher dispatcher = client.getRequestDispatcher();
+        if (dispatcher == null) {
+            return Integer.MAX_VALUE;
+        }
+        return dispatcher.getQueueCapacity() - dispatcher.getQueueSize();
+    }
+
+    private static String routeKey(final HttpUriRequest request) {
+        final URI uri = request.getURI();
+        return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+    }
+
+    private void onMemberDone(final int index, final T result, final Exception failure) {
+        synchronized (this) {
+            if (this.isCompleted) {
+                return;
+            }
+            if (failure == null && !this.members.get(index).isCancelled()) {
+                this.results[index] = result;
+                this.succeeded[index] = true;
+                this.succeededCount++;
+            } else {
+                this.failures[index] = failure;
+                this.failedCount++;
+            }
+            final int total = this.succeeded.length;
+            final boolean allDone = this.succeededCount + this.failedCount == total;
+            final boolean decided = !this.waitForAll
+                    && (this.succeededCount >= this.quorum || this.failedCount > total - this.quorum);
+            if (!allDone && !decided) {
+                return;
+            }
+        }
+        complete();
+    }
+
+    private void complete() {
+        final BatchResult<T> result;
+        synchronized (this) {
+            this.isCompleted = true;
+            result = new BatchResult<T>(this.results, this.failures, this.succeeded, this.quorum);
+        }
+        cancelMembers();
+        this.future.completed(result);
+    }
+
+    private void cancelMembers() {
+        final List<ComposableFuture<T>> pending;
+        synchronized (this) {
+            pending = new ArrayList<ComposableFuture<T>>(this.members);
+        }
+        for (final ComposableFuture<T> member : pending) {
+            if (member != null) {
+                member.cancel(true);
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel() {
+        synchronized (this) {
+            this.isCompleted = true;
+        }
+        cancelMembers();
+        return true;
+    }
+}
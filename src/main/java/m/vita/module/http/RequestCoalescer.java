@@ -0,0 +1,415 @@
+package m.vita.module.http;
+
+import android.content.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.client.AbstractHttpClient;
+import m.vita.module.http.entity.BasicHttpEntity;
+import m.vita.module.http.handler.FileJEBAsyncHttpResponseHandler;
+import m.vita.module.http.handler.ResponseHandlerInterface;
+import m.vita.module.http.handler.StreamingJEBAsyncHttpResponseHandler;
+import m.vita.module.http.header.Header;
+import m.vita.module.http.header.HttpContext;
+import m.vita.module.http.header.HttpUriRequest;
+import m.vita.module.http.message.BasicHttpResponse;
+import m.vita.module.http.method.HttpEntityEnclosingRequestBase;
+import m.vita.module.http.util.ByteArrayBuffer;
+
+/**
+ * Single-flight support for {@link JEBAsyncHttpClient}. Identical GET and HEAD requests which are
+ * submitted while an equal request is still in flight are attached to it instead of being executed
+ * again. The response of the shared request is buffered once and handed to every attached
+ * {@link ResponseHandlerInterface} as its own {@link HttpResponse} copy.
+ * <p>&nbsp;</p>
+ * Requests are considered identical when method, URI and all request headers (including the
+ * client-wide headers) match. Credentials are resolved per client and per target host, so a
+ * coalescer must not be shared between clients.
+ */
+@ThreadSafe
+class RequestCoalescer {
+
+    private static final String LOG_TAG = "RequestCoalescer";
+
+    private static final Comparator<Header> HEADER_ORDER = new Comparator<Header>() {
+        @Override
+        public int compare(Header lhs, Header rhs) {
+            return lhs.getName().compareToIgnoreCase(rhs.getName());
+        }
+    };
+
+    private final ConcurrentHashMap<String, Flight> flights;
+
+    RequestCoalescer() {
+        this.flights = new ConcurrentHashMap<String, Flight>();
+    }
+
+    /**
+     * @param uriRequest      request to be sent
+     * @param responseHandler handler which will receive the response
+     * @return whether the request may share a response with other identical requests
+     */
+    static boolean isCoalescable(HttpUriRequest uriRequest, ResponseHandlerInterface responseHandler) {
+        final String method = uriRequest.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return false;
+        }
+        if (uriRequest instanceof HttpEntityEnclosingRequestBase
+                && ((HttpEntityEnclosingRequestBase) uriRequest).getEntity() != null) {
+            return false;
+        }
+        // file handlers stream to disk and rewrite request headers right before execution
+        // (ranges, cache validators, segments), streaming handlers must not get a buffered copy
+        return !(responseHandler instanceof FileJEBAsyncHttpResponseHandler)
+                && !(responseHandler instanceof StreamingJEBAsyncHttpResponseHandler);
+    }
+
+    static String keyOf(HttpUriRequest uriRequest, Map<String, String> clientHeaders) {
+        final StringBuilder key = new StringBuilder(128);
+        key.append(uriRequest.getMethod()).append(' ').append(uriRequest.getURI().toASCIIString());
+        final Header[] headers = uriRequest.getAllHeaders();
+        Arrays.sort(headers, HEADER_ORDER);
+        for (Header header : headers) {
+            key.append('\n').append(header.getName().toLowerCase(Locale.ROOT)).append(':').append(header.getValue());
+        }
+        if (!clientHeaders.isEmpty()) {
+            for (Map.Entry<String, String> header : new TreeMap<String, String>(clientHeaders).entrySet()) {
+                key.append("\n*").append(header.getKey().toLowerCase(Locale.ROOT)).append(':').append(header.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return number of distinct requests currently in flight
+     */
+    int getFlightCount() {
+        return flights.size();
+    }
+
+    JEBAsyncHttpRequest send(JEBAsyncHttpClient asyncHttpClient, AbstractHttpClient client, HttpContext httpContext,
+                       HttpUriRequest uriRequest, String contentType, ResponseHandlerInterface responseHandler,
+                       Context context, String key) {
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight != null) {
+                final Member member = new Member(flight, client, httpContext, uriRequest, responseHandler);
+                if (flight.attach(member)) {
+                    return member;
+                }
+                // flight has just completed, start a new one
+                flights.remove(key, flight);
+                continue;
+            }
+            flight = new Flight(key);
+            final Member member = new Member(flight, client, httpContext, uriRequest, responseHandler);
+            flight.attach(member);
+            if (flights.putIfAbsent(key, flight) != null) {
+                continue;
+            }
+            flight.setRequestHeaders(uriRequest.getAllHeaders());
+            flight.setRequestURI(uriRequest.getURI());
+            final JEBAsyncHttpRequest request = asyncHttpClient.newFlightRequest(client, httpContext, uriRequest, contentType, flight, context);
+            flight.leader = request;
+            asyncHttpClient.submitRequest(request);
+            return member;
+        }
+    }
+
+    /**
+     * Handle of one caller attached to a shared request. It is never executed itself, it only
+     * tracks the caller's cancellation and completion state.
+     */
+    private static final class Member extends JEBAsyncHttpRequest {
+
+        private final Flight flight;
+        private final ResponseHandlerInterface responseHandler;
+        private final AtomicBoolean isCancelled = new AtomicBoolean();
+        private volatile boolean isFinished;
+
+        Member(Flight flight, AbstractHttpClient client, HttpContext context, HttpUriRequest request, ResponseHandlerInterface responseHandler) {
+            super(client, context, request, responseHandler);
+            this.flight = flight;
+            this.responseHandler = responseHandler;
+        }
+
+        @Override
+        public void run() {
+            // executed by the shared request
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return isCancelled.get();
+        }
+
+        @Override
+        public boolean isDone() {
+            return isCancelled.get() || isFinished;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!isFinished && isCancelled.compareAndSet(false, true)) {
+                flight.detach(this);
+                responseHandler.sendCancelMessage();
+            }
+            unregister();
+            return isCancelled.get();
+        }
+    }
+
+    /**
+     * Response handler of the shared request, multicasts every event to the attached members.
+     */
+    private final class Flight implements ResponseHandlerInterface {
+
+        private final String key;
+        private final List<Member> members = new ArrayList<Member>(2);
+        private volatile JEBAsyncHttpRequest leader;
+        private boolean isStarted;
+        private boolean isClosed;
+        private URI requestURI;
+        private Header[] requestHeaders;
+        private Object tag;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        synchronized boolean attach(Member member) {
+            if (isClosed) {
+                return false;
+            }
+            members.add(member);
+            if (isStarted) {
+                member.responseHandler.sendStartMessage();
+            }
+            return true;
+        }
+
+        void detach(Member member) {
+            final boolean abandoned;
+            synchronized (this) {
+                members.remove(member);
+                abandoned = members.isEmpty() && !isClosed;
+                if (abandoned) {
+                    isClosed = true;
+                }
+            }
+            if (abandoned) {
+                flights.remove(key, this);
+                final JEBAsyncHttpRequest request = leader;
+                if (request != null) {
+                    request.cancel(true);
+                }
+            }
+        }
+
+        private synchronized Member[] snapshot() {
+            return members.toArray(new Member[members.size()]);
+        }
+
+        // closes the flight for new members, later callers will issue a fresh request
+        private Member[] close() {
+            synchronized (this) {
+                isClosed = true;
+            }
+            flights.remove(key, this);
+            return snapshot();
+        }
+
+        @Override
+        public void sendResponseMessage(HttpResponse response) throws IOException {
+            final byte[] body = readBody(response.getEntity());
+            for (Member member : close()) {
+                if (member.isCancelled()) {
+                    continue;
+                }
+                final HttpResponse copy = copyOf(response, body);
+                final ResponseHandlerInterface handler = member.responseHandler;
+                try {
+                    handler.onPreProcessResponse(handler, copy);
+                    handler.sendResponseMessage(copy);
+                    handler.onPostProcessResponse(handler, copy);
+                } catch (IOException e) {
+                    handler.sendFailureMessage(0, null, null, e);
+                }
+            }
+        }
+
+        private byte[] readBody(HttpEntity entity) throws IOException {
+            if (entity == null) {
+                return null;
+            }
+            final InputStream instream = entity.getContent();
+            if (instream == null) {
+                return null;
+            }
+            final long contentLength = entity.getContentLength();
+            if (contentLength > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("HTTP entity too large to be buffered in memory");
+            }
+            final ByteArrayBuffer buffer = new ByteArrayBuffer(contentLength <= 0 ? 4096 : (int) contentLength);
+            try {
+                final byte[] tmp = new byte[4096];
+                long count = 0;
+                int l;
+                while ((l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
+                    count += l;
+                    buffer.append(tmp, 0, l);
+                    sendProgressMessage(count, contentLength <= 0 ? 1 : contentLength);
+                }
+            } finally {
+                JEBAsyncHttpClient.silentCloseInputStream(instream);
+                JEBAsyncHttpClient.endEntityViaReflection(entity);
+            }
+            return buffer.toByteArray();
+        }
+
+        private HttpResponse copyOf(HttpResponse response, byte[] body) {
+            final BasicHttpResponse copy = new BasicHttpResponse(response.getStatusLine());
+            copy.setHeaders(response.getAllHeaders());
+            final HttpEntity entity = response.getEntity();
+            if (body != null) {
+                final BasicHttpEntity bodyEntity = new BasicHttpEntity();
+                bodyEntity.setContent(new ByteArrayInputStream(body));
+                bodyEntity.setContentLength(body.length);
+                bodyEntity.setContentType(entity.getContentType());
+                copy.setEntity(bodyEntity);
+            }
+            return copy;
+        }
+
+        @Override
+        public void sendStartMessage() {
+            final Member[] attached;
+            synchronized (this) {
+                isStarted = true;
+                attached = snapshot();
+            }
+            for (Member member : attached) {
+                member.responseHandler.sendStartMessage();
+            }
+        }
+
+        @Override
+        public void sendFinishMessage() {
+            for (Member member : close()) {
+                if (!member.isCancelled()) {
+                    member.isFinished = true;
+                    member.responseHandler.sendFinishMessage();
+                }
+                member.unregister();
+            }
+        }
+
+        @Override
+        public void sendProgressMessage(long bytesWritten, long bytesTotal) {
+            for (Member member : snapshot()) {
+                member.responseHandler.sendProgressMessage(bytesWritten, bytesTotal);
+            }
+        }
+
+        @Override
+        public void sendCancelMessage() {
+            // members are notified when they detach
+            close();
+        }
+
+        @Override
+        public void sendSuccessMessage(int statusCode, Header[] headers, byte[] responseBody) {
+            for (Member member : close()) {
+                member.responseHandler.sendSuccessMessage(statusCode, headers, responseBody);
+            }
+        }
+
+        @Override
+        public void sendFailureMessage(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+            for (Member member : close()) {
+                member.responseHandler.sendFailureMessage(statusCode, headers, responseBody, error);
+            }
+        }
+
+        @Override
+        public void sendRetryMessage(int retryNo) {
+            for (Member member : snapshot()) {
+                member.responseHandler.sendRetryMessage(retryNo);
+            }
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return requestURI;
+        }
+
+        @Override
+        public void setRequestURI(URI requestURI) {
+            this.requestURI = requestURI;
+        }
+
+        @Override
+        public Header[] getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public void setRequestHeaders(Header[] requestHeaders) {
+            this.requestHeaders = requestHeaders;
+        }
+
+        @Override
+        public boolean getUseSynchronousMode() {
+            // events are dispatched by the members' own handlers
+            return true;
+        }
+
+        @Override
+        public void setUseSynchronousMode(boolean useSynchronousMode) {
+            JEBAsyncHttpClient.log.w(LOG_TAG, "Shared request always dispatches through attached handlers");
+        }
+
+        @Override
+        public boolean getUsePoolThread() {
+            return true;
+        }
+
+        @Override
+        public void setUsePoolThread(boolean usePoolThread) {
+            JEBAsyncHttpClient.log.w(LOG_TAG, "Shared request always dispatches through attached handlers");
+        }
+
+        @Override
+        public void onPreProcessResponse(ResponseHandlerInterface instance, HttpResponse response) {
+            // run per member in sendResponseMessage
+        }
+
+        @Override
+        public void onPostProcessResponse(ResponseHandlerInterface instance, HttpResponse response) {
+            // run per member in sendResponseMessage
+        }
+
+        @Override
+        public Object getTag() {
+            return tag;
+        }
+
+        @Override
+        public void setTag(Object TAG) {
+            this.tag = TAG;
+        }
+    }
+}
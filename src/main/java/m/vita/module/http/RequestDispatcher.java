@@ -0,0 +1,548 @@
+package m.vita.module.http;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.concurrent.DaemonThreadFactory;
+import m.vita.module.http.header.HttpHost;
+import m.vita.module.http.header.HttpRoute;
+import m.vita.module.http.header.URIUtils;
+import m.vita.module.http.params.ConnPerRoute;
+import m.vita.module.http.params.ConnPerRouteBean;
+import m.vita.module.http.util.Args;
+
+/**
+ * Bounded executor used by {@link JEBAsyncHttpClient} to run requests.
+ * <p>&nbsp;</p>
+ * A fixed number of worker threads is started on demand and never exceeded. Submitted
+ * {@link JEBAsyncHttpRequest}s are queued per route and a route is only handed to a worker
+ * while it has fewer running requests than its {@link ConnPerRoute} limit, so workers are not
+ * parked waiting for a connection of a saturated route while other routes could make progress.
+ * Tasks which are not requests share a single unlimited queue. Once the total number of queued
+ * tasks reaches the queue capacity, the {@link OverflowPolicy} decides what happens to the new
+ * task. Tasks are never run on the submitting thread, which typically is the main thread.
+ */
+@ThreadSafe
+public class RequestDispatcher extends AbstractExecutorService {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    /**
+     * What to do with a task submitted while the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Reject the task with a {@link RejectedExecutionException}
+         */
+        ABORT,
+        /**
+         * Cancel the oldest queued task and queue the new one. A discarded request is reported to
+         * its response handler as failure.
+         */
+        DISCARD_OLDEST
+    }
+
+    private static final String LOG_TAG = "RequestDispatcher";
+    private static final Object UNROUTED = new Object();
+
+    private final Lock lock;
+    private final Condition workAvailable;
+    private final Condition terminated;
+    private final Map<Object, RouteQueue> routeQueues;
+    private final ArrayDeque<RouteQueue> ready;
+    private final List<Thread> workers;
+    private int maxWorkers;
+    private final int queueCapacity;
+    private final ThreadFactory threadFactory;
+
+    private volatile ConnPerRoute connPerRoute;
+    private volatile OverflowPolicy overflowPolicy;
+    private int queued;
+    private int active;
+    private boolean isShutDown;
+
+    public RequestDispatcher(final int maxWorkers, final int queueCapacity, final ConnPerRoute connPerRoute) {
+        super();
+        this.maxWorkers = Args.positive(maxWorkers, "Max workers");
+        this.queueCapacity = Args.positive(queueCapacity, "Queue capacity");
+        this.connPerRoute = Args.notNull(connPerRoute, "Connections per route");
+        this.overflowPolicy = OverflowPolicy.ABORT;
+        this.lock = new ReentrantLock();
+        this.workAvailable = this.lock.newCondition();
+        this.terminated = this.lock.newCondition();
+        this.routeQueues = new HashMap<Object, RouteQueue>();
+        this.ready = new ArrayDeque<RouteQueue>();
+        this.workers = new ArrayList<Thread>(maxWorkers);
+        this.threadFactory = new DaemonThreadFactory("JEBAsyncHttp-");
+    }
+
+    public RequestDispatcher(final int maxWorkers) {
+        this(maxWorkers, DEFAULT_QUEUE_CAPACITY, new ConnPerRouteBean(maxWorkers));
+    }
+
+    public ConnPerRoute getConnPerRoute() {
+        return this.connPerRoute;
+    }
+
+    /**
+     * Sets per route concurrency limits, usually the same instance the connection manager uses
+     *
+     * @param connPerRoute per route limits, must not be null
+     */
+    public void setConnPerRoute(final ConnPerRoute connPerRoute) {
+        this.connPerRoute = Args.notNull(connPerRoute, "Connections per route");
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = Args.notNull(overflowPolicy, "Overflow policy");
+    }
+
+    public int getMaxWorkers() {
+        this.lock.lock();
+        try {
+            return this.maxWorkers;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the number of worker threads. Additional workers are started for the queued tasks
+     * at once, surplus workers stop as soon as they finished their current task.
+     *
+     * @param maxWorkers new number of workers, at least 1
+     */
+    public void setMaxWorkers(final int maxWorkers) {
+        Args.positive(maxWorkers, "Max workers");
+        this.lock.lock();
+        try {
+            this.maxWorkers = maxWorkers;
+            for (final RouteQueue routeQueue : this.routeQueues.values()) {
+                // routes held back by the previous limit
+                markReady(routeQueue);
+            }
+            startWorkers();
+            // wakes up idle workers, the surplus ones stop
+            this.workAvailable.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getQueueCapacity() {
+        return this.queueCapacity;
+    }
+
+    /**
+     * @return number of tasks waiting for a worker
+     */
+    public int getQueueSize() {
+        this.lock.lock();
+        try {
+            return this.queued;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of workers currently running a task
+     */
+    public int getActiveCount() {
+        this.lock.lock();
+        try {
+            return this.active;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of started workers waiting for a task
+     */
+    public int getIdleCount() {
+        this.lock.lock();
+        try {
+            return this.workers.size() - this.active;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of started workers
+     */
+    public int getPoolSize() {
+        this.lock.lock();
+        try {
+            return this.workers.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value) {
+        return new RoutedTask<T>(runnable, value, routeOf(runnable));
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable) {
+        return new RoutedTask<T>(callable, null);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        Args.notNull(command, "Task");
+        final Object route = routeOf(command);
+        Runnable discarded = null;
+        this.lock.lock();
+        try {
+            if (this.isShutDown) {
+                throw new RejectedExecutionException("Dispatcher has been shut down");
+            }
+            if (this.queued >= this.queueCapacity) {
+                switch (this.overflowPolicy) {
+                    case DISCARD_OLDEST:
+                        discarded = pollOldest();
+                        break;
+                    default:
+                        throw new RejectedExecutionException("Request queue is full (" + this.queueCapacity + ")");
+                }
+            }
+            enqueue(command, route);
+        } finally {
+            this.lock.unlock();
+        }
+        if (discarded != null) {
+            JEBAsyncHttpClient.log.w(LOG_TAG, "Request queue is full, oldest queued task was discarded");
+            if (discarded instanceof Future) {
+                ((Future<?>) discarded).cancel(false);
+            }
+            final JEBAsyncHttpRequest request = requestOf(discarded);
+            if (request != null) {
+                // reported like a rejected submission, the handler would otherwise never finish
+                request.fail(new IOException("Request discarded: request queue is full (" + this.queueCapacity + ")"));
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        this.lock.lock();
+        try {
+            this.isShutDown = true;
+            this.workAvailable.signalAll();
+            if (this.workers.isEmpty()) {
+                this.terminated.signalAll();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        final List<Runnable> pending = new ArrayList<Runnable>();
+        this.lock.lock();
+        try {
+            this.isShutDown = true;
+            for (final RouteQueue routeQueue : this.routeQueues.values()) {
+                pending.addAll(routeQueue.tasks);
+                routeQueue.tasks.clear();
+            }
+            this.routeQueues.clear();
+            this.ready.clear();
+            this.queued = 0;
+            for (final Thread worker : this.workers) {
+                worker.interrupt();
+            }
+            this.workAvailable.signalAll();
+            if (this.workers.isEmpty()) {
+                this.terminated.signalAll();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        this.lock.lock();
+        try {
+            return this.isShutDown;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        this.lock.lock();
+        try {
+            return this.isShutDown && this.workers.isEmpty();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        this.lock.lock();
+        try {
+            while (!(this.isShutDown && this.workers.isEmpty())) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = this.terminated.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Creates a worker thread, override to customize naming, priority, etc.
+     *
+     * @param runnable worker loop to run
+     * @return new, not started thread
+     */
+    protected Thread newThread(final Runnable runnable) {
+        return this.threadFactory.newThread(runnable);
+    }
+
+    private Object routeOf(final Runnable runnable) {
+        if (runnable instanceof RoutedTask) {
+            return ((RoutedTask<?>) runnable).route;
+        }
+        if (runnable instanceof JEBAsyncHttpRequest) {
+            final HttpHost target = URIUtils.extractHost(((JEBAsyncHttpRequest) runnable).getRequest().getURI());
+            if (target != null) {
+                return new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+            }
+        }
+        return UNROUTED;
+    }
+
+    private static JEBAsyncHttpRequest requestOf(final Runnable runnable) {
+        if (runnable instanceof RoutedTask) {
+            return ((RoutedTask<?>) runnable).request;
+        }
+        return runnable instanceof JEBAsyncHttpRequest ? (JEBAsyncHttpRequest) runnable : null;
+    }
+
+    private int getMaxFor(final Object route) {
+        if (route instanceof HttpRoute) {
+            return Math.max(1, this.connPerRoute.getMaxForRoute((HttpRoute) route));
+        }
+        return this.maxWorkers;
+    }
+
+    // Must be called with the lock held
+    private void enqueue(final Runnable command, final Object route) {
+        RouteQueue routeQueue = this.routeQueues.get(route);
+        if (routeQueue == null) {
+            routeQueue = new RouteQueue(route);
+            this.routeQueues.put(route, routeQueue);
+        }
+        routeQueue.tasks.add(command);
+        this.queued++;
+        markReady(routeQueue);
+        startWorkers();
+    }
+
+    // Must be called with the lock held
+    private void startWorkers() {
+        while (this.workers.size() - this.active < this.queued && this.workers.size() < this.maxWorkers) {
+            final Thread worker = newThread(new Worker());
+            this.workers.add(worker);
+            worker.start();
+        }
+    }
+
+    // Must be called with the lock held
+    private void markReady(final RouteQueue routeQueue) {
+        if (!routeQueue.isReady && !routeQueue.tasks.isEmpty() && routeQueue.active < getMaxFor(routeQueue.route)) {
+            routeQueue.isReady = true;
+            this.ready.add(routeQueue);
+            this.workAvailable.signal();
+        }
+    }
+
+    // Must be called with the lock held
+    private Runnable pollOldest() {
+        RouteQueue oldest = null;
+        long oldestSeq = Long.MAX_VALUE;
+        for (final RouteQueue routeQueue : this.routeQueues.values()) {
+            if (!routeQueue.tasks.isEmpty() && routeQueue.firstSeq() < oldestSeq) {
+                oldest = routeQueue;
+                oldestSeq = routeQueue.firstSeq();
+            }
+        }
+        if (oldest == null) {
+            return null;
+        }
+        this.queued--;
+        final Runnable task = oldest.tasks.poll();
+        release(oldest);
+        return task;
+    }
+
+    // Must be called with the lock held
+    private void release(final RouteQueue routeQueue) {
+        if (routeQueue.tasks.isEmpty() && routeQueue.active == 0) {
+            if (routeQueue.isReady) {
+                this.ready.remove(routeQueue);
+            }
+            this.routeQueues.remove(routeQueue.route);
+        }
+    }
+
+    private Runnable take(final RouteQueue[] holder) throws InterruptedException {
+        this.lock.lock();
+        try {
+            for (;;) {
+                if (this.workers.size() > this.maxWorkers) {
+                    // surplus worker after the number of workers was lowered
+                    this.workers.remove(Thread.currentThread());
+                    return null;
+                }
+                if (!this.ready.isEmpty()) {
+                    break;
+                }
+                if (this.isShutDown) {
+                    return null;
+                }
+                this.workAvailable.await();
+            }
+            final RouteQueue routeQueue = this.ready.poll();
+            routeQueue.isReady = false;
+            final Runnable task = routeQueue.tasks.poll();
+            routeQueue.active++;
+            this.queued--;
+            this.active++;
+            // round robin between routes
+            markReady(routeQueue);
+            holder[0] = routeQueue;
+            return task;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void done(final RouteQueue routeQueue) {
+        this.lock.lock();
+        try {
+            routeQueue.active--;
+            this.active--;
+            markReady(routeQueue);
+            release(routeQueue);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void exit(final Thread worker) {
+        this.lock.lock();
+        try {
+            this.workers.remove(worker);
+            if (this.isShutDown && this.workers.isEmpty()) {
+                this.terminated.signalAll();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            final RouteQueue[] holder = new RouteQueue[1];
+            try {
+                Runnable task;
+                while ((task = take(holder)) != null) {
+                    try {
+                        // clear interrupt left over from a cancelled task
+                        Thread.interrupted();
+                        task.run();
+                    } catch (final Throwable t) {
+                        JEBAsyncHttpClient.log.e(LOG_TAG, "Uncaught exception in dispatched task", t);
+                    } finally {
+                        done(holder[0]);
+                    }
+                }
+            } catch (final InterruptedException ignore) {
+                // shutdownNow()
+            } finally {
+                exit(Thread.currentThread());
+            }
+        }
+    }
+
+    private static final class RouteQueue {
+
+        private final Object route;
+        private final ArrayDeque<Runnable> tasks;
+        private int active;
+        private boolean isReady;
+
+        RouteQueue(final Object route) {
+            this.route = route;
+            this.tasks = new ArrayDeque<Runnable>();
+        }
+
+        long firstSeq() {
+            final Runnable first = this.tasks.peek();
+            return first instanceof RoutedTask ? ((RoutedTask<?>) first).seq : Long.MAX_VALUE - 1;
+        }
+    }
+
+    private static final class RoutedTask<T> extends FutureTask<T> {
+
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+
+        private final Object route;
+        private final JEBAsyncHttpRequest request;
+        private final long seq;
+
+        RoutedTask(final Runnable runnable, final T value, final Object route) {
+            super(runnable, value);
+            this.route = route;
+            this.request = runnable instanceof JEBAsyncHttpRequest ? (JEBAsyncHttpRequest) runnable : null;
+            this.seq = SEQUENCE.incrementAndGet();
+        }
+
+        RoutedTask(final Callable<T> callable, final Object route) {
+            super(callable);
+            this.route = route == null ? UNROUTED : route;
+            this.request = null;
+            this.seq = SEQUENCE.incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+package m.vita.module.http;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.handler.RequestHandle;
+
+/**
+ * Requests of a {@link JEBAsyncHttpClient} which are queued or running, indexed by the Android
+ * Context they were sent with and by their TAG. Requests register themselves when they are sent
+ * and are removed again as soon as they finish or get cancelled, so lookups only ever see live
+ * requests. Neither registration nor removal takes a lock shared by all requests.
+ */
+@ThreadSafe
+final class RequestRegistry {
+
+    private final ConcurrentHashMap<Context, Set<Registration>> byContext = new ConcurrentHashMap<Context, Set<Registration>>();
+    private final ConcurrentHashMap<Object, Set<Registration>> byTag = new ConcurrentHashMap<Object, Set<Registration>>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Tracks the request until it is done
+     *
+     * @param request request which has just been sent
+     * @param handle  handle returned to the caller
+     * @param context context the request was sent with, may be null
+     */
+    void register(JEBAsyncHttpRequest request, RequestHandle handle, Context context) {
+        Registration registration = new Registration(this, handle, context);
+        size.incrementAndGet();
+        if (context != null) {
+            add(byContext, context, registration);
+        }
+        request.setRegistration(registration);
+        registration.setTag(request.getTag());
+        // the request may have finished before it got registered
+        if (request.isDone()) {
+            request.unregister();
+        }
+    }
+
+    /**
+     * @return number of requests currently tracked
+     */
+    int size() {
+        return size.get();
+    }
+
+    List<RequestHandle> removeByContext(Context context) {
+        return handlesOf(byContext.remove(context));
+    }
+
+    List<RequestHandle> getByTag(Object tag) {
+        return handlesOf(byTag.get(tag));
+    }
+
+    List<RequestHandle> removeAllWithContext() {
+        List<RequestHandle> handles = new ArrayList<RequestHandle>();
+        for (Context context : byContext.keySet()) {
+            handles.addAll(removeByContext(context));
+        }
+        return handles;
+    }
+
+    private static List<RequestHandle> handlesOf(Set<Registration> registrations) {
+        if (registrations == null) {
+            return Collections.emptyList();
+        }
+        List<RequestHandle> handles = new ArrayList<RequestHandle>(registrations.size());
+        for (Registration registration : registrations) {
+            handles.add(registration.handle);
+        }
+        return handles;
+    }
+
+    private static <K> void add(ConcurrentHashMap<K, Set<Registration>> index, K key, Registration registration) {
+        while (true) {
+            Set<Registration> registrations = index.get(key);
+            if (registrations == null) {
+                Set<Registration> created = Collections.newSetFromMap(new ConcurrentHashMap<Registration, Boolean>(4));
+                registrations = index.putIfAbsent(key, created);
+                if (registrations == null) {
+                    registrations = created;
+                }
+            }
+            registrations.add(registration);
+            // retry if the set was dropped as empty in the meantime
+            if (index.get(key) == registrations) {
+                return;
+            }
+            registrations.remove(registration);
+        }
+    }
+
+    private static <K> void remove(ConcurrentHashMap<K, Set<Registration>> index, K key, Registration registration) {
+        Set<Registration> registrations = index.get(key);
+        if (registrations != null && registrations.remove(registration) && registrations.isEmpty()
+                && index.remove(key, registrations)) {
+            // put back registrations which were added while the set was dropped
+            for (Registration late : registrations) {
+                add(index, key, late);
+                if (late.isRemoved) {
+                    remove(index, key, late);
+                }
+            }
+        }
+    }
+
+    /**
+     * Entry of a single request in the indexes.
+     */
+    static final class Registration {
+        private final RequestRegistry registry;
+        private final RequestHandle handle;
+        private final Context context;
+        private Object tag;
+        private volatile boolean isRemoved;
+
+        Registration(RequestRegistry registry, RequestHandle handle, Context context) {
+            this.registry = registry;
+            this.handle = handle;
+            this.context = context;
+        }
+
+        synchronized void setTag(Object tag) {
+            if (isRemoved || (tag != null && tag.equals(this.tag))) {
+                return;
+            }
+            if (this.tag != null) {
+                remove(registry.byTag, this.tag, this);
+            }
+            this.tag = tag;
+            if (tag != null) {
+                add(registry.byTag, tag, this);
+            }
+        }
+
+        synchronized void unregister() {
+            if (isRemoved) {
+                return;
+            }
+            isRemoved = true;
+            registry.size.decrementAndGet();
+            if (context != null) {
+                remove(registry.byContext, context, this);
+            }
+            if (tag != null) {
+                remove(registry.byTag, tag, this);
+            }
+        }
+    }
+}
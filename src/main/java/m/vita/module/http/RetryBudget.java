@@ -0,0 +1,118 @@
+package m.vita.module.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.header.HttpContext;
+import m.vita.module.http.util.Args;
+
+/**
+ * Limits retries to a share of the requests sent by a client, so that a degraded backend does not
+ * get flooded with retries on top of the regular traffic.
+ * <p>&nbsp;</p>
+ * Every request deposits <code>ratio</code> of a token, every retry withdraws a whole token. The
+ * balance never exceeds <code>reserve</code> tokens, which is also the initial balance and lets a
+ * client with little traffic retry occasional failures.
+ * <p>&nbsp;</p>
+ * A client puts its budget into its execution context under {@link #ATTRIBUTE}, so that the
+ * request executors charge the connections they transparently send again to it as well.
+ */
+@ThreadSafe
+public class RetryBudget {
+
+    public static final float DEFAULT_RATIO = 0.1f;
+    public static final int DEFAULT_RESERVE = 10;
+
+    /** Name of the context attribute holding the budget of the client */
+    public static final String ATTRIBUTE = "http.retry.budget";
+
+    private static final long TOKEN = 1000;
+
+    private final long deposit;
+    private final long maxBalance;
+    private final AtomicLong balance;
+    private final AtomicLong granted = new AtomicLong();
+    private final AtomicLong denied = new AtomicLong();
+
+    /**
+     * Creates budget allowing retries of 10% of the requests with a reserve of 10 retries
+     */
+    public RetryBudget() {
+        this(DEFAULT_RATIO, DEFAULT_RESERVE);
+    }
+
+    /**
+     * Creates new budget
+     *
+     * @param ratio   retries allowed per request, e.g. 0.1 for 10%
+     * @param reserve retries allowed regardless of the ratio
+     */
+    public RetryBudget(float ratio, int reserve) {
+        Args.check(ratio >= 0, "Retry ratio may not be negative");
+        Args.notNegative(reserve, "Retry reserve");
+        this.deposit = (long) (ratio * TOKEN);
+        this.maxBalance = Math.max(reserve * TOKEN, TOKEN);
+        this.balance = new AtomicLong(reserve * TOKEN);
+    }
+
+    /**
+     * @param context execution context, may be null
+     * @return budget of the client executing the request, null if its retries are not limited
+     */
+    public static RetryBudget get(final HttpContext context) {
+        return context != null ? (RetryBudget) context.getAttribute(ATTRIBUTE) : null;
+    }
+
+    /**
+     * Records a request sent for the first time
+     */
+    public void onRequest() {
+        if (deposit == 0) {
+            return;
+        }
+        long current;
+        do {
+            current = balance.get();
+            if (current >= maxBalance) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(maxBalance, current + deposit)));
+    }
+
+    /**
+     * Withdraws a retry from the budget
+     *
+     * @return false if the budget is exhausted and the request must not be retried
+     */
+    public boolean tryAcquire() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < TOKEN) {
+                denied.incrementAndGet();
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - TOKEN));
+        granted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return number of retries allowed so far
+     */
+    public long getGrantedCount() {
+        return granted.get();
+    }
+
+    /**
+     * @return number of retries refused because the budget was exhausted
+     */
+    public long getDeniedCount() {
+        return denied.get();
+    }
+
+    @Override
+    public String toString() {
+        return "[balance: " + (balance.get() / (float) TOKEN) + "; granted: " + granted.get() + "; denied: " + denied.get() + "]";
+    }
+}
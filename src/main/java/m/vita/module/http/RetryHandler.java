@@ -1,22 +1,41 @@
 package m.vita.module.http;
 
-import android.os.SystemClock;
-
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLException;
 
 import m.vita.module.http.client.HttpRequestRetryHandler;
 import m.vita.module.http.client.protocol.ExecutionContext;
+import m.vita.module.http.concurrent.TimerWheel;
 import m.vita.module.http.exception.NoHttpResponseException;
 import m.vita.module.http.header.HttpContext;
+import m.vita.module.http.header.Header;
 import m.vita.module.http.header.HttpUriRequest;
-
+import m.vita.module.http.util.DateUtils;
+import m.vita.module.http.util.HttpStatus;
+
+/**
+ * Decides whether a failed request is retried and how long to wait before. The wait grows
+ * exponentially with the number of attempts and is randomized over the whole interval (full
+ * jitter), so that clients failing at the same time do not retry at the same time. A
+ * <code>Retry-After</code> header of a 503 or 429 response is honored instead.
+ * <p>&nbsp;</p>
+ * The handler never blocks, {@link JEBAsyncHttpRequest} schedules the next attempt through
+ * {@link #schedule(Runnable, long)} and releases its worker in between.
+ */
 class RetryHandler  implements HttpRequestRetryHandler {
+    static final int DEFAULT_MAX_RETRY_DELAY_MILLIS = 30 * 1000;
+    static final int DEFAULT_MAX_RETRY_AFTER_MILLIS = 60 * 1000;
+    static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+
     private final static HashSet<Class<?>> exceptionWhitelist = new HashSet<Class<?>>();
     private final static HashSet<Class<?>> exceptionBlacklist = new HashSet<Class<?>>();
 
@@ -36,10 +55,26 @@ class RetryHandler  implements HttpRequestRetryHandler {
 
     private final int maxRetries;
     private final int retrySleepTimeMS;
+    private final RetryBudget retryBudget;
+    private final Random random = new Random();
 
     public RetryHandler(int maxRetries, int retrySleepTimeMS) {
+        this(maxRetries, retrySleepTimeMS, null);
+    }
+
+    /**
+     * @param maxRetries       maximum number of retries per request
+     * @param retrySleepTimeMS base of the exponential backoff, in milliseconds
+     * @param retryBudget      budget shared by all requests of the client, may be null
+     */
+    public RetryHandler(int maxRetries, int retrySleepTimeMS, RetryBudget retryBudget) {
         this.maxRetries = maxRetries;
         this.retrySleepTimeMS = retrySleepTimeMS;
+        this.retryBudget = retryBudget;
+    }
+
+    RetryBudget getRetryBudget() {
+        return retryBudget;
     }
 
     static void addClassToWhitelist(Class<?> cls) {
@@ -79,15 +114,104 @@ class RetryHandler  implements HttpRequestRetryHandler {
             }
         }
 
-        if (retry) {
-            SystemClock.sleep(retrySleepTimeMS);
-        } else {
+        if (retry && retryBudget != null && !retryBudget.tryAcquire()) {
+            JEBAsyncHttpClient.log.w("RetryHandler", "Retry budget exhausted, not retrying " + exception);
+            return false;
+        }
+
+        if (!retry) {
             exception.printStackTrace();
         }
 
         return retry;
     }
 
+    /**
+     * Returns the time to wait before the given attempt, a random value between zero and the
+     * base delay doubled for every previous retry, capped at {@link #DEFAULT_MAX_RETRY_DELAY_MILLIS}
+     *
+     * @param executionCount number of attempts made so far
+     * @return delay in milliseconds
+     */
+    long getRetryDelay(int executionCount) {
+        if (retrySleepTimeMS <= 0) {
+            return 0;
+        }
+        int shift = Math.min(Math.max(executionCount - 1, 0), 20);
+        long ceiling = Math.min((long) retrySleepTimeMS << shift, Math.max(DEFAULT_MAX_RETRY_DELAY_MILLIS, retrySleepTimeMS));
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    /**
+     * Checks whether a 503 or 429 response asks to retry later through a Retry-After header, and
+     * whether the request may be retried
+     *
+     * @param response       response received
+     * @param executionCount number of attempts made so far, including this one
+     * @return delay in milliseconds before the next attempt, or -1 to not retry
+     */
+    long getRetryAfterDelay(HttpResponse response, int executionCount) {
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode != HttpStatus.SC_SERVICE_UNAVAILABLE && statusCode != SC_TOO_MANY_REQUESTS) {
+            return -1;
+        }
+        Header header = response.getFirstHeader(HEADER_RETRY_AFTER);
+        if (header == null || executionCount > maxRetries) {
+            return -1;
+        }
+        long delay = parseRetryAfter(header.getValue());
+        if (delay < 0) {
+            return -1;
+        }
+        if (retryBudget != null && !retryBudget.tryAcquire()) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * Parses a Retry-After value, either a number of seconds or an HTTP date
+     *
+     * @param value header value
+     * @return delay in milliseconds, or -1 if the value is invalid, negative or longer than
+     * {@link #DEFAULT_MAX_RETRY_AFTER_MILLIS}
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        long delay;
+        try {
+            long seconds = Long.parseLong(value);
+            // checked before converting, large values would overflow
+            if (seconds < 0 || seconds > DEFAULT_MAX_RETRY_AFTER_MILLIS / 1000) {
+                return -1;
+            }
+            delay = seconds * 1000;
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            if (date == null) {
+                return -1;
+            }
+            // a date in the past asks to retry at once
+            delay = Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+        return delay > DEFAULT_MAX_RETRY_AFTER_MILLIS ? -1 : delay;
+    }
+
+    /**
+     * Runs the task after the delay on the timer shared by all clients. The task should only hand
+     * work over to an executor.
+     *
+     * @param task        task to run
+     * @param delayMillis delay in milliseconds
+     * @return handle cancelling the task
+     */
+    static TimerWheel.Timeout schedule(Runnable task, long delayMillis) {
+        return TimerWheel.getDefault().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
     protected boolean isInList(HashSet<Class<?>> list, Throwable error) {
         for (Class<?> aList : list) {
             if (aList.isInstance(error)) {
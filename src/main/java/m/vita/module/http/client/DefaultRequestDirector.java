@@ -15,20 +15,26 @@ import m.vita.module.http.client.auth.AuthState;
 import m.vita.module.http.client.auth.BasicScheme;
 import m.vita.module.http.client.auth.UsernamePasswordCredentials;
 import m.vita.module.http.client.execchain.TunnelRefusedException;
+import m.vita.module.http.client.impl.client.ClientParamsStack;
 import m.vita.module.http.client.impl.client.EntityEnclosingRequestWrapper;
 import m.vita.module.http.client.impl.client.RequestWrapper;
 import m.vita.module.http.client.impl.client.RoutedRequest;
+import m.vita.module.http.concurrent.Deadline;
 import m.vita.module.http.connect.AuthenticationStrategy;
 import m.vita.module.http.connect.BasicManagedEntity;
 import m.vita.module.http.connect.ClientConnectionRequest;
 import m.vita.module.http.connect.ConnectionKeepAliveStrategy;
 import m.vita.module.http.connect.ConnectionReuseStrategy;
+import m.vita.module.http.connect.ConnectionValidationPolicy;
 import m.vita.module.http.connect.HttpConnectionParams;
 import m.vita.module.http.connect.route.BasicRouteDirector;
 import m.vita.module.http.connect.route.HttpRouteDirector;
 import m.vita.module.http.connect.route.HttpRoutePlanner;
+import m.vita.module.http.connect.tsccm.ThreadSafeClientConnManager;
 import m.vita.module.http.entity.BufferedHttpEntity;
+import m.vita.module.http.exception.ConnectionPoolTimeoutException;
 import m.vita.module.http.exception.ConnectionShutdownException;
+import m.vita.module.http.exception.DeadlineExceededException;
 import m.vita.module.http.exception.HttpException;
 import m.vita.module.http.exception.NoHttpResponseException;
 import m.vita.module.http.exception.NonRepeatableRequestException;
@@ -36,6 +42,7 @@ import m.vita.module.http.exception.ProtocolException;
 import m.vita.module.http.exception.RedirectException;
 import m.vita.module.http.execute.HttpRequestExecutor;
 import m.vita.module.http.handler.JEBRedirectHandler;
+import m.vita.module.http.header.BasicHttpParams;
 import m.vita.module.http.header.ClientConnectionManager;
 import m.vita.module.http.header.HttpContext;
 import m.vita.module.http.header.HttpEntityEnclosingRequest;
@@ -129,6 +136,9 @@ public class DefaultRequestDirector implements RequestDirector {
 
     private HttpHost virtualHost;
 
+    /** Whether the pool handed out the current connection open and possibly unchecked */
+    private boolean isReusedConnection;
+
     @Deprecated
     public DefaultRequestDirector(
             final HttpRequestExecutor requestExec,
@@ -320,6 +330,7 @@ public class DefaultRequestDirector implements RequestDirector {
 
         RoutedRequest roureq = new RoutedRequest(origWrapper, origRoute);
 
+        final Deadline deadline = Deadline.get(context);
         boolean reuse = false;
         boolean done = false;
         try {
@@ -334,6 +345,11 @@ public class DefaultRequestDirector implements RequestDirector {
                 final HttpRoute route = roureq.getRoute();
                 response = null;
 
+                // Redirects and authentication round trips share the deadline of the original request
+                if (deadline != null) {
+                    deadline.check("executing request to " + route);
+                }
+
                 // See if we have a user token bound to the execution context
                 Object userToken = context.getAttribute(ClientContext.USER_TOKEN);
 
@@ -345,15 +361,26 @@ public class DefaultRequestDirector implements RequestDirector {
                         ((AbortableHttpRequest) orig).setConnectionRequest(connRequest);
                     }
 
-                    final long timeout = HttpClientParams.getConnectionManagerTimeout(params);
+                    long timeout = HttpClientParams.getConnectionManagerTimeout(params);
+                    if (deadline != null) {
+                        timeout = deadline.limit((int) Math.min(timeout, Integer.MAX_VALUE));
+                    }
                     try {
                         managedConn = connRequest.getConnection(timeout, TimeUnit.MILLISECONDS);
                     } catch(final InterruptedException interrupted) {
                         Thread.currentThread().interrupt();
                         throw new InterruptedIOException();
+                    } catch (final ConnectionPoolTimeoutException ex) {
+                        if (deadline != null && deadline.isExpired()) {
+                            throw deadline.newException("leasing a connection");
+                        }
+                        throw ex;
                     }
 
-                    if (HttpConnectionParams.isStaleCheckingEnabled(params)) {
+                    if (getValidationPolicy() != null) {
+                        // the pool checked the connection if it was idle for too long
+                        isReusedConnection = managedConn.isOpen();
+                    } else if (HttpConnectionParams.isStaleCheckingEnabled(params)) {
                         // validate connection
                         if (managedConn.isOpen()) {
                             this.log.debug("Stale connection check");
@@ -527,6 +554,7 @@ public class DefaultRequestDirector implements RequestDirector {
             final RoutedRequest req, final HttpContext context) throws HttpException, IOException {
         final HttpRoute route = req.getRoute();
         final HttpRequest wrapper = req.getRequest();
+        final Deadline deadline = Deadline.get(context);
 
         int connectCount = 0;
         for (;;) {
@@ -534,10 +562,11 @@ public class DefaultRequestDirector implements RequestDirector {
             // Increment connect count
             connectCount++;
             try {
+                final HttpParams connParams = limitTimeouts(deadline);
                 if (!managedConn.isOpen()) {
-                    managedConn.open(route, context, params);
+                    managedConn.open(route, context, connParams);
                 } else {
-                    managedConn.setSocketTimeout(HttpConnectionParams.getSoTimeout(params));
+                    managedConn.setSocketTimeout(HttpConnectionParams.getSoTimeout(connParams));
                 }
                 establishRoute(route, context);
                 break;
@@ -546,6 +575,11 @@ public class DefaultRequestDirector implements RequestDirector {
                     managedConn.close();
                 } catch (final IOException ignore) {
                 }
+                if (deadline != null && deadline.isExpired()) {
+                    final DeadlineExceededException timeout = deadline.newException("connecting to " + route);
+                    timeout.initCause(ex);
+                    throw timeout;
+                }
                 if (retryHandler.retryRequest(ex, connectCount, context)) {
                     if (this.log.isInfoEnabled()) {
                         this.log.info("I/O exception ("+ ex.getClass().getName() +
@@ -572,6 +606,7 @@ public class DefaultRequestDirector implements RequestDirector {
             final RoutedRequest req, final HttpContext context) throws HttpException, IOException {
         final RequestWrapper wrapper = req.getRequest();
         final HttpRoute route = req.getRoute();
+        final Deadline deadline = Deadline.get(context);
         HttpResponse response = null;
 
         Exception retryReason = null;
@@ -593,23 +628,27 @@ public class DefaultRequestDirector implements RequestDirector {
             }
 
             try {
+                final HttpParams execParams = limitTimeouts(deadline);
                 if (!managedConn.isOpen()) {
                     // If we have a direct route to the target host
                     // just re-open connection and re-try the request
                     if (!route.isTunnelled()) {
                         this.log.debug("Reopening the direct connection.");
-                        managedConn.open(route, context, params);
+                        managedConn.open(route, context, execParams);
                     } else {
                         // otherwise give up
                         this.log.debug("Proxied connection. Need to start over.");
                         break;
                     }
+                } else if (deadline != null) {
+                    managedConn.setSocketTimeout(HttpConnectionParams.getSoTimeout(execParams));
                 }
 
                 if (this.log.isDebugEnabled()) {
                     this.log.debug("Attempt " + execCount + " to execute request");
                 }
                 response = requestExec.execute(wrapper, managedConn, context);
+                isReusedConnection = false;
                 break;
 
             } catch (final IOException ex) {
@@ -618,6 +657,21 @@ public class DefaultRequestDirector implements RequestDirector {
                     managedConn.close();
                 } catch (final IOException ignore) {
                 }
+                if (deadline != null && deadline.isExpired()) {
+                    final DeadlineExceededException timeout = deadline.newException("completing the request to " + route);
+                    timeout.initCause(ex);
+                    throw timeout;
+                }
+                if (isReusedConnection && isSafeToResend(wrapper, ex)
+                        && getValidationPolicy().canResend(wrapper, ex, context)) {
+                    // the server closed the connection while it was idle, try once more
+                    // on a new connection whatever the retry handler would decide
+                    isReusedConnection = false;
+                    this.log.debug("Reused connection is dead, retrying on a new connection");
+                    retryReason = ex;
+                    continue;
+                }
+                isReusedConnection = false;
                 if (retryHandler.retryRequest(ex, wrapper.getExecCount(), context)) {
                     if (this.log.isInfoEnabled()) {
                         this.log.info("I/O exception ("+ ex.getClass().getName() +
@@ -648,6 +702,41 @@ public class DefaultRequestDirector implements RequestDirector {
         return response;
     }
 
+    private ConnectionValidationPolicy getValidationPolicy() {
+        if (connManager instanceof ThreadSafeClientConnManager) {
+            return ((ThreadSafeClientConnManager) connManager).getConnectionValidationPolicy();
+        }
+        return null;
+    }
+
+    /**
+     * A request with an entity may have been processed before a connection reset, only the
+     * absence of any response proves the server dropped it unread.
+     */
+    private static boolean isSafeToResend(final RequestWrapper wrapper, final IOException ex) {
+        if (!wrapper.isRepeatable()) {
+            return false;
+        }
+        return ex instanceof NoHttpResponseException
+                || !(wrapper instanceof HttpEntityEnclosingRequest);
+    }
+
+    /**
+     * Returns the parameters to open a connection or execute a request with, connect and socket
+     * timeouts limited to the time remaining until the deadline
+     */
+    private HttpParams limitTimeouts(final Deadline deadline) throws IOException {
+        if (deadline == null) {
+            return params;
+        }
+        final HttpParams limits = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(limits,
+                deadline.limit(HttpConnectionParams.getConnectionTimeout(params)));
+        HttpConnectionParams.setSoTimeout(limits,
+                deadline.limit(HttpConnectionParams.getSoTimeout(params)));
+        return new ClientParamsStack(null, params, null, limits);
+    }
+
     /**
      * Returns the connection back to the connection manager
      * and prepares for retrieving a new connection during
@@ -0,0 +1,50 @@
+package m.vita.module.http.client.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import m.vita.module.http.annotation.Immutable;
+import m.vita.module.http.entity.AbstractHttpEntity;
+import m.vita.module.http.header.Header;
+import m.vita.module.http.util.Args;
+
+/**
+ * Repeatable entity serving the body of a cached response from memory.
+ */
+@Immutable
+class CacheEntity extends AbstractHttpEntity {
+
+    private final byte[] content;
+
+    CacheEntity(final byte[] content, final Header contentType, final Header contentEncoding) {
+        super();
+        this.content = content;
+        setContentType(contentType);
+        setContentEncoding(contentEncoding);
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return this.content.length;
+    }
+
+    public InputStream getContent() {
+        return new ByteArrayInputStream(this.content);
+    }
+
+    public void writeTo(final OutputStream outstream) throws IOException {
+        Args.notNull(outstream, "Output stream");
+        outstream.write(this.content);
+        outstream.flush();
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+}
@@ -0,0 +1,376 @@
+package m.vita.module.http.client.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import m.vita.module.http.HttpResponse;
+import m.vita.module.http.annotation.Immutable;
+import m.vita.module.http.exception.ParseException;
+import m.vita.module.http.header.Header;
+import m.vita.module.http.header.HeaderElement;
+import m.vita.module.http.header.HttpRequest;
+import m.vita.module.http.message.BasicHeader;
+import m.vita.module.http.util.DateUtils;
+import m.vita.module.http.util.StatusLine;
+
+/**
+ * Response stored by a {@link ResponseCache}, together with the times needed to compute its age
+ * as defined by RFC 7234 and the request header values it was selected by (Vary).
+ */
+@Immutable
+final class CacheEntry {
+
+    static final String CACHE_CONTROL = "Cache-Control";
+    static final String AGE = "Age";
+    static final String DATE = "Date";
+    static final String ETAG = "ETag";
+    static final String EXPIRES = "Expires";
+    static final String LAST_MODIFIED = "Last-Modified";
+    static final String VARY = "Vary";
+
+    /** Upper limit of the heuristic freshness lifetime, see RFC 7234 section 4.2.2 */
+    private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L;
+
+    private static final Set<String> NOT_UPDATED_BY_304 = new HashSet<String>();
+
+    static {
+        NOT_UPDATED_BY_304.add("content-length");
+        NOT_UPDATED_BY_304.add("content-encoding");
+        NOT_UPDATED_BY_304.add("content-type");
+        NOT_UPDATED_BY_304.add("transfer-encoding");
+    }
+
+    private final long requestDate;
+    private final long responseDate;
+    private final StatusLine statusLine;
+    private final Header[] headers;
+    private final byte[] body;
+    private final Header contentType;
+    private final Header contentEncoding;
+    private final Map<String, String> variantValues;
+
+    CacheEntry(
+            final long requestDate,
+            final long responseDate,
+            final StatusLine statusLine,
+            final Header[] headers,
+            final byte[] body,
+            final Header contentType,
+            final Header contentEncoding,
+            final Map<String, String> variantValues) {
+        this.requestDate = requestDate;
+        this.responseDate = responseDate;
+        this.statusLine = statusLine;
+        this.headers = headers;
+        this.body = body;
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        this.variantValues = variantValues;
+    }
+
+    /**
+     * Creates entry of a response which has just been received
+     */
+    static CacheEntry create(
+            final HttpRequest request,
+            final HttpResponse response,
+            final byte[] body,
+            final long requestDate,
+            final long responseDate) {
+        final Map<String, String> variantValues = new HashMap<String, String>();
+        for (final String name : getVaryNames(response.getHeaders(VARY))) {
+            variantValues.put(name, joinValues(request.getHeaders(name)));
+        }
+        final Header contentType = response.getEntity() != null ? response.getEntity().getContentType() : null;
+        final Header contentEncoding = response.getEntity() != null ? response.getEntity().getContentEncoding() : null;
+        return new CacheEntry(requestDate, responseDate, response.getStatusLine(), response.getAllHeaders(),
+                body, contentType, contentEncoding, Collections.unmodifiableMap(variantValues));
+    }
+
+    StatusLine getStatusLine() {
+        return this.statusLine;
+    }
+
+    Header[] getAllHeaders() {
+        return this.headers.clone();
+    }
+
+    Header getFirstHeader(final String name) {
+        for (final Header header : this.headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header;
+            }
+        }
+        return null;
+    }
+
+    private Header[] getHeaders(final String name) {
+        final List<Header> matches = new ArrayList<Header>(2);
+        for (final Header header : this.headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                matches.add(header);
+            }
+        }
+        return matches.toArray(new Header[matches.size()]);
+    }
+
+    byte[] getBody() {
+        return this.body;
+    }
+
+    Header getContentType() {
+        return this.contentType;
+    }
+
+    Header getContentEncoding() {
+        return this.contentEncoding;
+    }
+
+    /**
+     * @return true if the entry can be revalidated with a conditional request
+     */
+    boolean isRevalidatable() {
+        return getFirstHeader(ETAG) != null || getFirstHeader(LAST_MODIFIED) != null;
+    }
+
+    /**
+     * @return true if the response may only be used after successful revalidation
+     */
+    boolean isNoCache() {
+        return getDirective(getHeaders(CACHE_CONTROL), "no-cache") != null;
+    }
+
+    /**
+     * @return true if the response must not be used once stale without revalidation
+     */
+    boolean isMustRevalidate() {
+        final Header[] cacheControl = getHeaders(CACHE_CONTROL);
+        return getDirective(cacheControl, "must-revalidate") != null
+                || getDirective(cacheControl, "proxy-revalidate") != null;
+    }
+
+    private long getDateValue() {
+        final Date date = parseDate(getFirstHeader(DATE));
+        return date != null ? date.getTime() : this.responseDate;
+    }
+
+    /**
+     * @return time in milliseconds the response is fresh for after it has been generated
+     */
+    long getFreshnessLifetime() {
+        final long maxAge = getSeconds(getDirective(getHeaders(CACHE_CONTROL), "max-age"));
+        if (maxAge >= 0) {
+            return maxAge * 1000;
+        }
+        final Header expiresHeader = getFirstHeader(EXPIRES);
+        if (expiresHeader != null) {
+            final Date expires = parseDate(expiresHeader);
+            // an invalid Expires value means already expired
+            return expires != null ? Math.max(0, expires.getTime() - getDateValue()) : 0;
+        }
+        final Date lastModified = parseDate(getFirstHeader(LAST_MODIFIED));
+        if (lastModified != null) {
+            return Math.min(MAX_HEURISTIC_LIFETIME, Math.max(0, (getDateValue() - lastModified.getTime()) / 10));
+        }
+        return 0;
+    }
+
+    /**
+     * @param now current time
+     * @return age of the response in milliseconds, see RFC 7234 section 4.2.3
+     */
+    long getCurrentAge(final long now) {
+        final long apparentAge = Math.max(0, this.responseDate - getDateValue());
+        final long ageValue = Math.max(0, getSeconds(headerValue(getFirstHeader(AGE)))) * 1000;
+        final long responseDelay = this.responseDate - this.requestDate;
+        final long correctedInitialAge = Math.max(apparentAge, ageValue + responseDelay);
+        final long residentTime = Math.max(0, now - this.responseDate);
+        return correctedInitialAge + residentTime;
+    }
+
+    /**
+     * @param now current time
+     * @return milliseconds the response has been stale for, zero or negative while fresh
+     */
+    long getStaleness(final long now) {
+        return getCurrentAge(now) - getFreshnessLifetime();
+    }
+
+    /**
+     * @param now current time
+     * @return true if the response may be served while it is revalidated in the background
+     */
+    boolean isStaleWhileRevalidate(final long now) {
+        if (isMustRevalidate()) {
+            return false;
+        }
+        final long window = getSeconds(getDirective(getHeaders(CACHE_CONTROL), "stale-while-revalidate"));
+        return window > 0 && getStaleness(now) <= window * 1000;
+    }
+
+    /**
+     * @return true if the request selects this variant of the response
+     */
+    boolean matches(final HttpRequest request) {
+        for (final Map.Entry<String, String> variant : this.variantValues.entrySet()) {
+            if (!variant.getValue().equals(joinValues(request.getHeaders(variant.getKey())))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if both entries are the same variant of a response
+     */
+    boolean isSameVariant(final CacheEntry other) {
+        return this.variantValues.equals(other.variantValues);
+    }
+
+    /**
+     * Returns the entry updated by a 304 (Not Modified) response
+     *
+     * @param notModified  response of a successful revalidation
+     * @param requestDate  time the conditional request has been sent
+     * @param responseDate time the response has been received
+     * @return updated entry
+     */
+    CacheEntry update(final HttpResponse notModified, final long requestDate, final long responseDate) {
+        final Set<String> replaced = new HashSet<String>();
+        for (final Header header : notModified.getAllHeaders()) {
+            replaced.add(header.getName().toLowerCase(Locale.ROOT));
+        }
+        replaced.removeAll(NOT_UPDATED_BY_304);
+        final List<Header> merged = new ArrayList<Header>(this.headers.length + replaced.size());
+        for (final Header header : this.headers) {
+            if (!replaced.contains(header.getName().toLowerCase(Locale.ROOT))) {
+                merged.add(header);
+            }
+        }
+        for (final Header header : notModified.getAllHeaders()) {
+            if (replaced.contains(header.getName().toLowerCase(Locale.ROOT))) {
+                merged.add(header);
+            }
+        }
+        return new CacheEntry(requestDate, responseDate, this.statusLine, merged.toArray(new Header[merged.size()]),
+                this.body, this.contentType, this.contentEncoding, this.variantValues);
+    }
+
+    /**
+     * Creates response served from this entry
+     *
+     * @param now current time, used for the Age header
+     * @return new response with a repeatable entity
+     */
+    CachedResponse toResponse(final long now) {
+        final CachedResponse response = new CachedResponse(this.statusLine);
+        for (final Header header : this.headers) {
+            if (!AGE.equalsIgnoreCase(header.getName())) {
+                response.addHeader(header);
+            }
+        }
+        response.addHeader(new BasicHeader(AGE, Long.toString(Math.min(getCurrentAge(now) / 1000, Integer.MAX_VALUE))));
+        if (this.body != null) {
+            response.setEntity(new CacheEntity(this.body, this.contentType, this.contentEncoding));
+        }
+        return response;
+    }
+
+    /**
+     * @return approximate memory used by the entry in bytes
+     */
+    long size() {
+        long size = 128 + (this.body != null ? this.body.length : 0);
+        for (final Header header : this.headers) {
+            size += 2 * (header.getName().length() + (header.getValue() != null ? header.getValue().length() : 0)) + 32;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the value of a Cache-Control directive
+     *
+     * @param cacheControl Cache-Control headers
+     * @param name         name of the directive
+     * @return value of the directive, an empty string if it has no value, null if absent
+     */
+    static String getDirective(final Header[] cacheControl, final String name) {
+        for (final Header header : cacheControl) {
+            final HeaderElement[] elements;
+            try {
+                elements = header.getElements();
+            } catch (final ParseException ex) {
+                continue;
+            }
+            for (final HeaderElement element : elements) {
+                if (name.equalsIgnoreCase(element.getName())) {
+                    return element.getValue() != null ? element.getValue() : "";
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return delta-seconds value, -1 if absent or invalid
+     */
+    static long getSeconds(final String value) {
+        if (value == null || value.length() == 0) {
+            return -1;
+        }
+        try {
+            final long seconds = Long.parseLong(value.trim());
+            return seconds >= 0 ? seconds : -1;
+        } catch (final NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    static Set<String> getVaryNames(final Header[] vary) {
+        final Set<String> names = new HashSet<String>();
+        for (final Header header : vary) {
+            for (final String name : header.getValue().split(",")) {
+                final String trimmed = name.trim();
+                if (trimmed.length() > 0) {
+                    names.add(trimmed.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return names;
+    }
+
+    private static String joinValues(final Header[] headers) {
+        if (headers.length == 0) {
+            return "";
+        }
+        final StringBuilder buffer = new StringBuilder();
+        for (final Header header : headers) {
+            if (buffer.length() > 0) {
+                buffer.append(',');
+            }
+            buffer.append(header.getValue() != null ? header.getValue().trim() : "");
+        }
+        return buffer.toString();
+    }
+
+    private static String headerValue(final Header header) {
+        return header != null ? header.getValue() : null;
+    }
+
+    private static Date parseDate(final Header header) {
+        return header != null && header.getValue() != null ? DateUtils.parseDate(header.getValue()) : null;
+    }
+
+    @Override
+    public String toString() {
+        return "[status: " + this.statusLine + "; body: " + (this.body != null ? this.body.length : 0)
+                + " bytes; variant: " + this.variantValues + "]";
+    }
+}
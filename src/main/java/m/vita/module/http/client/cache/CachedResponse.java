@@ -0,0 +1,37 @@
+package m.vita.module.http.client.cache;
+
+import java.io.IOException;
+
+import m.vita.module.http.HttpResponse;
+import m.vita.module.http.annotation.NotThreadSafe;
+import m.vita.module.http.execute.CloseableHttpResponse;
+import m.vita.module.http.message.BasicHttpResponse;
+import m.vita.module.http.util.StatusLine;
+
+/**
+ * Response generated by the cache, either served from a {@link CacheEntry} or copied from a
+ * backend response whose body has been read into memory.
+ */
+@NotThreadSafe
+class CachedResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+    CachedResponse(final StatusLine statusline) {
+        super(statusline);
+    }
+
+    /**
+     * Copies status line, headers and params of the response
+     */
+    @SuppressWarnings("deprecation")
+    static CachedResponse copyOf(final HttpResponse response) {
+        final CachedResponse copy = new CachedResponse(response.getStatusLine());
+        copy.setHeaders(response.getAllHeaders());
+        copy.setParams(response.getParams());
+        return copy;
+    }
+
+    public void close() throws IOException {
+        // the content is held in memory, no connection to release
+    }
+
+}
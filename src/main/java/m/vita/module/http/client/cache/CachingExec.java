@@ -0,0 +1,386 @@
+package m.vita.module.http.client.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import m.vita.module.http.HttpEntity;
+import m.vita.module.http.HttpResponse;
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.client.execchain.ClientExecChain;
+import m.vita.module.http.client.protocol.HttpClientContext;
+import m.vita.module.http.concurrent.cancellable.HttpExecutionAware;
+import m.vita.module.http.entity.BasicHttpEntity;
+import m.vita.module.http.exception.HttpException;
+import m.vita.module.http.execute.BasicHttpContext;
+import m.vita.module.http.execute.CloseableHttpResponse;
+import m.vita.module.http.header.Header;
+import m.vita.module.http.header.HttpHost;
+import m.vita.module.http.header.HttpRequest;
+import m.vita.module.http.header.HttpRoute;
+import m.vita.module.http.header.URIUtils;
+import m.vita.module.http.message.BasicHeader;
+import m.vita.module.http.message.BasicStatusLine;
+import m.vita.module.http.method.HttpRequestWrapper;
+import m.vita.module.http.util.EntityUtils;
+import m.vita.module.http.util.HttpClientAndroidLog;
+import m.vita.module.http.util.HttpStatus;
+import m.vita.module.http.util.HttpVersion;
+
+/**
+ * Request execution stage implementing a private HTTP cache as specified by RFC 7234. Fresh
+ * responses to GET requests are served from the {@link ResponseCache} without contacting the
+ * next stage, so no connection is leased. Stale responses with a validator are revalidated with
+ * <code>If-None-Match</code> / <code>If-Modified-Since</code>; within their
+ * <code>stale-while-revalidate</code> window they are served immediately and refreshed in the
+ * background. Successful unsafe requests invalidate the responses stored for their URI.
+ * <p>&nbsp;</p>
+ * Requests with a <code>Range</code> or their own conditional headers bypass the cache.
+ * Conditional requests are passed to the next stage wrapping the request wrapper received.
+ */
+@ThreadSafe
+public class CachingExec implements ClientExecChain {
+
+    static final String IF_NONE_MATCH = "If-None-Match";
+    static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    static final String WARNING = "Warning";
+
+    private static final Set<Integer> CACHEABLE_STATUS_CODES = new HashSet<Integer>(Arrays.asList(
+            HttpStatus.SC_OK, HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION, HttpStatus.SC_NO_CONTENT,
+            HttpStatus.SC_MULTIPLE_CHOICES, HttpStatus.SC_MOVED_PERMANENTLY, HttpStatus.SC_NOT_FOUND,
+            HttpStatus.SC_METHOD_NOT_ALLOWED, HttpStatus.SC_GONE, HttpStatus.SC_REQUEST_URI_TOO_LONG,
+            HttpStatus.SC_NOT_IMPLEMENTED));
+
+    private static final Set<String> SAFE_METHODS = new HashSet<String>(Arrays.asList(
+            "GET", "HEAD", "OPTIONS", "TRACE"));
+
+    public HttpClientAndroidLog log = new HttpClientAndroidLog(getClass());
+
+    private final ClientExecChain backend;
+    private final ResponseCache cache;
+
+    public CachingExec(final ClientExecChain backend, final ResponseCache cache) {
+        super();
+        this.backend = backend;
+        this.cache = cache;
+    }
+
+    public ResponseCache getCache() {
+        return this.cache;
+    }
+
+    public CloseableHttpResponse execute(
+            final HttpRoute route,
+            final HttpRequestWrapper request,
+            final HttpClientContext context,
+            final HttpExecutionAware execAware) throws IOException, HttpException {
+        final String key = getCacheKey(route.getTargetHost(), request);
+        if (key == null) {
+            return this.backend.execute(route, request, context, execAware);
+        }
+        final String method = request.getRequestLine().getMethod();
+        if (!SAFE_METHODS.contains(method)) {
+            final CloseableHttpResponse response = this.backend.execute(route, request, context, execAware);
+            invalidate(key, route, response);
+            return response;
+        }
+        if (!"GET".equals(method) || request.containsHeader("Range")
+                || request.containsHeader(IF_NONE_MATCH) || request.containsHeader(IF_MODIFIED_SINCE)) {
+            return this.backend.execute(route, request, context, execAware);
+        }
+
+        final Header[] cacheControl = request.getHeaders(CacheEntry.CACHE_CONTROL);
+        final boolean onlyIfCached = CacheEntry.getDirective(cacheControl, "only-if-cached") != null;
+        final long now = System.currentTimeMillis();
+        final CacheEntry entry = this.cache.get(key, request);
+        if (entry == null) {
+            if (onlyIfCached) {
+                return gatewayTimeout();
+            }
+            this.cache.recordMiss();
+            return fetch(key, route, request, context, execAware);
+        }
+
+        final boolean noCache = CacheEntry.getDirective(cacheControl, "no-cache") != null
+                || isPragmaNoCache(request);
+        if (!noCache && !entry.isNoCache() && isSuitable(entry, cacheControl, now)) {
+            this.cache.recordHit();
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("Cache hit " + key);
+            }
+            return entry.toResponse(now);
+        }
+        if (onlyIfCached) {
+            return gatewayTimeout();
+        }
+        if (entry.isRevalidatable()) {
+            if (!noCache && !entry.isNoCache() && entry.isStaleWhileRevalidate(now)
+                    && revalidateInBackground(key, entry, route, request, context)) {
+                this.cache.recordHit();
+                final CachedResponse response = entry.toResponse(now);
+                response.addHeader(new BasicHeader(WARNING, "110 - \"Response is Stale\""));
+                return response;
+            }
+            return revalidate(key, entry, route, request, context, execAware);
+        }
+        this.cache.recordMiss();
+        return fetch(key, route, request, context, execAware);
+    }
+
+    /**
+     * Checks the freshness of the entry against the limits set by the request
+     */
+    private static boolean isSuitable(final CacheEntry entry, final Header[] cacheControl, final long now) {
+        final long age = entry.getCurrentAge(now);
+        final long maxAge = CacheEntry.getSeconds(CacheEntry.getDirective(cacheControl, "max-age"));
+        if (maxAge >= 0 && age > maxAge * 1000) {
+            return false;
+        }
+        final long minFresh = CacheEntry.getSeconds(CacheEntry.getDirective(cacheControl, "min-fresh"));
+        final long lifetime = entry.getFreshnessLifetime();
+        if (minFresh >= 0 && lifetime - age < minFresh * 1000) {
+            return false;
+        }
+        if (age < lifetime) {
+            return true;
+        }
+        final String maxStale = CacheEntry.getDirective(cacheControl, "max-stale");
+        if (maxStale == null || entry.isMustRevalidate()) {
+            return false;
+        }
+        // max-stale without value accepts any staleness
+        final long limit = CacheEntry.getSeconds(maxStale);
+        return maxStale.length() == 0 || (limit >= 0 && age - lifetime <= limit * 1000);
+    }
+
+    private static boolean isPragmaNoCache(final HttpRequest request) {
+        for (final Header header : request.getHeaders("Pragma")) {
+            if (header.getValue() != null && header.getValue().toLowerCase(Locale.ROOT).contains("no-cache")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private CloseableHttpResponse fetch(
+            final String key,
+            final HttpRoute route,
+            final HttpRequestWrapper request,
+            final HttpClientContext context,
+            final HttpExecutionAware execAware) throws IOException, HttpException {
+        final long requestDate = System.currentTimeMillis();
+        final CloseableHttpResponse response = this.backend.execute(route, request, context, execAware);
+        final long responseDate = System.currentTimeMillis();
+        return store(key, request, response, requestDate, responseDate);
+    }
+
+    private CloseableHttpResponse revalidate(
+            final String key,
+            final CacheEntry entry,
+            final HttpRoute route,
+            final HttpRequestWrapper request,
+            final HttpClientContext context,
+            final HttpExecutionAware execAware) throws IOException, HttpException {
+        this.cache.recordRevalidation();
+        final HttpRequestWrapper conditional = HttpRequestWrapper.wrap(request);
+        final Header etag = entry.getFirstHeader(CacheEntry.ETAG);
+        if (etag != null) {
+            conditional.setHeader(IF_NONE_MATCH, etag.getValue());
+        }
+        final Header lastModified = entry.getFirstHeader(CacheEntry.LAST_MODIFIED);
+        if (lastModified != null) {
+            conditional.setHeader(IF_MODIFIED_SINCE, lastModified.getValue());
+        }
+        final long requestDate = System.currentTimeMillis();
+        final CloseableHttpResponse response = this.backend.execute(route, conditional, context, execAware);
+        final long responseDate = System.currentTimeMillis();
+        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+            EntityUtils.consume(response.getEntity());
+            final CacheEntry updated = entry.update(response, requestDate, responseDate);
+            this.cache.put(key, updated);
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("Cache entry revalidated " + key);
+            }
+            return updated.toResponse(System.currentTimeMillis());
+        }
+        return store(key, request, response, requestDate, responseDate);
+    }
+
+    private boolean revalidateInBackground(
+            final String key,
+            final CacheEntry entry,
+            final HttpRoute route,
+            final HttpRequestWrapper request,
+            final HttpClientContext context) {
+        // the caller's context and request wrapper may be reused once the response is served
+        final HttpRequestWrapper copy = HttpRequestWrapper.wrap(request);
+        final HttpClientContext backgroundContext = HttpClientContext.adapt(new BasicHttpContext(context));
+        return this.cache.revalidateInBackground(key, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final CloseableHttpResponse response = revalidate(key, entry, route, copy, backgroundContext, null);
+                    EntityUtils.consume(response.getEntity());
+                } catch (final IOException ex) {
+                    log.debug("Background revalidation of " + key + " failed", ex);
+                } catch (final HttpException ex) {
+                    log.debug("Background revalidation of " + key + " failed", ex);
+                } catch (final RuntimeException ex) {
+                    log.debug("Background revalidation of " + key + " failed", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stores the response if permitted, reading its body into memory. Responses larger than the
+     * maximum object size are returned unchanged apart from the part of the body already read.
+     */
+    private CloseableHttpResponse store(
+            final String key,
+            final HttpRequest request,
+            final CloseableHttpResponse response,
+            final long requestDate,
+            final long responseDate) throws IOException {
+        if (!isStorable(request, response)) {
+            if (CacheEntry.getDirective(response.getHeaders(CacheEntry.CACHE_CONTROL), "no-store") != null) {
+                this.cache.remove(key);
+            }
+            return response;
+        }
+        final HttpEntity entity = response.getEntity();
+        final int maxObjectBytes = this.cache.getMaxObjectBytes();
+        if (entity != null && entity.getContentLength() > maxObjectBytes) {
+            return response;
+        }
+        byte[] body = null;
+        if (entity != null) {
+            final InputStream instream = entity.getContent();
+            if (instream != null) {
+                byte[] buffer = new byte[entity.getContentLength() >= 0 ? (int) entity.getContentLength() : 4096];
+                int length = 0;
+                int read = 0;
+                while (length <= maxObjectBytes && read != -1) {
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, 4096), maxObjectBytes + 1));
+                    }
+                    read = instream.read(buffer, length, buffer.length - length);
+                    if (read > 0) {
+                        length += read;
+                    }
+                }
+                if (length > maxObjectBytes) {
+                    // too large to store, pass on what has been read and the rest of the stream
+                    final BasicHttpEntity remainder = new BasicHttpEntity();
+                    remainder.setContent(new SequenceInputStream(new ByteArrayInputStream(buffer, 0, length), instream));
+                    remainder.setContentLength(entity.getContentLength());
+                    remainder.setContentType(entity.getContentType());
+                    remainder.setContentEncoding(entity.getContentEncoding());
+                    remainder.setChunked(entity.isChunked());
+                    response.setEntity(remainder);
+                    return response;
+                }
+                // releases the connection
+                instream.close();
+                body = length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+            }
+        }
+        final CacheEntry entry = CacheEntry.create(request, response, body, requestDate, responseDate);
+        this.cache.put(key, entry);
+        final CachedResponse copy = CachedResponse.copyOf(response);
+        if (body != null) {
+            copy.setEntity(new CacheEntity(body, entry.getContentType(), entry.getContentEncoding()));
+        }
+        return copy;
+    }
+
+    private static boolean isStorable(final HttpRequest request, final HttpResponse response) {
+        if (!CACHEABLE_STATUS_CODES.contains(response.getStatusLine().getStatusCode())) {
+            return false;
+        }
+        if (CacheEntry.getDirective(request.getHeaders(CacheEntry.CACHE_CONTROL), "no-store") != null) {
+            return false;
+        }
+        final Header[] cacheControl = response.getHeaders(CacheEntry.CACHE_CONTROL);
+        if (CacheEntry.getDirective(cacheControl, "no-store") != null) {
+            return false;
+        }
+        if (CacheEntry.getVaryNames(response.getHeaders(CacheEntry.VARY)).contains("*")) {
+            return false;
+        }
+        // without freshness information or validator the response could never be reused
+        return CacheEntry.getDirective(cacheControl, "max-age") != null
+                || response.containsHeader(CacheEntry.EXPIRES)
+                || response.containsHeader(CacheEntry.ETAG)
+                || response.containsHeader(CacheEntry.LAST_MODIFIED);
+    }
+
+    /**
+     * Removes the responses stored for the URI of a successful unsafe request and the URIs it
+     * points to, see RFC 7234 section 4.4
+     */
+    private void invalidate(final String key, final HttpRoute route, final HttpResponse response) {
+        final int status = response.getStatusLine().getStatusCode();
+        if (status < 200 || status >= 400) {
+            return;
+        }
+        this.cache.remove(key);
+        for (final String name : new String[] { "Location", "Content-Location" }) {
+            final Header header = response.getFirstHeader(name);
+            if (header != null) {
+                final String location = getCacheKey(route.getTargetHost(), header.getValue());
+                // only the same host may be invalidated
+                if (location != null && location.startsWith(key.substring(0, key.indexOf('/', key.indexOf("//") + 2)))) {
+                    this.cache.remove(location);
+                }
+            }
+        }
+    }
+
+    private static CachedResponse gatewayTimeout() {
+        return new CachedResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout"));
+    }
+
+    static String getCacheKey(final HttpHost target, final HttpRequest request) {
+        return getCacheKey(target, request.getRequestLine().getUri());
+    }
+
+    /**
+     * Returns the key of a request URI, its absolute form with scheme and host in lower case and
+     * the port always present
+     *
+     * @param target target host, used for relative URIs
+     * @param uri    request URI
+     * @return cache key, or null if the URI is invalid
+     */
+    static String getCacheKey(final HttpHost target, final String uri) {
+        final URI parsed;
+        try {
+            parsed = new URI(uri);
+        } catch (final URISyntaxException ex) {
+            return null;
+        }
+        final HttpHost host = parsed.isAbsolute() ? URIUtils.extractHost(parsed) : target;
+        if (host == null) {
+            return null;
+        }
+        final String scheme = host.getSchemeName().toLowerCase(Locale.ROOT);
+        int port = host.getPort();
+        if (port < 0) {
+            port = "https".equals(scheme) ? 443 : 80;
+        }
+        final String path = parsed.getRawPath();
+        final String query = parsed.getRawQuery();
+        return scheme + "://" + host.getHostName().toLowerCase(Locale.ROOT) + ":" + port
+                + (path != null && path.length() > 0 ? path : "/")
+                + (query != null ? "?" + query : "");
+    }
+
+}
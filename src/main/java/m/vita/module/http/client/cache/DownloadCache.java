@@ -0,0 +1,500 @@
+package m.vita.module.http.client.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import m.vita.module.http.annotation.Immutable;
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.util.Args;
+import m.vita.module.http.util.HttpClientAndroidLog;
+
+/**
+ * Persistent cache of downloaded files, surviving process restarts. Files are stored once per
+ * content under the hex SHA-1 of their bytes, and are referenced by download URL together with the
+ * ETag and Last-Modified validators of the response. File download handlers use the validators to
+ * send conditional requests and copy the stored file into their target when the server answers
+ * 304 (Not Modified), so that no content is transferred.
+ * <p>&nbsp;</p>
+ * The index is a single file in the cache directory, read through a memory mapping at startup and
+ * rewritten atomically on every change. Entries are kept in access order and the least recently
+ * used ones are evicted once the stored files exceed the byte budget. Entries whose file is missing
+ * or has the wrong length are dropped when loaded, files failing the checksum when they are used.
+ * <p>&nbsp;</p>
+ * Stored files no longer referenced by the index are deleted when the cache is loaded. Only files
+ * named like the cache's own, a hex SHA-1 or a temporary file of an interrupted write, are touched,
+ * other files in the directory are left alone. A dedicated directory is still recommended, as a
+ * foreign file with such a name would be deleted.
+ */
+@ThreadSafe
+public class DownloadCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_TMP_FILE = "index.tmp";
+    private static final int INDEX_MAGIC = 0x4a454244;
+    private static final int INDEX_VERSION = 1;
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final Pattern STORED_FILE_PATTERN = Pattern.compile("[0-9a-f]{40}");
+    private static final Pattern TMP_FILE_PATTERN = Pattern.compile("[0-9a-f]{40}.*\\.tmp");
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public HttpClientAndroidLog log = new HttpClientAndroidLog(getClass());
+
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<String, Integer> fileReferences = new HashMap<String, Integer>();
+    private long currentBytes;
+
+    /**
+     * Creates cache of 64 MB stored in the directory
+     *
+     * @param directory directory of the cache, created if missing, preferably used for nothing else
+     */
+    public DownloadCache(final File directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates cache stored in the directory, loading the entries stored by earlier processes
+     *
+     * @param directory directory of the cache, created if missing, preferably used for nothing else
+     * @param maxBytes  maximum total size of the stored files
+     */
+    public DownloadCache(final File directory, final long maxBytes) {
+        this.directory = Args.notNull(directory, "Cache directory");
+        this.maxBytes = Args.positive(maxBytes, "Maximum cache size");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            this.log.warn("Cannot create cache directory " + directory);
+        }
+        synchronized (this) {
+            load();
+        }
+    }
+
+    /**
+     * @return new digest computing the checksum stored files are named after
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " not supported", ex);
+        }
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Returns the entry stored for the URL
+     *
+     * @param url download URL
+     * @return entry or null
+     */
+    public synchronized Entry get(final String url) {
+        final Entry entry = this.entries.get(url);
+        if (entry != null && getFile(entry).length() != entry.length) {
+            this.log.debug("Stored file of " + url + " is missing or truncated");
+            removeEntry(url);
+            save();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Copies the stored file into the target, verifying its length and checksum. A corrupted
+     * entry is removed.
+     *
+     * @param entry  entry returned by {@link #get(String)}
+     * @param target file to write
+     * @throws IOException if the stored file is unreadable or corrupted, or the target cannot be
+     *                     written
+     */
+    public void copyTo(final Entry entry, final File target) throws IOException {
+        final InputStream instream;
+        synchronized (this) {
+            // an evicted file stays readable once opened
+            instream = new FileInputStream(getFile(entry));
+        }
+        final MessageDigest digest = newDigest();
+        long count = 0;
+        try {
+            final FileOutputStream outstream = new FileOutputStream(target);
+            try {
+                final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int l;
+                while ((l = instream.read(buffer)) != -1) {
+                    digest.update(buffer, 0, l);
+                    outstream.write(buffer, 0, l);
+                    count += l;
+                }
+            } finally {
+                outstream.close();
+            }
+        } finally {
+            instream.close();
+        }
+        if (count != entry.length || !toHex(digest.digest()).equals(entry.checksum)) {
+            synchronized (this) {
+                if (this.entries.get(entry.url) == entry) {
+                    removeEntry(entry.url);
+                    save();
+                }
+            }
+            throw new IOException("Stored file of " + entry.url + " is corrupted");
+        }
+    }
+
+    /**
+     * Stores a downloaded file, replacing the entry of the URL
+     *
+     * @param url          download URL
+     * @param eTag         ETag of the response, may be null
+     * @param lastModified Last-Modified of the response, may be null
+     * @param source       completely downloaded file
+     * @param digest       checksum of the file computed by {@link #newDigest()}
+     * @throws IOException if the file cannot be stored
+     */
+    public void put(final String url, final String eTag, final String lastModified,
+            final File source, final byte[] digest) throws IOException {
+        Args.notNull(url, "URL");
+        Args.notNull(source, "Source file");
+        Args.notNull(digest, "Digest");
+        Args.check(eTag != null || lastModified != null, "Entry without validator cannot be revalidated");
+        final long length = source.length();
+        if (length > this.maxBytes) {
+            remove(url);
+            return;
+        }
+        final Entry entry = new Entry(url, eTag, lastModified, length, toHex(digest));
+        final File file = getFile(entry);
+        File tmp = null;
+        synchronized (this) {
+            if (file.length() != length) {
+                tmp = File.createTempFile(entry.checksum, ".tmp", this.directory);
+            }
+        }
+        if (tmp != null) {
+            try {
+                copy(source, tmp);
+            } catch (final IOException ex) {
+                tmp.delete();
+                throw ex;
+            }
+        }
+        synchronized (this) {
+            if (tmp != null) {
+                if (file.length() == length) {
+                    // the same content was stored meanwhile
+                    tmp.delete();
+                } else if (!tmp.renameTo(file)) {
+                    tmp.delete();
+                    throw new IOException("Cannot store " + file);
+                }
+            } else if (file.length() != length) {
+                // evicted meanwhile
+                copy(source, file);
+            }
+            removeEntry(url);
+            this.entries.put(url, entry);
+            final Integer references = this.fileReferences.get(entry.checksum);
+            if (references == null) {
+                this.currentBytes += length;
+                this.fileReferences.put(entry.checksum, 1);
+            } else {
+                this.fileReferences.put(entry.checksum, references + 1);
+            }
+            evict();
+            save();
+        }
+    }
+
+    /**
+     * Removes the entry of the URL
+     *
+     * @param url download URL
+     */
+    public synchronized void remove(final String url) {
+        if (removeEntry(url)) {
+            save();
+        }
+    }
+
+    /**
+     * Removes all entries and stored files
+     */
+    public synchronized void clear() {
+        for (final String checksum : this.fileReferences.keySet()) {
+            new File(this.directory, checksum).delete();
+        }
+        this.entries.clear();
+        this.fileReferences.clear();
+        this.currentBytes = 0;
+        save();
+    }
+
+    /**
+     * @return size of the stored files in bytes
+     */
+    public synchronized long getSize() {
+        return this.currentBytes;
+    }
+
+    /**
+     * @return number of URLs with a stored file
+     */
+    public synchronized int getEntryCount() {
+        return this.entries.size();
+    }
+
+    private File getFile(final Entry entry) {
+        return new File(this.directory, entry.checksum);
+    }
+
+    private boolean removeEntry(final String url) {
+        final Entry entry = this.entries.remove(url);
+        if (entry == null) {
+            return false;
+        }
+        release(entry);
+        return true;
+    }
+
+    private void release(final Entry entry) {
+        final Integer references = this.fileReferences.get(entry.checksum);
+        if (references == null || references <= 1) {
+            this.fileReferences.remove(entry.checksum);
+            this.currentBytes -= entry.length;
+            getFile(entry).delete();
+        } else {
+            this.fileReferences.put(entry.checksum, references - 1);
+        }
+    }
+
+    private void evict() {
+        final Iterator<Entry> iterator = this.entries.values().iterator();
+        while (this.currentBytes > this.maxBytes && iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            iterator.remove();
+            release(entry);
+        }
+    }
+
+    private void load() {
+        final File indexFile = new File(this.directory, INDEX_FILE);
+        if (indexFile.isFile()) {
+            try {
+                final RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+                try {
+                    final FileChannel channel = raf.getChannel();
+                    final MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    if (index.getInt() != INDEX_MAGIC || index.getInt() != INDEX_VERSION) {
+                        throw new IOException("Unknown index format");
+                    }
+                    final int count = index.getInt();
+                    for (int i = 0; i < count; i++) {
+                        final Entry entry = new Entry(readString(index), readString(index), readString(index),
+                                index.getLong(), readString(index));
+                        if (entry.url == null || entry.checksum == null || getFile(entry).length() != entry.length) {
+                            continue;
+                        }
+                        // written least recently used first, the insertion restores the access order
+                        this.entries.put(entry.url, entry);
+                        final Integer references = this.fileReferences.get(entry.checksum);
+                        if (references == null) {
+                            this.currentBytes += entry.length;
+                            this.fileReferences.put(entry.checksum, 1);
+                        } else {
+                            this.fileReferences.put(entry.checksum, references + 1);
+                        }
+                    }
+                } finally {
+                    raf.close();
+                }
+            } catch (final IOException ex) {
+                this.log.warn("Cannot read cache index, starting empty", ex);
+                this.entries.clear();
+            } catch (final BufferUnderflowException ex) {
+                this.log.warn("Truncated cache index, starting empty");
+                this.entries.clear();
+            } catch (final IllegalArgumentException ex) {
+                this.log.warn("Corrupted cache index, starting empty");
+                this.entries.clear();
+            }
+            if (this.entries.isEmpty()) {
+                this.fileReferences.clear();
+                this.currentBytes = 0;
+            }
+        }
+        // files of dropped entries and interrupted writes, other files are not ours
+        final File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                if (INDEX_TMP_FILE.equals(name) || TMP_FILE_PATTERN.matcher(name).matches()
+                        || (STORED_FILE_PATTERN.matcher(name).matches() && !this.fileReferences.containsKey(name))) {
+                    file.delete();
+                }
+            }
+        }
+        evict();
+        save();
+    }
+
+    private void save() {
+        final File tmp = new File(this.directory, INDEX_TMP_FILE);
+        try {
+            final FileOutputStream fileStream = new FileOutputStream(tmp);
+            try {
+                final DataOutputStream outstream = new DataOutputStream(new BufferedOutputStream(fileStream));
+                outstream.writeInt(INDEX_MAGIC);
+                outstream.writeInt(INDEX_VERSION);
+                outstream.writeInt(this.entries.size());
+                for (final Entry entry : this.entries.values()) {
+                    writeString(outstream, entry.url);
+                    writeString(outstream, entry.eTag);
+                    writeString(outstream, entry.lastModified);
+                    outstream.writeLong(entry.length);
+                    writeString(outstream, entry.checksum);
+                }
+                outstream.flush();
+                fileStream.getFD().sync();
+            } finally {
+                fileStream.close();
+            }
+            if (!tmp.renameTo(new File(this.directory, INDEX_FILE))) {
+                throw new IOException("Cannot replace cache index");
+            }
+        } catch (final IOException ex) {
+            this.log.warn("Cannot write cache index", ex);
+            tmp.delete();
+        }
+    }
+
+    private static void writeString(final DataOutputStream outstream, final String value) throws IOException {
+        if (value == null) {
+            outstream.writeInt(-1);
+        } else {
+            final byte[] bytes = value.getBytes(UTF_8);
+            outstream.writeInt(bytes.length);
+            outstream.write(bytes);
+        }
+    }
+
+    private static String readString(final ByteBuffer index) {
+        final int length = index.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > index.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final byte[] bytes = new byte[length];
+        index.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void copy(final File source, final File target) throws IOException {
+        final FileInputStream instream = new FileInputStream(source);
+        try {
+            final FileOutputStream outstream = new FileOutputStream(target);
+            try {
+                final FileChannel in = instream.getChannel();
+                final FileChannel out = outstream.getChannel();
+                final long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            } finally {
+                outstream.close();
+            }
+        } finally {
+            instream.close();
+        }
+    }
+
+    private static String toHex(final byte[] digest) {
+        final char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = Character.forDigit((digest[i] >> 4) & 0xf, 16);
+            hex[2 * i + 1] = Character.forDigit(digest[i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+
+    @Override
+    public String toString() {
+        return "[directory: " + this.directory + "; size: " + getSize() + "; entries: " + getEntryCount() + "]";
+    }
+
+    /**
+     * Downloaded file stored by a {@link DownloadCache}.
+     */
+    @Immutable
+    public static final class Entry {
+        private final String url;
+        private final String eTag;
+        private final String lastModified;
+        private final long length;
+        private final String checksum;
+
+        Entry(final String url, final String eTag, final String lastModified, final long length, final String checksum) {
+            this.url = url;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        public String getUrl() {
+            return this.url;
+        }
+
+        /**
+         * @return ETag of the stored response, null if none
+         */
+        public String getETag() {
+            return this.eTag;
+        }
+
+        /**
+         * @return Last-Modified of the stored response, null if none
+         */
+        public String getLastModified() {
+            return this.lastModified;
+        }
+
+        public long getLength() {
+            return this.length;
+        }
+
+        @Override
+        public String toString() {
+            return "[url: " + this.url + "; length: " + this.length + "; checksum: " + this.checksum + "]";
+        }
+    }
+}
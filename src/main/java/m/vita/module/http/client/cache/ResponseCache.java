@@ -0,0 +1,228 @@
+package m.vita.module.http.client.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.concurrent.DaemonThreadFactory;
+import m.vita.module.http.header.HttpRequest;
+import m.vita.module.http.util.Args;
+
+/**
+ * In-memory storage of HTTP responses used by {@link CachingExec}. Entries are keyed by the
+ * request URI and hold one response per variant selected by the Vary header. The least recently
+ * used entries are evicted once the total size exceeds the limit.
+ * <p>&nbsp;</p>
+ * A single cache may be shared by several clients. It also runs the background revalidations of
+ * responses served under <code>stale-while-revalidate</code>.
+ */
+@ThreadSafe
+public class ResponseCache {
+
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_OBJECT_BYTES = 256 * 1024;
+
+    private static final int MAX_PENDING_REVALIDATIONS = 64;
+
+    private final long maxBytes;
+    private final int maxObjectBytes;
+    private final LinkedHashMap<String, List<CacheEntry>> entries =
+            new LinkedHashMap<String, List<CacheEntry>>(16, 0.75f, true);
+    private final Set<String> revalidating = Collections.synchronizedSet(new HashSet<String>());
+    private final ThreadPoolExecutor revalidator;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private long currentBytes;
+
+    /**
+     * Creates cache of 4 MB storing responses of up to 256 KB
+     */
+    public ResponseCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_OBJECT_BYTES);
+    }
+
+    /**
+     * Creates new cache
+     *
+     * @param maxBytes       maximum total size of the stored responses
+     * @param maxObjectBytes maximum size of a single response body, larger responses are not stored
+     */
+    public ResponseCache(final long maxBytes, final int maxObjectBytes) {
+        this.maxBytes = Args.positive(maxBytes, "Maximum cache size");
+        this.maxObjectBytes = Args.notNegative(maxObjectBytes, "Maximum object size");
+        this.revalidator = DaemonThreadFactory.newFixedExecutor("ResponseCache-revalidate-", 1,
+                new LinkedBlockingQueue<Runnable>(MAX_PENDING_REVALIDATIONS));
+    }
+
+    int getMaxObjectBytes() {
+        return this.maxObjectBytes;
+    }
+
+    /**
+     * Returns the stored variant selected by the request
+     *
+     * @param key     cache key of the request
+     * @param request the request
+     * @return matching entry or null
+     */
+    synchronized CacheEntry get(final String key, final HttpRequest request) {
+        final List<CacheEntry> variants = this.entries.get(key);
+        if (variants != null) {
+            for (final CacheEntry entry : variants) {
+                if (entry.matches(request)) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the entry, replacing the entry of the same variant
+     */
+    synchronized void put(final String key, final CacheEntry entry) {
+        final long size = entry.size();
+        if (size > this.maxBytes) {
+            return;
+        }
+        List<CacheEntry> variants = this.entries.get(key);
+        if (variants == null) {
+            variants = new ArrayList<CacheEntry>(1);
+            this.entries.put(key, variants);
+        }
+        for (final Iterator<CacheEntry> iterator = variants.iterator(); iterator.hasNext();) {
+            final CacheEntry variant = iterator.next();
+            if (variant.isSameVariant(entry)) {
+                iterator.remove();
+                this.currentBytes -= variant.size();
+            }
+        }
+        variants.add(entry);
+        this.currentBytes += size;
+        evict();
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, List<CacheEntry>>> iterator = this.entries.entrySet().iterator();
+        while (this.currentBytes > this.maxBytes && iterator.hasNext()) {
+            for (final CacheEntry entry : iterator.next().getValue()) {
+                this.currentBytes -= entry.size();
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes all variants stored under the key
+     */
+    synchronized void remove(final String key) {
+        final List<CacheEntry> variants = this.entries.remove(key);
+        if (variants != null) {
+            for (final CacheEntry entry : variants) {
+                this.currentBytes -= entry.size();
+            }
+        }
+    }
+
+    /**
+     * Removes all stored responses
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.currentBytes = 0;
+    }
+
+    /**
+     * @return approximate size of the stored responses in bytes
+     */
+    public synchronized long getSize() {
+        return this.currentBytes;
+    }
+
+    /**
+     * @return number of URIs with stored responses
+     */
+    public synchronized int getEntryCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * Runs the revalidation of the entry in the background, unless one is already running
+     *
+     * @param key  cache key of the entry
+     * @param task revalidation
+     * @return false if the revalidation could not be started
+     */
+    boolean revalidateInBackground(final String key, final Runnable task) {
+        if (!this.revalidating.add(key)) {
+            // another request already refreshes the entry
+            return true;
+        }
+        try {
+            this.revalidator.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        revalidating.remove(key);
+                    }
+                }
+            });
+            return true;
+        } catch (final RejectedExecutionException ex) {
+            this.revalidating.remove(key);
+            return false;
+        }
+    }
+
+    void recordHit() {
+        this.hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        this.misses.incrementAndGet();
+    }
+
+    void recordRevalidation() {
+        this.revalidations.incrementAndGet();
+    }
+
+    /**
+     * @return number of requests answered from the cache without contacting the server
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return number of cacheable requests sent to the server without a usable stored response
+     */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return number of conditional requests sent to revalidate stored responses
+     */
+    public long getRevalidationCount() {
+        return this.revalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return "[size: " + getSize() + "; hits: " + this.hits.get() + "; misses: " + this.misses.get()
+                + "; revalidations: " + this.revalidations.get() + "]";
+    }
+}
@@ -15,19 +15,24 @@ import m.vita.module.http.client.auth.AuthProtocolState;
 import m.vita.module.http.client.auth.AuthState;
 import m.vita.module.http.client.auth.HttpAuthenticator;
 import m.vita.module.http.client.protocol.HttpProcessor;
+import m.vita.module.http.concurrent.Deadline;
 import m.vita.module.http.concurrent.cancellable.HttpExecutionAware;
 import m.vita.module.http.config.RequestConfig;
 import m.vita.module.http.connect.AuthenticationStrategy;
 import m.vita.module.http.connect.ConnectionKeepAliveStrategy;
 import m.vita.module.http.connect.ConnectionRequest;
 import m.vita.module.http.connect.ConnectionReuseStrategy;
+import m.vita.module.http.connect.ConnectionValidationPolicy;
 import m.vita.module.http.connect.HttpClientConnectionManager;
+import m.vita.module.http.connect.PoolingHttpClientConnectionManager;
 import m.vita.module.http.connect.route.BasicRouteDirector;
 import m.vita.module.http.connect.route.HttpRouteDirector;
 import m.vita.module.http.connect.route.RouteTracker;
 import m.vita.module.http.entity.BufferedHttpEntity;
+import m.vita.module.http.exception.ConnectionPoolTimeoutException;
 import m.vita.module.http.exception.ConnectionShutdownException;
 import m.vita.module.http.exception.HttpException;
+import m.vita.module.http.exception.NoHttpResponseException;
 import m.vita.module.http.exception.NonRepeatableRequestException;
 import m.vita.module.http.execute.CloseableHttpResponse;
 import m.vita.module.http.execute.HttpCoreContext;
@@ -129,11 +134,20 @@ public class MainClientExec implements ClientExecChain {
         }
 
         final RequestConfig config = context.getRequestConfig();
+        final Deadline deadline = context.getDeadline();
 
         final HttpClientConnection managedConn;
         try {
-            final int timeout = config.getConnectionRequestTimeout();
+            int timeout = config.getConnectionRequestTimeout();
+            if (deadline != null) {
+                timeout = deadline.limit(timeout);
+            }
             managedConn = connRequest.get(timeout > 0 ? timeout : 0, TimeUnit.MILLISECONDS);
+        } catch (final ConnectionPoolTimeoutException ex) {
+            if (deadline != null && deadline.isExpired()) {
+                throw deadline.newException("leasing a connection");
+            }
+            throw ex;
         } catch(final InterruptedException interrupted) {
             Thread.currentThread().interrupt();
             throw new RequestAbortedException("Request aborted", interrupted);
@@ -147,7 +161,10 @@ public class MainClientExec implements ClientExecChain {
 
         context.setAttribute(HttpCoreContext.HTTP_CONNECTION, managedConn);
 
-        if (config.isStaleConnectionCheckEnabled()) {
+        final ConnectionValidationPolicy validationPolicy = getValidationPolicy();
+        // the pool checked the connection if it was idle for too long
+        boolean isReusedConnection = validationPolicy != null && managedConn.isOpen();
+        if (validationPolicy == null && config.isStaleConnectionCheckEnabled()) {
             // validate connection
             if (managedConn.isOpen()) {
                 this.log.debug("Stale connection check");
@@ -175,6 +192,10 @@ public class MainClientExec implements ClientExecChain {
                 if (execAware != null && execAware.isAborted()) {
                     throw new RequestAbortedException("Request aborted");
                 }
+                if (deadline != null) {
+                    // authentication round trips share the deadline of the request
+                    deadline.check("executing request to " + route);
+                }
 
                 if (!managedConn.isOpen()) {
                     this.log.debug("Opening connection " + route);
@@ -188,7 +209,10 @@ public class MainClientExec implements ClientExecChain {
                         break;
                     }
                 }
-                final int timeout = config.getSocketTimeout();
+                int timeout = config.getSocketTimeout();
+                if (deadline != null) {
+                    timeout = deadline.limit(timeout);
+                }
                 if (timeout >= 0) {
                     managedConn.setSocketTimeout(timeout);
                 }
@@ -214,7 +238,21 @@ public class MainClientExec implements ClientExecChain {
                     this.authenticator.generateAuthResponse(request, proxyAuthState, context);
                 }
 
-                response = requestExecutor.execute(request, managedConn, context);
+                try {
+                    response = requestExecutor.execute(request, managedConn, context);
+                } catch (final IOException ex) {
+                    if (!isReusedConnection || (execAware != null && execAware.isAborted())
+                            || !isSafeToResend(request, ex) || !validationPolicy.canResend(request, ex, context)) {
+                        throw ex;
+                    }
+                    // the server closed the connection while it was idle, try once more
+                    // on a new connection
+                    isReusedConnection = false;
+                    this.log.debug("Reused connection is dead, retrying on a new connection");
+                    managedConn.close();
+                    continue;
+                }
+                isReusedConnection = false;
 
                 // The connection is in or can be brought to a re-usable state.
                 if (reuseStrategy.keepAlive(response, context)) {
@@ -303,6 +341,25 @@ public class MainClientExec implements ClientExecChain {
         }
     }
 
+    private ConnectionValidationPolicy getValidationPolicy() {
+        if (this.connManager instanceof PoolingHttpClientConnectionManager) {
+            return ((PoolingHttpClientConnectionManager) this.connManager).getConnectionValidationPolicy();
+        }
+        return null;
+    }
+
+    /**
+     * A request with an entity may have been processed before a connection reset, only the
+     * absence of any response proves the server dropped it unread.
+     */
+    private static boolean isSafeToResend(final HttpRequestWrapper request, final IOException ex) {
+        if (!RequestEntityProxy.isRepeatable(request)) {
+            return false;
+        }
+        return ex instanceof NoHttpResponseException
+                || !(request instanceof HttpEntityEnclosingRequest);
+    }
+
     /**
      * Establishes the target route.
      */
@@ -313,7 +370,8 @@ public class MainClientExec implements ClientExecChain {
             final HttpRequest request,
             final HttpClientContext context) throws HttpException, IOException {
         final RequestConfig config = context.getRequestConfig();
-        final int timeout = config.getConnectTimeout();
+        final Deadline deadline = context.getDeadline();
+        final int timeout = deadline != null ? deadline.limit(config.getConnectTimeout()) : config.getConnectTimeout();
         final RouteTracker tracker = new RouteTracker(route);
         int step;
         do {
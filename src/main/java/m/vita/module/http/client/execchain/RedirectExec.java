@@ -8,6 +8,7 @@ import m.vita.module.http.annotation.ThreadSafe;
 import m.vita.module.http.client.RedirectStrategy;
 import m.vita.module.http.client.auth.AuthScheme;
 import m.vita.module.http.client.auth.AuthState;
+import m.vita.module.http.concurrent.Deadline;
 import m.vita.module.http.concurrent.cancellable.HttpExecutionAware;
 import m.vita.module.http.config.RequestConfig;
 import m.vita.module.http.connect.route.HttpRoutePlanner;
@@ -77,6 +78,10 @@ public class RedirectExec implements ClientExecChain {
                         throw new RedirectException("Maximum redirects ("+ maxRedirects + ") exceeded");
                     }
                     redirectCount++;
+                    final Deadline deadline = context.getDeadline();
+                    if (deadline != null) {
+                        deadline.check("following redirect " + redirectCount);
+                    }
 
                     final HttpRequest redirect = this.redirectStrategy.getRedirect(
                             currentRequest, response, context);
@@ -4,7 +4,9 @@ import java.io.IOException;
 
 import m.vita.module.http.annotation.Immutable;
 import m.vita.module.http.client.HttpRequestRetryHandler;
+import m.vita.module.http.concurrent.Deadline;
 import m.vita.module.http.concurrent.cancellable.HttpExecutionAware;
+import m.vita.module.http.exception.DeadlineExceededException;
 import m.vita.module.http.exception.HttpException;
 import m.vita.module.http.exception.NoHttpResponseException;
 import m.vita.module.http.exception.NonRepeatableRequestException;
@@ -50,6 +52,13 @@ public class RetryExec implements ClientExecChain {
                     this.log.debug("Request has been aborted");
                     throw ex;
                 }
+                final Deadline deadline = context.getDeadline();
+                if (deadline != null && deadline.isExpired()) {
+                    this.log.debug("Request deadline exceeded");
+                    final DeadlineExceededException timeout = deadline.newException("retrying request to " + route);
+                    timeout.initCause(ex);
+                    throw timeout;
+                }
                 if (retryHandler.retryRequest(ex, execCount, context)) {
                     if (this.log.isInfoEnabled()) {
                         this.log.info("I/O exception ("+ ex.getClass().getName() +
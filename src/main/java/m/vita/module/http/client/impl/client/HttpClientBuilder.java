@@ -25,6 +25,8 @@ import m.vita.module.http.client.auth.AuthSchemeProvider;
 import m.vita.module.http.client.auth.BasicSchemeFactory;
 import m.vita.module.http.client.auth.DigestSchemeFactory;
 import m.vita.module.http.client.auth.NTLMSchemeFactory;
+import m.vita.module.http.client.cache.CachingExec;
+import m.vita.module.http.client.cache.ResponseCache;
 import m.vita.module.http.client.execchain.BackoffStrategyExec;
 import m.vita.module.http.client.execchain.ClientExecChain;
 import m.vita.module.http.client.execchain.MainClientExec;
@@ -116,6 +118,7 @@ public class HttpClientBuilder {
     private ConnectionBackoffStrategy connectionBackoffStrategy;
     private BackoffManager backoffManager;
     private ServiceUnavailableRetryStrategy serviceUnavailStrategy;
+    private ResponseCache responseCache;
     private Lookup<AuthSchemeProvider> authSchemeRegistry;
     private Lookup<CookieSpecProvider> cookieSpecRegistry;
     private CookieStore cookieStore;
@@ -526,6 +529,15 @@ public class HttpClientBuilder {
         return this;
     }
 
+    /**
+     * Assigns {@link ResponseCache} instance. Cacheable responses are then stored in and served
+     * from the cache without opening a connection.
+     */
+    public final HttpClientBuilder setResponseCache(final ResponseCache responseCache) {
+        this.responseCache = responseCache;
+        return this;
+    }
+
     /**
      * Assigns {@link ServiceUnavailableRetryStrategy} instance.
      */
@@ -735,6 +747,9 @@ public class HttpClientBuilder {
                 userTokenHandler);
 
         execChain = decorateMainExec(execChain);
+        if (responseCache != null) {
+            execChain = new CachingExec(execChain, responseCache);
+        }
 
         HttpProcessor httpprocessor = this.httpprocessor;
         if (httpprocessor == null) {
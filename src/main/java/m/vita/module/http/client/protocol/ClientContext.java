@@ -106,4 +106,10 @@ public interface ClientContext {
      */
     public static final String REQUEST_CONFIG = "http.request-config";
 
+    /**
+     * Attribute name of a {@link m.vita.module.http.concurrent.Deadline} object
+     * that limits the total execution time of the request.
+     */
+    public static final String REQUEST_DEADLINE = "http.request-deadline";
+
 }
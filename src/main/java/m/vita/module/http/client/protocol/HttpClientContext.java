@@ -8,6 +8,7 @@ import m.vita.module.http.client.CredentialsProvider;
 import m.vita.module.http.client.auth.AuthCache;
 import m.vita.module.http.client.auth.AuthSchemeProvider;
 import m.vita.module.http.client.auth.AuthState;
+import m.vita.module.http.concurrent.Deadline;
 import m.vita.module.http.config.Lookup;
 import m.vita.module.http.config.RequestConfig;
 import m.vita.module.http.cookie.CookieOrigin;
@@ -101,6 +102,12 @@ public class HttpClientContext extends HttpCoreContext {
      */
     public static final String REQUEST_CONFIG = "http.request-config";
 
+    /**
+     * Attribute name of a {@link Deadline} object that limits the total
+     * execution time of the request.
+     */
+    public static final String REQUEST_DEADLINE = ClientContext.REQUEST_DEADLINE;
+
     public static HttpClientContext adapt(final HttpContext context) {
         if (context instanceof HttpClientContext) {
             return (HttpClientContext) context;
@@ -212,4 +219,12 @@ public class HttpClientContext extends HttpCoreContext {
         setAttribute(REQUEST_CONFIG, config);
     }
 
+    public Deadline getDeadline() {
+        return getAttribute(REQUEST_DEADLINE, Deadline.class);
+    }
+
+    public void setDeadline(final Deadline deadline) {
+        setAttribute(REQUEST_DEADLINE, deadline);
+    }
+
 }
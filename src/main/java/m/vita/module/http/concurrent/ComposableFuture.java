@@ -0,0 +1,437 @@
+package m.vita.module.http.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.util.Args;
+
+/**
+ * {@link Future} which can be chained without blocking a thread per stage. Dependent stages
+ * created by {@link #thenApply(FutureFunction)} and {@link #thenCompose(FutureFunction)} run on the
+ * thread completing this future, or on the calling thread when this future is already done.
+ * <p>&nbsp;</p>
+ * Cancelling a future cancels the operation producing it, including the request of the first
+ * stage, see {@link #setCancellable(Cancellable)}. A failure or cancellation of a stage is passed
+ * on to all stages depending on it.
+ *
+ * @param <T> type of the result
+ */
+@ThreadSafe
+public class ComposableFuture<T> implements Future<T>, Cancellable {
+
+    private final List<FutureCallback<? super T>> callbacks = new ArrayList<FutureCallback<? super T>>(2);
+    private volatile boolean completed;
+    private volatile boolean cancelled;
+    private T result;
+    private Exception ex;
+    private Cancellable cancellable;
+
+    public ComposableFuture() {
+        super();
+    }
+
+    /**
+     * Creates new future, already completed with the given result
+     *
+     * @param result the result
+     * @param <T>    type of the result
+     * @return completed future
+     */
+    public static <T> ComposableFuture<T> completedFuture(final T result) {
+        final ComposableFuture<T> future = new ComposableFuture<T>();
+        future.completed(result);
+        return future;
+    }
+
+    /**
+     * Sets the operation cancelled together with this future. If this future has already been
+     * cancelled, the operation is cancelled immediately.
+     *
+     * @param cancellable operation producing the result, may be null
+     */
+    public void setCancellable(final Cancellable cancellable) {
+        final boolean cancelNow;
+        synchronized (this) {
+            cancelNow = this.cancelled;
+            if (!this.completed) {
+                this.cancellable = cancellable;
+            }
+        }
+        if (cancelNow && cancellable != null) {
+            cancellable.cancel();
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return this.completed;
+    }
+
+    private T getResult() throws ExecutionException {
+        if (this.ex != null) {
+            throw new ExecutionException(this.ex);
+        }
+        if (this.cancelled) {
+            throw new CancellationException();
+        }
+        return this.result;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!this.completed) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized T get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        Args.notNull(unit, "Time unit");
+        final long msecs = unit.toMillis(timeout);
+        final long startTime = (msecs <= 0) ? 0 : System.currentTimeMillis();
+        long waitTime = msecs;
+        if (this.completed) {
+            return getResult();
+        } else if (waitTime <= 0) {
+            throw new TimeoutException();
+        } else {
+            for (;;) {
+                wait(waitTime);
+                if (this.completed) {
+                    return getResult();
+                } else {
+                    waitTime = msecs - (System.currentTimeMillis() - startTime);
+                    if (waitTime <= 0) {
+                        throw new TimeoutException();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Completes this future with the given result
+     *
+     * @param result the result
+     * @return false if the future was already done
+     */
+    public boolean completed(final T result) {
+        synchronized (this) {
+            if (this.completed) {
+                return false;
+            }
+            this.completed = true;
+            this.result = result;
+            this.cancellable = null;
+            notifyAll();
+        }
+        for (final FutureCallback<? super T> callback : drainCallbacks()) {
+            callback.completed(result);
+        }
+        return true;
+    }
+
+    /**
+     * Completes this future with the given failure
+     *
+     * @param exception cause of the failure
+     * @return false if the future was already done
+     */
+    public boolean failed(final Exception exception) {
+        synchronized (this) {
+            if (this.completed) {
+                return false;
+            }
+            this.completed = true;
+            this.ex = exception;
+            this.cancellable = null;
+            notifyAll();
+        }
+        for (final FutureCallback<? super T> callback : drainCallbacks()) {
+            callback.failed(exception);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        final Cancellable operation;
+        synchronized (this) {
+            if (this.completed) {
+                return false;
+            }
+            this.completed = true;
+            this.cancelled = true;
+            operation = this.cancellable;
+            this.cancellable = null;
+            notifyAll();
+        }
+        if (operation != null) {
+            operation.cancel();
+        }
+        for (final FutureCallback<? super T> callback : drainCallbacks()) {
+            callback.cancelled();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean cancel() {
+        return cancel(true);
+    }
+
+    private synchronized List<FutureCallback<? super T>> drainCallbacks() {
+        if (this.callbacks.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<FutureCallback<? super T>> drained = new ArrayList<FutureCallback<? super T>>(this.callbacks);
+        this.callbacks.clear();
+        return drained;
+    }
+
+    /**
+     * Registers callback invoked once this future is done, immediately if it already is
+     *
+     * @param callback callback to notify
+     * @return this future to allow fluid syntax
+     */
+    public ComposableFuture<T> addCallback(final FutureCallback<? super T> callback) {
+        Args.notNull(callback, "Callback");
+        synchronized (this) {
+            if (!this.completed) {
+                this.callbacks.add(callback);
+                return this;
+            }
+        }
+        if (this.cancelled) {
+            callback.cancelled();
+        } else if (this.ex != null) {
+            callback.failed(this.ex);
+        } else {
+            callback.completed(this.result);
+        }
+        return this;
+    }
+
+    /**
+     * Returns future completed with the result of the function applied to the result of this one
+     *
+     * @param function conversion of the result
+     * @param <U>      type of the converted result
+     * @return dependent future, cancelling it cancels this future
+     */
+    public <U> ComposableFuture<U> thenApply(final FutureFunction<? super T, ? extends U> function) {
+        Args.notNull(function, "Function");
+        final ComposableFuture<U> next = new ComposableFuture<U>();
+        next.setCancellable(this);
+        addCallback(new FutureCallback<T>() {
+            @Override
+            public void completed(final T result) {
+                final U converted;
+                try {
+                    converted = function.apply(result);
+                } catch (final Exception e) {
+                    next.failed(e);
+                    return;
+                }
+                next.completed(converted);
+            }
+
+            @Override
+            public void failed(final Exception ex) {
+                next.failed(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                next.cancel(true);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns future completed by the future the function starts with the result of this one,
+     * typically a request depending on the result of the previous request
+     *
+     * @param function operation started with the result
+     * @param <U>      type of the result of the operation
+     * @return dependent future, cancelling it cancels this future or the started operation
+     */
+    public <U> ComposableFuture<U> thenCompose(final FutureFunction<? super T, ? extends ComposableFuture<U>> function) {
+        Args.notNull(function, "Function");
+        final ComposableFuture<U> next = new ComposableFuture<U>();
+        next.setCancellable(this);
+        addCallback(new FutureCallback<T>() {
+            @Override
+            public void completed(final T result) {
+                final ComposableFuture<U> stage;
+                try {
+                    stage = function.apply(result);
+                } catch (final Exception e) {
+                    next.failed(e);
+                    return;
+                }
+                if (stage == null) {
+                    next.failed(new NullPointerException("Function returned null future"));
+                    return;
+                }
+                next.setCancellable(stage);
+                stage.addCallback(new ForwardingCallback<U>(next));
+            }
+
+            @Override
+            public void failed(final Exception ex) {
+                next.failed(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                next.cancel(true);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Fails this future with a {@link TimeoutException} and cancels the operation producing it,
+     * unless it completes within the given time
+     *
+     * @param timeout maximum time to wait
+     * @param unit    unit of the timeout
+     * @return this future to allow fluid syntax
+     */
+    public ComposableFuture<T> withTimeout(final long timeout, final TimeUnit unit) {
+        Args.notNull(unit, "Time unit");
+        if (this.completed) {
+            return this;
+        }
+        final TimerWheel.Timeout timer = TimerWheel.getDefault().schedule(new Runnable() {
+            @Override
+            public void run() {
+                final Cancellable operation;
+                synchronized (ComposableFuture.this) {
+                    operation = ComposableFuture.this.cancellable;
+                }
+                if (failed(new TimeoutException("Timed out after " + unit.toMillis(timeout) + " ms")) && operation != null) {
+                    operation.cancel();
+                }
+            }
+        }, timeout, unit);
+        addCallback(new FutureCallback<T>() {
+            @Override
+            public void completed(final T result) {
+                timer.cancel();
+            }
+
+            @Override
+            public void failed(final Exception ex) {
+                timer.cancel();
+            }
+
+            @Override
+            public void cancelled() {
+                timer.cancel();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Returns future completed with the results of all given futures, in iteration order. It fails
+     * as soon as one of the futures fails or gets cancelled; cancelling it cancels all futures.
+     *
+     * @param futures futures to join
+     * @param <T>     type of the results
+     * @return joined future
+     */
+    public static <T> ComposableFuture<List<T>> allOf(final Collection<? extends ComposableFuture<? extends T>> futures) {
+        Args.notNull(futures, "Futures");
+        final List<ComposableFuture<? extends T>> members = new ArrayList<ComposableFuture<? extends T>>(futures);
+        final ComposableFuture<List<T>> joined = new ComposableFuture<List<T>>();
+        joined.setCancellable(new Cancellable() {
+            @Override
+            public boolean cancel() {
+                for (final ComposableFuture<? extends T> member : members) {
+                    member.cancel(true);
+                }
+                return true;
+            }
+        });
+        if (members.isEmpty()) {
+            joined.completed(Collections.<T>emptyList());
+            return joined;
+        }
+        final AtomicInteger remaining = new AtomicInteger(members.size());
+        for (final ComposableFuture<? extends T> member : members) {
+            member.addCallback(new FutureCallback<T>() {
+                @Override
+                public void completed(final T result) {
+                    if (remaining.decrementAndGet() == 0) {
+                        final List<T> results = new ArrayList<T>(members.size());
+                        for (final ComposableFuture<? extends T> done : members) {
+                            results.add(done.result);
+                        }
+                        joined.completed(results);
+                    }
+                }
+
+                @Override
+                public void failed(final Exception ex) {
+                    joined.failed(ex);
+                }
+
+                @Override
+                public void cancelled() {
+                    joined.failed(new CancellationException("Joined future cancelled"));
+                }
+            });
+        }
+        return joined;
+    }
+
+    @Override
+    public String toString() {
+        return "[completed: " + this.completed + "; cancelled: " + this.cancelled
+                + "; failure: " + this.ex + "]";
+    }
+
+    private static class ForwardingCallback<T> implements FutureCallback<T> {
+        private final ComposableFuture<T> target;
+
+        ForwardingCallback(final ComposableFuture<T> target) {
+            this.target = target;
+        }
+
+        @Override
+        public void completed(final T result) {
+            this.target.completed(result);
+        }
+
+        @Override
+        public void failed(final Exception ex) {
+            this.target.failed(ex);
+        }
+
+        @Override
+        public void cancelled() {
+            this.target.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package m.vita.module.http.concurrent;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.util.Args;
+
+/**
+ * Creates the daemon background threads of the library, named after a prefix followed by a
+ * sequence number, so that they never keep the process alive.
+ */
+@ThreadSafe
+public class DaemonThreadFactory implements ThreadFactory {
+
+    /** Time an idle thread of the executors created here is kept for */
+    public static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String namePrefix;
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    /**
+     * @param namePrefix prefix of the thread names, e.g. {@code "JEBAsyncHttp-io-"}
+     */
+    public DaemonThreadFactory(final String namePrefix) {
+        this.namePrefix = Args.notNull(namePrefix, "Thread name prefix");
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, this.namePrefix + this.threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Creates an executor starting a daemon thread for each task no idle thread can take, up to
+     * the given number of threads, and stopping the threads idle for {@link #KEEP_ALIVE_SECONDS}
+     *
+     * @param namePrefix prefix of the thread names
+     * @param maxThreads maximum number of threads, tasks beyond are rejected
+     * @return new executor
+     */
+    public static ThreadPoolExecutor newCachedExecutor(final String namePrefix, final int maxThreads) {
+        return new ThreadPoolExecutor(0, Args.positive(maxThreads, "Max threads"), KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DaemonThreadFactory(namePrefix));
+    }
+
+    /**
+     * Creates an executor running the queued tasks on a fixed number of daemon threads, started on
+     * demand and stopped when idle for {@link #KEEP_ALIVE_SECONDS}
+     *
+     * @param namePrefix prefix of the thread names
+     * @param threads    number of threads
+     * @param queue      queue of the tasks waiting for a thread, bounded or not
+     * @return new executor
+     */
+    public static ThreadPoolExecutor newFixedExecutor(final String namePrefix, final int threads,
+                                                      final BlockingQueue<Runnable> queue) {
+        Args.positive(threads, "Threads");
+        Args.notNull(queue, "Task queue");
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, queue, new DaemonThreadFactory(namePrefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
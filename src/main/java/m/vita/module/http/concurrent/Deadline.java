@@ -0,0 +1,115 @@
+package m.vita.module.http.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+import m.vita.module.http.annotation.Immutable;
+import m.vita.module.http.client.protocol.ClientContext;
+import m.vita.module.http.exception.DeadlineExceededException;
+import m.vita.module.http.header.HttpContext;
+import m.vita.module.http.util.Args;
+
+/**
+ * Point in time by which a request must be complete, across all its retries, redirects and
+ * authentication round trips. The execution stages take the deadline from the
+ * {@link ClientContext#REQUEST_DEADLINE} context attribute and cap every wait, i.e. connection
+ * lease, connect, TLS handshake, send and receive, at the time remaining.
+ */
+@Immutable
+public final class Deadline {
+
+    private final long expiresAt;
+    private final long duration;
+
+    private Deadline(final long expiresAt, final long duration) {
+        this.expiresAt = expiresAt;
+        this.duration = duration;
+    }
+
+    /**
+     * Creates deadline expiring after the given time from now
+     *
+     * @param duration time allowed
+     * @param unit     unit of the duration
+     * @return new deadline
+     */
+    public static Deadline after(final long duration, final TimeUnit unit) {
+        Args.notNegative(duration, "Duration");
+        Args.notNull(unit, "Time unit");
+        final long nanos = unit.toNanos(duration);
+        return new Deadline(System.nanoTime() + nanos, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * @param context execution context, may be null
+     * @return deadline of the request executed with the context, or null if it has none
+     */
+    public static Deadline get(final HttpContext context) {
+        final Object deadline = context != null ? context.getAttribute(ClientContext.REQUEST_DEADLINE) : null;
+        return deadline instanceof Deadline ? (Deadline) deadline : null;
+    }
+
+    /**
+     * @return milliseconds left, zero or negative once expired
+     */
+    public long remainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.expiresAt - System.nanoTime());
+    }
+
+    public boolean isExpired() {
+        return this.expiresAt - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Throws if the deadline has expired
+     *
+     * @param stage stage about to start, used in the message
+     * @throws DeadlineExceededException if no time is left
+     */
+    public void check(final String stage) throws DeadlineExceededException {
+        if (isExpired()) {
+            throw newException(stage);
+        }
+    }
+
+    /**
+     * Limits a timeout to the time remaining
+     *
+     * @param timeoutMillis timeout in milliseconds, zero or negative for none
+     * @return the timeout or the time remaining, whichever is shorter, at least 1
+     * @throws DeadlineExceededException if no time is left
+     */
+    public int limit(final int timeoutMillis) throws DeadlineExceededException {
+        final long remaining = remainingMillis();
+        if (remaining <= 0) {
+            throw newException(null);
+        }
+        if (timeoutMillis > 0 && timeoutMillis <= remaining) {
+            return timeoutMillis;
+        }
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Runs the task on the shared {@link TimerWheel} once the deadline expires
+     *
+     * @param task short task, typically aborting the request
+     * @return handle cancelling the task
+     */
+    public TimerWheel.Timeout onExpiry(final Runnable task) {
+        return TimerWheel.getDefault().schedule(task, this.expiresAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param stage stage which could not complete, may be null
+     * @return exception reporting the expiry
+     */
+    public DeadlineExceededException newException(final String stage) {
+        return new DeadlineExceededException("Request deadline of " + this.duration + " ms exceeded"
+                + (stage != null ? " before " + stage : ""));
+    }
+
+    @Override
+    public String toString() {
+        return "[duration: " + this.duration + " ms; remaining: " + remainingMillis() + " ms]";
+    }
+}
@@ -0,0 +1,13 @@
+package m.vita.module.http.concurrent;
+
+/**
+ * Function applied to the result of a {@link ComposableFuture}.
+ *
+ * @param <T> type of the input
+ * @param <R> type of the output
+ */
+public interface FutureFunction<T, R> {
+
+    R apply(T result) throws Exception;
+
+}
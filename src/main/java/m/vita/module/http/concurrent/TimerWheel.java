@@ -0,0 +1,279 @@
+package m.vita.module.http.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.util.Args;
+
+/**
+ * Hashed timer wheel running short tasks after a delay on a single daemon thread. Scheduling and
+ * cancelling are O(1) and never block, which makes the wheel suitable for a timer per request,
+ * e.g. retry backoff, hedging and deadlines. Tasks fire with a precision of one tick and must only
+ * hand work over to an executor or abort a request, as they run on the timer thread.
+ * <p>&nbsp;</p>
+ * The thread is started with the first task and waits without ticking while no task is
+ * scheduled. Cancelled tasks are taken out of the wheel on the next tick, so that they neither
+ * keep the thread ticking nor hold on to their task until their deadline.
+ */
+@ThreadSafe
+public final class TimerWheel {
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static volatile TimerWheel defaultWheel;
+
+    private final ThreadFactory threadFactory;
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final BlockingQueue<Timeout> pending = new LinkedBlockingQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger state = new AtomicInteger();
+    private final long startTime;
+
+    // accessed by the timer thread only
+    private long tick;
+    private int scheduled;
+
+    /**
+     * Creates new wheel
+     *
+     * @param threadName   prefix of the name of the timer thread
+     * @param tickDuration duration of a tick
+     * @param unit         unit of the tick duration
+     * @param wheelSize    number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(final String threadName, final long tickDuration, final TimeUnit unit, final int wheelSize) {
+        Args.notNull(threadName, "Thread name");
+        Args.notNull(unit, "Time unit");
+        Args.positive(tickDuration, "Tick duration");
+        Args.positive(wheelSize, "Wheel size");
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.threadFactory = new DaemonThreadFactory(threadName);
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            this.buckets[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * @return wheel shared by all clients, ticking every 10 ms
+     */
+    public static TimerWheel getDefault() {
+        TimerWheel wheel = defaultWheel;
+        if (wheel == null) {
+            synchronized (TimerWheel.class) {
+                wheel = defaultWheel;
+                if (wheel == null) {
+                    defaultWheel = wheel = new TimerWheel("JEBAsyncHttp-timer-",
+                            DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+                }
+            }
+        }
+        return wheel;
+    }
+
+    /**
+     * Runs the task once the delay elapsed
+     *
+     * @param task  short task to run on the timer thread
+     * @param delay delay, zero or negative to run on the next tick
+     * @param unit  unit of the delay
+     * @return handle cancelling the task
+     */
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        Args.notNull(task, "Task");
+        Args.notNull(unit, "Time unit");
+        final Timeout timeout = new Timeout(this, task, System.nanoTime() + Math.max(0, unit.toNanos(delay)));
+        if (this.state.get() == 0 && this.state.compareAndSet(0, 1)) {
+            this.threadFactory.newThread(new Worker()).start();
+        }
+        this.pending.add(timeout);
+        return timeout;
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - this.startTime) / this.tickNanos;
+    }
+
+    private void add(final Timeout timeout) {
+        if (timeout.isCancelled()) {
+            return;
+        }
+        long deadlineTick = (timeout.deadline - this.startTime + this.tickNanos - 1) / this.tickNanos;
+        if (deadlineTick <= this.tick) {
+            deadlineTick = this.tick + 1;
+        }
+        timeout.rounds = (deadlineTick - this.tick - 1) / this.buckets.length;
+        this.buckets[(int) (deadlineTick & this.mask)].add(timeout);
+        this.scheduled++;
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = this.cancelled.poll()) != null) {
+            // still in the pending queue if not in a bucket, add() skips it then
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+                this.scheduled--;
+            }
+        }
+    }
+
+    private void expire(final Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            final Timeout next = timeout.next;
+            if (timeout.isCancelled()) {
+                bucket.remove(timeout);
+                this.scheduled--;
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                bucket.remove(timeout);
+                this.scheduled--;
+                timeout.expire();
+            }
+            timeout = next;
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            for (;;) {
+                try {
+                    if (scheduled == 0) {
+                        // nothing to tick for, sleep until a task arrives
+                        final Timeout timeout = pending.take();
+                        tick = currentTick();
+                        add(timeout);
+                    }
+                    final long waitNanos = startTime + (tick + 1) * tickNanos - System.nanoTime();
+                    final Timeout timeout = waitNanos > 0 ? pending.poll(waitNanos, TimeUnit.NANOSECONDS) : null;
+                    if (timeout != null) {
+                        add(timeout);
+                        continue;
+                    }
+                    removeCancelled();
+                    final long now = currentTick();
+                    while (tick < now) {
+                        tick++;
+                        expire(buckets[(int) (tick & mask)]);
+                    }
+                } catch (final InterruptedException ignore) {
+                    // the timer thread is not interrupted by anyone but the VM
+                }
+            }
+        }
+    }
+
+    /**
+     * Tasks of one slot of the wheel, a doubly linked list through the tasks so that a cancelled
+     * task is removed in constant time. Accessed by the timer thread only.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(final Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = this.tail;
+            if (this.tail != null) {
+                this.tail.next = timeout;
+            } else {
+                this.head = timeout;
+            }
+            this.tail = timeout;
+        }
+
+        void remove(final Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                this.head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                this.tail = timeout.prev;
+            }
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    /**
+     * Task scheduled on a {@link TimerWheel}.
+     */
+    public static final class Timeout implements Cancellable {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // accessed by the timer thread only
+        private long rounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(final TimerWheel wheel, final Runnable task, final long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task unless it already ran
+         *
+         * @return false if the task already ran or has been cancelled before
+         */
+        @Override
+        public boolean cancel() {
+            if (!this.state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+            // removed from its bucket by the timer thread
+            this.wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return this.state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return this.state.get() == EXPIRED;
+        }
+
+        void expire() {
+            if (!this.state.compareAndSet(WAITING, EXPIRED)) {
+                return;
+            }
+            try {
+                this.task.run();
+            } catch (final Throwable ignore) {
+                // a failing task must not stop the timer thread
+            }
+        }
+    }
+}
@@ -11,13 +11,16 @@ import m.vita.module.http.pool.ConnFactory;
 import m.vita.module.http.util.HttpClientAndroidLog;
 
 @ThreadSafe
-class CPool extends AbstractConnPool<HttpRoute, ManagedHttpClientConnection, CPoolEntry> {
+class CPool extends AbstractConnPool<HttpRoute, ManagedHttpClientConnection, CPoolEntry>
+        implements IdleConnectionEvictor.Target<CPoolEntry> {
 
     private static final AtomicLong COUNTER = new AtomicLong();
 
     public HttpClientAndroidLog log = new HttpClientAndroidLog(CPool.class);
     private final long timeToLive;
     private final TimeUnit tunit;
+    private volatile IdleConnectionEvictor idleConnectionEvictor;
+    private volatile ConnectionValidationPolicy validationPolicy;
 
     public CPool(
             final ConnFactory<HttpRoute, ManagedHttpClientConnection> connFactory,
@@ -34,4 +37,46 @@ class CPool extends AbstractConnPool<HttpRoute, ManagedHttpClientConnection, CPo
         return new CPoolEntry(this.log, id, route, conn, this.timeToLive, this.tunit);
     }
 
+    void setIdleConnectionEvictor(final IdleConnectionEvictor evictor) {
+        this.idleConnectionEvictor = evictor;
+    }
+
+    IdleConnectionEvictor getIdleConnectionEvictor() {
+        return this.idleConnectionEvictor;
+    }
+
+    void setConnectionValidationPolicy(final ConnectionValidationPolicy policy) {
+        this.validationPolicy = policy;
+    }
+
+    ConnectionValidationPolicy getConnectionValidationPolicy() {
+        return this.validationPolicy;
+    }
+
+    @Override
+    protected boolean validate(final CPoolEntry entry) {
+        final ConnectionValidationPolicy policy = this.validationPolicy;
+        return policy == null || policy.validate(entry.getConnection(), entry.getUpdated());
+    }
+
+    @Override
+    protected void onLease(final CPoolEntry entry) {
+        final IdleConnectionEvictor evictor = this.idleConnectionEvictor;
+        if (evictor != null) {
+            evictor.remove(entry);
+        }
+    }
+
+    @Override
+    protected void onRelease(final CPoolEntry entry) {
+        final IdleConnectionEvictor evictor = this.idleConnectionEvictor;
+        if (evictor != null) {
+            evictor.add(this, entry, entry.getCreated(), entry.getUpdated(), entry.getExpiry());
+        }
+    }
+
+    public boolean evict(final CPoolEntry entry, final long updated) {
+        return closeIfIdle(entry, updated);
+    }
+
 }
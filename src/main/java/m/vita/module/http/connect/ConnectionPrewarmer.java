@@ -0,0 +1,185 @@
+package m.vita.module.http.connect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.concurrent.Cancellable;
+import m.vita.module.http.concurrent.ComposableFuture;
+import m.vita.module.http.concurrent.DaemonThreadFactory;
+import m.vita.module.http.header.HttpRoute;
+import m.vita.module.http.util.Args;
+
+/**
+ * Opens connections to a route ahead of the first requests, so that these do not pay for the
+ * DNS lookup, TCP connect and TLS handshake in series with the request.
+ * <p>&nbsp;</p>
+ * The connections the pool already holds to the route count towards the requested number, the
+ * missing ones are leased and opened on their own background thread each, all of them in parallel.
+ * Each connection is put back into the pool as available as soon as it is open, so that foreground
+ * requests may use it at once. To never lease and count a connection twice, an attempt first
+ * checks that the pool holds fewer connections to the route than requested, and an attempt that
+ * is handed a connection already open, which the pool prefers to opening a new one, puts it back
+ * and stops without counting it.
+ */
+@ThreadSafe
+public final class ConnectionPrewarmer {
+
+    private static final ThreadPoolExecutor prewarmExecutor =
+            DaemonThreadFactory.newCachedExecutor("JEBAsyncHttp-prewarm-", Integer.MAX_VALUE);
+
+    /**
+     * Connection manager the connections are leased from.
+     *
+     * @param <C> type of the leased connections
+     */
+    public interface Target<C> {
+
+        /**
+         * @return number of connections the pool holds to the route, leased or available
+         */
+        int getConnectionCount(HttpRoute route);
+
+        /**
+         * Leases a connection to the route, waiting for the pool if needed
+         */
+        C lease(HttpRoute route) throws Exception;
+
+        /**
+         * Opens a leased connection that is not open yet
+         *
+         * @return timings of the connection opened, null if it was open already
+         */
+        ConnectionTimings open(C conn, HttpRoute route) throws Exception;
+
+        /**
+         * Puts a connection back into the pool
+         *
+         * @param conn     the leased connection
+         * @param reusable false if the connection failed to open and has to be discarded
+         */
+        void release(C conn, boolean reusable);
+    }
+
+    private ConnectionPrewarmer() {
+    }
+
+    /**
+     * Opens connections to the given route in the background
+     *
+     * @param route  route to open connections to
+     * @param count  number of connections the pool should hold, at most the limit of the route
+     * @param target connection manager to lease the connections from
+     * @param <C>    type of the leased connections
+     * @return future of the outcome, cancelling it stops leasing and opening connections
+     */
+    public static <C> ComposableFuture<PrewarmResult> prewarm(final HttpRoute route, final int count,
+                                                             final Target<C> target) {
+        Args.notNull(route, "HTTP route");
+        Args.notNull(target, "Target");
+        final ComposableFuture<PrewarmResult> future = new ComposableFuture<PrewarmResult>();
+        if (count <= 0) {
+            future.completed(new PrewarmResult(route, 0, 0,
+                    new ArrayList<ConnectionTimings>(), new ArrayList<Exception>()));
+            return future;
+        }
+        final int alreadyOpen = Math.min(target.getConnectionCount(route), count);
+        final Prewarm<C> prewarm = new Prewarm<C>(route, count, alreadyOpen, target, future);
+        future.setCancellable(prewarm);
+        if (alreadyOpen == count) {
+            prewarm.complete();
+            return future;
+        }
+        for (int i = alreadyOpen; i < count; i++) {
+            try {
+                prewarmExecutor.execute(prewarm);
+            } catch (final RejectedExecutionException ex) {
+                prewarm.failed(ex);
+            }
+        }
+        return future;
+    }
+
+    private static class Prewarm<C> implements Runnable, Cancellable {
+        private final HttpRoute route;
+        private final int count;
+        private final int alreadyOpen;
+        private final Target<C> target;
+        private final ComposableFuture<PrewarmResult> future;
+        private final AtomicInteger remaining;
+        private final List<ConnectionTimings> timings = new ArrayList<ConnectionTimings>();
+        private final List<Exception> failures = new ArrayList<Exception>();
+        private volatile boolean cancelled;
+
+        Prewarm(final HttpRoute route, final int count, final int alreadyOpen, final Target<C> target,
+                final ComposableFuture<PrewarmResult> future) {
+            this.route = route;
+            this.count = count;
+            this.alreadyOpen = alreadyOpen;
+            this.target = target;
+            this.future = future;
+            this.remaining = new AtomicInteger(count - alreadyOpen);
+        }
+
+        @Override
+        public void run() {
+            if (this.cancelled || this.target.getConnectionCount(this.route) >= this.count) {
+                done();
+                return;
+            }
+            C conn = null;
+            boolean reusable = false;
+            try {
+                conn = this.target.lease(this.route);
+                final ConnectionTimings opened = this.target.open(conn, this.route);
+                reusable = true;
+                if (opened != null) {
+                    synchronized (this) {
+                        this.timings.add(opened);
+                    }
+                }
+            } catch (final Exception ex) {
+                synchronized (this) {
+                    this.failures.add(ex);
+                }
+            } finally {
+                if (conn != null) {
+                    this.target.release(conn, reusable);
+                }
+            }
+            done();
+        }
+
+        void failed(final Exception ex) {
+            synchronized (this) {
+                this.failures.add(ex);
+            }
+            done();
+        }
+
+        private void done() {
+            if (this.remaining.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        void complete() {
+            final PrewarmResult result;
+            synchronized (this) {
+                result = new PrewarmResult(this.route, this.count, this.alreadyOpen,
+                        new ArrayList<ConnectionTimings>(this.timings), new ArrayList<Exception>(this.failures));
+            }
+            this.future.completed(result);
+        }
+
+        @Override
+        public boolean cancel() {
+            // the connections being opened are still put back into the pool once open
+            this.cancelled = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package m.vita.module.http.connect;
+
+import java.util.concurrent.TimeUnit;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.header.HttpContext;
+import m.vita.module.http.header.HttpParams;
+
+/**
+ * Records how long each phase of opening a connection took: the DNS lookup, the TCP connect and
+ * the TLS handshake. The recorder is looked up by the connection operators and the SSL socket
+ * factories under {@link #ATTRIBUTE}, in the execution context or, where no context is available,
+ * in the parameters, and is only filled in when present.
+ * <p>&nbsp;</p>
+ * The first phase starts when the recorder is created. A phase that did not happen, such as the
+ * TLS handshake of a plain connection or the lookup of a literal address, has a negative duration.
+ */
+@ThreadSafe
+public class ConnectionTimings {
+
+    /** Name of the context attribute or parameter holding the recorder */
+    public static final String ATTRIBUTE = "http.connection.timings";
+
+    private final long start;
+    // offsets from the start, in nanoseconds
+    private volatile long resolved = -1;
+    private volatile long connected = -1;
+    private volatile long secured = -1;
+
+    public ConnectionTimings() {
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * @param context execution context, may be null
+     * @return recorder of the connection being opened, null if the timings are not recorded
+     */
+    public static ConnectionTimings get(final HttpContext context) {
+        return context != null ? (ConnectionTimings) context.getAttribute(ATTRIBUTE) : null;
+    }
+
+    /**
+     * @param params connection parameters, may be null
+     * @return recorder of the connection being opened, null if the timings are not recorded
+     */
+    public static ConnectionTimings get(final HttpParams params) {
+        return params != null ? (ConnectionTimings) params.getParameter(ATTRIBUTE) : null;
+    }
+
+    /**
+     * Marks the end of the DNS lookup
+     */
+    public void markResolved() {
+        this.resolved = elapsed();
+    }
+
+    /**
+     * Marks the end of the TCP connect
+     */
+    public void markConnected() {
+        this.connected = elapsed();
+    }
+
+    /**
+     * Marks the end of the TLS handshake
+     */
+    public void markSecured() {
+        this.secured = elapsed();
+    }
+
+    private long elapsed() {
+        return Math.max(0, System.nanoTime() - this.start);
+    }
+
+    /**
+     * @return whether the TCP connect has been marked as completed
+     */
+    public boolean isConnected() {
+        return this.connected >= 0;
+    }
+
+    /**
+     * @param unit unit of the result
+     * @return duration of the DNS lookup, negative if there was none
+     */
+    public long getDnsTime(final TimeUnit unit) {
+        return duration(0, this.resolved, unit);
+    }
+
+    /**
+     * @param unit unit of the result
+     * @return duration of the TCP connect, including the failed attempts to other addresses,
+     * negative if the connection was not established
+     */
+    public long getConnectTime(final TimeUnit unit) {
+        return duration(Math.max(0, this.resolved), this.connected, unit);
+    }
+
+    /**
+     * @param unit unit of the result
+     * @return duration of the TLS handshake, negative if there was none
+     */
+    public long getTlsTime(final TimeUnit unit) {
+        return this.connected >= 0 ? duration(this.connected, this.secured, unit) : -1;
+    }
+
+    private static long duration(final long from, final long to, final TimeUnit unit) {
+        return to >= 0 ? unit.convert(to - from, TimeUnit.NANOSECONDS) : -1;
+    }
+
+    @Override
+    public String toString() {
+        return "[dns: " + getDnsTime(TimeUnit.MILLISECONDS) + " ms; connect: "
+                + getConnectTime(TimeUnit.MILLISECONDS) + " ms; tls: "
+                + getTlsTime(TimeUnit.MILLISECONDS) + " ms]";
+    }
+}
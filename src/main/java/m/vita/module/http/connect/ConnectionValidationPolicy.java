@@ -0,0 +1,169 @@
+package m.vita.module.http.connect;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import m.vita.module.http.RetryBudget;
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.exception.NoHttpResponseException;
+import m.vita.module.http.header.HttpContext;
+import m.vita.module.http.header.HttpRequest;
+import m.vita.module.http.util.Args;
+
+/**
+ * Decides whether a pooled connection has to be checked for staleness before being reused.
+ * <p>&nbsp;</p>
+ * A stale check blocks on a socket read for up to a millisecond, which is wasted on a connection
+ * that was in use a moment ago. With a policy set on a connection manager, the pool only checks
+ * connections that have been idle for longer than the inactivity threshold and hands out the
+ * others unchecked, replacing the stale check the request executors otherwise perform on every
+ * lease. A request with a safe method failing on a reused connection the server had already
+ * closed is then sent again, once, on a new connection, charged to the retry budget of the client.
+ * <p>&nbsp;</p>
+ * A policy may be shared by several connection managers.
+ */
+@ThreadSafe
+public class ConnectionValidationPolicy {
+
+    public static final long DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+    private static final List<String> SAFE_METHODS = Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE");
+    // messages of the JVM and of the Android errno based exceptions
+    private static final String[] STALE_CONNECTION_ERRORS = {
+            "Connection reset", "Broken pipe", "ECONNRESET", "EPIPE"
+    };
+
+    private final long validateAfterInactivityMillis;
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong skips = new AtomicLong();
+    private final AtomicLong deadConnections = new AtomicLong();
+
+    /**
+     * Creates policy validating connections idle for more than two seconds
+     */
+    public ConnectionValidationPolicy() {
+        this(DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates new policy
+     *
+     * @param validateAfterInactivity time a connection may stay idle in the pool before it is
+     *                                checked again, zero to check every connection
+     * @param unit                    unit of the inactivity time
+     */
+    public ConnectionValidationPolicy(final long validateAfterInactivity, final TimeUnit unit) {
+        Args.notNegative(validateAfterInactivity, "Inactivity time");
+        Args.notNull(unit, "Time unit");
+        this.validateAfterInactivityMillis = unit.toMillis(validateAfterInactivity);
+    }
+
+    /**
+     * @param unit unit to return the time in
+     * @return time a connection may stay idle before it is checked again
+     */
+    public long getValidateAfterInactivity(final TimeUnit unit) {
+        return unit.convert(this.validateAfterInactivityMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks a connection about to be leased from the pool if it has been idle for too long
+     *
+     * @param conn    the pooled connection
+     * @param updated time the connection was put back into the pool at
+     * @return false if the connection has been checked and found stale
+     */
+    public boolean validate(final HttpConnection conn, final long updated) {
+        if (System.currentTimeMillis() - updated < this.validateAfterInactivityMillis) {
+            this.skips.incrementAndGet();
+            return true;
+        }
+        this.checks.incrementAndGet();
+        if (conn.isStale()) {
+            this.deadConnections.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether a request that failed on a reused connection may be sent again on a new
+     * connection. It may only if the failure shows that the server had closed the connection
+     * while it was idle, if the request method is safe, as the server may have acted on any other
+     * request before dropping the connection, and if the retry budget of the client, when one is
+     * found in the context, allows one more retry. The dead connection is counted in any case.
+     *
+     * @param request the failed request
+     * @param ex      failure of the request
+     * @param context execution context of the request
+     * @return true if the request may be sent again
+     */
+    public boolean canResend(final HttpRequest request, final IOException ex, final HttpContext context) {
+        if (!isStaleConnectionFailure(ex)) {
+            return false;
+        }
+        this.deadConnections.incrementAndGet();
+        if (!SAFE_METHODS.contains(request.getRequestLine().getMethod().toUpperCase(Locale.ROOT))) {
+            return false;
+        }
+        final RetryBudget budget = RetryBudget.get(context);
+        return budget == null || budget.tryAcquire();
+    }
+
+    /**
+     * A connection the server closed while idle fails the next request with no response at all,
+     * or with a reset or broken pipe as the request is written. Other socket errors, such as a
+     * socket closed by an abort, do not tell anything about the connection.
+     */
+    private static boolean isStaleConnectionFailure(final IOException ex) {
+        if (ex instanceof NoHttpResponseException) {
+            return true;
+        }
+        if (!(ex instanceof SocketException) || ex instanceof ConnectException) {
+            return false;
+        }
+        final String message = ex.getMessage();
+        if (message == null) {
+            return false;
+        }
+        for (final String error : STALE_CONNECTION_ERRORS) {
+            if (message.contains(error)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of connections checked before being leased
+     */
+    public long getCheckCount() {
+        return this.checks.get();
+    }
+
+    /**
+     * @return number of connections leased without a check as they were used recently
+     */
+    public long getSkipCount() {
+        return this.skips.get();
+    }
+
+    /**
+     * @return number of dead connections found, either by a check or by a failed request
+     */
+    public long getDeadConnectionCount() {
+        return this.deadConnections.get();
+    }
+
+    @Override
+    public String toString() {
+        return "[validate after: " + this.validateAfterInactivityMillis + " ms; checks: " + getCheckCount()
+                + "; skipped: " + getSkipCount() + "; dead: " + getDeadConnectionCount() + "]";
+    }
+}
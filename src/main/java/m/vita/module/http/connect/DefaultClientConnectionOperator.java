@@ -12,6 +12,7 @@ import m.vita.module.http.client.ClientConnectionOperator;
 import m.vita.module.http.client.OperatedClientConnection;
 import m.vita.module.http.client.Scheme;
 import m.vita.module.http.exception.ConnectTimeoutException;
+import m.vita.module.http.factory.PlainSocketFactory;
 import m.vita.module.http.factory.SchemeLayeredSocketFactory;
 import m.vita.module.http.factory.SchemeRegistry;
 import m.vita.module.http.factory.SchemeSocketFactory;
@@ -34,6 +35,9 @@ public class DefaultClientConnectionOperator implements ClientConnectionOperator
     /** the custom-configured DNS lookup mechanism. */
     protected final DnsResolver dnsResolver;
 
+    /** races the connection attempts to hosts with several addresses */
+    private final HappyEyeballsConnector connector = new HappyEyeballsConnector();
+
     /**
      * Creates a new client connection operator for the given scheme registry.
      *
@@ -93,46 +97,57 @@ public class DefaultClientConnectionOperator implements ClientConnectionOperator
         final Scheme schm = registry.getScheme(target.getSchemeName());
         final SchemeSocketFactory sf = schm.getSchemeSocketFactory();
 
+        final ConnectionTimings timings = ConnectionTimings.get(context);
         final InetAddress[] addresses = resolveHostname(target.getHostName());
+        if (timings != null) {
+            timings.markResolved();
+        }
         final int port = schm.resolvePort(target.getPort());
-        for (int i = 0; i < addresses.length; i++) {
-            final InetAddress address = addresses[i];
-            final boolean last = i == addresses.length - 1;
-
-            Socket sock = sf.createSocket(params);
-            conn.opening(sock, target);
-
-            final InetSocketAddress remoteAddress = new HttpInetSocketAddress(target, address, port);
-            InetSocketAddress localAddress = null;
-            if (local != null) {
-                localAddress = new InetSocketAddress(local, 0);
+        final InetSocketAddress localAddress = local != null ? new InetSocketAddress(local, 0) : null;
+        // only the TCP connect is raced, TLS is layered over the winning socket alone
+        final SchemeLayeredSocketFactory lsf = sf instanceof SchemeLayeredSocketFactory
+                ? (SchemeLayeredSocketFactory) sf : null;
+        final SchemeSocketFactory connectFactory = lsf != null ? PlainSocketFactory.getSocketFactory() : sf;
+        Socket sock = this.connector.connect(addresses, new HappyEyeballsConnector.Attempt() {
+
+            @Override
+            public Socket createSocket(final InetAddress address) throws IOException {
+                return connectFactory.createSocket(params);
             }
-            if (this.log.isDebugEnabled()) {
-                this.log.debug("Connecting to " + remoteAddress);
+
+            @Override
+            public void opening(final Socket sock) throws IOException {
+                conn.opening(sock, target);
             }
-            try {
-                final Socket connsock = sf.connectSocket(sock, remoteAddress, localAddress, params);
-                if (sock != connsock) {
-                    sock = connsock;
-                    conn.opening(sock, target);
-                }
-                prepareSocket(sock, context, params);
-                conn.openCompleted(sf.isSecure(sock), params);
-                return;
-            } catch (final ConnectException ex) {
-                if (last) {
-                    throw ex;
-                }
-            } catch (final ConnectTimeoutException ex) {
-                if (last) {
-                    throw ex;
+
+            @Override
+            public Socket connect(final Socket sock, final InetAddress address) throws IOException {
+                final InetSocketAddress remoteAddress = new HttpInetSocketAddress(target, address, port);
+                if (log.isDebugEnabled()) {
+                    log.debug("Connecting to " + remoteAddress);
                 }
+                return connectFactory.connectSocket(sock, remoteAddress, localAddress, params);
             }
-            if (this.log.isDebugEnabled()) {
-                this.log.debug("Connect to " + remoteAddress + " timed out. " +
-                        "Connection will be retried using another IP address");
+
+            @Override
+            public boolean isAddressFailure(final IOException ex) {
+                return ex instanceof ConnectException || ex instanceof ConnectTimeoutException;
             }
+        });
+        // the winner is not the last socket started when racing
+        conn.opening(sock, target);
+        if (timings != null) {
+            timings.markConnected();
         }
+        if (lsf != null) {
+            sock = lsf.createLayeredSocket(sock, target.getHostName(), port, params);
+            conn.opening(sock, target);
+            if (timings != null) {
+                timings.markSecured();
+            }
+        }
+        prepareSocket(sock, context, params);
+        conn.openCompleted(sf.isSecure(sock), params);
     }
 
     public void updateSecureConnection(
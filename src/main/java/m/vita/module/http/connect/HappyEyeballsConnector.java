@@ -0,0 +1,405 @@
+package m.vita.module.http.connect;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.concurrent.DaemonThreadFactory;
+import m.vita.module.http.util.Args;
+import m.vita.module.http.util.HttpClientAndroidLog;
+
+/**
+ * Connects to a host with several addresses the way RFC 8305 (Happy Eyeballs) describes, so that
+ * an unreachable address, typically a black-holed IPv6 one, does not cost a whole connect timeout
+ * before the next address is tried.
+ * <p>&nbsp;</p>
+ * The addresses are reordered to alternate between IPv6 and IPv4, starting with the family of the
+ * first address, and addresses that recently failed to connect are moved to the end. A connection
+ * attempt is then started every attempt delay, or as soon as the previous attempts failed, each on
+ * its own daemon thread. The first socket to connect wins and the other attempts are closed.
+ * A host with a single address is connected to on the calling thread.
+ * <p>&nbsp;</p>
+ * Only the TCP connect is raced: the caller layers TLS over the winning socket, so that a single
+ * handshake is made. While racing, the connection is bound to a placeholder socket whose closing,
+ * as when the connection is shut down by an abort, abandons the race and closes every attempt.
+ * <p>&nbsp;</p>
+ * Failed addresses, and addresses still connecting when an attempt started after theirs won, are
+ * remembered for a short time, so that later connects to the same host try the addresses known to
+ * be unreachable last.
+ */
+@ThreadSafe
+public class HappyEyeballsConnector {
+
+    /** Connection attempt delay recommended by RFC 8305 */
+    public static final long DEFAULT_ATTEMPT_DELAY_MILLIS = 250;
+    public static final long DEFAULT_FAILURE_MEMORY_MILLIS = 60 * 1000;
+
+    private static final int MAX_REMEMBERED_FAILURES = 64;
+
+    private static final ThreadPoolExecutor connectExecutor =
+            DaemonThreadFactory.newCachedExecutor("JEBAsyncHttp-connect-", Integer.MAX_VALUE);
+
+    /**
+     * Connection attempt to one address.
+     */
+    public interface Attempt {
+
+        /**
+         * Creates the socket of an attempt, called on the connecting thread
+         *
+         * @param address address the socket is going to connect to
+         */
+        Socket createSocket(InetAddress address) throws IOException;
+
+        /**
+         * Binds the socket being connected to the connection, so that shutting the connection
+         * down closes it. Called once on the connecting thread before connecting, with the socket
+         * of the single address, or with a placeholder aborting the race when closed.
+         */
+        void opening(Socket sock) throws IOException;
+
+        /**
+         * Connects the socket over TCP, called on a background thread when racing several
+         * addresses. TLS is left to the caller, to be layered over the winning socket only.
+         *
+         * @return the connected socket
+         */
+        Socket connect(Socket sock, InetAddress address) throws IOException;
+
+        /**
+         * @return true if the failure is specific to the address, in which case the other
+         * addresses are tried, otherwise the connect fails as a whole
+         */
+        boolean isAddressFailure(IOException ex);
+    }
+
+    public HttpClientAndroidLog log = new HttpClientAndroidLog(getClass());
+
+    private final long attemptDelayMillis;
+    private final long failureMemoryMillis;
+    private final Map<InetAddress, Long> failures = new ConcurrentHashMap<InetAddress, Long>();
+
+    public HappyEyeballsConnector() {
+        this(DEFAULT_ATTEMPT_DELAY_MILLIS, DEFAULT_FAILURE_MEMORY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates new connector
+     *
+     * @param attemptDelay  time to wait for an attempt before starting the next one
+     * @param failureMemory time an address that failed to connect is tried last, zero to forget
+     *                      failures at once
+     * @param unit          unit of the durations
+     */
+    public HappyEyeballsConnector(final long attemptDelay, final long failureMemory, final TimeUnit unit) {
+        Args.positive(attemptDelay, "Attempt delay");
+        Args.notNegative(failureMemory, "Failure memory");
+        Args.notNull(unit, "Time unit");
+        this.attemptDelayMillis = Math.max(1, unit.toMillis(attemptDelay));
+        this.failureMemoryMillis = unit.toMillis(failureMemory);
+    }
+
+    /**
+     * Connects to the first address that accepts a connection
+     *
+     * @param addresses addresses of the host, in the order given by the DNS
+     * @param attempt   connection attempt to one address
+     * @return the connected socket
+     * @throws IOException the failure of the last address if none could be connected to, or the
+     *                     first failure that is not specific to an address
+     */
+    public Socket connect(final InetAddress[] addresses, final Attempt attempt) throws IOException {
+        Args.notNull(addresses, "Addresses");
+        Args.check(addresses.length > 0, "No address to connect to");
+        Args.notNull(attempt, "Attempt");
+        if (addresses.length == 1) {
+            final Socket sock = attempt.createSocket(addresses[0]);
+            attempt.opening(sock);
+            try {
+                final Socket connected = attempt.connect(sock, addresses[0]);
+                this.failures.remove(addresses[0]);
+                return connected;
+            } catch (final IOException ex) {
+                if (attempt.isAddressFailure(ex)) {
+                    rememberFailure(addresses[0]);
+                }
+                throw ex;
+            }
+        }
+        return race(sortAddresses(addresses), attempt);
+    }
+
+    /**
+     * Orders the addresses the way they are tried, see the class description
+     *
+     * @param addresses addresses in the order given by the DNS
+     * @return the reordered addresses
+     */
+    public InetAddress[] sortAddresses(final InetAddress[] addresses) {
+        final long now = System.currentTimeMillis();
+        final List<InetAddress> healthy = new ArrayList<InetAddress>(addresses.length);
+        final List<InetAddress> failed = new ArrayList<InetAddress>(2);
+        for (final InetAddress address : addresses) {
+            final Long expiry = this.failures.get(address);
+            if (expiry != null && expiry.longValue() > now) {
+                failed.add(address);
+            } else {
+                healthy.add(address);
+            }
+        }
+        final InetAddress[] sorted = new InetAddress[addresses.length];
+        final int n = interleave(healthy, sorted, 0);
+        interleave(failed, sorted, n);
+        return sorted;
+    }
+
+    private static int interleave(final List<InetAddress> addresses, final InetAddress[] sorted, final int offset) {
+        if (addresses.isEmpty()) {
+            return offset;
+        }
+        final List<InetAddress> first = new ArrayList<InetAddress>(addresses.size());
+        final List<InetAddress> second = new ArrayList<InetAddress>(addresses.size());
+        final boolean isFirstV6 = addresses.get(0) instanceof Inet6Address;
+        for (final InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == isFirstV6 ? first : second).add(address);
+        }
+        int n = offset;
+        for (int i = 0; i < first.size() || i < second.size(); i++) {
+            if (i < first.size()) {
+                sorted[n++] = first.get(i);
+            }
+            if (i < second.size()) {
+                sorted[n++] = second.get(i);
+            }
+        }
+        return n;
+    }
+
+    private void rememberFailure(final InetAddress address) {
+        if (this.failureMemoryMillis <= 0) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (this.failures.size() >= MAX_REMEMBERED_FAILURES) {
+            final Iterator<Long> it = this.failures.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().longValue() <= now) {
+                    it.remove();
+                }
+            }
+            if (this.failures.size() >= MAX_REMEMBERED_FAILURES) {
+                this.failures.clear();
+            }
+        }
+        this.failures.put(address, now + this.failureMemoryMillis);
+    }
+
+    /**
+     * @param address address of a host
+     * @return whether the address failed to connect recently and is tried last
+     */
+    public boolean isRememberedFailure(final InetAddress address) {
+        final Long expiry = this.failures.get(address);
+        return expiry != null && expiry.longValue() > System.currentTimeMillis();
+    }
+
+    private Socket race(final InetAddress[] addresses, final Attempt attempt) throws IOException {
+        final Race race = new Race(attempt);
+        boolean isWon = false;
+        try {
+            attempt.opening(new AbortSocket(race));
+            synchronized (race) {
+                int started = 0;
+                int failedAtLastStart = 0;
+                long nextStart = 0;
+                for (;;) {
+                    if (race.winner != null) {
+                        isWon = true;
+                        return race.winner;
+                    }
+                    if (race.isAborted) {
+                        throw new InterruptedIOException("Connection aborted");
+                    }
+                    if (race.fatal instanceof RuntimeException) {
+                        throw (RuntimeException) race.fatal;
+                    } else if (race.fatal != null) {
+                        throw (IOException) race.fatal;
+                    }
+                    final long now = System.currentTimeMillis();
+                    if (started < addresses.length && (now >= nextStart || race.failed > failedAtLastStart)) {
+                        final InetAddress address = addresses[started++];
+                        failedAtLastStart = race.failed;
+                        nextStart = now + this.attemptDelayMillis;
+                        race.start(address);
+                        continue;
+                    }
+                    if (race.failed == addresses.length) {
+                        throw race.lastFailure;
+                    }
+                    race.wait(started < addresses.length ? nextStart - now : 0);
+                }
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting");
+        } finally {
+            race.finish(isWon);
+        }
+    }
+
+    private class Race {
+        private final Attempt attempt;
+        private final List<Socket> sockets = new ArrayList<Socket>();
+        // addresses of the attempts still connecting, in the order they were started
+        private final List<InetAddress> pending = new ArrayList<InetAddress>();
+        private Socket winner;
+        // thrown by connect, hence an IOException or a RuntimeException
+        private Exception fatal;
+        private IOException lastFailure;
+        private int failed;
+        private boolean isFinished;
+        private boolean isAborted;
+
+        Race(final Attempt attempt) {
+            this.attempt = attempt;
+        }
+
+        /**
+         * Starts an attempt, called with the lock held
+         */
+        void start(final InetAddress address) throws IOException {
+            final Socket sock = this.attempt.createSocket(address);
+            this.sockets.add(sock);
+            this.pending.add(address);
+            if (log.isDebugEnabled()) {
+                log.debug("Racing connection attempt to " + address);
+            }
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    connect(sock, address);
+                }
+            };
+            try {
+                connectExecutor.execute(task);
+            } catch (final RejectedExecutionException ex) {
+                task.run();
+            }
+        }
+
+        private void connect(final Socket sock, final InetAddress address) {
+            Socket connected = null;
+            Exception failure = null;
+            try {
+                connected = this.attempt.connect(sock, address);
+            } catch (final Exception ex) {
+                failure = ex;
+            }
+            synchronized (this) {
+                final int order = this.pending.indexOf(address);
+                this.pending.remove(order);
+                if (this.isFinished) {
+                    // lost the race, or it was abandoned
+                    if (connected != null) {
+                        closeQuietly(connected);
+                    }
+                    return;
+                }
+                if (connected != null) {
+                    failures.remove(address);
+                    if (this.winner == null) {
+                        this.sockets.remove(sock);
+                        this.winner = connected;
+                        // overtaken by an attempt started at least one delay later
+                        for (int i = 0; i < order; i++) {
+                            rememberFailure(this.pending.get(i));
+                        }
+                    } else {
+                        closeQuietly(connected);
+                    }
+                } else if (failure instanceof IOException
+                        && this.attempt.isAddressFailure((IOException) failure)) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Connect to " + address + " failed: " + failure.getMessage());
+                    }
+                    rememberFailure(address);
+                    this.failed++;
+                    this.lastFailure = (IOException) failure;
+                } else if (this.fatal == null) {
+                    this.failed++;
+                    this.fatal = failure;
+                }
+                notifyAll();
+            }
+        }
+
+        /**
+         * Abandons the race unless already over, the connecting thread then closes every attempt
+         */
+        synchronized void abort() {
+            if (!this.isFinished) {
+                this.isAborted = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Closes the sockets of the attempts that lost
+         */
+        void finish(final boolean isWon) {
+            final List<Socket> losers;
+            synchronized (this) {
+                this.isFinished = true;
+                losers = new ArrayList<Socket>(this.sockets);
+                this.sockets.clear();
+                if (!isWon && this.winner != null) {
+                    losers.add(this.winner);
+                }
+            }
+            for (final Socket sock : losers) {
+                closeQuietly(sock);
+            }
+        }
+    }
+
+    /**
+     * Socket the connection is bound to while racing, closing it aborts the race.
+     */
+    private static class AbortSocket extends Socket {
+        private final Race race;
+
+        AbortSocket(final Race race) {
+            this.race = race;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            this.race.abort();
+            super.close();
+        }
+    }
+
+    private static void closeQuietly(final Socket sock) {
+        try {
+            sock.close();
+        } catch (final IOException ignore) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[attempt delay: " + this.attemptDelayMillis + " ms; remembered failures: "
+                + this.failures.size() + "]";
+    }
+}
@@ -8,7 +8,7 @@ import java.net.NoRouteToHostException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 
-import m.vita.module.http.annotation.Immutable;
+import m.vita.module.http.annotation.ThreadSafe;
 import m.vita.module.http.config.Lookup;
 import m.vita.module.http.config.SocketConfig;
 import m.vita.module.http.exception.ConnectTimeoutException;
@@ -16,6 +16,7 @@ import m.vita.module.http.exception.HttpHostConnectException;
 import m.vita.module.http.exception.UnsupportedSchemeException;
 import m.vita.module.http.factory.ConnectionSocketFactory;
 import m.vita.module.http.factory.LayeredConnectionSocketFactory;
+import m.vita.module.http.factory.PlainConnectionSocketFactory;
 import m.vita.module.http.header.HttpContext;
 import m.vita.module.http.header.HttpHost;
 import m.vita.module.http.header.ManagedHttpClientConnection;
@@ -23,7 +24,7 @@ import m.vita.module.http.client.protocol.HttpClientContext;
 import m.vita.module.http.util.Args;
 import m.vita.module.http.util.HttpClientAndroidLog;
 
-@Immutable
+@ThreadSafe
 class HttpClientConnectionOperator {
 
     static final String SOCKET_FACTORY_REGISTRY = "http.socket-factory-registry";
@@ -33,6 +34,7 @@ class HttpClientConnectionOperator {
     private final Lookup<ConnectionSocketFactory> socketFactoryRegistry;
     private final SchemePortResolver schemePortResolver;
     private final DnsResolver dnsResolver;
+    private final HappyEyeballsConnector connector = new HappyEyeballsConnector();
 
     HttpClientConnectionOperator(
             final Lookup<ConnectionSocketFactory> socketFactoryRegistry,
@@ -70,59 +72,86 @@ class HttpClientConnectionOperator {
             throw new UnsupportedSchemeException(host.getSchemeName() +
                     " protocol is not supported");
         }
-        final InetAddress[] addresses = host.getAddress() != null ?
-                new InetAddress[] { host.getAddress() } : this.dnsResolver.resolve(host.getHostName());
-        final int port = this.schemePortResolver.resolve(host);
-        for (int i = 0; i < addresses.length; i++) {
-            final InetAddress address = addresses[i];
-            final boolean last = i == addresses.length - 1;
-
-            Socket sock = sf.createSocket(context);
-            sock.setSoTimeout(socketConfig.getSoTimeout());
-            sock.setReuseAddress(socketConfig.isSoReuseAddress());
-            sock.setTcpNoDelay(socketConfig.isTcpNoDelay());
-            sock.setKeepAlive(socketConfig.isSoKeepAlive());
-            final int linger = socketConfig.getSoLinger();
-            if (linger >= 0) {
-                sock.setSoLinger(linger > 0, linger);
+        final ConnectionTimings timings = ConnectionTimings.get(context);
+        final InetAddress[] addresses;
+        if (host.getAddress() != null) {
+            addresses = new InetAddress[] { host.getAddress() };
+        } else {
+            addresses = this.dnsResolver.resolve(host.getHostName());
+            if (timings != null) {
+                timings.markResolved();
             }
-            conn.bind(sock);
+        }
+        final int port = this.schemePortResolver.resolve(host);
+        // only the TCP connect is raced, TLS is layered over the winning socket alone
+        final LayeredConnectionSocketFactory lsf = sf instanceof LayeredConnectionSocketFactory
+                ? (LayeredConnectionSocketFactory) sf : null;
+        final ConnectionSocketFactory connectFactory = lsf != null
+                ? PlainConnectionSocketFactory.getSocketFactory() : sf;
+        Socket sock;
+        try {
+            sock = this.connector.connect(addresses, new HappyEyeballsConnector.Attempt() {
 
-            final InetSocketAddress remoteAddress = new InetSocketAddress(address, port);
-            if (this.log.isDebugEnabled()) {
-                this.log.debug("Connecting to " + remoteAddress);
-            }
-            try {
-                sock = sf.connectSocket(
-                        connectTimeout, sock, host, remoteAddress, localAddress, context);
-                conn.bind(sock);
-                if (this.log.isDebugEnabled()) {
-                    this.log.debug("Connection established " + conn);
+                @Override
+                public Socket createSocket(final InetAddress address) throws IOException {
+                    final Socket sock = connectFactory.createSocket(context);
+                    sock.setSoTimeout(socketConfig.getSoTimeout());
+                    sock.setReuseAddress(socketConfig.isSoReuseAddress());
+                    sock.setTcpNoDelay(socketConfig.isTcpNoDelay());
+                    sock.setKeepAlive(socketConfig.isSoKeepAlive());
+                    final int linger = socketConfig.getSoLinger();
+                    if (linger >= 0) {
+                        sock.setSoLinger(linger > 0, linger);
+                    }
+                    return sock;
                 }
-                return;
-            } catch (final SocketTimeoutException ex) {
-                if (last) {
-                    throw new ConnectTimeoutException(ex, host, addresses);
+
+                @Override
+                public void opening(final Socket sock) throws IOException {
+                    conn.bind(sock);
                 }
-            } catch (final ConnectException ex) {
-                if (last) {
-                    final String msg = ex.getMessage();
-                    if ("Connection timed out".equals(msg)) {
-                        throw new ConnectTimeoutException(ex, host, addresses);
-                    } else {
-                        throw new HttpHostConnectException(ex, host, addresses);
+
+                @Override
+                public Socket connect(final Socket sock, final InetAddress address) throws IOException {
+                    final InetSocketAddress remoteAddress = new InetSocketAddress(address, port);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Connecting to " + remoteAddress);
                     }
+                    return connectFactory.connectSocket(
+                            connectTimeout, sock, host, remoteAddress, localAddress, context);
                 }
-            } catch (final NoRouteToHostException ex) {
-                if (last) {
-                    throw ex;
+
+                @Override
+                public boolean isAddressFailure(final IOException ex) {
+                    return ex instanceof SocketTimeoutException || ex instanceof ConnectException
+                            || ex instanceof NoRouteToHostException;
                 }
+            });
+        } catch (final SocketTimeoutException ex) {
+            throw new ConnectTimeoutException(ex, host, addresses);
+        } catch (final ConnectException ex) {
+            final String msg = ex.getMessage();
+            if ("Connection timed out".equals(msg)) {
+                throw new ConnectTimeoutException(ex, host, addresses);
+            } else {
+                throw new HttpHostConnectException(ex, host, addresses);
             }
-            if (this.log.isDebugEnabled()) {
-                this.log.debug("Connect to " + remoteAddress + " timed out. " +
-                        "Connection will be retried using another IP address");
+        }
+        // the winner is not the last socket started when racing
+        conn.bind(sock);
+        if (timings != null) {
+            timings.markConnected();
+        }
+        if (lsf != null) {
+            sock = lsf.createLayeredSocket(sock, host.getHostName(), port, context);
+            conn.bind(sock);
+            if (timings != null) {
+                timings.markSecured();
             }
         }
+        if (this.log.isDebugEnabled()) {
+            this.log.debug("Connection established " + conn);
+        }
     }
 
     public void upgrade(
@@ -0,0 +1,277 @@
+package m.vita.module.http.connect;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.concurrent.DaemonThreadFactory;
+import m.vita.module.http.util.Args;
+
+/**
+ * Closes pooled connections in the background once they have been idle for too long or have
+ * expired, instead of waiting for somebody to call <code>closeIdleConnections</code> or
+ * <code>closeExpiredConnections</code>.
+ * <p>&nbsp;</p>
+ * Each time a connection is put back into a pool, its eviction deadline is filed into the sweep
+ * slot the deadline falls into, slots being one sweep interval long. Only slots holding a deadline
+ * are scheduled, each at its end, so the sweep thread wakes at most once per sweep interval and
+ * not at all while no connection is idle. A due slot only checks the connections filed into it,
+ * so that no sweep ever scans the whole pool. The pools withdraw the filing of a connection when
+ * leasing it, and a connection released again moves its filing to its new slot, so a connection
+ * has at most one filing. Slots are measured on the monotonic clock, changes to the wall clock do
+ * not move the evictions. Connections are closed on the single daemon thread shared by all
+ * evictors.
+ * <p>&nbsp;</p>
+ * An evictor holds no reference to the pools beyond the pending deadlines and may be shared by
+ * several connection managers.
+ */
+@ThreadSafe
+public class IdleConnectionEvictor {
+
+    public static final long DEFAULT_SWEEP_INTERVAL_MILLIS = 1000;
+
+    private static final ScheduledThreadPoolExecutor sweepScheduler = newSweepScheduler();
+    // origin of the monotonic clock the slots are numbered on, keeping slot numbers positive
+    private static final long CLOCK_ORIGIN = System.nanoTime();
+
+    private static ScheduledThreadPoolExecutor newSweepScheduler() {
+        final ScheduledThreadPoolExecutor scheduler =
+                new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("JEBAsyncHttp-evictor-"));
+        scheduler.setKeepAliveTime(DaemonThreadFactory.KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+        return scheduler;
+    }
+
+    /**
+     * Pool the evictor closes connections of.
+     *
+     * @param <E> type of the pool entries
+     */
+    public interface Target<E> {
+
+        /**
+         * Closes the entry and removes it from the pool if it is still available and has not
+         * been released again since
+         *
+         * @param entry   entry to close
+         * @param updated time the entry was released at, as when it was filed
+         * @return true if the entry has been closed
+         */
+        boolean evict(E entry, long updated);
+    }
+
+    private final long maxIdleMillis;
+    private final long timeToLiveMillis;
+    private final long sweepIntervalMillis;
+    // guarded by itself, as are the sweeps and the filings in them
+    private final Map<Object, Eviction<?>> filings = new IdentityHashMap<Object, Eviction<?>>();
+    private final Map<Long, Sweep> sweeps = new HashMap<Long, Sweep>();
+    private final AtomicLong idleEvictions = new AtomicLong();
+    private final AtomicLong expiredEvictions = new AtomicLong();
+
+    /**
+     * Creates evictor of connections idle for the given time, sweeping every second
+     *
+     * @param maxIdleTime maximum idle time
+     * @param unit        unit of the idle time
+     */
+    public IdleConnectionEvictor(final long maxIdleTime, final TimeUnit unit) {
+        this(maxIdleTime, 0, unit.convert(DEFAULT_SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS), unit);
+    }
+
+    /**
+     * Creates new evictor
+     *
+     * @param maxIdleTime   maximum time a connection may stay idle in the pool, zero or negative
+     *                      to only close expired connections
+     * @param timeToLive    maximum lifetime of a connection, zero or negative to only honour the
+     *                      keep-alive and time to live the pool gives to each connection
+     * @param sweepInterval granularity of the evictions, connections are closed up to one interval
+     *                      after their deadline
+     * @param unit          unit of the durations
+     */
+    public IdleConnectionEvictor(final long maxIdleTime, final long timeToLive, final long sweepInterval,
+                                 final TimeUnit unit) {
+        Args.notNull(unit, "Time unit");
+        Args.positive(sweepInterval, "Sweep interval");
+        this.maxIdleMillis = maxIdleTime > 0 ? unit.toMillis(maxIdleTime) : Long.MAX_VALUE;
+        this.timeToLiveMillis = timeToLive > 0 ? unit.toMillis(timeToLive) : Long.MAX_VALUE;
+        this.sweepIntervalMillis = Math.max(1, unit.toMillis(sweepInterval));
+    }
+
+    /**
+     * Files the eviction deadline of a connection just put back into the pool, replacing the
+     * filing of its previous release if any. Called with the lock of the pool held.
+     *
+     * @param target  pool holding the entry
+     * @param entry   the available entry
+     * @param created time the connection was created at
+     * @param updated time the entry was released at
+     * @param expiry  time the entry expires at, as given by its keep-alive and time to live
+     */
+    public <E> void add(final Target<E> target, final E entry, final long created, final long updated,
+                        final long expiry) {
+        final long idleDeadline = this.maxIdleMillis == Long.MAX_VALUE
+                ? Long.MAX_VALUE : updated + this.maxIdleMillis;
+        final long lifeDeadline = this.timeToLiveMillis == Long.MAX_VALUE
+                ? Long.MAX_VALUE : created + this.timeToLiveMillis;
+        final long expiredDeadline = Math.min(expiry, lifeDeadline);
+        final long deadline = Math.min(idleDeadline, expiredDeadline);
+        if (deadline == Long.MAX_VALUE) {
+            remove(entry);
+            return;
+        }
+        // the entry times are wall clock times, only the time left is carried over
+        final long now = monotonicMillis();
+        final long remaining = Math.min(Math.max(0, deadline - System.currentTimeMillis()), Long.MAX_VALUE / 4);
+        final long slot = (now + remaining) / this.sweepIntervalMillis + 1;
+        synchronized (this.filings) {
+            @SuppressWarnings("unchecked")
+            Eviction<E> eviction = (Eviction<E>) this.filings.get(entry);
+            if (eviction == null) {
+                eviction = new Eviction<E>(target, entry);
+                this.filings.put(entry, eviction);
+            } else if (eviction.sweep.slot != slot) {
+                eviction.sweep.evictions.remove(eviction);
+            }
+            eviction.updated = updated;
+            eviction.isExpiry = deadline < idleDeadline;
+            if (eviction.sweep == null || eviction.sweep.slot != slot) {
+                Sweep sweep = this.sweeps.get(slot);
+                if (sweep == null) {
+                    sweep = new Sweep(slot);
+                    this.sweeps.put(slot, sweep);
+                    schedule(sweep, slot * this.sweepIntervalMillis - now);
+                }
+                sweep.evictions.add(eviction);
+                eviction.sweep = sweep;
+            }
+        }
+    }
+
+    /**
+     * Withdraws the filing of a connection about to be leased, so that the evictor does not keep
+     * a reference to it until its former deadline. Called with the lock of the pool held.
+     *
+     * @param entry the entry being leased
+     */
+    public void remove(final Object entry) {
+        synchronized (this.filings) {
+            final Eviction<?> eviction = this.filings.remove(entry);
+            if (eviction != null) {
+                eviction.sweep.evictions.remove(eviction);
+            }
+        }
+    }
+
+    private static long monotonicMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - CLOCK_ORIGIN);
+    }
+
+    private static void schedule(final Sweep sweep, final long delayMillis) {
+        try {
+            sweepScheduler.schedule(sweep, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException ignore) {
+            // never shut down, the connections are then closed on demand by the pool
+        }
+    }
+
+    /**
+     * @return number of connections closed for having been idle for too long
+     */
+    public long getIdleEvictionCount() {
+        return this.idleEvictions.get();
+    }
+
+    /**
+     * @return number of connections closed for having expired
+     */
+    public long getExpiredEvictionCount() {
+        return this.expiredEvictions.get();
+    }
+
+    /**
+     * @return number of sweeps waiting for their slot
+     */
+    public int getPendingSweepCount() {
+        synchronized (this.filings) {
+            return this.sweeps.size();
+        }
+    }
+
+    /**
+     * @return number of connections with an eviction deadline filed
+     */
+    public int getPendingEvictionCount() {
+        synchronized (this.filings) {
+            return this.filings.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[idle evictions: " + getIdleEvictionCount() + "; expired evictions: "
+                + getExpiredEvictionCount() + "; pending sweeps: " + getPendingSweepCount()
+                + "; pending evictions: " + getPendingEvictionCount() + "]";
+    }
+
+    private static class Eviction<E> {
+        private final Target<E> target;
+        private final E entry;
+        // guarded by the filings of the evictor
+        private long updated;
+        private boolean isExpiry;
+        private Sweep sweep;
+
+        Eviction(final Target<E> target, final E entry) {
+            this.target = target;
+            this.entry = entry;
+        }
+
+        boolean evict() {
+            return this.target.evict(this.entry, this.updated);
+        }
+    }
+
+    private class Sweep implements Runnable {
+        private final long slot;
+        // guarded by the filings of the evictor
+        private final Set<Eviction<?>> evictions = new LinkedHashSet<Eviction<?>>();
+
+        Sweep(final long slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public void run() {
+            final List<Eviction<?>> due;
+            synchronized (filings) {
+                sweeps.remove(this.slot);
+                due = new ArrayList<Eviction<?>>(this.evictions);
+                this.evictions.clear();
+                // a later release of these entries files a new eviction
+                for (final Eviction<?> eviction : due) {
+                    filings.remove(eviction.entry);
+                }
+            }
+            for (final Eviction<?> eviction : due) {
+                try {
+                    if (eviction.evict()) {
+                        (eviction.isExpiry ? expiredEvictions : idleEvictions).incrementAndGet();
+                    }
+                } catch (final RuntimeException ignore) {
+                    // one failing pool must not keep the others from being swept
+                }
+            }
+        }
+    }
+}
@@ -12,13 +12,16 @@ import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.concurrent.ComposableFuture;
 import m.vita.module.http.config.ConnectionConfig;
 import m.vita.module.http.config.Lookup;
 import m.vita.module.http.config.Registry;
+import m.vita.module.http.config.RequestConfig;
 import m.vita.module.http.config.RegistryBuilder;
 import m.vita.module.http.config.SocketConfig;
 import m.vita.module.http.connect.ssl.SSLConnectionSocketFactory;
 import m.vita.module.http.exception.ConnectionPoolTimeoutException;
+import m.vita.module.http.execute.BasicHttpContext;
 import m.vita.module.http.factory.ConnectionSocketFactory;
 import m.vita.module.http.factory.HttpConnectionFactory;
 import m.vita.module.http.factory.PlainConnectionSocketFactory;
@@ -321,6 +324,98 @@ public class PoolingHttpClientConnectionManager
         this.pool.closeExpired();
     }
 
+    /**
+     * Enables the background eviction of idle and expired connections, which are otherwise only
+     * closed by {@link #closeIdleConnections} and {@link #closeExpiredConnections}. Applies to the
+     * connections released from now on.
+     *
+     * @param evictor evictor to use, may be shared by several managers, null to disable
+     */
+    public void setIdleConnectionEvictor(final IdleConnectionEvictor evictor) {
+        this.pool.setIdleConnectionEvictor(evictor);
+    }
+
+    public IdleConnectionEvictor getIdleConnectionEvictor() {
+        return this.pool.getIdleConnectionEvictor();
+    }
+
+    /**
+     * Replaces the stale check made on every lease by a check of the connections that have been
+     * idle for longer than the threshold of the policy. The main execution stage skips its own
+     * stale check and sends a request again on a new connection if the reused one turns out dead.
+     *
+     * @param policy policy to use, may be shared by several managers, null to disable
+     */
+    public void setConnectionValidationPolicy(final ConnectionValidationPolicy policy) {
+        this.pool.setConnectionValidationPolicy(policy);
+    }
+
+    public ConnectionValidationPolicy getConnectionValidationPolicy() {
+        return this.pool.getConnectionValidationPolicy();
+    }
+
+    /**
+     * Opens connections to the given route in the background and parks them in the pool, TLS
+     * handshake included, so that the first requests to the route find them ready. Tunnelled
+     * routes are not supported as they need a request to the proxy.
+     *
+     * @param route  route to open connections to
+     * @param count  number of connections the pool should hold, capped at the limit of the route
+     * @param config configuration giving the connect timeout and the time to wait for the pool,
+     *               null for the defaults
+     * @return future of the number of connections opened and their handshake timings
+     */
+    public ComposableFuture<PrewarmResult> prewarm(final HttpRoute route, final int count,
+                                                   final RequestConfig config) {
+        Args.notNull(route, "HTTP route");
+        Args.check(!route.isTunnelled(), "Tunnelled route cannot be pre-warmed");
+        final RequestConfig requestConfig = config != null ? config : RequestConfig.DEFAULT;
+        final int n = Math.min(count, Math.min(getMaxPerRoute(route), getMaxTotal()));
+        if (this.log.isDebugEnabled()) {
+            this.log.debug("Pre-warming " + n + " connections to " + route);
+        }
+        return ConnectionPrewarmer.prewarm(route, n, new ConnectionPrewarmer.Target<HttpClientConnection>() {
+
+            @Override
+            public int getConnectionCount(final HttpRoute route) {
+                final PoolStats stats = getStats(route);
+                return stats.getLeased() + stats.getAvailable();
+            }
+
+            @Override
+            public HttpClientConnection lease(final HttpRoute route) throws Exception {
+                final int timeout = requestConfig.getConnectionRequestTimeout();
+                return requestConnection(route, null).get(timeout > 0 ? timeout : 0, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public ConnectionTimings open(final HttpClientConnection conn, final HttpRoute route)
+                    throws IOException {
+                if (conn.isOpen()) {
+                    return null;
+                }
+                final ConnectionTimings timings = new ConnectionTimings();
+                final HttpContext context = new BasicHttpContext();
+                context.setAttribute(ConnectionTimings.ATTRIBUTE, timings);
+                final int timeout = requestConfig.getConnectTimeout();
+                connect(conn, route, timeout > 0 ? timeout : 0, context);
+                routeComplete(conn, route, context);
+                return timings;
+            }
+
+            @Override
+            public void release(final HttpClientConnection conn, final boolean reusable) {
+                if (!reusable) {
+                    try {
+                        conn.shutdown();
+                    } catch (final IOException ignore) {
+                    }
+                }
+                releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
     public int getMaxTotal() {
         return this.pool.getMaxTotal();
     }
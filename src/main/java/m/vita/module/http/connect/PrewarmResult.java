@@ -0,0 +1,89 @@
+package m.vita.module.http.connect;
+
+import java.util.Collections;
+import java.util.List;
+
+import m.vita.module.http.annotation.Immutable;
+import m.vita.module.http.header.HttpRoute;
+
+/**
+ * Outcome of pre-opening connections to a route, see {@link ConnectionPrewarmer}.
+ */
+@Immutable
+public class PrewarmResult {
+
+    private final HttpRoute route;
+    private final int requested;
+    private final int alreadyOpen;
+    private final List<ConnectionTimings> timings;
+    private final List<Exception> failures;
+
+    public PrewarmResult(final HttpRoute route, final int requested, final int alreadyOpen,
+                         final List<ConnectionTimings> timings, final List<Exception> failures) {
+        this.route = route;
+        this.requested = requested;
+        this.alreadyOpen = alreadyOpen;
+        this.timings = Collections.unmodifiableList(timings);
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    public HttpRoute getRoute() {
+        return this.route;
+    }
+
+    /**
+     * @return number of connections asked for, capped at the limit of the route
+     */
+    public int getRequestedCount() {
+        return this.requested;
+    }
+
+    /**
+     * @return number of connections now in the pool, opened or already held
+     */
+    public int getSucceededCount() {
+        return this.alreadyOpen + this.timings.size();
+    }
+
+    /**
+     * @return number of connections opened
+     */
+    public int getOpenedCount() {
+        return this.timings.size();
+    }
+
+    /**
+     * @return number of connections the pool already held to the route, leased or available
+     */
+    public int getAlreadyOpenCount() {
+        return this.alreadyOpen;
+    }
+
+    /**
+     * @return number of connections that could not be leased or opened
+     */
+    public int getFailedCount() {
+        return this.failures.size();
+    }
+
+    /**
+     * @return handshake timings of the connections opened
+     */
+    public List<ConnectionTimings> getTimings() {
+        return this.timings;
+    }
+
+    /**
+     * @return failures of the connections that could not be leased or opened
+     */
+    public List<Exception> getFailures() {
+        return this.failures;
+    }
+
+    @Override
+    public String toString() {
+        return "[route: " + this.route + "][requested: " + this.requested + "; opened: " + getOpenedCount()
+                + "; already open: " + this.alreadyOpen + "; failed: " + getFailedCount() + "; timings: "
+                + this.timings + "]";
+    }
+}
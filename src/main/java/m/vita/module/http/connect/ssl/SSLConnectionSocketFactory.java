@@ -11,6 +11,7 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 
 import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.connect.ConnectionTimings;
 import m.vita.module.http.exception.SSLInitializationException;
 import m.vita.module.http.factory.LayeredConnectionSocketFactory;
 import m.vita.module.http.header.HttpContext;
@@ -151,15 +152,24 @@ public class SSLConnectionSocketFactory implements LayeredConnectionSocketFactor
             }
             throw ex;
         }
+        final ConnectionTimings timings = ConnectionTimings.get(context);
+        if (timings != null) {
+            timings.markConnected();
+        }
         // Setup SSL layering if necessary
+        final Socket layered;
         if (sock instanceof SSLSocket) {
             final SSLSocket sslsock = (SSLSocket) sock;
             sslsock.startHandshake();
             verifyHostname(sslsock, host.getHostName());
-            return sock;
+            layered = sock;
         } else {
-            return createLayeredSocket(sock, host.getHostName(), remoteAddress.getPort(), context);
+            layered = createLayeredSocket(sock, host.getHostName(), remoteAddress.getPort(), context);
+        }
+        if (timings != null) {
+            timings.markSecured();
         }
+        return layered;
     }
 
     public Socket createLayeredSocket(
@@ -14,6 +14,8 @@ import java.util.concurrent.locks.Lock;
 
 import m.vita.module.http.client.ClientConnectionOperator;
 import m.vita.module.http.client.OperatedClientConnection;
+import m.vita.module.http.connect.ConnectionValidationPolicy;
+import m.vita.module.http.connect.IdleConnectionEvictor;
 import m.vita.module.http.exception.ConnectionPoolTimeoutException;
 import m.vita.module.http.header.HttpParams;
 import m.vita.module.http.header.HttpRoute;
@@ -23,7 +25,8 @@ import m.vita.module.http.util.Args;
 import m.vita.module.http.util.Asserts;
 import m.vita.module.http.util.HttpClientAndroidLog;
 
-public class ConnPoolByRoute extends AbstractConnPool {
+public class ConnPoolByRoute extends AbstractConnPool
+        implements IdleConnectionEvictor.Target<BasicPoolEntry> {
 
     public HttpClientAndroidLog log = new HttpClientAndroidLog(getClass());
 
@@ -57,6 +60,10 @@ public class ConnPoolByRoute extends AbstractConnPool {
 
     protected volatile int numConnections;
 
+    private volatile IdleConnectionEvictor idleConnectionEvictor;
+
+    private volatile ConnectionValidationPolicy validationPolicy;
+
     /**
      * Creates a new connection pool, managed by route.
      *
@@ -97,6 +104,32 @@ public class ConnPoolByRoute extends AbstractConnPool {
         return this.poolLock;
     }
 
+    /**
+     * Sets the evictor closing the free connections of this pool in the background
+     *
+     * @param evictor evictor to use, null to only close connections on demand
+     */
+    public void setIdleConnectionEvictor(final IdleConnectionEvictor evictor) {
+        this.idleConnectionEvictor = evictor;
+    }
+
+    public IdleConnectionEvictor getIdleConnectionEvictor() {
+        return this.idleConnectionEvictor;
+    }
+
+    /**
+     * Sets the policy checking free connections idle for too long before they are leased
+     *
+     * @param policy policy to use, null to lease free connections unchecked
+     */
+    public void setConnectionValidationPolicy(final ConnectionValidationPolicy policy) {
+        this.validationPolicy = policy;
+    }
+
+    public ConnectionValidationPolicy getConnectionValidationPolicy() {
+        return this.validationPolicy;
+    }
+
     /**
      * Creates a new connection pool, managed by route.
      *
@@ -413,6 +446,10 @@ public class ConnPoolByRoute extends AbstractConnPool {
                 rospl.freeEntry(entry);
                 entry.updateExpiry(validDuration, timeUnit);
                 freeConnections.add(entry);
+                final IdleConnectionEvictor evictor = this.idleConnectionEvictor;
+                if (evictor != null) {
+                    evictor.add(this, entry, entry.getCreated(), entry.getUpdated(), entry.getExpiry());
+                }
             } else {
                 closeConnection(entry);
                 rospl.dropEntry();
@@ -451,6 +488,11 @@ public class ConnPoolByRoute extends AbstractConnPool {
 
                     }
                     freeConnections.remove(entry);
+                    final IdleConnectionEvictor evictor = this.idleConnectionEvictor;
+                    if (evictor != null) {
+                        evictor.remove(entry);
+                    }
+                    final ConnectionValidationPolicy policy = this.validationPolicy;
                     if (entry.isExpired(System.currentTimeMillis())) {
                         // If the free entry isn't valid anymore, get rid of it
                         // and loop to find another one that might be valid.
@@ -464,6 +506,15 @@ public class ConnPoolByRoute extends AbstractConnPool {
                         // can only be used to delete free entries.
                         rospl.dropEntry();
                         numConnections--;
+                    } else if (policy != null
+                            && !policy.validate(entry.getConnection(), entry.getUpdated())) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("Closing stale free connection"
+                                    + " [" + rospl.getRoute() + "][" + state + "]");
+                        }
+                        closeConnection(entry);
+                        rospl.dropEntry();
+                        numConnections--;
                     } else {
                         leasedConnections.add(entry);
                         done = true;
@@ -641,6 +692,22 @@ public class ConnPoolByRoute extends AbstractConnPool {
     }
 
 
+    public boolean evict(final BasicPoolEntry entry, final long updated) {
+        poolLock.lock();
+        try {
+            if (shutdown || entry.getUpdated() != updated || !freeConnections.remove(entry)) {
+                return false;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Evicting connection last used @ " + new Date(updated));
+            }
+            deleteEntry(entry);
+            return true;
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
     @Override
     public void deleteClosedConnections() {
         poolLock.lock();
@@ -5,16 +5,27 @@ import java.util.concurrent.TimeUnit;
 
 import m.vita.module.http.annotation.ThreadSafe;
 import m.vita.module.http.client.ClientConnectionOperator;
+import m.vita.module.http.client.impl.client.ClientParamsStack;
+import m.vita.module.http.concurrent.ComposableFuture;
 import m.vita.module.http.connect.ClientConnectionRequest;
+import m.vita.module.http.connect.ConnectionPrewarmer;
+import m.vita.module.http.connect.ConnectionTimings;
 import m.vita.module.http.connect.DefaultClientConnectionOperator;
+import m.vita.module.http.connect.ConnectionValidationPolicy;
+import m.vita.module.http.connect.IdleConnectionEvictor;
+import m.vita.module.http.connect.PrewarmResult;
 import m.vita.module.http.exception.ConnectionPoolTimeoutException;
+import m.vita.module.http.execute.BasicHttpContext;
 import m.vita.module.http.factory.SchemeRegistry;
 import m.vita.module.http.factory.SchemeRegistryFactory;
+import m.vita.module.http.header.BasicHttpParams;
 import m.vita.module.http.header.ClientConnectionManager;
+import m.vita.module.http.header.HttpContext;
 import m.vita.module.http.header.HttpParams;
 import m.vita.module.http.header.HttpRoute;
 import m.vita.module.http.header.ManagedClientConnection;
 import m.vita.module.http.params.ConnPerRouteBean;
+import m.vita.module.http.params.HttpClientParams;
 import m.vita.module.http.util.Args;
 import m.vita.module.http.util.Asserts;
 import m.vita.module.http.util.HttpClientAndroidLog;
@@ -281,6 +292,96 @@ public class ThreadSafeClientConnManager implements ClientConnectionManager {
         pool.closeExpiredConnections();
     }
 
+    /**
+     * Enables the background eviction of idle and expired connections, which are otherwise only
+     * closed by {@link #closeIdleConnections} and {@link #closeExpiredConnections}. Applies to the
+     * connections released from now on.
+     *
+     * @param evictor evictor to use, may be shared by several managers, null to disable
+     */
+    public void setIdleConnectionEvictor(final IdleConnectionEvictor evictor) {
+        pool.setIdleConnectionEvictor(evictor);
+    }
+
+    public IdleConnectionEvictor getIdleConnectionEvictor() {
+        return pool.getIdleConnectionEvictor();
+    }
+
+    /**
+     * Replaces the stale check made on every lease by a check of the connections that have been
+     * idle for longer than the threshold of the policy. The request director skips its own stale
+     * check and sends a request again on a new connection if the reused one turns out dead.
+     *
+     * @param policy policy to use, may be shared by several managers, null to disable
+     */
+    public void setConnectionValidationPolicy(final ConnectionValidationPolicy policy) {
+        pool.setConnectionValidationPolicy(policy);
+    }
+
+    public ConnectionValidationPolicy getConnectionValidationPolicy() {
+        return pool.getConnectionValidationPolicy();
+    }
+
+    /**
+     * Opens connections to the given route in the background and parks them in the pool, TLS
+     * handshake included, so that the first requests to the route find them ready. Tunnelled
+     * routes are not supported as they need a request to the proxy.
+     *
+     * @param route  route to open connections to
+     * @param count  number of connections the pool should hold, capped at the limit of the route
+     * @param params parameters to open the connections with, giving the connect timeout and the
+     *               time to wait for the pool
+     * @return future of the number of connections opened and their handshake timings
+     */
+    public ComposableFuture<PrewarmResult> prewarm(final HttpRoute route, final int count,
+                                                   final HttpParams params) {
+        Args.notNull(route, "HTTP route");
+        Args.notNull(params, "HTTP parameters");
+        Args.check(!route.isTunnelled(), "Tunnelled route cannot be pre-warmed");
+        final int n = Math.min(count, Math.min(getMaxForRoute(route), getMaxTotal()));
+        if (log.isDebugEnabled()) {
+            log.debug("Pre-warming " + n + " connections to " + route);
+        }
+        return ConnectionPrewarmer.prewarm(route, n, new ConnectionPrewarmer.Target<ManagedClientConnection>() {
+
+            @Override
+            public int getConnectionCount(final HttpRoute route) {
+                return getConnectionsInPool(route);
+            }
+
+            @Override
+            public ManagedClientConnection lease(final HttpRoute route) throws Exception {
+                return requestConnection(route, null).getConnection(
+                        HttpClientParams.getConnectionManagerTimeout(params), TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public ConnectionTimings open(final ManagedClientConnection conn, final HttpRoute route)
+                    throws IOException {
+                if (conn.isOpen()) {
+                    return null;
+                }
+                final ConnectionTimings timings = new ConnectionTimings();
+                final HttpContext context = new BasicHttpContext();
+                context.setAttribute(ConnectionTimings.ATTRIBUTE, timings);
+                // the socket factories only get the parameters
+                final HttpParams timingParams = new BasicHttpParams();
+                timingParams.setParameter(ConnectionTimings.ATTRIBUTE, timings);
+                conn.open(route, context, new ClientParamsStack(null, params, null, timingParams));
+                conn.markReusable();
+                return timings;
+            }
+
+            @Override
+            public void release(final ManagedClientConnection conn, final boolean reusable) {
+                if (!reusable) {
+                    conn.unmarkReusable();
+                }
+                releaseConnection(conn, 0, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
     /**
      * since 4.1
      */
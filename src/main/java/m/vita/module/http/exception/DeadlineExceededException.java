@@ -0,0 +1,32 @@
+package m.vita.module.http.exception;
+
+import java.io.InterruptedIOException;
+
+import m.vita.module.http.annotation.Immutable;
+
+/**
+ * Signals that the total time allowed for a request, including retries, redirects and
+ * authentication round trips, has run out.
+ */
+@Immutable
+public class DeadlineExceededException extends InterruptedIOException {
+
+    private static final long serialVersionUID = 2581063254176412683L;
+
+    /**
+     * Creates a DeadlineExceededException with a <tt>null</tt> detail message.
+     */
+    public DeadlineExceededException() {
+        super();
+    }
+
+    /**
+     * Creates a DeadlineExceededException with the specified detail message.
+     *
+     * @param message The exception detail message
+     */
+    public DeadlineExceededException(final String message) {
+        super(message);
+    }
+
+}
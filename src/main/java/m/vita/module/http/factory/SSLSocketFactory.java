@@ -17,6 +17,7 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 
 import m.vita.module.http.annotation.ThreadSafe;
+import m.vita.module.http.connect.ConnectionTimings;
 import m.vita.module.http.connect.HttpConnectionParams;
 import m.vita.module.http.connect.HttpInetSocketAddress;
 import m.vita.module.http.connect.ssl.AllowAllHostnameVerifier;
@@ -378,7 +379,8 @@ public class SSLSocketFactory implements LayeredConnectionSocketFactory, SchemeL
         final int socketTimeout = HttpConnectionParams.getSoTimeout(params);
         final int connectTimeout = HttpConnectionParams.getConnectionTimeout(params);
         socket.setSoTimeout(socketTimeout);
-        return connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, null);
+        return connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, null,
+                ConnectionTimings.get(params));
     }
 
     /**
@@ -492,6 +494,18 @@ public class SSLSocketFactory implements LayeredConnectionSocketFactory, SchemeL
             final InetSocketAddress remoteAddress,
             final InetSocketAddress localAddress,
             final HttpContext context) throws IOException {
+        return connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context,
+                ConnectionTimings.get(context));
+    }
+
+    private Socket connectSocket(
+            final int connectTimeout,
+            final Socket socket,
+            final HttpHost host,
+            final InetSocketAddress remoteAddress,
+            final InetSocketAddress localAddress,
+            final HttpContext context,
+            final ConnectionTimings timings) throws IOException {
         Args.notNull(host, "HTTP host");
         Args.notNull(remoteAddress, "Remote address");
         final Socket sock = socket != null ? socket : createSocket(context);
@@ -507,15 +521,23 @@ public class SSLSocketFactory implements LayeredConnectionSocketFactory, SchemeL
             }
             throw ex;
         }
+        if (timings != null) {
+            timings.markConnected();
+        }
         // Setup SSL layering if necessary
+        final Socket layered;
         if (sock instanceof SSLSocket) {
             final SSLSocket sslsock = (SSLSocket) sock;
             sslsock.startHandshake();
             verifyHostname(sslsock, host.getHostName());
-            return sock;
+            layered = sock;
         } else {
-            return createLayeredSocket(sock, host.getHostName(), remoteAddress.getPort(), context);
+            layered = createLayeredSocket(sock, host.getHostName(), remoteAddress.getPort(), context);
+        }
+        if (timings != null) {
+            timings.markSecured();
         }
+        return layered;
     }
 
     public Socket createLayeredSocket(
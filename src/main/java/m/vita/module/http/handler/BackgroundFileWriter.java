@@ -0,0 +1,213 @@
+package m.vita.module.http.handler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import m.vita.module.http.concurrent.DaemonThreadFactory;
+
+/**
+ * Writes a download to a file through a {@link FileChannel}. The caller reads the response
+ * directly into the current buffer, which is handed to an I/O thread once full while the caller
+ * goes on reading into the second buffer, so that network reads and disk writes overlap and a slow
+ * disk does not stall the socket. Small downloads are written on the calling thread.
+ * <p>&nbsp;</p>
+ * Not thread safe, used by the thread reading the response only.
+ */
+final class BackgroundFileWriter {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SMALL_BUFFER_SIZE = 16 * 1024;
+    private static final long BACKGROUND_THRESHOLD = 256 * 1024;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private static final ThreadPoolExecutor ioExecutor =
+            DaemonThreadFactory.newCachedExecutor("JEBAsyncHttp-io-", Integer.MAX_VALUE);
+
+    private final FileOutputStream outstream;
+    private final FileChannel channel;
+    private BlockingQueue<ByteBuffer> filled;
+    private BlockingQueue<ByteBuffer> free;
+    private CountDownLatch drained;
+    private volatile IOException failure;
+    private ByteBuffer current;
+    private boolean isClosed;
+
+    /**
+     * Opens the file for writing
+     *
+     * @param file          file to write
+     * @param append        whether to append to the existing content
+     * @param contentLength length of the download, negative if unknown
+     * @throws IOException if the file cannot be opened
+     */
+    BackgroundFileWriter(File file, boolean append, long contentLength) throws IOException {
+        this.outstream = new FileOutputStream(file, append);
+        this.channel = outstream.getChannel();
+        if (contentLength < 0 || contentLength >= BACKGROUND_THRESHOLD) {
+            filled = new ArrayBlockingQueue<ByteBuffer>(3);
+            free = new ArrayBlockingQueue<ByteBuffer>(2);
+            drained = new CountDownLatch(1);
+            free.add(ByteBuffer.allocate(BUFFER_SIZE));
+            current = ByteBuffer.allocate(BUFFER_SIZE);
+            try {
+                ioExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                filled = null;
+                free = null;
+                drained = null;
+            }
+        }
+        current = ByteBuffer.allocate(contentLength > 0 ? (int) Math.min(SMALL_BUFFER_SIZE, contentLength) : SMALL_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns the buffer to read into, bytes are to be stored in its array from its position up to
+     * its limit and then passed to {@link #advance(int)}
+     *
+     * @return buffer with space for at least one byte
+     * @throws IOException if a previous write failed
+     */
+    ByteBuffer getBuffer() throws IOException {
+        checkFailure();
+        return current;
+    }
+
+    /**
+     * Marks bytes read into the array of the buffer as ready to be written
+     *
+     * @param length number of bytes read
+     * @throws IOException if a previous write failed
+     */
+    void advance(int length) throws IOException {
+        current.position(current.position() + length);
+        if (!current.hasRemaining()) {
+            flush(true);
+        }
+    }
+
+    private void flush(boolean isMoreData) throws IOException {
+        checkFailure();
+        if (filled == null) {
+            current.flip();
+            while (current.hasRemaining()) {
+                channel.write(current);
+            }
+            current.clear();
+            return;
+        }
+        try {
+            if (current.position() > 0) {
+                // never blocks, the queue has room for both buffers and the end marker
+                filled.offer(current);
+                current = isMoreData ? free.take() : null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the disk");
+        }
+    }
+
+    private void drain() {
+        try {
+            for (;;) {
+                ByteBuffer buffer = filled.take();
+                if (buffer == END) {
+                    return;
+                }
+                if (failure == null) {
+                    try {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    } catch (IOException e) {
+                        // reported to the reader on its next call
+                        failure = e;
+                    }
+                }
+                buffer.clear();
+                free.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("File writer interrupted");
+        } finally {
+            drained.countDown();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes and closes the file
+     *
+     * @throws IOException if a write failed
+     */
+    void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            flush(false);
+        } finally {
+            finish();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Closes the file, writing what has been read so far, and ignores failures
+     */
+    void closeQuietly() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            flush(false);
+        } catch (IOException ignore) {
+            // the download failed already
+        } finally {
+            finish();
+        }
+    }
+
+    private void finish() {
+        if (filled != null) {
+            filled.offer(END);
+            try {
+                drained.await();
+            } catch (InterruptedException e) {
+                // cancelled, the writes still queued fail once the channel is closed
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            outstream.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+}
@@ -3,13 +3,19 @@ package m.vita.module.http.handler;
 import android.content.Context;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 
 import m.vita.module.http.HttpEntity;
+import m.vita.module.http.HttpResponse;
 import m.vita.module.http.JEBAsyncHttpClient;
+import m.vita.module.http.client.cache.DownloadCache;
 import m.vita.module.http.header.Header;
+import m.vita.module.http.header.HttpUriRequest;
+import m.vita.module.http.util.HttpStatus;
+import m.vita.module.http.util.StatusLine;
 import m.vita.module.http.util.Utils;
 
 public abstract class FileJEBAsyncHttpResponseHandler extends JEBAsyncHttpResponseHandler {
@@ -18,6 +24,12 @@ public abstract class FileJEBAsyncHttpResponseHandler extends JEBAsyncHttpRespon
     protected final boolean append;
     protected final boolean renameIfExists;
     protected File frontendFile;
+    private DownloadCache downloadCache;
+    private DownloadCache.Entry cachedEntry;
+    private String cacheKey;
+    private String eTag;
+    private String lastModified;
+    private boolean isCacheable;
 
     /**
      * Obtains new FileJEBAsyncHttpResponseHandler and stores response in passed file
@@ -86,6 +98,50 @@ public abstract class FileJEBAsyncHttpResponseHandler extends JEBAsyncHttpRespon
         this.renameIfExists = false;
     }
 
+    /**
+     * Sets the cache keeping downloaded files across restarts. Requests are then sent with the
+     * validators of the stored file, and a 304 (Not Modified) response is completed by copying the
+     * stored file into the target, calling {@link #onSuccess(int, Header[], File)} with status 304.
+     * Not used when appending.
+     *
+     * @param downloadCache cache to use, null to not cache
+     */
+    public void setDownloadCache(DownloadCache downloadCache) {
+        this.downloadCache = downloadCache;
+    }
+
+    public DownloadCache getDownloadCache() {
+        return downloadCache;
+    }
+
+    /**
+     * Called before every attempt of the request, adds the validators of the cached file
+     *
+     * @param uriRequest request about to be sent
+     */
+    public void updateRequestHeaders(HttpUriRequest uriRequest) {
+        DownloadCache cache = downloadCache;
+        if (cachedEntry != null) {
+            // the entry of a previous attempt may have been evicted meanwhile
+            uriRequest.removeHeaders("If-None-Match");
+            uriRequest.removeHeaders("If-Modified-Since");
+            cachedEntry = null;
+        }
+        if (cache == null || append) {
+            return;
+        }
+        cacheKey = uriRequest.getURI().toString();
+        cachedEntry = cache.get(cacheKey);
+        if (cachedEntry != null) {
+            if (cachedEntry.getETag() != null) {
+                uriRequest.setHeader("If-None-Match", cachedEntry.getETag());
+            }
+            if (cachedEntry.getLastModified() != null) {
+                uriRequest.setHeader("If-Modified-Since", cachedEntry.getLastModified());
+            }
+        }
+    }
+
     /**
      * Attempts to delete file with stored response
      *
@@ -195,29 +251,81 @@ public abstract class FileJEBAsyncHttpResponseHandler extends JEBAsyncHttpRespon
      */
     public abstract void onSuccess(int statusCode, Header[] headers, File file);
 
+    @Override
+    public void sendResponseMessage(HttpResponse response) throws IOException {
+        DownloadCache.Entry entry = cachedEntry;
+        StatusLine status = response.getStatusLine();
+        if (entry != null && status.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+            if (!Thread.currentThread().isInterrupted()) {
+                // fails on a corrupted file, which is removed so that the retry downloads it
+                downloadCache.copyTo(entry, getTargetFile());
+                sendProgressMessage(entry.getLength(), entry.getLength());
+                if (!Thread.currentThread().isInterrupted()) {
+                    sendSuccessMessage(status.getStatusCode(), response.getAllHeaders(), null);
+                }
+            }
+            return;
+        }
+        Header eTagHeader = response.getFirstHeader("ETag");
+        Header lastModifiedHeader = response.getFirstHeader("Last-Modified");
+        eTag = eTagHeader != null ? eTagHeader.getValue() : null;
+        lastModified = lastModifiedHeader != null ? lastModifiedHeader.getValue() : null;
+        isCacheable = status.getStatusCode() == HttpStatus.SC_OK;
+        super.sendResponseMessage(response);
+    }
+
     @Override
     protected byte[] getResponseData(HttpEntity entity) throws IOException {
         if (entity != null) {
             InputStream instream = entity.getContent();
             long contentLength = entity.getContentLength();
-            FileOutputStream buffer = new FileOutputStream(getTargetFile(), this.append);
+            BackgroundFileWriter writer = new BackgroundFileWriter(getTargetFile(), this.append, contentLength);
             if (instream != null) {
+                DownloadCache cache = append || !isCacheable ? null : downloadCache;
+                MessageDigest digest = cache != null ? DownloadCache.newDigest() : null;
+                boolean isComplete;
+                long count = 0;
                 try {
-                    byte[] tmp = new byte[BUFFER_SIZE];
-                    int l, count = 0;
+                    // read straight into the buffer of the writer, written to disk on its I/O thread
+                    ByteBuffer tmp = writer.getBuffer();
+                    int l;
                     // do not send messages if request has been cancelled
-                    while ((l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
+                    while ((l = instream.read(tmp.array(), tmp.position(), tmp.remaining())) != -1 && !Thread.currentThread().isInterrupted()) {
                         count += l;
-                        buffer.write(tmp, 0, l);
+                        if (digest != null) {
+                            digest.update(tmp.array(), tmp.position(), l);
+                        }
+                        writer.advance(l);
                         sendProgressMessage(count, contentLength);
+                        tmp = writer.getBuffer();
                     }
+                    writer.close();
+                    isComplete = l == -1 && (contentLength < 0 || count == contentLength);
                 } finally {
                     JEBAsyncHttpClient.silentCloseInputStream(instream);
-                    buffer.flush();
-                    JEBAsyncHttpClient.silentCloseOutputStream(buffer);
+                    writer.closeQuietly();
+                }
+                if (cache != null && isComplete) {
+                    storeInCache(cache, digest);
                 }
+            } else {
+                writer.close();
             }
         }
         return null;
     }
+
+    private void storeInCache(DownloadCache cache, MessageDigest digest) {
+        String key = cacheKey != null ? cacheKey : getRequestURI().toString();
+        try {
+            if (eTag != null || lastModified != null) {
+                cache.put(key, eTag, lastModified, getTargetFile(), digest.digest());
+            } else {
+                cache.remove(key);
+            }
+        } catch (IOException e) {
+            // the download itself succeeded
+            JEBAsyncHttpClient.log.w(LOG_TAG, "Cannot store " + key + " in download cache", e);
+        }
+    }
 }
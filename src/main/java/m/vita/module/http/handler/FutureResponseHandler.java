@@ -0,0 +1,88 @@
+package m.vita.module.http.handler;
+
+import java.io.IOException;
+
+import m.vita.module.http.HttpResponse;
+import m.vita.module.http.concurrent.ComposableFuture;
+import m.vita.module.http.exception.HttpResponseException;
+import m.vita.module.http.header.Header;
+import m.vita.module.http.util.EntityUtils;
+import m.vita.module.http.util.StatusLine;
+
+/**
+ * Response handler completing a {@link ComposableFuture} instead of invoking callbacks on a
+ * looper. The response is converted on the thread executing the request, responses with status
+ * 300 and above fail the future with a {@link HttpResponseException}.
+ *
+ * @param <T> type of the result
+ */
+public class FutureResponseHandler<T> extends JEBAsyncHttpResponseHandler {
+
+    private final ComposableFuture<T> future;
+    private final ResponseConverter<? extends T> converter;
+
+    /**
+     * Creates new handler
+     *
+     * @param future    future to complete
+     * @param converter conversion of successful responses
+     */
+    public FutureResponseHandler(ComposableFuture<T> future, ResponseConverter<? extends T> converter) {
+        super(true);
+        this.future = future;
+        this.converter = converter;
+    }
+
+    public ComposableFuture<T> getFuture() {
+        return future;
+    }
+
+    @Override
+    public void sendResponseMessage(HttpResponse response) throws IOException {
+        // do not process if request has been cancelled
+        if (Thread.currentThread().isInterrupted() || future.isDone()) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            return;
+        }
+        StatusLine status = response.getStatusLine();
+        if (status.getStatusCode() >= 300) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            future.failed(new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()));
+            return;
+        }
+        T result;
+        try {
+            result = converter.convert(response);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            future.failed(e);
+            return;
+        }
+        future.completed(result);
+    }
+
+    @Override
+    public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+        // results are delivered through sendResponseMessage()
+    }
+
+    @Override
+    public void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+        future.failed(error instanceof Exception ? (Exception) error : new IOException(error));
+    }
+
+    @Override
+    public void onCancel() {
+        future.cancel(false);
+    }
+
+    @Override
+    public void onFinish() {
+        // safety net, the request finished without delivering a response
+        if (!future.isDone()) {
+            future.failed(new IOException("Request finished without response"));
+        }
+    }
+}
@@ -1,9 +1,9 @@
 package m.vita.module.http.handler;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 
 import m.vita.module.http.JEBAsyncHttpClient;
@@ -61,26 +61,30 @@ public abstract class RangeFileJEBAsyncHttpResponseHandler extends FileJEBAsyncH
         if (entity != null) {
             InputStream instream = entity.getContent();
             long contentLength = entity.getContentLength() + current;
-            FileOutputStream buffer = new FileOutputStream(getTargetFile(), append);
+            BackgroundFileWriter writer = new BackgroundFileWriter(getTargetFile(), append, entity.getContentLength());
             if (instream != null) {
                 try {
-                    byte[] tmp = new byte[BUFFER_SIZE];
+                    ByteBuffer tmp = writer.getBuffer();
                     int l;
-                    while (current < contentLength && (l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
+                    while (current < contentLength && (l = instream.read(tmp.array(), tmp.position(), (int) Math.min(tmp.remaining(), contentLength - current))) != -1 && !Thread.currentThread().isInterrupted()) {
                         current += l;
-                        buffer.write(tmp, 0, l);
+                        writer.advance(l);
                         sendProgressMessage(current, contentLength);
+                        tmp = writer.getBuffer();
                     }
+                    writer.close();
                 } finally {
                     instream.close();
-                    buffer.flush();
-                    buffer.close();
+                    writer.closeQuietly();
                 }
+            } else {
+                writer.close();
             }
         }
         return null;
     }
 
+    @Override
     public void updateRequestHeaders(HttpUriRequest uriRequest) {
         if (file.exists() && file.canWrite())
             current = file.length();
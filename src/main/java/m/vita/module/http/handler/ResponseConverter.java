@@ -0,0 +1,49 @@
+package m.vita.module.http.handler;
+
+import java.io.IOException;
+
+import m.vita.module.http.HttpEntity;
+import m.vita.module.http.HttpResponse;
+import m.vita.module.http.util.EntityUtils;
+
+/**
+ * Converts a successful response into a typed result. Conversion runs on the thread executing the
+ * request, so it may read and parse the whole body.
+ *
+ * @param <T> type of the result
+ */
+public interface ResponseConverter<T> {
+
+    /**
+     * Returns the body as byte array, null if the response has no body
+     */
+    ResponseConverter<byte[]> BYTE_ARRAY = new ResponseConverter<byte[]>() {
+        @Override
+        public byte[] convert(HttpResponse response) throws IOException {
+            HttpEntity entity = response.getEntity();
+            return entity == null ? null : EntityUtils.toByteArray(entity);
+        }
+    };
+
+    /**
+     * Returns the body as string decoded with the charset of the response, ISO-8859-1 if not
+     * declared, null if the response has no body
+     */
+    ResponseConverter<String> STRING = new ResponseConverter<String>() {
+        @Override
+        public String convert(HttpResponse response) throws IOException {
+            HttpEntity entity = response.getEntity();
+            return entity == null ? null : EntityUtils.toString(entity);
+        }
+    };
+
+    /**
+     * Converts the response, called only for status codes below 300
+     *
+     * @param response response to convert, the body has not been read yet
+     * @return converted result
+     * @throws IOException if reading the body fails, the request is then retried
+     * @throws Exception   if the body can not be converted, fails the request without retrying
+     */
+    T convert(HttpResponse response) throws Exception;
+}
@@ -0,0 +1,548 @@
+package m.vita.module.http.handler;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import m.vita.module.http.HttpEntity;
+import m.vita.module.http.HttpResponse;
+import m.vita.module.http.JEBAsyncHttpClient;
+import m.vita.module.http.client.AbstractHttpClient;
+import m.vita.module.http.concurrent.DaemonThreadFactory;
+import m.vita.module.http.execute.BasicHttpContext;
+import m.vita.module.http.header.Header;
+import m.vita.module.http.header.HttpContext;
+import m.vita.module.http.header.HttpUriRequest;
+import m.vita.module.http.method.HttpGet;
+import m.vita.module.http.util.EntityUtils;
+import m.vita.module.http.util.HttpStatus;
+import m.vita.module.http.util.StatusLine;
+import m.vita.module.http.util.Utils;
+
+/**
+ * Downloads a file in segments fetched in parallel over separate connections. The first request
+ * asks for the first megabyte with a Range header; its Content-Range reveals the length of the
+ * file, which is then preallocated and the rest split into segments. Each segment is written at its
+ * offset with positional writes and retried on its own when its connection fails.
+ * <p>&nbsp;</p>
+ * The progress of the segments is kept in a state file next to the target, so that a download
+ * interrupted by a failure, a cancellation or the end of the process continues where it stopped
+ * when the same target is downloaded again. A server ignoring Range headers gets the file
+ * downloaded as a single stream. {@link #onSuccess(int, Header[], File)} is called with status 200
+ * once the whole file is written.
+ * <p>&nbsp;</p>
+ * The number of segments should not exceed the maximum number of connections per route of the
+ * client.
+ */
+public abstract class SegmentedFileJEBAsyncHttpResponseHandler extends FileJEBAsyncHttpResponseHandler {
+    private static final String LOG_TAG = "SegmentedFileAsyncHttpRH";
+
+    public static final int DEFAULT_SEGMENT_COUNT = 4;
+
+    private static final long FIRST_SEGMENT_BYTES = 1024 * 1024;
+    private static final long MIN_SEGMENT_BYTES = 512 * 1024;
+    private static final long STATE_SAVE_INTERVAL = 1024 * 1024;
+    private static final int MAX_SEGMENT_RETRIES = 3;
+    private static final int STATE_VERSION = 1;
+    private static final int SEGMENT_BUFFER_SIZE = 16 * 1024;
+
+    private static final ThreadPoolExecutor segmentExecutor =
+            DaemonThreadFactory.newCachedExecutor("JEBAsyncHttp-segment-", Integer.MAX_VALUE);
+
+    private final int segmentCount;
+    private volatile AbstractHttpClient client;
+    private volatile HttpContext context;
+    private DownloadState state;
+
+    // state of the running download, shared with the segment threads
+    private final Set<HttpUriRequest> runningRequests = Collections.synchronizedSet(new HashSet<HttpUriRequest>());
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong unsavedBytes = new AtomicLong();
+    private volatile boolean isStopped;
+    private volatile boolean isInvalidated;
+
+    /**
+     * Obtains new SegmentedFileJEBAsyncHttpResponseHandler downloading in 4 segments
+     *
+     * @param file File to store response within, must not be null
+     */
+    public SegmentedFileJEBAsyncHttpResponseHandler(File file) {
+        this(file, DEFAULT_SEGMENT_COUNT);
+    }
+
+    /**
+     * Obtains new SegmentedFileJEBAsyncHttpResponseHandler
+     *
+     * @param file         File to store response within, must not be null
+     * @param segmentCount maximum number of segments downloaded in parallel
+     */
+    public SegmentedFileJEBAsyncHttpResponseHandler(File file, int segmentCount) {
+        super(file);
+        Utils.asserts(segmentCount > 0, "Segment count must be positive");
+        this.segmentCount = segmentCount;
+    }
+
+    /**
+     * Sets the client fetching the segments, called before every attempt of the request
+     *
+     * @param client  client executing the request
+     * @param context execution context of the request
+     */
+    public void setHttpClient(AbstractHttpClient client, HttpContext context) {
+        this.client = client;
+        this.context = context;
+    }
+
+    /**
+     * @return file keeping the progress of the segments between attempts and processes
+     */
+    protected File getStateFile() {
+        return new File(getTargetFile().getPath() + ".segments");
+    }
+
+    @Override
+    public void updateRequestHeaders(HttpUriRequest uriRequest) {
+        uriRequest.removeHeaders("Range");
+        uriRequest.removeHeaders("If-Range");
+        state = DownloadState.load(getStateFile(), getTargetFile());
+        Segment next = state != null ? state.nextUnfinished() : null;
+        if (next == null) {
+            state = null;
+            uriRequest.setHeader("Range", "bytes=0-" + (FIRST_SEGMENT_BYTES - 1));
+        } else {
+            uriRequest.setHeader("Range", next.getRangeValue());
+            if (state.validator != null) {
+                // the server answers 200 with the whole file if it changed
+                uriRequest.setHeader("If-Range", state.validator);
+            }
+            JEBAsyncHttpClient.log.d(LOG_TAG, "Resuming " + getTargetFile() + " at " + next.current);
+        }
+    }
+
+    @Override
+    public void sendResponseMessage(HttpResponse response) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        StatusLine status = response.getStatusLine();
+        if (status.getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT) {
+            long[] range = parseContentRange(response.getFirstHeader(JEBAsyncHttpClient.HEADER_CONTENT_RANGE));
+            if (range == null) {
+                throw new IOException("Invalid Content-Range of " + getRequestURI());
+            }
+            if (state == null) {
+                state = DownloadState.plan(range[2], range[1] + 1, segmentCount, getValidator(response));
+            }
+            Segment first = state.nextUnfinished();
+            if (first == null || first.current != range[0] || range[2] != state.total) {
+                getStateFile().delete();
+                throw new IOException("Unexpected Content-Range of " + getRequestURI());
+            }
+            downloadSegments(first, response.getEntity());
+            if (!Thread.currentThread().isInterrupted()) {
+                sendSuccessMessage(HttpStatus.SC_OK, response.getAllHeaders(), null);
+            }
+        } else if (status.getStatusCode() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && state == null) {
+            // empty file, there is no first byte to request
+            EntityUtils.consumeQuietly(response.getEntity());
+            new FileOutputStream(getTargetFile()).close();
+            sendSuccessMessage(HttpStatus.SC_OK, response.getAllHeaders(), null);
+        } else {
+            if (status.getStatusCode() == HttpStatus.SC_OK) {
+                JEBAsyncHttpClient.log.d(LOG_TAG, "Ranges not supported or file changed, downloading " + getRequestURI() + " as a single stream");
+            }
+            state = null;
+            getStateFile().delete();
+            super.sendResponseMessage(response);
+        }
+    }
+
+    private void downloadSegments(Segment first, HttpEntity entity) throws IOException {
+        final DownloadState state = this.state;
+        isStopped = false;
+        isInvalidated = false;
+        downloaded.set(state.getDownloaded());
+        unsavedBytes.set(0);
+        RandomAccessFile file = new RandomAccessFile(getTargetFile(), "rw");
+        try {
+            if (state.total >= 0 && file.length() != state.total) {
+                file.setLength(state.total);
+            }
+            saveState();
+            final FileChannel channel = file.getChannel();
+            List<Segment> others = new ArrayList<Segment>();
+            for (Segment segment : state.segments) {
+                if (segment != first && !segment.isFinished()) {
+                    others.add(segment);
+                }
+            }
+            final CountDownLatch latch = new CountDownLatch(others.size());
+            final IOException[] failure = new IOException[1];
+            for (final Segment segment : others) {
+                Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            fetchSegment(segment, channel);
+                        } catch (IOException e) {
+                            synchronized (failure) {
+                                if (failure[0] == null) {
+                                    failure[0] = e;
+                                }
+                            }
+                            stop();
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                };
+                try {
+                    segmentExecutor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    latch.countDown();
+                }
+            }
+
+            try {
+                writeSegment(first, entity, channel);
+            } catch (IOException e) {
+                stop();
+                throw e;
+            } finally {
+                if (Thread.currentThread().isInterrupted()) {
+                    stop();
+                }
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    stop();
+                    Thread.currentThread().interrupt();
+                }
+                saveState();
+            }
+            synchronized (failure) {
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+            }
+            if (state.nextUnfinished() != null) {
+                if (!Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Download of " + getRequestURI() + " incomplete");
+                }
+                return;
+            }
+            if (state.total < 0) {
+                file.setLength(state.segments.get(state.segments.size() - 1).end);
+            }
+        } finally {
+            file.close();
+        }
+        getStateFile().delete();
+    }
+
+    private void fetchSegment(Segment segment, FileChannel channel) throws IOException {
+        int attempts = 0;
+        while (true) {
+            if (isStopped) {
+                return;
+            }
+            HttpGet request = new HttpGet(getRequestURI());
+            Header[] headers = getRequestHeaders();
+            if (headers != null) {
+                request.setHeaders(headers);
+            }
+            request.setHeader("Range", segment.getRangeValue());
+            request.removeHeaders("If-Range");
+            if (state.validator != null) {
+                request.setHeader("If-Range", state.validator);
+            }
+            runningRequests.add(request);
+            try {
+                if (isStopped) {
+                    return;
+                }
+                HttpResponse response = client.execute(request, new BasicHttpContext(context));
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    if (statusCode == HttpStatus.SC_OK) {
+                        // the file changed since the download started
+                        isInvalidated = true;
+                    }
+                    throw new IOException("Segment " + segment.getRangeValue() + " of " + getRequestURI() + " answered with " + statusCode);
+                }
+                long[] range = parseContentRange(response.getFirstHeader(JEBAsyncHttpClient.HEADER_CONTENT_RANGE));
+                if (range == null || range[0] != segment.current) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    throw new IOException("Unexpected Content-Range of segment " + segment.getRangeValue());
+                }
+                writeSegment(segment, response.getEntity(), channel);
+                return;
+            } catch (IOException e) {
+                if (isStopped || isInvalidated || ++attempts > MAX_SEGMENT_RETRIES) {
+                    throw e;
+                }
+                JEBAsyncHttpClient.log.d(LOG_TAG, "Retrying segment " + segment.getRangeValue() + " after " + e);
+            } finally {
+                runningRequests.remove(request);
+            }
+        }
+    }
+
+    private void writeSegment(Segment segment, HttpEntity entity, FileChannel channel) throws IOException {
+        InputStream instream = entity != null ? entity.getContent() : null;
+        if (instream == null) {
+            throw new IOException("Segment " + segment.getRangeValue() + " without content");
+        }
+        try {
+            byte[] tmp = new byte[SEGMENT_BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(tmp);
+            long position = segment.current;
+            int l = 0;
+            while ((segment.end < 0 || position < segment.end) && !isStopped && !Thread.currentThread().isInterrupted()) {
+                int length = segment.end < 0 ? tmp.length : (int) Math.min(tmp.length, segment.end - position);
+                if ((l = instream.read(tmp, 0, length)) == -1) {
+                    break;
+                }
+                buffer.clear().limit(l);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                segment.current = position;
+                onSegmentProgress(l);
+            }
+            if (segment.end < 0 && l == -1) {
+                // length unknown until the end of the stream
+                segment.end = position;
+            } else if (segment.end >= 0 && position < segment.end && !isStopped && !Thread.currentThread().isInterrupted()) {
+                throw new IOException("Segment " + segment.getRangeValue() + " ended prematurely");
+            }
+        } finally {
+            JEBAsyncHttpClient.silentCloseInputStream(instream);
+        }
+    }
+
+    private void onSegmentProgress(int length) {
+        long count = downloaded.addAndGet(length);
+        synchronized (this) {
+            sendProgressMessage(count, state.total);
+        }
+        if (unsavedBytes.addAndGet(length) >= STATE_SAVE_INTERVAL) {
+            unsavedBytes.set(0);
+            saveState();
+        }
+    }
+
+    private void stop() {
+        isStopped = true;
+        HttpUriRequest[] running;
+        synchronized (runningRequests) {
+            running = runningRequests.toArray(new HttpUriRequest[runningRequests.size()]);
+        }
+        for (HttpUriRequest request : running) {
+            request.abort();
+        }
+    }
+
+    private void saveState() {
+        DownloadState state = this.state;
+        if (isInvalidated) {
+            getStateFile().delete();
+        } else if (state != null) {
+            try {
+                state.save(getStateFile());
+            } catch (IOException e) {
+                JEBAsyncHttpClient.log.w(LOG_TAG, "Cannot save download state of " + getTargetFile(), e);
+            }
+        }
+    }
+
+    private static String getValidator(HttpResponse response) {
+        Header eTag = response.getFirstHeader("ETag");
+        if (eTag != null && !eTag.getValue().startsWith("W/")) {
+            // If-Range requires a strong validator
+            return eTag.getValue();
+        }
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified != null ? lastModified.getValue() : null;
+    }
+
+    /**
+     * Parses a Content-Range header value "bytes first-last/total"
+     *
+     * @return first, last and total, total being -1 if unknown, or null if invalid
+     */
+    static long[] parseContentRange(Header header) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.getValue().trim();
+        if (!value.startsWith("bytes ")) {
+            return null;
+        }
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(value.substring(6, dash).trim());
+            long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+            String total = value.substring(slash + 1).trim();
+            return new long[]{first, last, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Byte range of the file fetched by one request.
+     */
+    private static final class Segment {
+        final long start;
+        volatile long end;
+        volatile long current;
+
+        Segment(long start, long end, long current) {
+            this.start = start;
+            this.end = end;
+            this.current = current;
+        }
+
+        boolean isFinished() {
+            return end >= 0 && current >= end;
+        }
+
+        String getRangeValue() {
+            return "bytes=" + current + "-" + (end >= 0 ? String.valueOf(end - 1) : "");
+        }
+    }
+
+    /**
+     * Segments of a download and the validator of the file they belong to.
+     */
+    private static final class DownloadState {
+        final long total;
+        final String validator;
+        final List<Segment> segments;
+
+        DownloadState(long total, String validator, List<Segment> segments) {
+            this.total = total;
+            this.validator = validator;
+            this.segments = segments;
+        }
+
+        /**
+         * Splits the file after the first segment into at most the given number of segments
+         */
+        static DownloadState plan(long total, long firstEnd, int segmentCount, String validator) {
+            List<Segment> segments = new ArrayList<Segment>(segmentCount + 1);
+            segments.add(new Segment(0, total >= 0 ? Math.min(firstEnd, total) : firstEnd, 0));
+            if (total < 0) {
+                segments.add(new Segment(firstEnd, -1, firstEnd));
+            } else if (total > firstEnd) {
+                long rest = total - firstEnd;
+                int count = (int) Math.max(1, Math.min(segmentCount, rest / MIN_SEGMENT_BYTES));
+                long size = (rest + count - 1) / count;
+                for (long start = firstEnd; start < total; start += size) {
+                    segments.add(new Segment(start, Math.min(start + size, total), start));
+                }
+            }
+            return new DownloadState(total, validator, segments);
+        }
+
+        Segment nextUnfinished() {
+            for (Segment segment : segments) {
+                if (!segment.isFinished()) {
+                    return segment;
+                }
+            }
+            return null;
+        }
+
+        long getDownloaded() {
+            long count = 0;
+            for (Segment segment : segments) {
+                count += segment.current - segment.start;
+            }
+            return count;
+        }
+
+        synchronized void save(File stateFile) throws IOException {
+            File tmp = new File(stateFile.getPath() + ".tmp");
+            DataOutputStream outstream = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                outstream.writeInt(STATE_VERSION);
+                outstream.writeLong(total);
+                outstream.writeUTF(validator != null ? validator : "");
+                outstream.writeInt(segments.size());
+                for (Segment segment : segments) {
+                    outstream.writeLong(segment.start);
+                    outstream.writeLong(segment.end);
+                    outstream.writeLong(segment.current);
+                }
+            } finally {
+                outstream.close();
+            }
+            if (!tmp.renameTo(stateFile)) {
+                tmp.delete();
+                throw new IOException("Cannot replace " + stateFile);
+            }
+        }
+
+        /**
+         * @return state saved by an earlier attempt, null if missing or not matching the target
+         */
+        static DownloadState load(File stateFile, File target) {
+            if (!stateFile.isFile() || !target.isFile()) {
+                return null;
+            }
+            try {
+                DataInputStream instream = new DataInputStream(new FileInputStream(stateFile));
+                try {
+                    if (instream.readInt() != STATE_VERSION) {
+                        return null;
+                    }
+                    long total = instream.readLong();
+                    String validator = instream.readUTF();
+                    int count = instream.readInt();
+                    List<Segment> segments = new ArrayList<Segment>(count);
+                    for (int i = 0; i < count; i++) {
+                        long start = instream.readLong();
+                        long end = instream.readLong();
+                        long current = instream.readLong();
+                        if (current < start || (end >= 0 && current > end)) {
+                            return null;
+                        }
+                        segments.add(new Segment(start, end, current));
+                    }
+                    if (total >= 0 && target.length() != total) {
+                        return null;
+                    }
+                    return new DownloadState(total, validator.length() > 0 ? validator : null, segments);
+                } finally {
+                    instream.close();
+                }
+            } catch (IOException e) {
+                JEBAsyncHttpClient.log.w(LOG_TAG, "Cannot read download state " + stateFile, e);
+                return null;
+            }
+        }
+    }
+}
@@ -3,11 +3,14 @@ package m.vita.module.http.handler;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import m.vita.module.http.HttpEntity;
 import m.vita.module.http.HttpResponse;
@@ -15,6 +18,7 @@ import m.vita.module.http.JEBAsyncHttpClient;
 import m.vita.module.http.exception.HttpResponseException;
 import m.vita.module.http.header.Header;
 import m.vita.module.http.util.ByteArrayBuffer;
+import m.vita.module.http.util.ByteArrayPool;
 import m.vita.module.http.util.StatusLine;
 import m.vita.module.http.util.Utils;
 
@@ -39,6 +43,20 @@ public abstract class JEBAsyncHttpResponseHandler implements ResponseHandlerInte
     private Header[] requestHeaders = null;
     private Looper looper = null;
     private WeakReference<Object> TAG = new WeakReference<Object>(null);
+    private volatile ByteArrayPool bufferPool = ByteArrayPool.getDefault();
+    private volatile boolean releaseResponseBody;
+    // set by a callback taking over the body it was passed, accessed on the callback thread only
+    private boolean isResponseBodyRetained;
+
+    // progress coalescing, throttle state is only touched by the thread performing the request
+    private final AtomicBoolean progressPending = new AtomicBoolean();
+    private volatile long progressBytesWritten;
+    private volatile long progressBytesTotal;
+    private long progressIntervalMillis;
+    private int progressStepPercent;
+    private boolean progressDispatched;
+    private long lastProgressTime;
+    private long lastProgressBytes;
 
     /**
      * Creates a new JEBAsyncHttpResponseHandler
@@ -170,6 +188,93 @@ public abstract class JEBAsyncHttpResponseHandler implements ResponseHandlerInte
         this.responseCharset = charset;
     }
 
+    public ByteArrayPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    /**
+     * Sets the pool providing the buffers used while reading the response body. The pool also
+     * predicts the buffer size for bodies of unknown length from the sizes recently received from
+     * the same URL. Defaults to {@link ByteArrayPool#getDefault()}.
+     *
+     * @param bufferPool pool to use, null to allocate new buffers for every response
+     */
+    public void setBufferPool(ByteArrayPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public boolean isReleaseResponseBody() {
+        return this.releaseResponseBody;
+    }
+
+    /**
+     * Whether the response body should be handed back to the buffer pool once
+     * {@link #onSuccess(int, Header[], byte[])} or {@link #onFailure(int, Header[], byte[], Throwable)}
+     * returned. Only enable this when the callbacks do not keep a reference to the body or pass it
+     * to another thread, unless they take it over through {@link #retainResponseBody()}.
+     * Disabled by default.
+     *
+     * @param release true to recycle the body after the callback
+     * @see #releaseResponseBody(byte[])
+     */
+    public void setReleaseResponseBody(boolean release) {
+        this.releaseResponseBody = release;
+    }
+
+    /**
+     * Takes over the body passed to the running {@link #onSuccess(int, Header[], byte[])} or
+     * {@link #onFailure(int, Header[], byte[], Throwable)}, for callbacks handing it to another
+     * thread. The body is then not released when the callback returns, the new owner releases it
+     * through {@link #releaseResponseBody(byte[])} once done, if {@link #isReleaseResponseBody()}.
+     */
+    protected void retainResponseBody() {
+        this.isResponseBodyRetained = true;
+    }
+
+    /**
+     * Hands a response body back to the buffer pool, for callers which consume the body later
+     * than in onSuccess. The array must not be used anymore afterwards.
+     *
+     * @param responseBody body previously passed to onSuccess or onFailure, may be null
+     */
+    public void releaseResponseBody(byte[] responseBody) {
+        ByteArrayPool pool = bufferPool;
+        if (pool != null) {
+            pool.release(responseBody);
+        }
+    }
+
+    public long getProgressInterval() {
+        return this.progressIntervalMillis;
+    }
+
+    /**
+     * Limits how often progress is reported, both for downloads and for uploads of entities which
+     * report through this handler (multipart and JSON streamer entities). The event reaching the
+     * total size is always reported. By default every read is reported, though progress messages
+     * never pile up in the looper: while one is pending, newer values just replace its payload.
+     *
+     * @param intervalMillis minimal time between two progress events, 0 to disable the limit
+     */
+    public void setProgressInterval(long intervalMillis) {
+        this.progressIntervalMillis = Math.max(0, intervalMillis);
+    }
+
+    public int getProgressStep() {
+        return this.progressStepPercent;
+    }
+
+    /**
+     * Limits progress events to every given percent of the total size. Has no effect when the total
+     * size is not known. Can be combined with {@link #setProgressInterval(long)}, an event is then
+     * reported only when both limits have been passed.
+     *
+     * @param percent minimal progress between two progress events, 0 to disable the limit
+     */
+    public void setProgressStep(int percent) {
+        this.progressStepPercent = Math.max(0, Math.min(100, percent));
+    }
+
     /**
      * Fired when the request progress, override to handle in your own code
      *
@@ -177,7 +282,9 @@ public abstract class JEBAsyncHttpResponseHandler implements ResponseHandlerInte
      * @param totalSize    total size of file
      */
     public void onProgress(long bytesWritten, long totalSize) {
-        JEBAsyncHttpClient.log.v(LOG_TAG, String.format("Progress %d from %d (%2.0f%%)", bytesWritten, totalSize, (totalSize > 0) ? (bytesWritten * 1.0 / totalSize) * 100 : -1));
+        if (JEBAsyncHttpClient.log.isLoggingEnabled() && JEBAsyncHttpClient.log.shouldLog(LogInterface.VERBOSE)) {
+            JEBAsyncHttpClient.log.v(LOG_TAG, String.format("Progress %d from %d (%2.0f%%)", bytesWritten, totalSize, (totalSize > 0) ? (bytesWritten * 1.0 / totalSize) * 100 : -1));
+        }
     }
 
     /**
@@ -244,7 +351,39 @@ public abstract class JEBAsyncHttpResponseHandler implements ResponseHandlerInte
 
     @Override
     final public void sendProgressMessage(long bytesWritten, long bytesTotal) {
-        sendMessage(obtainMessage(PROGRESS_MESSAGE, new Object[]{bytesWritten, bytesTotal}));
+        if (!isProgressDue(bytesWritten, bytesTotal)) {
+            return;
+        }
+        progressBytesTotal = bytesTotal;
+        progressBytesWritten = bytesWritten;
+        // a pending message will pick up the values written above
+        if (progressPending.compareAndSet(false, true)) {
+            sendMessage(obtainMessage(PROGRESS_MESSAGE, null));
+        }
+    }
+
+    private boolean isProgressDue(long bytesWritten, long bytesTotal) {
+        if (bytesWritten < lastProgressBytes) {
+            // a new transfer, e.g. response after upload or a retry
+            progressDispatched = false;
+            lastProgressBytes = 0;
+        }
+        // getResponseData() reports unknown length as 1
+        boolean isComplete = bytesTotal > 1 && bytesWritten >= bytesTotal;
+        long now = progressIntervalMillis > 0 ? SystemClock.uptimeMillis() : 0;
+        if (progressDispatched && !isComplete) {
+            if (progressIntervalMillis > 0 && now - lastProgressTime < progressIntervalMillis) {
+                return false;
+            }
+            if (progressStepPercent > 0 && bytesTotal > 1
+                    && (bytesWritten - lastProgressBytes) * 100 < progressStepPercent * bytesTotal) {
+                return false;
+            }
+        }
+        progressDispatched = true;
+        lastProgressTime = now;
+        lastProgressBytes = bytesWritten;
+        return true;
     }
 
     @Override
@@ -259,6 +398,9 @@ public abstract class JEBAsyncHttpResponseHandler implements ResponseHandlerInte
 
     @Override
     final public void sendStartMessage() {
+        progressPending.set(false);
+        progressDispatched = false;
+        lastProgressBytes = 0;
         sendMessage(obtainMessage(START_MESSAGE, null));
     }
 
@@ -286,7 +428,11 @@ public abstract class JEBAsyncHttpResponseHandler implements ResponseHandlerInte
                 case SUCCESS_MESSAGE:
                     response = (Object[]) message.obj;
                     if (response != null && response.length >= 3) {
+                        isResponseBodyRetained = false;
                         onSuccess((Integer) response[0], (Header[]) response[1], (byte[]) response[2]);
+                        if (releaseResponseBody && !isResponseBodyRetained) {
+                            releaseResponseBody((byte[]) response[2]);
+                        }
                     } else {
                         JEBAsyncHttpClient.log.e(LOG_TAG, "SUCCESS_MESSAGE didn't got enough params");
                     }
@@ -294,7 +440,11 @@ public abstract class JEBAsyncHttpResponseHandler implements ResponseHandlerInte
                 case FAILURE_MESSAGE:
                     response = (Object[]) message.obj;
                     if (response != null && response.length >= 4) {
+                        isResponseBodyRetained = false;
                         onFailure((Integer) response[0], (Header[]) response[1], (byte[]) response[2], (Throwable) response[3]);
+                        if (releaseResponseBody && !isResponseBodyRetained) {
+                            releaseResponseBody((byte[]) response[2]);
+                        }
                     } else {
                         JEBAsyncHttpClient.log.e(LOG_TAG, "FAILURE_MESSAGE didn't got enough params");
                     }
@@ -306,15 +456,25 @@ public abstract class JEBAsyncHttpResponseHandler implements ResponseHandlerInte
                     onFinish();
                     break;
                 case PROGRESS_MESSAGE:
-                    response = (Object[]) message.obj;
-                    if (response != null && response.length >= 2) {
-                        try {
-                            onProgress((Long) response[0], (Long) response[1]);
-                        } catch (Throwable t) {
-                            JEBAsyncHttpClient.log.e(LOG_TAG, "custom onProgress contains an error", t);
-                        }
+                    long bytesWritten, bytesTotal;
+                    if (message.obj == null) {
+                        // payload is kept in fields to avoid boxing, see sendProgressMessage()
+                        progressPending.set(false);
+                        bytesWritten = progressBytesWritten;
+                        bytesTotal = progressBytesTotal;
                     } else {
-                        JEBAsyncHttpClient.log.e(LOG_TAG, "PROGRESS_MESSAGE didn't got enough params");
+                        response = (Object[]) message.obj;
+                        if (response.length < 2) {
+                            JEBAsyncHttpClient.log.e(LOG_TAG, "PROGRESS_MESSAGE didn't got enough params");
+                            break;
+                        }
+                        bytesWritten = (Long) response[0];
+                        bytesTotal = (Long) response[1];
+                    }
+                    try {
+                        onProgress(bytesWritten, bytesTotal);
+                    } catch (Throwable t) {
+                        JEBAsyncHttpClient.log.e(LOG_TAG, "custom onProgress contains an error", t);
                     }
                     break;
                 case RETRY_MESSAGE:
@@ -391,6 +551,10 @@ public abstract class JEBAsyncHttpResponseHandler implements ResponseHandlerInte
 
     /**
      * Returns byte array of response HttpEntity contents
+     * <p>&nbsp;</p>
+     * A body of known length is read straight into an array of that length, taken from the pool
+     * if one of that exact length is available. A body of unknown length is collected in a pooled
+     * buffer sized from the recent history of the request URL.
      *
      * @param entity can be null
      * @return response entity body or null
@@ -405,24 +569,51 @@ public abstract class JEBAsyncHttpResponseHandler implements ResponseHandlerInte
                 if (contentLength > Integer.MAX_VALUE) {
                     throw new IllegalArgumentException("HTTP entity too large to be buffered in memory");
                 }
-                int buffersize = (contentLength <= 0) ? BUFFER_SIZE : (int) contentLength;
+                ByteArrayPool pool = bufferPool;
+                String endpoint = getEndpointKey();
+                ByteArrayBuffer buffer = null;
+                byte[] tmp = null;
                 try {
-                    ByteArrayBuffer buffer = new ByteArrayBuffer(buffersize);
                     try {
-                        byte[] tmp = new byte[BUFFER_SIZE];
                         long count = 0;
                         int l;
-                        // do not send messages if request has been cancelled
-                        while ((l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
-                            count += l;
-                            buffer.append(tmp, 0, l);
-                            sendProgressMessage(count, (contentLength <= 0 ? 1 : contentLength));
+                        if (contentLength > 0) {
+                            // the entity delimits the stream, so the body never exceeds contentLength
+                            responseBody = pool != null ? pool.acquireExact((int) contentLength) : new byte[(int) contentLength];
+                            // do not send messages if request has been cancelled
+                            while (count < contentLength && !Thread.currentThread().isInterrupted()
+                                    && (l = instream.read(responseBody, (int) count, (int) Math.min(BUFFER_SIZE, contentLength - count))) != -1) {
+                                count += l;
+                                sendProgressMessage(count, contentLength);
+                            }
+                            if (count < contentLength) {
+                                responseBody = Arrays.copyOf(responseBody, (int) count);
+                            }
+                        } else {
+                            int buffersize = pool != null ? pool.predictCapacity(endpoint, BUFFER_SIZE) : BUFFER_SIZE;
+                            buffer = pool != null ? new ByteArrayBuffer(buffersize, pool) : new ByteArrayBuffer(buffersize);
+                            tmp = pool != null ? pool.acquire(BUFFER_SIZE) : new byte[BUFFER_SIZE];
+                            // do not send messages if request has been cancelled
+                            while ((l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
+                                count += l;
+                                buffer.append(tmp, 0, l);
+                                sendProgressMessage(count, 1);
+                            }
+                            responseBody = buffer.toByteArray();
                         }
                     } finally {
                         JEBAsyncHttpClient.silentCloseInputStream(instream);
                         JEBAsyncHttpClient.endEntityViaReflection(entity);
+                        if (buffer != null) {
+                            buffer.release();
+                        }
+                        if (pool != null) {
+                            pool.release(tmp);
+                        }
+                    }
+                    if (pool != null && contentLength <= 0) {
+                        pool.recordSize(endpoint, responseBody.length);
                     }
-                    responseBody = buffer.toByteArray();
                 } catch (OutOfMemoryError e) {
                     System.gc();
                     throw new IOException("File too large to fit into available memory");
@@ -432,6 +623,14 @@ public abstract class JEBAsyncHttpResponseHandler implements ResponseHandlerInte
         return responseBody;
     }
 
+    private String getEndpointKey() {
+        URI uri = getRequestURI();
+        if (uri == null) {
+            return null;
+        }
+        return uri.getScheme() + "://" + uri.getRawAuthority() + uri.getRawPath();
+    }
+
     /**
      * Avoid leaks by using a non-anonymous handler class.
      */
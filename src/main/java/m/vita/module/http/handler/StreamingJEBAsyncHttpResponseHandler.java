@@ -0,0 +1,239 @@
+package m.vita.module.http.handler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import m.vita.module.http.HttpEntity;
+import m.vita.module.http.HttpResponse;
+import m.vita.module.http.JEBAsyncHttpClient;
+import m.vita.module.http.exception.HttpResponseException;
+import m.vita.module.http.header.Header;
+import m.vita.module.http.util.StatusLine;
+
+/**
+ * Response handler which does not buffer the response body. Status line and headers are reported
+ * first through {@link #onResponseHeaders(int, Header[], long)}, the body then follows in chunks
+ * through {@link #onBodyChunk(byte[], int, int)} and {@link #onBodyEnd(long)} marks the end of
+ * stream. These three callbacks, as well as {@link #onStreamError(IOException)}, are invoked on the
+ * thread executing the request, because the chunk buffer is reused for every read and can not be
+ * handed over to a looper. The usual start, progress, retry, cancel and finish events, as well as
+ * {@link #onSuccess(int, Header[], byte[])} and {@link #onFailure(int, Header[], byte[], Throwable)}
+ * with a null body, are dispatched as for any other {@link JEBAsyncHttpResponseHandler}.
+ * <p>&nbsp;</p>
+ * A retried request starts over with a new {@link #onResponseHeaders(int, Header[], long)} call,
+ * any data received in the failed attempt should be discarded at that point.
+ * <p>&nbsp;</p>
+ * Reading can be suspended with {@link #pause()} and continued with {@link #resume()}, which lets
+ * the consumer apply backpressure when it processes the data slower than it arrives. A paused reader
+ * is woken up when the request gets cancelled, which ends the request quietly, or when its deadline
+ * expires, which fails the request.
+ */
+public abstract class StreamingJEBAsyncHttpResponseHandler extends JEBAsyncHttpResponseHandler {
+    private static final String LOG_TAG = "StreamingAsyncHttpRH";
+
+    private final Object demandLock = new Object();
+    private final int chunkSize;
+    private byte[] chunk;
+    private boolean isPaused;
+    private volatile boolean isAborted;
+    private volatile boolean isCancelled;
+
+    /**
+     * Creates new streaming handler reading the body in chunks of {@link #BUFFER_SIZE} bytes
+     */
+    public StreamingJEBAsyncHttpResponseHandler() {
+        this(BUFFER_SIZE, false);
+    }
+
+    /**
+     * Creates new streaming handler
+     *
+     * @param chunkSize     maximal number of bytes passed to a single onBodyChunk call
+     * @param usePoolThread Whether to use the pool's thread to fire callbacks
+     */
+    public StreamingJEBAsyncHttpResponseHandler(int chunkSize, boolean usePoolThread) {
+        super(usePoolThread);
+        this.chunkSize = chunkSize > 0 ? chunkSize : BUFFER_SIZE;
+    }
+
+    /**
+     * Called on the request thread once status line and headers of the response are known
+     *
+     * @param statusCode    HTTP status code
+     * @param headers       response headers
+     * @param contentLength length of the body, or negative if unknown
+     * @throws IOException to abort the request
+     */
+    public abstract void onResponseHeaders(int statusCode, Header[] headers, long contentLength) throws IOException;
+
+    /**
+     * Called on the request thread for every chunk of the body. The buffer is reused for the next
+     * chunk, so the data has to be consumed or copied before returning.
+     *
+     * @param buffer buffer holding the data
+     * @param offset offset of the data within buffer
+     * @param length number of valid bytes
+     * @throws IOException to abort the request
+     */
+    public abstract void onBodyChunk(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Called on the request thread after the last chunk of the body
+     *
+     * @param totalBytes number of body bytes received
+     * @throws IOException to fail the request
+     */
+    public void onBodyEnd(long totalBytes) throws IOException {
+        // default action is to do nothing...
+    }
+
+    /**
+     * Called on the request thread when reading the body fails. The request is then either retried
+     * or reported as failure through onFailure.
+     *
+     * @param error cause of the failure
+     */
+    public void onStreamError(IOException error) {
+        JEBAsyncHttpClient.log.w(LOG_TAG, "Reading response stream failed", error);
+    }
+
+    /**
+     * Suspends reading of the body after the chunk currently being delivered
+     */
+    public void pause() {
+        synchronized (demandLock) {
+            isPaused = true;
+        }
+    }
+
+    /**
+     * Continues reading of the body suspended by {@link #pause()}
+     */
+    public void resume() {
+        synchronized (demandLock) {
+            isPaused = false;
+            demandLock.notifyAll();
+        }
+    }
+
+    public boolean isPaused() {
+        synchronized (demandLock) {
+            return isPaused;
+        }
+    }
+
+    /**
+     * Stops reading of the body, called when the deadline of the request expires so that a paused
+     * reader does not wait forever. The reader fails with an {@link InterruptedIOException}, which
+     * the request reports through onFailure.
+     */
+    public void abortStream() {
+        synchronized (demandLock) {
+            isAborted = true;
+            demandLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops reading of the body, called when the request gets cancelled. Unlike
+     * {@link #abortStream()} the reader returns quietly, only the cancel and finish events follow.
+     */
+    public void cancelStream() {
+        synchronized (demandLock) {
+            isCancelled = true;
+            isAborted = true;
+            demandLock.notifyAll();
+        }
+    }
+
+    /**
+     * Clears the state left by {@link #abortStream()} and {@link #cancelStream()}, called before
+     * the request is executed
+     */
+    public void resetStream() {
+        synchronized (demandLock) {
+            isAborted = false;
+            isCancelled = false;
+        }
+    }
+
+    @Override
+    public void sendResponseMessage(HttpResponse response) throws IOException {
+        // do not process if request has been cancelled
+        if (isStopped()) {
+            return;
+        }
+        StatusLine status = response.getStatusLine();
+        Header[] headers = response.getAllHeaders();
+        HttpEntity entity = response.getEntity();
+        long contentLength = entity == null ? 0 : entity.getContentLength();
+
+        onResponseHeaders(status.getStatusCode(), headers, contentLength);
+
+        long count = 0;
+        InputStream instream = entity == null ? null : entity.getContent();
+        if (instream != null) {
+            if (chunk == null) {
+                chunk = new byte[chunkSize];
+            }
+            try {
+                int l;
+                while (awaitDemand() && (l = instream.read(chunk)) != -1) {
+                    count += l;
+                    onBodyChunk(chunk, 0, l);
+                    sendProgressMessage(count, contentLength);
+                }
+            } catch (IOException e) {
+                if (!isAborted) {
+                    onStreamError(e);
+                }
+                throw e;
+            } finally {
+                JEBAsyncHttpClient.silentCloseInputStream(instream);
+                JEBAsyncHttpClient.endEntityViaReflection(entity);
+            }
+        }
+
+        // additional cancellation check as reading can take non-zero time to process
+        if (isStopped()) {
+            return;
+        }
+        onBodyEnd(count);
+        if (status.getStatusCode() >= 300) {
+            sendFailureMessage(status.getStatusCode(), headers, null, new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()));
+        } else {
+            sendSuccessMessage(status.getStatusCode(), headers, null);
+        }
+    }
+
+    /**
+     * Checks whether reading should stop
+     *
+     * @return true if the request has been cancelled
+     * @throws InterruptedIOException if the stream has been aborted without cancelling the request
+     */
+    private boolean isStopped() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted() || isCancelled) {
+            return true;
+        }
+        if (isAborted) {
+            throw new InterruptedIOException("Response stream aborted");
+        }
+        return false;
+    }
+
+    private boolean awaitDemand() {
+        synchronized (demandLock) {
+            while (isPaused && !isAborted) {
+                try {
+                    demandLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return !isAborted && !Thread.currentThread().isInterrupted();
+    }
+}
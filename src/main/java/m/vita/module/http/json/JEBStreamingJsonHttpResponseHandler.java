@@ -0,0 +1,171 @@
+package m.vita.module.http.json;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import m.vita.module.http.HttpEntity;
+import m.vita.module.http.HttpResponse;
+import m.vita.module.http.JEBAsyncHttpClient;
+import m.vita.module.http.header.ContentType;
+import m.vita.module.http.header.Header;
+import m.vita.module.http.util.StatusLine;
+
+/**
+ * Response handler parsing JSON straight from the response stream while it is received, instead
+ * of buffering the body and parsing it afterwards. Elements of a top-level {@link JSONArray} are
+ * delivered one at a time through {@link #onArrayElement(int, Object)}, any other top-level value
+ * through {@link #onJsonValue(Object)}; both are called on the same thread as the other callbacks
+ * and before {@link #onSuccess(int, Header[], String)}, which receives a null string.
+ * <p>&nbsp;</p>
+ * Bodies of failed responses (status 300 and above) are buffered and passed as string to
+ * {@link #onFailure(int, Header[], String, Throwable)}. A malformed document is reported to the
+ * same method with a {@link JSONException}, after the elements parsed up to that point.
+ */
+public abstract class JEBStreamingJsonHttpResponseHandler extends JEBTextHttpResponseHandler {
+    private static final String LOG_TAG = "StreamingJsonHttpRH";
+
+    /**
+     * Creates new handler decoding responses without declared charset as UTF-8
+     */
+    public JEBStreamingJsonHttpResponseHandler() {
+        super(DEFAULT_CHARSET);
+    }
+
+    /**
+     * Creates new handler
+     *
+     * @param encoding charset used when the response does not declare one
+     */
+    public JEBStreamingJsonHttpResponseHandler(String encoding) {
+        super(encoding);
+    }
+
+    /**
+     * Called for every element of a top-level JSON array, in document order
+     *
+     * @param index   position of the element in the array
+     * @param element {@link JSONObject}, {@link JSONArray}, String, Boolean, Integer, Long, Double
+     *                or {@link JSONObject#NULL}
+     */
+    public abstract void onArrayElement(int index, Object element);
+
+    /**
+     * Called when the top-level value of the document is not an array
+     *
+     * @param value parsed value, see {@link #onArrayElement(int, Object)} for the possible types
+     */
+    public void onJsonValue(Object value) {
+        JEBAsyncHttpClient.log.w(LOG_TAG, "onJsonValue(Object) was not overriden, but callback was received");
+    }
+
+    @Override
+    public void onSuccess(int statusCode, Header[] headers, String responseString) {
+        // default action is to do nothing...
+    }
+
+    @Override
+    public void sendResponseMessage(HttpResponse response) throws IOException {
+        StatusLine status = response.getStatusLine();
+        if (status.getStatusCode() >= 300) {
+            super.sendResponseMessage(response);
+            return;
+        }
+        // do not process if request has been cancelled
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        Header[] headers = response.getAllHeaders();
+        HttpEntity entity = response.getEntity();
+        InputStream instream = entity == null ? null : entity.getContent();
+        if (instream != null) {
+            try {
+                JsonStreamParser parser = new JsonStreamParser(new CountingInputStream(instream, entity.getContentLength()), getEntityCharset(entity));
+                if (parser.beginArray()) {
+                    int index = 0;
+                    while (!Thread.currentThread().isInterrupted() && parser.hasNext()) {
+                        postArrayElement(index++, parser.nextValue());
+                    }
+                } else if (parser.peek() != -1) {
+                    final Object value = parser.nextValue();
+                    postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            onJsonValue(value);
+                        }
+                    });
+                }
+            } catch (JSONException e) {
+                if (!Thread.currentThread().isInterrupted()) {
+                    sendFailureMessage(status.getStatusCode(), headers, null, e);
+                }
+                return;
+            } finally {
+                JEBAsyncHttpClient.silentCloseInputStream(instream);
+                JEBAsyncHttpClient.endEntityViaReflection(entity);
+            }
+        }
+        // additional cancellation check as parsing can take non-zero time to process
+        if (!Thread.currentThread().isInterrupted()) {
+            sendSuccessMessage(status.getStatusCode(), headers, null);
+        }
+    }
+
+    private String getEntityCharset(HttpEntity entity) {
+        try {
+            ContentType contentType = ContentType.get(entity);
+            if (contentType != null && contentType.getCharset() != null) {
+                return contentType.getCharset().name();
+            }
+        } catch (RuntimeException e) {
+            JEBAsyncHttpClient.log.w(LOG_TAG, "Invalid response content type, using " + getCharset(), e);
+        }
+        return getCharset();
+    }
+
+    private void postArrayElement(final int index, final Object element) {
+        postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                onArrayElement(index, element);
+            }
+        });
+    }
+
+    /**
+     * Reports download progress of the parsed stream.
+     */
+    private class CountingInputStream extends FilterInputStream {
+        private final long contentLength;
+        private long count;
+
+        CountingInputStream(InputStream in, long contentLength) {
+            super(in);
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+                sendProgressMessage(count, contentLength <= 0 ? 1 : contentLength);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int l = super.read(b, off, len);
+            if (l > 0) {
+                count += l;
+                sendProgressMessage(count, contentLength <= 0 ? 1 : contentLength);
+            }
+            return l;
+        }
+    }
+}
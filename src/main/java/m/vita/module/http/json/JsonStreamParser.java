@@ -0,0 +1,325 @@
+package m.vita.module.http.json;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+
+import m.vita.module.http.util.Args;
+
+/**
+ * Pull parser reading JSON from a character stream as it arrives, without holding the whole
+ * document in memory. Values are built as {@link JSONObject}, {@link JSONArray}, String, Boolean,
+ * Integer, Long, Double or {@link JSONObject#NULL}, the same types {@link org.json.JSONTokener}
+ * produces.
+ * <p>&nbsp;</p>
+ * A whole value is read with {@link #nextValue()}. The elements of a (typically large) top-level
+ * array can be read one at a time:
+ * <pre>
+ * if (parser.beginArray()) {
+ *     while (parser.hasNext()) {
+ *         Object element = parser.nextValue();
+ *     }
+ * }
+ * </pre>
+ */
+public class JsonStreamParser implements Closeable {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final StringBuilder text = new StringBuilder();
+    private int pos;
+    private int limit;
+    private long offset;
+    private boolean isFirstElement;
+
+    /**
+     * Creates parser reading from the given reader, which does not need to be buffered
+     *
+     * @param reader source of the document
+     */
+    public JsonStreamParser(Reader reader) {
+        this.reader = Args.notNull(reader, "Reader");
+    }
+
+    /**
+     * Creates parser decoding the given stream, a leading byte order mark is skipped
+     *
+     * @param instream source of the document
+     * @param charset  charset of the document
+     * @throws UnsupportedEncodingException if the charset is not supported
+     */
+    public JsonStreamParser(InputStream instream, String charset) throws UnsupportedEncodingException {
+        this(new InputStreamReader(Args.notNull(instream, "Input stream"), charset));
+    }
+
+    /**
+     * Returns the next significant character without consuming it
+     *
+     * @return next character, or -1 at the end of the document
+     * @throws IOException if reading fails
+     */
+    public int peek() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            char c = buffer[pos];
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || (c == '\uFEFF' && offset + pos == 0)) {
+                pos++;
+            } else {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Consumes the opening bracket if the next value is an array
+     *
+     * @return true if an array was opened, false if the next value is not an array
+     * @throws IOException if reading fails
+     */
+    public boolean beginArray() throws IOException {
+        if (peek() != '[') {
+            return false;
+        }
+        pos++;
+        isFirstElement = true;
+        return true;
+    }
+
+    /**
+     * Checks whether the array opened by {@link #beginArray()} has another element, consumes the
+     * separating comma or the closing bracket
+     *
+     * @return true if {@link #nextValue()} returns the next element
+     * @throws IOException   if reading fails
+     * @throws JSONException if the document is malformed
+     */
+    public boolean hasNext() throws IOException, JSONException {
+        int c = peek();
+        if (c == ']') {
+            pos++;
+            return false;
+        }
+        if (!isFirstElement) {
+            if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+            pos++;
+            if (peek() == ']') {
+                throw syntaxError("Expected value");
+            }
+        } else if (c == -1) {
+            throw syntaxError("Unterminated array");
+        }
+        isFirstElement = false;
+        return true;
+    }
+
+    /**
+     * Reads the next complete value
+     *
+     * @return parsed value
+     * @throws IOException   if reading fails
+     * @throws JSONException if the document is malformed
+     */
+    public Object nextValue() throws IOException, JSONException {
+        int c = peek();
+        switch (c) {
+            case -1:
+                throw syntaxError("End of input");
+            case '{':
+                pos++;
+                return readObject();
+            case '[':
+                pos++;
+                return readArray();
+            case '"':
+                pos++;
+                return readString();
+            default:
+                return readLiteral();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private JSONObject readObject() throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+        if (peek() == '}') {
+            pos++;
+            return object;
+        }
+        while (true) {
+            if (peek() != '"') {
+                throw syntaxError("Expected name");
+            }
+            pos++;
+            String name = readString();
+            if (peek() != ':') {
+                throw syntaxError("Expected ':' after " + name);
+            }
+            pos++;
+            object.put(name, nextValue());
+            int c = peek();
+            pos++;
+            if (c == '}') {
+                return object;
+            } else if (c != ',') {
+                throw syntaxError("Unterminated object");
+            }
+        }
+    }
+
+    private JSONArray readArray() throws IOException, JSONException {
+        JSONArray array = new JSONArray();
+        if (peek() == ']') {
+            pos++;
+            return array;
+        }
+        while (true) {
+            array.put(nextValue());
+            int c = peek();
+            pos++;
+            if (c == ']') {
+                return array;
+            } else if (c != ',') {
+                throw syntaxError("Unterminated array");
+            }
+        }
+    }
+
+    private String readString() throws IOException, JSONException {
+        text.setLength(0);
+        while (true) {
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos++];
+                if (c == '"') {
+                    text.append(buffer, start, pos - start - 1);
+                    return text.toString();
+                } else if (c == '\\') {
+                    text.append(buffer, start, pos - start - 1);
+                    text.append(readEscape());
+                    start = pos;
+                }
+            }
+            text.append(buffer, start, pos - start);
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private char readEscape() throws IOException, JSONException {
+        char c = nextChar();
+        switch (c) {
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(nextChar(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Illegal escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            case '"':
+            case '\\':
+            case '/':
+            case '\'':
+                return c;
+            default:
+                throw syntaxError("Illegal escape");
+        }
+    }
+
+    private char nextChar() throws IOException, JSONException {
+        if (pos == limit && !fill()) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+        return buffer[pos++];
+    }
+
+    private Object readLiteral() throws IOException, JSONException {
+        text.setLength(0);
+        while (true) {
+            if (pos == limit && !fill()) {
+                break;
+            }
+            char c = buffer[pos];
+            if (c == ',' || c == ']' || c == '}' || c == ':' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                break;
+            }
+            text.append(c);
+            pos++;
+        }
+        String literal = text.toString();
+        if (literal.length() == 0) {
+            throw syntaxError("Expected literal value");
+        } else if ("null".equals(literal)) {
+            return JSONObject.NULL;
+        } else if ("true".equals(literal)) {
+            return Boolean.TRUE;
+        } else if ("false".equals(literal)) {
+            return Boolean.FALSE;
+        }
+        try {
+            if (literal.indexOf('.') == -1 && literal.indexOf('e') == -1 && literal.indexOf('E') == -1) {
+                try {
+                    long longValue = Long.parseLong(literal);
+                    if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                        return (int) longValue;
+                    }
+                    return longValue;
+                } catch (NumberFormatException e) {
+                    // too large for a long, fall back to double like JSONTokener
+                }
+            }
+            return Double.valueOf(literal);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Unexpected literal " + literal);
+        }
+    }
+
+    private boolean fill() throws IOException {
+        offset += limit;
+        pos = 0;
+        limit = 0;
+        int l;
+        while ((l = reader.read(buffer, 0, buffer.length)) == 0) {
+            // keep reading, a reader may return no chars without reaching the end
+        }
+        if (l == -1) {
+            return false;
+        }
+        limit = l;
+        return true;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + (offset + pos));
+    }
+}
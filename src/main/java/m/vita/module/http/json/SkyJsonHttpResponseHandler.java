@@ -5,7 +5,13 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import m.vita.module.http.JEBAsyncHttpClient;
+import m.vita.module.http.concurrent.DaemonThreadFactory;
 import m.vita.module.http.header.Header;
 import m.vita.module.http.util.HttpStatus;
 import m.vita.module.http.handler.JEBAsyncHttpResponseHandler;
@@ -22,8 +28,19 @@ public class JEBJsonHttpResponseHandler extends JEBTextHttpResponseHandler {
 
     private static final String LOG_TAG = "JsonHttpRH";
 
+    /**
+     * Number of threads of the shared parse executor
+     */
+    public static final int DEFAULT_PARSE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final AtomicInteger pendingParses = new AtomicInteger();
+    private static volatile Executor defaultParseExecutor;
+    // parses the responses rejected by the parse executor, starting threads as needed
+    private static final Executor fallbackParseExecutor =
+            DaemonThreadFactory.newCachedExecutor("JsonHttpRH-parser-fallback-", Integer.MAX_VALUE);
 
     private boolean useRFC5179CompatibilityMode = true;
+    private Executor parseExecutor;
 
     /**
      * Creates new JsonHttpResponseHandler, with JSON String encoding UTF-8
@@ -62,6 +79,59 @@ public class JEBJsonHttpResponseHandler extends JEBTextHttpResponseHandler {
         this.useRFC5179CompatibilityMode = useRFC5179CompatibilityMode;
     }
 
+    /**
+     * Returns the executor parsing responses of all handlers which were not given their own one.
+     * Unless replaced through {@link #setDefaultParseExecutor(Executor)}, this is a pool of
+     * {@link #DEFAULT_PARSE_THREADS} daemon threads, which are stopped when idle.
+     *
+     * @return shared parse executor
+     */
+    public static Executor getDefaultParseExecutor() {
+        Executor executor = defaultParseExecutor;
+        if (executor == null) {
+            synchronized (JEBJsonHttpResponseHandler.class) {
+                executor = defaultParseExecutor;
+                if (executor == null) {
+                    defaultParseExecutor = executor = DaemonThreadFactory.newFixedExecutor("JsonHttpRH-parser-",
+                            DEFAULT_PARSE_THREADS, new LinkedBlockingQueue<Runnable>());
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Replaces the shared parse executor, the previous executor is not shut down.
+     *
+     * @param executor executor to parse responses on, null restores the default pool
+     */
+    public static void setDefaultParseExecutor(Executor executor) {
+        defaultParseExecutor = executor;
+    }
+
+    /**
+     * Returns number of responses waiting to be parsed, across all handlers and executors
+     *
+     * @return parse queue depth
+     */
+    public static int getParseQueueSize() {
+        return pendingParses.get();
+    }
+
+    public Executor getParseExecutor() {
+        return parseExecutor == null ? getDefaultParseExecutor() : parseExecutor;
+    }
+
+    /**
+     * Sets the executor this handler parses responses on in asynchronous mode. Parsing must not
+     * happen on the looper thread, so the executor should not run tasks on the calling thread.
+     *
+     * @param parseExecutor executor to use, null for the shared executor
+     */
+    public void setParseExecutor(Executor parseExecutor) {
+        this.parseExecutor = parseExecutor;
+    }
+
     /**
      * Returns when request succeeds
      *
@@ -121,6 +191,7 @@ public class JEBJsonHttpResponseHandler extends JEBTextHttpResponseHandler {
     @Override
     public final void onSuccess(final int statusCode, final Header[] headers, final byte[] responseBytes) {
         if (statusCode != HttpStatus.SC_NO_CONTENT) {
+            retainResponseBody();
             Runnable parser = new Runnable() {
                 @Override
                 public void run() {
@@ -155,11 +226,16 @@ public class JEBJsonHttpResponseHandler extends JEBTextHttpResponseHandler {
                                 onFailure(statusCode, headers, ex, (JSONObject) null);
                             }
                         });
+                    } finally {
+                        // taken over from the callback, see retainResponseBody()
+                        if (isReleaseResponseBody()) {
+                            releaseResponseBody(responseBytes);
+                        }
                     }
                 }
             };
             if (!getUseSynchronousMode() && !getUsePoolThread()) {
-                new Thread(parser).start();
+                executeParser(parser);
             } else {
                 // In synchronous mode everything should be run on one thread
                 parser.run();
@@ -172,6 +248,7 @@ public class JEBJsonHttpResponseHandler extends JEBTextHttpResponseHandler {
     @Override
     public final void onFailure(final int statusCode, final Header[] headers, final byte[] responseBytes, final Throwable throwable) {
         if (responseBytes != null) {
+            retainResponseBody();
             Runnable parser = new Runnable() {
                 @Override
                 public void run() {
@@ -202,12 +279,15 @@ public class JEBJsonHttpResponseHandler extends JEBTextHttpResponseHandler {
                                 onFailure(statusCode, headers, ex, (JSONObject) null);
                             }
                         });
-
+                    } finally {
+                        if (isReleaseResponseBody()) {
+                            releaseResponseBody(responseBytes);
+                        }
                     }
                 }
             };
             if (!getUseSynchronousMode() && !getUsePoolThread()) {
-                new Thread(parser).start();
+                executeParser(parser);
             } else {
                 // In synchronous mode everything should be run on one thread
                 parser.run();
@@ -218,6 +298,24 @@ public class JEBJsonHttpResponseHandler extends JEBTextHttpResponseHandler {
         }
     }
 
+    private void executeParser(final Runnable parser) {
+        pendingParses.incrementAndGet();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                pendingParses.decrementAndGet();
+                parser.run();
+            }
+        };
+        try {
+            getParseExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            // never parse on the looper thread, fall back to a thread of its own
+            JEBAsyncHttpClient.log.w(LOG_TAG, "Parse executor rejected response, parsing on a fallback thread", e);
+            fallbackParseExecutor.execute(task);
+        }
+    }
+
     /**
      * Returns Object of type {@link JSONObject}, {@link JSONArray}, String, Boolean, Integer, Long,
      * Double or {@link JSONObject#NULL}, see {@link JSONTokener#nextValue()}
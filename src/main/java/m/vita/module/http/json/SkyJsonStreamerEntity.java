@@ -2,14 +2,14 @@ package m.vita.module.http.json;
 
 import android.text.TextUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
 import java.util.zip.GZIPOutputStream;
 
 import m.vita.module.http.JEBAsyncHttpClient;
@@ -29,6 +29,9 @@ public class JEBJsonStreamerEntity implements HttpEntity {
 
     // Size of the byte-array buffer used in I/O streams.
     private static final int BUFFER_SIZE = 4096;
+    private static final long UNKNOWN_LENGTH = -2;
+    // Width of the elapsed time value, the digits of any long followed by spaces.
+    private static final int ELAPSED_WIDTH = 19;
     private static final byte[] JSON_TRUE = "true".getBytes();
     private static final byte[] JSON_FALSE = "false".getBytes();
     private static final byte[] JSON_NULL = "null".getBytes();
@@ -45,8 +48,14 @@ public class JEBJsonStreamerEntity implements HttpEntity {
                     JEBAsyncHttpClient.ENCODING_GZIP);
     // Buffer used for reading from input streams.
     private final byte[] buffer = new byte[BUFFER_SIZE];
-    // JSON data and associated meta-data to be uploaded.
-    private final Map<String, Object> jsonParams = new HashMap<String, Object>();
+    // Buffer of the encoded document, separate from the one the files are read into.
+    private final byte[] outputBuffer = new byte[BUFFER_SIZE];
+    // JSON data and associated meta-data to be uploaded, in the order they were added.
+    private final Map<String, Object> jsonParams = new LinkedHashMap<String, Object>();
+    // Serialized JSONObject and JSONArray values, shared by the counting and writing passes.
+    private final Map<String, String> serializedValues = new HashMap<String, String>();
+    // Length computed by the counting pass.
+    private long contentLength = UNKNOWN_LENGTH;
 
     // Whether to use gzip compression while uploading
     private final Header contentEncoding;
@@ -70,59 +79,16 @@ public class JEBJsonStreamerEntity implements HttpEntity {
         if (string == null) {
             return JSON_NULL;
         }
-
-        // Create a string builder to generate the escaped string.
-        StringBuilder sb = new StringBuilder(128);
-
-        // Surround with quotations.
-        sb.append('"');
-
-        int length = string.length(), pos = -1;
-        while (++pos < length) {
-            char ch = string.charAt(pos);
-            switch (ch) {
-                case '"':
-                    sb.append("\\\"");
-                    break;
-                case '\\':
-                    sb.append("\\\\");
-                    break;
-                case '\b':
-                    sb.append("\\b");
-                    break;
-                case '\f':
-                    sb.append("\\f");
-                    break;
-                case '\n':
-                    sb.append("\\n");
-                    break;
-                case '\r':
-                    sb.append("\\r");
-                    break;
-                case '\t':
-                    sb.append("\\t");
-                    break;
-                default:
-                    // Reference: https://www.unicode.org/versions/Unicode5.1.0/
-                    if ((ch <= '\u001F') || (ch >= '\u007F' && ch <= '\u009F') || (ch >= '\u2000' && ch <= '\u20FF')) {
-                        String intString = Integer.toHexString(ch);
-                        sb.append("\\u");
-                        int intLength = 4 - intString.length();
-                        for (int zero = 0; zero < intLength; zero++) {
-                            sb.append('0');
-                        }
-                        sb.append(intString.toUpperCase(Locale.US));
-                    } else {
-                        sb.append(ch);
-                    }
-                    break;
-            }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(string.length() + 2);
+        JsonOutput json = new JsonOutput(bytes, new byte[Math.min(BUFFER_SIZE, 6 * string.length() + 2)]);
+        try {
+            json.writeString(string);
+            json.flush();
+        } catch (IOException e) {
+            // Shall not happen on ByteArrayOutputStream
+            JEBAsyncHttpClient.log.e(LOG_TAG, "escape ByteArrayOutputStream exception", e);
         }
-
-        // Surround with quotations.
-        sb.append('"');
-
-        return sb.toString().getBytes();
+        return bytes.toByteArray();
     }
 
     /**
@@ -133,6 +99,8 @@ public class JEBJsonStreamerEntity implements HttpEntity {
      */
     public void addPart(String key, Object value) {
         jsonParams.put(key, value);
+        serializedValues.remove(key);
+        contentLength = UNKNOWN_LENGTH;
     }
 
     @Override
@@ -150,9 +118,34 @@ public class JEBJsonStreamerEntity implements HttpEntity {
         return false;
     }
 
+    /**
+     * Returns the exact length of the document, computed by a counting pass of the encoder without
+     * reading any file. The length is unknown and the request chunked when the document is gzipped
+     * or contains streams. The elapsed time is padded with spaces to a fixed width, so that it does
+     * not change the length.
+     */
     @Override
     public long getContentLength() {
-        return -1;
+        if (contentLength != UNKNOWN_LENGTH) {
+            return contentLength;
+        }
+        if (contentEncoding != null) {
+            return -1;
+        }
+        for (Object value : jsonParams.values()) {
+            if (value instanceof RequestParams.StreamWrapper) {
+                return -1;
+            }
+        }
+        JsonOutput counter = new JsonOutput(null, null);
+        try {
+            writeJson(counter, 0);
+        } catch (IOException e) {
+            // Shall not happen when counting
+            return -1;
+        }
+        contentLength = counter.getCount();
+        return contentLength;
     }
 
     @Override
@@ -189,33 +182,51 @@ public class JEBJsonStreamerEntity implements HttpEntity {
                 ? new GZIPOutputStream(out, BUFFER_SIZE)
                 : out;
 
-        // Always send a JSON object.
-        os.write('{');
+        // Everything is encoded straight into the reusable output buffer.
+        JsonOutput json = new JsonOutput(os, outputBuffer);
+        writeJson(json, now);
+
+        if (elapsedField != null && !jsonParams.isEmpty()) {
+            long elapsedTime = System.currentTimeMillis() - now;
+            JEBAsyncHttpClient.log.i(LOG_TAG, "Uploaded JSON in " + Math.floor(elapsedTime / 1000) + " seconds");
+        }
+
+        // Flush the contents up the stream.
+        json.flush();
+        JEBAsyncHttpClient.silentCloseOutputStream(os);
+    }
 
-        // Keys used by the HashMaps.
-        Set<String> keys = jsonParams.keySet();
+    /**
+     * Writes the document, or counts its bytes if the output has no stream
+     *
+     * @param json      output to write to
+     * @param startTime time the upload started, for the elapsed field
+     * @throws IOException if writing fails
+     */
+    private void writeJson(JsonOutput json, long startTime) throws IOException {
+        // Always send a JSON object.
+        json.write('{');
 
-        int keysCount = keys.size();
+        int keysCount = jsonParams.size();
         if (0 < keysCount) {
             int keysProcessed = 0;
             boolean isFileWrapper;
 
-            // Go over all keys and handle each's value.
-            for (String key : keys) {
+            // Go over all keys, in the order they were added, and handle each's value.
+            for (Map.Entry<String, Object> entry : jsonParams.entrySet()) {
                 // Indicate that this key has been processed.
                 keysProcessed++;
 
                 try {
-                    // Evaluate the value (which cannot be null).
-                    Object value = jsonParams.get(key);
+                    Object value = entry.getValue();
 
                     // Write the JSON object's key.
-                    os.write(escape(key));
-                    os.write(':');
+                    json.writeString(entry.getKey());
+                    json.write(':');
 
                     // Bail out prematurely if value's null.
                     if (value == null) {
-                        os.write(JSON_NULL);
+                        json.write(JSON_NULL);
                     } else {
                         // Check if this is a FileWrapper.
                         isFileWrapper = value instanceof RequestParams.FileWrapper;
@@ -223,69 +234,74 @@ public class JEBJsonStreamerEntity implements HttpEntity {
                         // If a file should be uploaded.
                         if (isFileWrapper || value instanceof RequestParams.StreamWrapper) {
                             // All uploads are sent as an object containing the file's details.
-                            os.write('{');
+                            json.write('{');
 
                             // Determine how to handle this entry.
                             if (isFileWrapper) {
-                                writeToFromFile(os, (RequestParams.FileWrapper) value);
+                                writeToFromFile(json, (RequestParams.FileWrapper) value);
                             } else {
-                                writeToFromStream(os, (RequestParams.StreamWrapper) value);
+                                writeToFromStream(json, (RequestParams.StreamWrapper) value);
                             }
 
                             // End the file's object and prepare for next one.
-                            os.write('}');
+                            json.write('}');
                         } else if (value instanceof JEBJsonValueInterface) {
-                            os.write(((JEBJsonValueInterface) value).getEscapedJsonValue());
-                        } else if (value instanceof org.json.JSONObject) {
-                            os.write(value.toString().getBytes());
-                        } else if (value instanceof org.json.JSONArray) {
-                            os.write(value.toString().getBytes());
+                            json.write(((JEBJsonValueInterface) value).getEscapedJsonValue());
+                        } else if (value instanceof org.json.JSONObject || value instanceof org.json.JSONArray) {
+                            json.writeUtf8(serialize(entry.getKey(), value));
                         } else if (value instanceof Boolean) {
-                            os.write((Boolean) value ? JSON_TRUE : JSON_FALSE);
-                        } else if (value instanceof Long) {
-                            os.write((((Number) value).longValue() + "").getBytes());
+                            json.write((Boolean) value ? JSON_TRUE : JSON_FALSE);
+                        } else if (value instanceof Long || value instanceof Integer) {
+                            json.writeLong(((Number) value).longValue());
                         } else if (value instanceof Double) {
-                            os.write((((Number) value).doubleValue() + "").getBytes());
+                            json.writeUtf8(Double.toString((Double) value));
                         } else if (value instanceof Float) {
-                            os.write((((Number) value).floatValue() + "").getBytes());
-                        } else if (value instanceof Integer) {
-                            os.write((((Number) value).intValue() + "").getBytes());
+                            json.writeUtf8(Float.toString((Float) value));
                         } else {
-                            os.write(escape(value.toString()));
+                            json.writeString(value.toString());
                         }
                     }
                 } finally {
                     // Separate each K:V with a comma, except the last one.
                     if (elapsedField != null || keysProcessed < keysCount) {
-                        os.write(',');
+                        json.write(',');
                     }
                 }
             }
 
-            // Calculate how many milliseconds it took to upload the contents.
-            long elapsedTime = System.currentTimeMillis() - now;
-
             // Include the elapsed time taken to upload everything.
             // This might be useful for somebody, but it serves us well since
             // there will almost always be a ',' as the last sent character.
             if (elapsedField != null) {
-                os.write(elapsedField);
-                os.write(':');
-                os.write((elapsedTime + "").getBytes());
+                json.write(elapsedField);
+                json.write(':');
+                // Padded to a fixed width so that the length is known before the upload.
+                long elapsedTime = json.isCounting() ? 0 : Math.max(0, System.currentTimeMillis() - startTime);
+                long count = json.getCount();
+                json.writeLong(elapsedTime);
+                while (json.getCount() - count < ELAPSED_WIDTH) {
+                    json.write(' ');
+                }
             }
-
-            JEBAsyncHttpClient.log.i(LOG_TAG, "Uploaded JSON in " + Math.floor(elapsedTime / 1000) + " seconds");
         }
 
         // Close the JSON object.
-        os.write('}');
+        json.write('}');
+    }
 
-        // Flush the contents up the stream.
-        os.flush();
-        JEBAsyncHttpClient.silentCloseOutputStream(os);
+    /**
+     * Serializes a JSONObject or JSONArray value once for both the counting and the writing pass
+     */
+    private String serialize(String key, Object value) {
+        String serialized = serializedValues.get(key);
+        if (serialized == null) {
+            serialized = value.toString();
+            serializedValues.put(key, serialized);
+        }
+        return serialized;
     }
 
-    private void writeToFromStream(OutputStream os, RequestParams.StreamWrapper entry)
+    private void writeToFromStream(JsonOutput os, RequestParams.StreamWrapper entry)
             throws IOException {
 
         // Send the meta data.
@@ -315,7 +331,7 @@ public class JEBJsonStreamerEntity implements HttpEntity {
         }
     }
 
-    private void writeToFromFile(OutputStream os, RequestParams.FileWrapper wrapper)
+    private void writeToFromFile(JsonOutput os, RequestParams.FileWrapper wrapper)
             throws IOException {
 
         // Send the meta data.
@@ -324,6 +340,13 @@ public class JEBJsonStreamerEntity implements HttpEntity {
         int bytesRead;
         long bytesWritten = 0, totalSize = wrapper.file.length();
 
+        if (os.isCounting()) {
+            // Base64 with padding and without line breaks.
+            os.skip((totalSize + 2) / 3 * 4);
+            endMetaData(os);
+            return;
+        }
+
         // Open the file for reading.
         FileInputStream in = new FileInputStream(wrapper.file);
 
@@ -348,17 +371,17 @@ public class JEBJsonStreamerEntity implements HttpEntity {
         JEBAsyncHttpClient.silentCloseInputStream(in);
     }
 
-    private void writeMetaData(OutputStream os, String name, String contentType) throws IOException {
+    private void writeMetaData(JsonOutput os, String name, String contentType) throws IOException {
         // Send the streams's name.
         os.write(STREAM_NAME);
         os.write(':');
-        os.write(escape(name));
+        os.writeString(name);
         os.write(',');
 
         // Send the streams's content type.
         os.write(STREAM_TYPE);
         os.write(':');
-        os.write(escape(contentType));
+        os.writeString(contentType);
         os.write(',');
 
         // Prepare the file content's key.
@@ -367,7 +390,203 @@ public class JEBJsonStreamerEntity implements HttpEntity {
         os.write('"');
     }
 
-    private void endMetaData(OutputStream os) throws IOException {
+    private void endMetaData(JsonOutput os) throws IOException {
         os.write('"');
     }
+
+    /**
+     * Buffered output of the JSON document. Strings are escaped and encoded to UTF-8 through a
+     * lookup table straight into the buffer and numbers are formatted without allocation. Without
+     * stream, the bytes are only counted.
+     */
+    private static final class JsonOutput extends OutputStream {
+        private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+        private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes();
+        // Escape sequences of the ASCII characters, null if written as is.
+        private static final byte[][] ESCAPES = new byte[128][];
+
+        static {
+            for (int ch = 0; ch < 128; ch++) {
+                if (ch <= 0x1F || ch == 0x7F) {
+                    ESCAPES[ch] = unicodeEscape((char) ch);
+                }
+            }
+            ESCAPES['"'] = "\\\"".getBytes();
+            ESCAPES['\\'] = "\\\\".getBytes();
+            ESCAPES['\b'] = "\\b".getBytes();
+            ESCAPES['\f'] = "\\f".getBytes();
+            ESCAPES['\n'] = "\\n".getBytes();
+            ESCAPES['\r'] = "\\r".getBytes();
+            ESCAPES['\t'] = "\\t".getBytes();
+        }
+
+        private final OutputStream out;
+        private final byte[] buffer;
+        private final byte[] digits = new byte[20];
+        private int position;
+        private long count;
+
+        JsonOutput(OutputStream out, byte[] buffer) {
+            this.out = out;
+            this.buffer = buffer;
+        }
+
+        private static byte[] unicodeEscape(char ch) {
+            return new byte[]{'\\', 'u', HEX_DIGITS[(ch >> 12) & 0xF], HEX_DIGITS[(ch >> 8) & 0xF],
+                    HEX_DIGITS[(ch >> 4) & 0xF], HEX_DIGITS[ch & 0xF]};
+        }
+
+        boolean isCounting() {
+            return out == null;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * Counts bytes written by other means
+         */
+        void skip(long length) {
+            count += length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+            if (out == null) {
+                return;
+            }
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+            if (out == null) {
+                return;
+            }
+            if (len > buffer.length - position) {
+                flushBuffer();
+                if (len > buffer.length) {
+                    out.write(b, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(b, off, buffer, position, len);
+            position += len;
+        }
+
+        /**
+         * Writes the string quoted and escaped
+         */
+        void writeString(String string) throws IOException {
+            if (string == null) {
+                write(JSON_NULL);
+                return;
+            }
+            write('"');
+            int length = string.length();
+            for (int i = 0; i < length; i++) {
+                char ch = string.charAt(i);
+                if (ch < 0x80) {
+                    byte[] escape = ESCAPES[ch];
+                    if (escape == null) {
+                        write(ch);
+                    } else {
+                        write(escape);
+                    }
+                } else if (ch <= 0x9F || (ch >= 0x2000 && ch <= 0x20FF)) {
+                    // Reference: https://www.unicode.org/versions/Unicode5.1.0/
+                    write(unicodeEscape(ch));
+                } else {
+                    i = writeUtf8(string, i, ch);
+                }
+            }
+            write('"');
+        }
+
+        /**
+         * Writes the string encoded to UTF-8 without escaping
+         */
+        void writeUtf8(String string) throws IOException {
+            int length = string.length();
+            for (int i = 0; i < length; i++) {
+                char ch = string.charAt(i);
+                if (ch < 0x80) {
+                    write(ch);
+                } else {
+                    i = writeUtf8(string, i, ch);
+                }
+            }
+        }
+
+        /**
+         * Writes a non-ASCII character, or surrogate pair, as UTF-8
+         *
+         * @return index of the last character written
+         */
+        private int writeUtf8(String string, int index, char ch) throws IOException {
+            if (ch < 0x800) {
+                write(0xC0 | (ch >> 6));
+                write(0x80 | (ch & 0x3F));
+            } else if (Character.isHighSurrogate(ch) && index + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(index + 1))) {
+                int codePoint = Character.toCodePoint(ch, string.charAt(index + 1));
+                write(0xF0 | (codePoint >> 18));
+                write(0x80 | ((codePoint >> 12) & 0x3F));
+                write(0x80 | ((codePoint >> 6) & 0x3F));
+                write(0x80 | (codePoint & 0x3F));
+                return index + 1;
+            } else if (Character.isSurrogate(ch)) {
+                // Unpaired surrogate, replaced as String.getBytes() does.
+                write('?');
+            } else {
+                write(0xE0 | (ch >> 12));
+                write(0x80 | ((ch >> 6) & 0x3F));
+                write(0x80 | (ch & 0x3F));
+            }
+            return index;
+        }
+
+        void writeLong(long value) throws IOException {
+            if (value == Long.MIN_VALUE) {
+                write(LONG_MIN_VALUE);
+                return;
+            }
+            if (value < 0) {
+                write('-');
+                value = -value;
+            }
+            int start = digits.length;
+            do {
+                digits[--start] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            write(digits, start, digits.length - start);
+        }
+
+        private void flushBuffer() throws IOException {
+            if (position > 0) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                flushBuffer();
+                out.flush();
+            }
+        }
+    }
 }
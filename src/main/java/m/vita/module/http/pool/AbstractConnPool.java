@@ -2,15 +2,12 @@ package m.vita.module.http.pool;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,17 +17,30 @@ import m.vita.module.http.connect.PoolEntry;
 import m.vita.module.http.util.Args;
 import m.vita.module.http.util.Asserts;
 
+/**
+ * Connection pool with the routes spread over a fixed set of locks, so that leases and releases
+ * on different routes do not block each other. Each route pool is guarded by the lock of its
+ * stripe. The total number of connections is bounded by an atomic permit count, and requests
+ * waiting for the total to drop below the maximum wait in a lock-free queue, the oldest being
+ * woken up when a connection on another route is released.
+ * <p/>
+ * Work spanning several routes, such as evicting the least recently used idle connection to make
+ * room for another route, only ever tries the locks of other stripes and skips the busy ones, so
+ * that the stripe locks cannot deadlock.
+ */
 @ThreadSafe
 public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
         implements ConnPool<T, E>, ConnPoolControl<T> {
 
-    private final Lock lock;
+    private static final int STRIPES = 16;
+
+    private final Lock[] locks;
     private final ConnFactory<T, C> connFactory;
-    private final Map<T, RouteSpecificPool<T, C, E>> routeToPool;
-    private final Set<E> leased;
-    private final LinkedList<E> available;
-    private final LinkedList<PoolEntryFuture<E>> pending;
-    private final Map<T, Integer> maxPerRoute;
+    private final ConcurrentHashMap<T, RouteSpecificPool<T, C, E>> routeToPool;
+    private final ConcurrentLinkedQueue<PoolEntryFuture<E>> pending;
+    private final ConcurrentHashMap<T, Integer> maxPerRoute;
+    // Leased and available connections of all routes.
+    private final AtomicInteger allocated;
 
     private volatile boolean isShutDown;
     private volatile int defaultMaxPerRoute;
@@ -44,12 +54,14 @@ public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
         this.connFactory = Args.notNull(connFactory, "Connection factory");
         this.defaultMaxPerRoute = Args.notNegative(defaultMaxPerRoute, "Max per route value");
         this.maxTotal = Args.notNegative(maxTotal, "Max total value");
-        this.lock = new ReentrantLock();
-        this.routeToPool = new HashMap<T, RouteSpecificPool<T, C, E>>();
-        this.leased = new HashSet<E>();
-        this.available = new LinkedList<E>();
-        this.pending = new LinkedList<PoolEntryFuture<E>>();
-        this.maxPerRoute = new HashMap<T, Integer>();
+        this.locks = new Lock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+        this.routeToPool = new ConcurrentHashMap<T, RouteSpecificPool<T, C, E>>();
+        this.pending = new ConcurrentLinkedQueue<PoolEntryFuture<E>>();
+        this.maxPerRoute = new ConcurrentHashMap<T, Integer>();
+        this.allocated = new AtomicInteger();
     }
 
     /**
@@ -69,6 +81,16 @@ public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
     protected void onRelease(final E entry) {
     }
 
+    /**
+     * Checks an available entry about to be leased, a failing entry is closed and removed
+     * from the pool. Called with the lock of the route held.
+     *
+     * @return true if the entry may be leased
+     */
+    protected boolean validate(final E entry) {
+        return true;
+    }
+
     public boolean isShutdown() {
         return this.isShutDown;
     }
@@ -81,25 +103,35 @@ public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
             return ;
         }
         this.isShutDown = true;
-        this.lock.lock();
-        try {
-            for (final E entry: this.available) {
-                entry.close();
-            }
-            for (final E entry: this.leased) {
-                entry.close();
-            }
-            for (final RouteSpecificPool<T, C, E> pool: this.routeToPool.values()) {
-                pool.shutdown();
+        // A lease that passed the shutdown check still holds its stripe
+        // lock, its route pool is visible once the lock is acquired.
+        for (int i = 0; i < STRIPES; i++) {
+            final Lock lock = this.locks[i];
+            lock.lock();
+            try {
+                for (final RouteSpecificPool<T, C, E> pool: this.routeToPool.values()) {
+                    if (getLock(pool.getRoute()) == lock) {
+                        pool.shutdown();
+                        this.routeToPool.remove(pool.getRoute(), pool);
+                    }
+                }
+            } finally {
+                lock.unlock();
             }
-            this.routeToPool.clear();
-            this.leased.clear();
-            this.available.clear();
-        } finally {
-            this.lock.unlock();
         }
+        this.pending.clear();
+        this.allocated.set(0);
+    }
+
+    private Lock getLock(final T route) {
+        int hash = route.hashCode();
+        hash ^= (hash >>> 16);
+        return this.locks[hash & (STRIPES - 1)];
     }
 
+    /**
+     * Returns the pool of the route, creating it if needed. Must be called with the route's lock held.
+     */
     private RouteSpecificPool<T, C, E> getPool(final T route) {
         RouteSpecificPool<T, C, E> pool = this.routeToPool.get(route);
         if (pool == null) {
@@ -127,7 +159,7 @@ public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
     public Future<E> lease(final T route, final Object state, final FutureCallback<E> callback) {
         Args.notNull(route, "Route");
         Asserts.check(!this.isShutDown, "Connection pool shut down");
-        return new PoolEntryFuture<E>(this.lock, callback) {
+        return new PoolEntryFuture<E>(getLock(route), callback) {
 
             @Override
             public E getPoolEntry(
@@ -174,28 +206,29 @@ public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
                     (System.currentTimeMillis() + tunit.toMillis(timeout));
         }
 
-        this.lock.lock();
+        final Lock lock = getLock(route);
+        boolean queued = false;
+        lock.lock();
         try {
-            final RouteSpecificPool<T, C, E> pool = getPool(route);
             E entry = null;
             while (entry == null) {
                 Asserts.check(!this.isShutDown, "Connection pool shut down");
+                final RouteSpecificPool<T, C, E> pool = getPool(route);
                 for (;;) {
                     entry = pool.getFree(state);
                     if (entry == null) {
                         break;
                     }
-                    if (entry.isClosed() || entry.isExpired(System.currentTimeMillis())) {
+                    if (entry.isClosed() || entry.isExpired(System.currentTimeMillis())
+                            || !validate(entry)) {
                         entry.close();
-                        this.available.remove(entry);
                         pool.free(entry, false);
+                        this.allocated.decrementAndGet();
                     } else {
                         break;
                     }
                 }
                 if (entry != null) {
-                    this.available.remove(entry);
-                    this.leased.add(entry);
                     return entry;
                 }
 
@@ -210,43 +243,46 @@ public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
                             break;
                         }
                         lastUsed.close();
-                        this.available.remove(lastUsed);
                         pool.remove(lastUsed);
+                        this.allocated.decrementAndGet();
                     }
                 }
 
                 if (pool.getAllocatedCount() < maxPerRoute) {
-                    final int totalUsed = this.leased.size();
-                    final int freeCapacity = Math.max(this.maxTotal - totalUsed, 0);
-                    if (freeCapacity > 0) {
-                        final int totalAvailable = this.available.size();
-                        if (totalAvailable > freeCapacity - 1) {
-                            if (!this.available.isEmpty()) {
-                                final E lastUsed = this.available.removeLast();
-                                lastUsed.close();
-                                final RouteSpecificPool<T, C, E> otherpool = getPool(lastUsed.getRoute());
-                                otherpool.remove(lastUsed);
-                            }
+                    // Make room by closing the least recently used idle
+                    // connection if all permits are taken.
+                    if (acquirePermit() || (closeLeastRecentlyUsed() && acquirePermit())) {
+                        final C conn;
+                        try {
+                            conn = this.connFactory.create(route);
+                        } catch (final IOException ex) {
+                            this.allocated.decrementAndGet();
+                            throw ex;
                         }
-                        final C conn = this.connFactory.create(route);
                         entry = pool.add(conn);
-                        this.leased.add(entry);
                         return entry;
                     }
                 }
 
-                boolean success = false;
-                try {
+                if (!queued) {
+                    // A connection released on another route only wakes up
+                    // queued requests, check once more after queueing.
                     pool.queue(future);
                     this.pending.add(future);
+                    queued = true;
+                    continue;
+                }
+
+                boolean success = false;
+                try {
                     success = future.await(deadline);
                 } finally {
                     // In case of 'success', we were woken up by the
                     // connection pool and should now have a connection
                     // waiting for us, or else we're shutting down.
                     // Just continue in the loop, both cases are checked.
-                    pool.unqueue(future);
-                    this.pending.remove(future);
+                    unqueue(route, future);
+                    queued = false;
                 }
                 // check for spurious wakeup vs. timeout
                 if (!success && (deadline != null) &&
@@ -256,34 +292,107 @@ public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
             }
             throw new TimeoutException("Timeout waiting for connection");
         } finally {
-            this.lock.unlock();
+            if (queued) {
+                unqueue(route, future);
+            }
+            lock.unlock();
+        }
+    }
+
+    private void unqueue(final T route, final PoolEntryFuture<E> future) {
+        final RouteSpecificPool<T, C, E> pool = this.routeToPool.get(route);
+        if (pool != null) {
+            pool.unqueue(future);
+        }
+        this.pending.remove(future);
+    }
+
+    private boolean acquirePermit() {
+        for (;;) {
+            final int current = this.allocated.get();
+            if (current >= this.maxTotal) {
+                return false;
+            }
+            if (this.allocated.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Closes the available connection released the longest time ago, skipping the routes whose
+     * lock is held by another thread.
+     *
+     * @return true if a connection has been closed
+     */
+    private boolean closeLeastRecentlyUsed() {
+        RouteSpecificPool<T, C, E> oldestPool = null;
+        long oldest = Long.MAX_VALUE;
+        for (final RouteSpecificPool<T, C, E> pool: this.routeToPool.values()) {
+            final Lock lock = getLock(pool.getRoute());
+            if (lock.tryLock()) {
+                try {
+                    final E lastUsed = pool.getLastUsed();
+                    if (lastUsed != null && lastUsed.getUpdated() < oldest) {
+                        oldest = lastUsed.getUpdated();
+                        oldestPool = pool;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        if (oldestPool == null) {
+            return false;
+        }
+        final Lock lock = getLock(oldestPool.getRoute());
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            final E lastUsed = oldestPool.getLastUsed();
+            if (lastUsed == null) {
+                return false;
+            }
+            lastUsed.close();
+            oldestPool.remove(lastUsed);
+            this.allocated.decrementAndGet();
+            return true;
+        } finally {
+            lock.unlock();
         }
     }
 
     public void release(final E entry, final boolean reusable) {
-        this.lock.lock();
+        final T route = entry.getRoute();
+        final Lock lock = getLock(route);
+        PoolEntryFuture<E> future = null;
+        lock.lock();
         try {
-            if (this.leased.remove(entry)) {
-                final RouteSpecificPool<T, C, E> pool = getPool(entry.getRoute());
-                pool.free(entry, reusable);
-                if (reusable && !this.isShutDown) {
-                    this.available.addFirst(entry);
+            final RouteSpecificPool<T, C, E> pool = this.routeToPool.get(route);
+            if (pool != null && pool.isLeased(entry)) {
+                final boolean keep = reusable && !this.isShutDown;
+                pool.free(entry, keep);
+                if (keep) {
                     onRelease(entry);
                 } else {
                     entry.close();
+                    this.allocated.decrementAndGet();
                 }
-                PoolEntryFuture<E> future = pool.nextPending();
-                if (future != null) {
-                    this.pending.remove(future);
-                } else {
-                    future = this.pending.poll();
-                }
+                future = pool.nextPending();
                 if (future != null) {
+                    // waits on the lock held here
                     future.wakeup();
+                    return;
                 }
+                future = this.pending.poll();
             }
         } finally {
-            this.lock.unlock();
+            lock.unlock();
+        }
+        // Woken up outside of the lock, the request may wait on another stripe.
+        if (future != null) {
+            future.wakeup();
         }
     }
 
@@ -298,79 +407,64 @@ public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
 
     public void setMaxTotal(final int max) {
         Args.notNegative(max, "Max value");
-        this.lock.lock();
-        try {
-            this.maxTotal = max;
-        } finally {
-            this.lock.unlock();
-        }
+        this.maxTotal = max;
     }
 
     public int getMaxTotal() {
-        this.lock.lock();
-        try {
-            return this.maxTotal;
-        } finally {
-            this.lock.unlock();
-        }
+        return this.maxTotal;
     }
 
     public void setDefaultMaxPerRoute(final int max) {
         Args.notNegative(max, "Max per route value");
-        this.lock.lock();
-        try {
-            this.defaultMaxPerRoute = max;
-        } finally {
-            this.lock.unlock();
-        }
+        this.defaultMaxPerRoute = max;
     }
 
     public int getDefaultMaxPerRoute() {
-        this.lock.lock();
-        try {
-            return this.defaultMaxPerRoute;
-        } finally {
-            this.lock.unlock();
-        }
+        return this.defaultMaxPerRoute;
     }
 
     public void setMaxPerRoute(final T route, final int max) {
         Args.notNull(route, "Route");
         Args.notNegative(max, "Max per route value");
-        this.lock.lock();
-        try {
-            this.maxPerRoute.put(route, Integer.valueOf(max));
-        } finally {
-            this.lock.unlock();
-        }
+        this.maxPerRoute.put(route, Integer.valueOf(max));
     }
 
     public int getMaxPerRoute(final T route) {
         Args.notNull(route, "Route");
-        this.lock.lock();
-        try {
-            return getMax(route);
-        } finally {
-            this.lock.unlock();
-        }
+        return getMax(route);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * All stripes are locked, in order, for a consistent snapshot. Other operations never wait
+     * for a second stripe lock, so this cannot deadlock.
+     */
     public PoolStats getTotalStats() {
-        this.lock.lock();
+        int leased = 0;
+        int pending = 0;
+        int available = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            this.locks[i].lock();
+        }
         try {
-            return new PoolStats(
-                    this.leased.size(),
-                    this.pending.size(),
-                    this.available.size(),
-                    this.maxTotal);
+            for (final RouteSpecificPool<T, C, E> pool: this.routeToPool.values()) {
+                leased += pool.getLeasedCount();
+                pending += pool.getPendingCount();
+                available += pool.getAvailableCount();
+            }
         } finally {
-            this.lock.unlock();
+            for (int i = STRIPES - 1; i >= 0; i--) {
+                this.locks[i].unlock();
+            }
         }
+        return new PoolStats(leased, pending, available, this.maxTotal);
     }
 
     public PoolStats getStats(final T route) {
         Args.notNull(route, "Route");
-        this.lock.lock();
+        final Lock lock = getLock(route);
+        lock.lock();
         try {
             final RouteSpecificPool<T, C, E> pool = getPool(route);
             return new PoolStats(
@@ -379,7 +473,7 @@ public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
                     pool.getAvailableCount(),
                     getMax(route));
         } finally {
-            this.lock.unlock();
+            lock.unlock();
         }
     }
 
@@ -389,21 +483,20 @@ public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
      * @since 4.3
      */
     protected void enumAvailable(final PoolEntryCallback<T, C> callback) {
-        this.lock.lock();
-        try {
-            final Iterator<E> it = this.available.iterator();
-            while (it.hasNext()) {
-                final E entry = it.next();
-                callback.process(entry);
-                if (entry.isClosed()) {
-                    final RouteSpecificPool<T, C, E> pool = getPool(entry.getRoute());
-                    pool.remove(entry);
-                    it.remove();
+        for (final RouteSpecificPool<T, C, E> pool: this.routeToPool.values()) {
+            final Lock lock = getLock(pool.getRoute());
+            lock.lock();
+            try {
+                final int removed = pool.enumAvailable(callback);
+                if (removed > 0) {
+                    this.allocated.addAndGet(-removed);
+                }
+                if (pool.getPendingCount() + pool.getAllocatedCount() == 0) {
+                    this.routeToPool.remove(pool.getRoute(), pool);
                 }
+            } finally {
+                lock.unlock();
             }
-            purgePoolMap();
-        } finally {
-            this.lock.unlock();
         }
     }
 
@@ -413,26 +506,42 @@ public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
      * @since 4.3
      */
     protected void enumLeased(final PoolEntryCallback<T, C> callback) {
-        this.lock.lock();
-        try {
-            final Iterator<E> it = this.leased.iterator();
-            while (it.hasNext()) {
-                final E entry = it.next();
-                callback.process(entry);
+        for (final RouteSpecificPool<T, C, E> pool: this.routeToPool.values()) {
+            final Lock lock = getLock(pool.getRoute());
+            lock.lock();
+            try {
+                pool.enumLeased(callback);
+            } finally {
+                lock.unlock();
             }
-        } finally {
-            this.lock.unlock();
         }
     }
 
-    private void purgePoolMap() {
-        final Iterator<Map.Entry<T, RouteSpecificPool<T, C, E>>> it = this.routeToPool.entrySet().iterator();
-        while (it.hasNext()) {
-            final Map.Entry<T, RouteSpecificPool<T, C, E>> entry = it.next();
-            final RouteSpecificPool<T, C, E> pool = entry.getValue();
+    /**
+     * Closes the entry and evicts it from the pool if it is available and has not been released
+     * again since the given time.
+     *
+     * @param entry   entry to close
+     * @param updated time the entry was last released at, as returned by {@link PoolEntry#getUpdated()}
+     * @return true if the entry has been closed
+     */
+    protected boolean closeIfIdle(final E entry, final long updated) {
+        final T route = entry.getRoute();
+        final Lock lock = getLock(route);
+        lock.lock();
+        try {
+            final RouteSpecificPool<T, C, E> pool = this.routeToPool.get(route);
+            if (pool == null || entry.getUpdated() != updated || !pool.removeAvailable(entry)) {
+                return false;
+            }
+            entry.close();
+            this.allocated.decrementAndGet();
             if (pool.getPendingCount() + pool.getAllocatedCount() == 0) {
-                it.remove();
+                this.routeToPool.remove(route, pool);
             }
+            return true;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -480,12 +589,10 @@ public abstract class AbstractConnPool<T, C, E extends PoolEntry<T, C>>
     @Override
     public String toString() {
         final StringBuilder buffer = new StringBuilder();
-        buffer.append("[leased: ");
-        buffer.append(this.leased);
-        buffer.append("][available: ");
-        buffer.append(this.available);
-        buffer.append("][pending: ");
-        buffer.append(this.pending);
+        buffer.append("[total: ");
+        buffer.append(getTotalStats());
+        buffer.append("][routes: ");
+        buffer.append(this.routeToPool.values());
         buffer.append("]");
         return buffer.toString();
     }
@@ -74,6 +74,10 @@ abstract class RouteSpecificPool<T, C, E extends PoolEntry<T, C>> {
         return null;
     }
 
+    public boolean isLeased(final E entry) {
+        return this.leased.contains(entry);
+    }
+
     public E getLastUsed() {
         if (!this.available.isEmpty()) {
             return this.available.getLast();
@@ -92,6 +96,10 @@ abstract class RouteSpecificPool<T, C, E extends PoolEntry<T, C>> {
         return true;
     }
 
+    public boolean removeAvailable(final E entry) {
+        return this.available.remove(entry);
+    }
+
     public void free(final E entry, final boolean reusable) {
         Args.notNull(entry, "Pool entry");
         final boolean found = this.leased.remove(entry);
@@ -126,6 +134,31 @@ abstract class RouteSpecificPool<T, C, E extends PoolEntry<T, C>> {
         this.pending.remove(future);
     }
 
+    /**
+     * Passes the available entries to the callback and removes those it has closed.
+     *
+     * @return number of entries removed
+     */
+    public int enumAvailable(final PoolEntryCallback<T, C> callback) {
+        int removed = 0;
+        final Iterator<E> it = this.available.iterator();
+        while (it.hasNext()) {
+            final E entry = it.next();
+            callback.process(entry);
+            if (entry.isClosed()) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public void enumLeased(final PoolEntryCallback<T, C> callback) {
+        for (final E entry: this.leased) {
+            callback.process(entry);
+        }
+    }
+
     public void shutdown() {
         for (final PoolEntryFuture<E> future: this.pending) {
             future.cancel(true);
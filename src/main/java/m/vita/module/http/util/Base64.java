@@ -1,6 +1,8 @@
 package m.vita.module.http.util;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 //import m.swc.http.BuildConfig;
 
@@ -39,6 +41,12 @@ public class Base64 {
      */
     public static final int NO_CLOSE = 16;
 
+    /**
+     * Number of input bytes passed to the coder at once when data goes through an intermediate
+     * buffer.
+     */
+    /* package */ static final int CHUNK_SIZE = 8 * 1024;
+
     //  --------------------------------------------------------
     //  shared code
     //  --------------------------------------------------------
@@ -115,6 +123,31 @@ public class Base64 {
         return temp;
     }
 
+    /**
+     * Decode the remaining Base64-encoded data of the input buffer into the output buffer. Heap
+     * buffers are decoded in place, without intermediate copy.
+     * <p>&nbsp;</p> <p>The output must have room for {@code input.remaining() * 3 / 4} bytes, the
+     * most data the input could represent. The position of the input is advanced to its limit and
+     * the position of the output past the decoded bytes.
+     *
+     * @param input  the data to decode
+     * @param output the buffer receiving the decoded bytes
+     * @param flags  controls certain features of the decoded output. Pass {@code DEFAULT} to decode
+     *               standard Base64.
+     * @throws IllegalArgumentException if the input contains incorrect padding
+     * @throws BufferOverflowException  if the output has not enough room
+     */
+    public static void decode(ByteBuffer input, ByteBuffer output, int flags) {
+        int len = input.remaining();
+        if (output.remaining() < len * 3 / 4) {
+            throw new BufferOverflowException();
+        }
+        Decoder decoder = new Decoder(flags, null);
+        if (!process(decoder, input, output)) {
+            throw new IllegalArgumentException("bad base-64");
+        }
+    }
+
     /**
      * Base64-encode the given data and return a newly allocated String with the result.
      *
@@ -179,7 +212,52 @@ public class Base64 {
      */
     public static byte[] encode(byte[] input, int offset, int len, int flags) {
         Encoder encoder = new Encoder(flags, null);
+        int output_len = encodedLength(encoder, len);
+
+        encoder.output = new byte[output_len];
+        encoder.process(input, offset, len, true);
+
+//        if (BuildConfig.DEBUG && encoder.op != output_len) {
+        if (encoder.op != output_len) {
+            throw new AssertionError();
+        }
+
+        return encoder.output;
+    }
+
+    /**
+     * Base64-encode the remaining data of the input buffer into the output buffer. Heap buffers
+     * are encoded in place, without intermediate copy.
+     * <p>&nbsp;</p> <p>The position of the input is advanced to its limit and the position of the
+     * output past the encoded bytes.
+     *
+     * @param input  the data to encode
+     * @param output the buffer receiving the encoded bytes
+     * @param flags  controls certain features of the encoded output. Passing {@code DEFAULT}
+     *               results in output that adheres to RFC 2045.
+     * @throws BufferOverflowException if the output has not enough room
+     * @see #encodedLength(int, int)
+     */
+    public static void encode(ByteBuffer input, ByteBuffer output, int flags) {
+        Encoder encoder = new Encoder(flags, null);
+        if (output.remaining() < encodedLength(encoder, input.remaining())) {
+            throw new BufferOverflowException();
+        }
+        process(encoder, input, output);
+    }
+
+    /**
+     * Returns the exact number of bytes the encoding of the given number of bytes produces.
+     *
+     * @param len   the number of bytes to encode
+     * @param flags controls certain features of the encoded output, as passed to the encoder
+     * @return length of the encoded data
+     */
+    public static int encodedLength(int len, int flags) {
+        return encodedLength(new Encoder(flags, null), len);
+    }
 
+    private static int encodedLength(Encoder encoder, int len) {
         // Compute the exact length of the array we will produce.
         int output_len = len / 3 * 4;
 
@@ -207,15 +285,35 @@ public class Base64 {
                     (encoder.do_cr ? 2 : 1);
         }
 
-        encoder.output = new byte[output_len];
-        encoder.process(input, offset, len, true);
+        return output_len;
+    }
 
-//        if (BuildConfig.DEBUG && encoder.op != output_len) {
-        if (encoder.op != output_len) {
-            throw new AssertionError();
+    /**
+     * Run all remaining input of the buffer through the coder, the output having enough room.
+     * Buffers backed by arrays are processed in place, others in chunks through temporary arrays.
+     */
+    private static boolean process(Coder coder, ByteBuffer input, ByteBuffer output) {
+        int len = input.remaining();
+        if (input.hasArray() && output.hasArray()) {
+            if (!coder.process(input.array(), input.arrayOffset() + input.position(), len,
+                    output.array(), output.arrayOffset() + output.position(), true)) {
+                return false;
+            }
+            input.position(input.limit());
+            output.position(output.position() + coder.op);
+            return true;
         }
-
-        return encoder.output;
+        byte[] chunk = new byte[Math.min(len, CHUNK_SIZE)];
+        coder.output = new byte[coder.maxOutputSize(chunk.length)];
+        do {
+            int chunkLen = Math.min(input.remaining(), chunk.length);
+            input.get(chunk, 0, chunkLen);
+            if (!coder.process(chunk, 0, chunkLen, !input.hasRemaining())) {
+                return false;
+            }
+            output.put(coder.output, 0, coder.op);
+        } while (input.hasRemaining());
+        return true;
     }
 
     /* package */ static abstract class Coder {
@@ -232,7 +330,22 @@ public class Base64 {
          * @return true if the input so far is good; false if some error has been detected in the
          * input stream..
          */
-        public abstract boolean process(byte[] input, int offset, int len, boolean finish);
+        public boolean process(byte[] input, int offset, int len, boolean finish) {
+            return process(input, offset, len, this.output, 0, finish);
+        }
+
+        /**
+         * Encode/decode another block of input data into the given array, starting at the given
+         * position.  On exit, this.op will be set to the length of the coded data.
+         *
+         * @param output       array receiving the coded data, big enough to hold all of it
+         * @param outputOffset the position within the output array at which to start
+         * @param finish       true if this is the final call to process for this object
+         * @return true if the input so far is good; false if some error has been detected in the
+         * input stream.
+         */
+        public abstract boolean process(byte[] input, int offset, int len, byte[] output,
+                                        int outputOffset, boolean finish);
 
         /**
          * @return the maximum number of bytes a call to process() could produce for the given
@@ -287,12 +400,20 @@ public class Base64 {
                 -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
         };
 
+        /**
+         * The DECODE arrays with their values shifted to each position of a 4-character tuple, so
+         * that a tuple is decoded by or'ing four lookups.  Non-data values stay negative.
+         */
+        private static final int[][] DECODE_SHIFTED = shift(DECODE);
+        private static final int[][] DECODE_WEBSAFE_SHIFTED = shift(DECODE_WEBSAFE);
+
         /**
          * Non-data values in the DECODE arrays.
          */
         private static final int SKIP = -1;
         private static final int EQUALS = -2;
         final private int[] alphabet;
+        final private int[][] shifted;
         /**
          * States 0-3 are reading through the next input tuple. State 4 is having read one '=' and
          * expecting exactly one more. State 5 is expecting no more data or padding characters in
@@ -306,10 +427,22 @@ public class Base64 {
             this.output = output;
 
             alphabet = ((flags & URL_SAFE) == 0) ? DECODE : DECODE_WEBSAFE;
+            shifted = ((flags & URL_SAFE) == 0) ? DECODE_SHIFTED : DECODE_WEBSAFE_SHIFTED;
             state = 0;
             value = 0;
         }
 
+        private static int[][] shift(int[] decode) {
+            int[][] shifted = new int[4][decode.length];
+            for (int i = 0; i < decode.length; i++) {
+                shifted[0][i] = decode[i] << 18;
+                shifted[1][i] = decode[i] << 12;
+                shifted[2][i] = decode[i] << 6;
+                shifted[3][i] = decode[i];
+            }
+            return shifted;
+        }
+
         /**
          * @return an overestimate for the number of bytes {@code len} bytes could decode to.
          */
@@ -323,7 +456,8 @@ public class Base64 {
          * @return true if the state machine is still healthy.  false if bad base-64 data has been
          * detected in the input stream.
          */
-        public boolean process(byte[] input, int offset, int len, boolean finish) {
+        public boolean process(byte[] input, int offset, int len, byte[] output,
+                               int outputOffset, boolean finish) {
             if (this.state == 6) return false;
 
             int p = offset;
@@ -336,9 +470,11 @@ public class Base64 {
             // the member variable is final.)
             int state = this.state;
             int value = this.value;
-            int op = 0;
-            final byte[] output = this.output;
+            int op = outputOffset;
             final int[] alphabet = this.alphabet;
+            final int[] shift18 = shifted[0];
+            final int[] shift12 = shifted[1];
+            final int[] shift6 = shifted[2];
 
             while (p < len) {
                 // Try the fast path:  we're starting a new tuple and the
@@ -356,11 +492,32 @@ public class Base64 {
                 // You can remove this whole block and the output should
                 // be the same, just slower.
                 if (state == 0) {
+                    // Two tuples at a time, with the shifts folded into the
+                    // lookup tables.
+                    while (p + 8 <= len) {
+                        int first = shift18[input[p] & 0xff] |
+                                shift12[input[p + 1] & 0xff] |
+                                shift6[input[p + 2] & 0xff] |
+                                alphabet[input[p + 3] & 0xff];
+                        int second = shift18[input[p + 4] & 0xff] |
+                                shift12[input[p + 5] & 0xff] |
+                                shift6[input[p + 6] & 0xff] |
+                                alphabet[input[p + 7] & 0xff];
+                        if ((first | second) < 0) break;
+                        output[op] = (byte) (first >> 16);
+                        output[op + 1] = (byte) (first >> 8);
+                        output[op + 2] = (byte) first;
+                        output[op + 3] = (byte) (second >> 16);
+                        output[op + 4] = (byte) (second >> 8);
+                        output[op + 5] = (byte) second;
+                        op += 6;
+                        p += 8;
+                    }
                     while (p + 4 <= len &&
-                            (value = ((alphabet[input[p] & 0xff] << 18) |
-                                    (alphabet[input[p + 1] & 0xff] << 12) |
-                                    (alphabet[input[p + 2] & 0xff] << 6) |
-                                    (alphabet[input[p + 3] & 0xff]))) >= 0) {
+                            (value = (shift18[input[p] & 0xff] |
+                                    shift12[input[p + 1] & 0xff] |
+                                    shift6[input[p + 2] & 0xff] |
+                                    alphabet[input[p + 3] & 0xff])) >= 0) {
                         output[op + 2] = (byte) value;
                         output[op + 1] = (byte) (value >> 8);
                         output[op] = (byte) (value >> 16);
@@ -458,7 +615,7 @@ public class Base64 {
                 // more.
                 this.state = state;
                 this.value = value;
-                this.op = op;
+                this.op = op - outputOffset;
                 return true;
             }
 
@@ -496,7 +653,7 @@ public class Base64 {
             }
 
             this.state = state;
-            this.op = op;
+            this.op = op - outputOffset;
             return true;
         }
     }
@@ -528,11 +685,18 @@ public class Base64 {
                 'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v',
                 'w', 'x', 'y', 'z', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '-', '_',
         };
+        /**
+         * The ENCODE arrays expanded to every 12-bit value, each turned into its two output bytes,
+         * so that a 3-byte group is encoded with two lookups.
+         */
+        private static final byte[] ENCODE_PAIRS = pairs(ENCODE);
+        private static final byte[] ENCODE_WEBSAFE_PAIRS = pairs(ENCODE_WEBSAFE);
         final public boolean do_padding;
         final public boolean do_newline;
         final public boolean do_cr;
         final private byte[] tail;
         final private byte[] alphabet;
+        final private byte[] pairs;
         /* package */ int tailLen;
         private int count;
 
@@ -543,6 +707,7 @@ public class Base64 {
             do_newline = (flags & NO_WRAP) == 0;
             do_cr = (flags & CRLF) != 0;
             alphabet = ((flags & URL_SAFE) == 0) ? ENCODE : ENCODE_WEBSAFE;
+            pairs = ((flags & URL_SAFE) == 0) ? ENCODE_PAIRS : ENCODE_WEBSAFE_PAIRS;
 
             tail = new byte[2];
             tailLen = 0;
@@ -557,11 +722,21 @@ public class Base64 {
             return len * 8 / 5 + 10;
         }
 
-        public boolean process(byte[] input, int offset, int len, boolean finish) {
+        private static byte[] pairs(byte[] alphabet) {
+            byte[] pairs = new byte[2 * 4096];
+            for (int i = 0; i < 4096; i++) {
+                pairs[2 * i] = alphabet[i >> 6];
+                pairs[2 * i + 1] = alphabet[i & 0x3f];
+            }
+            return pairs;
+        }
+
+        public boolean process(byte[] input, int offset, int len, byte[] output,
+                               int outputOffset, boolean finish) {
             // Using local variables makes the encoder about 9% faster.
             final byte[] alphabet = this.alphabet;
-            final byte[] output = this.output;
-            int op = 0;
+            final byte[] pairs = this.pairs;
+            int op = outputOffset;
             int count = this.count;
 
             int p = offset;
@@ -615,18 +790,48 @@ public class Base64 {
             // than 3 bytes of input available.
 
             // The main loop, turning 3 input bytes into 4 output bytes on
-            // each iteration.
+            // each iteration.  The groups up to the next line break, or
+            // all of them without line breaks, are encoded in one run.
             while (p + 3 <= len) {
-                v = ((input[p] & 0xff) << 16) |
-                        ((input[p + 1] & 0xff) << 8) |
-                        (input[p + 2] & 0xff);
-                output[op] = alphabet[(v >> 18) & 0x3f];
-                output[op + 1] = alphabet[(v >> 12) & 0x3f];
-                output[op + 2] = alphabet[(v >> 6) & 0x3f];
-                output[op + 3] = alphabet[v & 0x3f];
-                p += 3;
-                op += 4;
-                if (--count == 0) {
+                int groups = (len - p) / 3;
+                if (count > 0 && groups > count) groups = count;
+                final int end = p + groups * 3;
+                while (p + 6 <= end) {
+                    v = ((input[p] & 0xff) << 16) |
+                            ((input[p + 1] & 0xff) << 8) |
+                            (input[p + 2] & 0xff);
+                    int w = ((input[p + 3] & 0xff) << 16) |
+                            ((input[p + 4] & 0xff) << 8) |
+                            (input[p + 5] & 0xff);
+                    int high = (v >>> 12) << 1;
+                    int low = (v & 0xfff) << 1;
+                    output[op] = pairs[high];
+                    output[op + 1] = pairs[high + 1];
+                    output[op + 2] = pairs[low];
+                    output[op + 3] = pairs[low + 1];
+                    high = (w >>> 12) << 1;
+                    low = (w & 0xfff) << 1;
+                    output[op + 4] = pairs[high];
+                    output[op + 5] = pairs[high + 1];
+                    output[op + 6] = pairs[low];
+                    output[op + 7] = pairs[low + 1];
+                    p += 6;
+                    op += 8;
+                }
+                if (p < end) {
+                    v = ((input[p] & 0xff) << 16) |
+                            ((input[p + 1] & 0xff) << 8) |
+                            (input[p + 2] & 0xff);
+                    int high = (v >>> 12) << 1;
+                    int low = (v & 0xfff) << 1;
+                    output[op] = pairs[high];
+                    output[op + 1] = pairs[high + 1];
+                    output[op + 2] = pairs[low];
+                    output[op + 3] = pairs[low + 1];
+                    p += 3;
+                    op += 4;
+                }
+                if (count > 0 && (count -= groups) == 0) {
                     if (do_cr) output[op++] = '\r';
                     output[op++] = '\n';
                     count = LINE_GROUPS;
@@ -668,7 +873,7 @@ public class Base64 {
                         if (do_cr) output[op++] = '\r';
                         output[op++] = '\n';
                     }
-                } else if (do_newline && op > 0 && count != LINE_GROUPS) {
+                } else if (do_newline && op > outputOffset && count != LINE_GROUPS) {
                     if (do_cr) output[op++] = '\r';
                     output[op++] = '\n';
                 }
@@ -689,7 +894,7 @@ public class Base64 {
                 }
             }
 
-            this.op = op;
+            this.op = op - outputOffset;
             this.count = count;
 
             return true;
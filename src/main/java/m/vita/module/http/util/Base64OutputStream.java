@@ -112,21 +112,19 @@ public class Base64OutputStream extends FilterOutputStream {
      *               finalized.
      */
     private void internalWrite(byte[] b, int off, int len, boolean finish) throws IOException {
-        coder.output = embiggen(coder.output, coder.maxOutputSize(len));
-        if (!coder.process(b, off, len, finish)) {
-            throw new Base64DataException("bad base-64");
-        }
-        out.write(coder.output, 0, coder.op);
-    }
-
-    /**
-     * If b.length is at least len, return b.  Otherwise return a new byte array of length len.
-     */
-    private byte[] embiggen(byte[] b, int len) {
-        if (b == null || b.length < len) {
-            return new byte[len];
-        } else {
-            return b;
+        // Large writes are coded in chunks, so that the output array
+        // is allocated once for the life of the stream.
+        if (coder.output == null) {
+            coder.output = new byte[coder.maxOutputSize(Base64.CHUNK_SIZE)];
         }
+        do {
+            int chunk = Math.min(len, Base64.CHUNK_SIZE);
+            len -= chunk;
+            if (!coder.process(b, off, chunk, finish && len == 0)) {
+                throw new Base64DataException("bad base-64");
+            }
+            out.write(coder.output, 0, coder.op);
+            off += chunk;
+        } while (len > 0);
     }
 }
@@ -11,6 +11,7 @@ public final class ByteArrayBuffer implements Serializable {
 
     private byte[] buffer;
     private int len;
+    private transient ByteArrayPool pool;
 
     /**
      * Creates an instance of {@link ByteArrayBuffer} with the given initial
@@ -24,12 +25,46 @@ public final class ByteArrayBuffer implements Serializable {
         this.buffer = new byte[capacity];
     }
 
+    /**
+     * Creates an instance of {@link ByteArrayBuffer} backed by arrays taken
+     * from the given pool. The capacity may be larger than requested. Once
+     * the content is no longer needed the buffer should be handed back with
+     * {@link #release()}.
+     *
+     * @param capacity the minimal capacity
+     * @param pool the pool to take the arrays from
+     */
+    public ByteArrayBuffer(final int capacity, final ByteArrayPool pool) {
+        super();
+        Args.notNegative(capacity, "Buffer capacity");
+        this.pool = Args.notNull(pool, "Byte array pool");
+        this.buffer = pool.acquire(capacity);
+    }
+
     private void expand(final int newlen) {
-        final byte newbuffer[] = new byte[Math.max(this.buffer.length << 1, newlen)];
+        final int newcapacity = Math.max(this.buffer.length << 1, newlen);
+        final byte newbuffer[] = this.pool != null ? this.pool.acquire(newcapacity) : new byte[newcapacity];
         System.arraycopy(this.buffer, 0, newbuffer, 0, this.len);
+        if (this.pool != null) {
+            this.pool.release(this.buffer);
+        }
         this.buffer = newbuffer;
     }
 
+    /**
+     * Hands the underlying array back to the pool this buffer was created
+     * with and empties the buffer. The buffer must not be used afterwards.
+     * Has no effect on buffers without a pool.
+     */
+    public void release() {
+        if (this.pool != null) {
+            this.pool.release(this.buffer);
+            this.pool = null;
+            this.buffer = new byte[0];
+            this.len = 0;
+        }
+    }
+
     /**
      * Appends <code>len</code> bytes to this buffer from the given source
      * array starting at index <code>off</code>. The capacity of the buffer
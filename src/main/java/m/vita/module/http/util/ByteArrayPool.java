@@ -0,0 +1,257 @@
+package m.vita.module.http.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import m.vita.module.http.annotation.ThreadSafe;
+
+/**
+ * Pool of byte arrays grouped in power-of-two size classes, used to buffer response bodies
+ * without allocating (and later collecting) a new array for every request.
+ * <p>&nbsp;</p>
+ * {@link #acquire(int)} hands out an array at least as large as requested, either a pooled one or
+ * a freshly allocated one rounded up to its size class, {@link #acquireExact(int)} an array of
+ * exactly the requested length, for buffers whose length is significant such as response bodies.
+ * Arrays of any length can be handed back
+ * through {@link #release(byte[])}; they are kept as long as the pool stays below its byte budget.
+ * A released array must not be used by the caller anymore.
+ * <p>&nbsp;</p>
+ * The pool also remembers the sizes of the last few bodies received from an endpoint, so that
+ * bodies of unknown length (chunked transfer coding) can start with a buffer of the right size
+ * instead of growing from a small default, see {@link #predictCapacity(String, int)}.
+ */
+@ThreadSafe
+public class ByteArrayPool {
+
+    public static final int DEFAULT_MAX_POOL_SIZE = 1024 * 1024;
+
+    private static final int MIN_SIZE_CLASS = 10; // 1 KB
+    private static final int MAX_SIZE_CLASS = 20; // 1 MB
+    private static final int MAX_ENDPOINTS = 128;
+    private static final int HISTORY_LENGTH = 4;
+
+    private static final ByteArrayPool DEFAULT = new ByteArrayPool(DEFAULT_MAX_POOL_SIZE);
+
+    private final Bucket[] buckets;
+    private final long maxPoolSize;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final Map<String, int[]> history;
+
+    /**
+     * Returns the pool shared by response handlers and {@link EntityUtils}
+     *
+     * @return shared pool
+     */
+    public static ByteArrayPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Creates new pool
+     *
+     * @param maxPoolSize maximal number of bytes retained by the pool
+     */
+    public ByteArrayPool(final long maxPoolSize) {
+        super();
+        this.maxPoolSize = Args.notNegative(maxPoolSize, "Max pool size");
+        this.buckets = new Bucket[MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1];
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new Bucket();
+        }
+        this.history = new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, int[]> eldest) {
+                return size() > MAX_ENDPOINTS;
+            }
+        };
+    }
+
+    /**
+     * Returns an array of at least <code>minCapacity</code> bytes. Its content is undefined.
+     *
+     * @param minCapacity minimal length of the array
+     * @return pooled or newly allocated array
+     */
+    public byte[] acquire(final int minCapacity) {
+        Args.notNegative(minCapacity, "Capacity");
+        final int sizeClass = ceilSizeClass(minCapacity);
+        if (sizeClass > MAX_SIZE_CLASS) {
+            this.misses.incrementAndGet();
+            return new byte[minCapacity];
+        }
+        final ArrayDeque<byte[]> bucket = this.buckets[sizeClass - MIN_SIZE_CLASS].arrays;
+        byte[] array;
+        synchronized (bucket) {
+            array = bucket.pollLast();
+        }
+        if (array != null) {
+            this.pooledBytes.addAndGet(-array.length);
+            this.hits.incrementAndGet();
+            return array;
+        }
+        this.misses.incrementAndGet();
+        return new byte[1 << sizeClass];
+    }
+
+    /**
+     * Returns an array of exactly <code>length</code> bytes, a pooled one of that length if any,
+     * otherwise a newly allocated one. Its content is undefined.
+     *
+     * @param length length of the array
+     * @return pooled or newly allocated array
+     */
+    public byte[] acquireExact(final int length) {
+        Args.notNegative(length, "Length");
+        if (length >= (1 << MIN_SIZE_CLASS) && floorSizeClass(length) <= MAX_SIZE_CLASS) {
+            final ArrayDeque<byte[]> bucket = this.buckets[floorSizeClass(length) - MIN_SIZE_CLASS].arrays;
+            synchronized (bucket) {
+                final Iterator<byte[]> it = bucket.descendingIterator();
+                while (it.hasNext()) {
+                    final byte[] array = it.next();
+                    if (array.length == length) {
+                        it.remove();
+                        this.pooledBytes.addAndGet(-length);
+                        this.hits.incrementAndGet();
+                        return array;
+                    }
+                }
+            }
+        }
+        this.misses.incrementAndGet();
+        return new byte[length];
+    }
+
+    /**
+     * Hands an array back to the pool. Arrays outside the pooled size classes, or arrays which
+     * would exceed the byte budget, are left to the garbage collector.
+     *
+     * @param array array which is not used anymore, may be null
+     */
+    public void release(final byte[] array) {
+        if (array == null || array.length < (1 << MIN_SIZE_CLASS)) {
+            return;
+        }
+        final int sizeClass = floorSizeClass(array.length);
+        if (sizeClass > MAX_SIZE_CLASS) {
+            return;
+        }
+        if (this.pooledBytes.addAndGet(array.length) > this.maxPoolSize) {
+            this.pooledBytes.addAndGet(-array.length);
+            return;
+        }
+        final ArrayDeque<byte[]> bucket = this.buckets[sizeClass - MIN_SIZE_CLASS].arrays;
+        synchronized (bucket) {
+            bucket.addLast(array);
+        }
+    }
+
+    /**
+     * Drops all pooled arrays
+     */
+    public void clear() {
+        for (final Bucket holder : this.buckets) {
+            final ArrayDeque<byte[]> bucket = holder.arrays;
+            synchronized (bucket) {
+                for (final byte[] array : bucket) {
+                    this.pooledBytes.addAndGet(-array.length);
+                }
+                bucket.clear();
+            }
+        }
+    }
+
+    /**
+     * Records size of a body received from the endpoint
+     *
+     * @param endpoint key identifying the resource, typically scheme, host, port and path
+     * @param size     number of bytes of the body
+     */
+    public void recordSize(final String endpoint, final int size) {
+        if (endpoint == null || size < 0) {
+            return;
+        }
+        synchronized (this.history) {
+            int[] sizes = this.history.get(endpoint);
+            if (sizes == null) {
+                // last slot holds the write position
+                sizes = new int[HISTORY_LENGTH + 1];
+                this.history.put(endpoint, sizes);
+            }
+            final int pos = sizes[HISTORY_LENGTH];
+            sizes[pos] = size;
+            sizes[HISTORY_LENGTH] = (pos + 1) % HISTORY_LENGTH;
+        }
+    }
+
+    /**
+     * Predicts buffer capacity for a body of unknown length from the largest of the recently
+     * recorded sizes of the endpoint
+     *
+     * @param endpoint        key identifying the resource, may be null
+     * @param defaultCapacity capacity returned when nothing is known about the endpoint
+     * @return predicted capacity
+     */
+    public int predictCapacity(final String endpoint, final int defaultCapacity) {
+        if (endpoint == null) {
+            return defaultCapacity;
+        }
+        int max = 0;
+        synchronized (this.history) {
+            final int[] sizes = this.history.get(endpoint);
+            if (sizes == null) {
+                return defaultCapacity;
+            }
+            for (int i = 0; i < HISTORY_LENGTH; i++) {
+                max = Math.max(max, sizes[i]);
+            }
+        }
+        return max > 0 ? max : defaultCapacity;
+    }
+
+    public long getPooledBytes() {
+        return this.pooledBytes.get();
+    }
+
+    public long getMaxPoolSize() {
+        return this.maxPoolSize;
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    private static int ceilSizeClass(final int capacity) {
+        if (capacity <= (1 << MIN_SIZE_CLASS)) {
+            return MIN_SIZE_CLASS;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private static int floorSizeClass(final int length) {
+        return 31 - Integer.numberOfLeadingZeros(length);
+    }
+
+    /**
+     * Arrays of one size class, most recently released last.
+     */
+    private static final class Bucket {
+        final ArrayDeque<byte[]> arrays = new ArrayDeque<byte[]>();
+    }
+
+    @Override
+    public String toString() {
+        return "[pooled: " + this.pooledBytes.get() + "; max: " + this.maxPoolSize
+                + "; hits: " + this.hits.get() + "; misses: " + this.misses.get() + "]";
+    }
+}
@@ -93,13 +93,19 @@ public final class EntityUtils {
             if (i < 0) {
                 i = 4096;
             }
-            final ByteArrayBuffer buffer = new ByteArrayBuffer(i);
-            final byte[] tmp = new byte[4096];
-            int l;
-            while ((l = instream.read(tmp)) != -1) {
-                buffer.append(tmp, 0, l);
+            final ByteArrayPool pool = ByteArrayPool.getDefault();
+            final ByteArrayBuffer buffer = new ByteArrayBuffer(i, pool);
+            final byte[] tmp = pool.acquire(4096);
+            try {
+                int l;
+                while ((l = instream.read(tmp)) != -1) {
+                    buffer.append(tmp, 0, l);
+                }
+                return buffer.toByteArray();
+            } finally {
+                pool.release(tmp);
+                buffer.release();
             }
-            return buffer.toByteArray();
         } finally {
             instream.close();
         }
@@ -0,0 +1,253 @@
+package m.vita.module.http;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import m.vita.module.http.client.AbstractHttpClient;
+import m.vita.module.http.client.protocol.BasicHttpProcessor;
+import m.vita.module.http.concurrent.Cancellable;
+import m.vita.module.http.execute.BasicHttpContext;
+import m.vita.module.http.execute.CloseableHttpResponse;
+import m.vita.module.http.handler.JEBAsyncHttpResponseHandler;
+import m.vita.module.http.header.Header;
+import m.vita.module.http.header.HttpContext;
+import m.vita.module.http.header.HttpParams;
+import m.vita.module.http.header.HttpUriRequest;
+import m.vita.module.http.message.BasicHttpResponse;
+import m.vita.module.http.method.AbstractExecutionAwareRequest;
+import m.vita.module.http.method.HttpGet;
+import m.vita.module.http.method.HttpPost;
+import m.vita.module.http.util.HttpStatus;
+import m.vita.module.http.util.HttpVersion;
+
+import static org.junit.Assert.*;
+
+public class HedgePolicyTest {
+
+    private static final long HEDGE_DELAY = 50;
+    private static final long NEVER = 5000;
+
+    private HttpContext context;
+
+    @Before
+    public void setUp() {
+        JEBAsyncHttpClient.log.setLoggingEnabled(false);
+        context = new BasicHttpContext();
+    }
+
+    static class FakeResponse extends BasicHttpResponse implements CloseableHttpResponse {
+        FakeResponse() {
+            super(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Outcome of one execution of the fake client: a response or a failure after a delay. An
+     * aborted execution fails at once.
+     */
+    static class Attempt {
+        final long delayMillis;
+        final FakeResponse response;
+        final IOException failure;
+        final CountDownLatch aborted = new CountDownLatch(1);
+        volatile HttpUriRequest request;
+
+        private Attempt(long delayMillis, FakeResponse response, IOException failure) {
+            this.delayMillis = delayMillis;
+            this.response = response;
+            this.failure = failure;
+        }
+
+        static Attempt respond(long delayMillis) {
+            return new Attempt(delayMillis, new FakeResponse(), null);
+        }
+
+        static Attempt fail(long delayMillis, String message) {
+            return new Attempt(delayMillis, null, new IOException(message));
+        }
+
+        boolean isAborted() {
+            return aborted.getCount() == 0;
+        }
+
+        CloseableHttpResponse run(HttpUriRequest request) throws IOException {
+            this.request = request;
+            ((AbstractExecutionAwareRequest) request).setCancellable(new Cancellable() {
+                @Override
+                public boolean cancel() {
+                    aborted.countDown();
+                    return true;
+                }
+            });
+            try {
+                if (aborted.await(delayMillis, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Request aborted");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Client running the given attempts in order, the first one being the primary request.
+     */
+    static class FakeClient extends AbstractHttpClient {
+        final List<Attempt> attempts = new CopyOnWriteArrayList<Attempt>();
+        volatile int executions;
+
+        FakeClient(Attempt... attempts) {
+            super(null, null);
+            for (Attempt attempt : attempts) {
+                this.attempts.add(attempt);
+            }
+        }
+
+        @Override
+        protected HttpParams createHttpParams() {
+            return null;
+        }
+
+        @Override
+        protected BasicHttpProcessor createHttpProcessor() {
+            return null;
+        }
+
+        @Override
+        public CloseableHttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+            Attempt attempt;
+            synchronized (this) {
+                attempt = attempts.get(executions++);
+            }
+            return attempt.run(request);
+        }
+    }
+
+    private CloseableHttpResponse execute(HedgePolicy policy, FakeClient client, HttpUriRequest request) throws IOException {
+        JEBAsyncHttpResponseHandler handler = new JEBAsyncHttpResponseHandler(true) {
+            @Override
+            public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+            }
+
+            @Override
+            public void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+            }
+        };
+        return policy.execute(client, request, context, new JEBAsyncHttpRequest(client, context, request, handler));
+    }
+
+    private static HedgePolicy newPolicy() {
+        // a ratio of one leaves a hedge in the budget for every request
+        return new HedgePolicy(HEDGE_DELAY, 1f, 4);
+    }
+
+    @Test
+    public void fastPrimaryIsNotHedged() throws Exception {
+        HedgePolicy policy = newPolicy();
+        Attempt primary = Attempt.respond(0);
+        FakeClient client = new FakeClient(primary);
+
+        assertSame(primary.response, execute(policy, client, new HttpGet("http://example.com/")));
+        Thread.sleep(2 * HEDGE_DELAY);
+        assertEquals(1, client.executions);
+        assertEquals(0, policy.getHedgesIssued());
+        assertEquals(0, policy.getHedgesWon());
+    }
+
+    @Test
+    public void hedgeWinsOverLatePrimary() throws Exception {
+        HedgePolicy policy = newPolicy();
+        Attempt primary = Attempt.respond(NEVER);
+        Attempt hedge = Attempt.respond(0);
+        FakeClient client = new FakeClient(primary, hedge);
+        HttpGet request = new HttpGet("http://example.com/");
+
+        assertSame(hedge.response, execute(policy, client, request));
+        assertTrue(primary.isAborted());
+        assertNotSame(request, hedge.request);
+        // the request is reset, so that a retry may send it again
+        assertFalse(request.isAborted());
+        assertEquals(1, policy.getHedgesIssued());
+        assertEquals(1, policy.getHedgesWon());
+    }
+
+    @Test
+    public void primaryWinsOverLateHedge() throws Exception {
+        HedgePolicy policy = newPolicy();
+        Attempt primary = Attempt.respond(3 * HEDGE_DELAY);
+        Attempt hedge = Attempt.respond(NEVER);
+        FakeClient client = new FakeClient(primary, hedge);
+
+        assertSame(primary.response, execute(policy, client, new HttpGet("http://example.com/")));
+        assertTrue(hedge.aborted.await(1, TimeUnit.SECONDS));
+        assertFalse(primary.isAborted());
+        assertEquals(1, policy.getHedgesIssued());
+        assertEquals(0, policy.getHedgesWon());
+    }
+
+    @Test
+    public void hedgeWinsWhenPrimaryFailsFirst() throws Exception {
+        HedgePolicy policy = newPolicy();
+        Attempt primary = Attempt.fail(2 * HEDGE_DELAY, "Primary failed");
+        Attempt hedge = Attempt.respond(4 * HEDGE_DELAY);
+        FakeClient client = new FakeClient(primary, hedge);
+
+        assertSame(hedge.response, execute(policy, client, new HttpGet("http://example.com/")));
+        assertEquals(1, policy.getHedgesWon());
+    }
+
+    @Test
+    public void primaryFailureIsReportedWhenBothFail() throws Exception {
+        HedgePolicy policy = newPolicy();
+        Attempt primary = Attempt.fail(2 * HEDGE_DELAY, "Primary failed");
+        Attempt hedge = Attempt.fail(4 * HEDGE_DELAY, "Hedge failed");
+        FakeClient client = new FakeClient(primary, hedge);
+
+        try {
+            execute(policy, client, new HttpGet("http://example.com/"));
+            fail("Failure not reported");
+        } catch (IOException e) {
+            assertSame(primary.failure, e);
+        }
+        assertEquals(2, client.executions);
+        assertEquals(0, policy.getHedgesWon());
+    }
+
+    @Test
+    public void nonIdempotentRequestIsNotHedged() throws Exception {
+        HedgePolicy policy = newPolicy();
+        Attempt primary = Attempt.respond(3 * HEDGE_DELAY);
+        FakeClient client = new FakeClient(primary);
+
+        assertSame(primary.response, execute(policy, client, new HttpPost("http://example.com/")));
+        assertEquals(1, client.executions);
+        assertEquals(0, policy.getHedgesIssued());
+    }
+
+    @Test
+    public void hedgesAreLimitedByTheBudget() throws Exception {
+        HedgePolicy policy = new HedgePolicy(HEDGE_DELAY, 0f, 4);
+        FakeClient client = new FakeClient(Attempt.respond(2 * HEDGE_DELAY), Attempt.respond(0),
+                Attempt.respond(2 * HEDGE_DELAY));
+
+        execute(policy, client, new HttpGet("http://example.com/"));
+        // the reserve of one hedge is spent, nothing is deposited without a ratio
+        execute(policy, client, new HttpGet("http://example.com/"));
+        assertEquals(3, client.executions);
+        assertEquals(1, policy.getHedgesIssued());
+    }
+}
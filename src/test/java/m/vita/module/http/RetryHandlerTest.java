@@ -0,0 +1,190 @@
+package m.vita.module.http;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Date;
+
+import javax.net.ssl.SSLException;
+
+import m.vita.module.http.client.protocol.ExecutionContext;
+import m.vita.module.http.exception.NoHttpResponseException;
+import m.vita.module.http.execute.BasicHttpContext;
+import m.vita.module.http.header.HttpContext;
+import m.vita.module.http.message.BasicHttpResponse;
+import m.vita.module.http.method.HttpGet;
+import m.vita.module.http.util.DateUtils;
+import m.vita.module.http.util.HttpStatus;
+import m.vita.module.http.util.HttpVersion;
+
+import static org.junit.Assert.*;
+
+public class RetryHandlerTest {
+
+    private HttpContext context;
+
+    @Before
+    public void setUp() {
+        JEBAsyncHttpClient.log.setLoggingEnabled(false);
+        context = new BasicHttpContext();
+        context.setAttribute(ExecutionContext.HTTP_REQUEST, new HttpGet("http://example.com/"));
+    }
+
+    private static HttpResponse response(int statusCode, String retryAfter) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, null);
+        if (retryAfter != null) {
+            response.addHeader("Retry-After", retryAfter);
+        }
+        return response;
+    }
+
+    @Test
+    public void backoffStaysWithinTheExponentialCeiling() {
+        RetryHandler handler = new RetryHandler(5, 100);
+        for (int executionCount = 1; executionCount <= 6; executionCount++) {
+            long ceiling = 100L << (executionCount - 1);
+            long max = 0;
+            for (int i = 0; i < 1000; i++) {
+                long delay = handler.getRetryDelay(executionCount);
+                assertTrue(delay >= 0);
+                assertTrue(delay < ceiling);
+                max = Math.max(max, delay);
+            }
+            // full jitter spreads the delays over the whole interval
+            assertTrue(max >= ceiling / 2);
+        }
+    }
+
+    @Test
+    public void backoffIsCappedForLargeAttemptCounts() {
+        RetryHandler handler = new RetryHandler(100, 1000);
+        for (int executionCount = 1; executionCount <= 100; executionCount++) {
+            long delay = handler.getRetryDelay(executionCount);
+            assertTrue(delay >= 0);
+            assertTrue(delay < RetryHandler.DEFAULT_MAX_RETRY_DELAY_MILLIS);
+        }
+    }
+
+    @Test
+    public void noBackoffWithoutSleepTime() {
+        assertEquals(0, new RetryHandler(5, 0).getRetryDelay(3));
+    }
+
+    @Test
+    public void whitelistedErrorsAreRetriedUpToMaxRetries() {
+        RetryHandler handler = new RetryHandler(2, 0);
+        assertTrue(handler.retryRequest(new NoHttpResponseException("No response"), 1, context));
+        assertTrue(handler.retryRequest(new UnknownHostException("example.com"), 2, context));
+        assertFalse(handler.retryRequest(new SocketException("Connection reset"), 3, context));
+    }
+
+    @Test
+    public void blacklistedErrorsAreNotRetried() {
+        RetryHandler handler = new RetryHandler(5, 0);
+        assertFalse(handler.retryRequest(new InterruptedIOException("Read timed out"), 1, context));
+        assertFalse(handler.retryRequest(new SSLException("Handshake failed"), 1, context));
+    }
+
+    @Test
+    public void refusedRetryDoesNotChargeTheBudget() {
+        RetryBudget budget = new RetryBudget(0, 1);
+        RetryHandler handler = new RetryHandler(1, 0, budget);
+        assertFalse(handler.retryRequest(new SSLException("Handshake failed"), 1, context));
+        assertFalse(handler.retryRequest(new NoHttpResponseException("No response"), 2, context));
+        assertEquals(0, budget.getGrantedCount());
+        assertTrue(handler.retryRequest(new NoHttpResponseException("No response"), 1, context));
+    }
+
+    @Test
+    public void requestIsNotRetriedWithoutRequestInContext() {
+        RetryHandler handler = new RetryHandler(5, 0);
+        assertFalse(handler.retryRequest(new NoHttpResponseException("No response"), 1, new BasicHttpContext()));
+    }
+
+    @Test
+    public void exhaustedBudgetStopsRetries() {
+        RetryBudget budget = new RetryBudget(0, 2);
+        RetryHandler handler = new RetryHandler(10, 0, budget);
+        assertTrue(handler.retryRequest(new NoHttpResponseException("No response"), 1, context));
+        assertTrue(handler.retryRequest(new NoHttpResponseException("No response"), 1, context));
+        assertFalse(handler.retryRequest(new NoHttpResponseException("No response"), 1, context));
+        assertEquals(2, budget.getGrantedCount());
+        assertEquals(1, budget.getDeniedCount());
+    }
+
+    @Test
+    public void budgetRefillsWithRequests() {
+        RetryBudget budget = new RetryBudget(0.5f, 0);
+        assertFalse(budget.tryAcquire());
+        budget.onRequest();
+        assertFalse(budget.tryAcquire());
+        budget.onRequest();
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+    }
+
+    @Test
+    public void budgetBalanceIsCappedAtTheReserve() {
+        RetryBudget budget = new RetryBudget(1, 2);
+        for (int i = 0; i < 100; i++) {
+            budget.onRequest();
+        }
+        assertTrue(budget.tryAcquire());
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+    }
+
+    @Test
+    public void retryAfterIsHonoredFor503And429() {
+        RetryHandler handler = new RetryHandler(5, 100);
+        assertEquals(3000, handler.getRetryAfterDelay(response(HttpStatus.SC_SERVICE_UNAVAILABLE, "3"), 1));
+        assertEquals(0, handler.getRetryAfterDelay(response(RetryHandler.SC_TOO_MANY_REQUESTS, "0"), 1));
+        assertEquals(-1, handler.getRetryAfterDelay(response(HttpStatus.SC_INTERNAL_SERVER_ERROR, "3"), 1));
+        assertEquals(-1, handler.getRetryAfterDelay(response(HttpStatus.SC_SERVICE_UNAVAILABLE, null), 1));
+    }
+
+    @Test
+    public void retryAfterIsIgnoredBeyondLimits() {
+        RetryHandler handler = new RetryHandler(2, 100);
+        assertEquals(-1, handler.getRetryAfterDelay(response(HttpStatus.SC_SERVICE_UNAVAILABLE, "3"), 3));
+        assertEquals(-1, handler.getRetryAfterDelay(response(HttpStatus.SC_SERVICE_UNAVAILABLE, "3600"), 1));
+        assertEquals(-1, handler.getRetryAfterDelay(response(HttpStatus.SC_SERVICE_UNAVAILABLE, "soon"), 1));
+    }
+
+    @Test
+    public void retryAfterChargesTheBudget() {
+        RetryBudget budget = new RetryBudget(0, 1);
+        RetryHandler handler = new RetryHandler(5, 100, budget);
+        assertEquals(1000, handler.getRetryAfterDelay(response(HttpStatus.SC_SERVICE_UNAVAILABLE, "1"), 1));
+        assertEquals(-1, handler.getRetryAfterDelay(response(HttpStatus.SC_SERVICE_UNAVAILABLE, "1"), 1));
+    }
+
+    @Test
+    public void parseRetryAfterRejectsNegativeAndTooLongDelays() {
+        assertEquals(-1, RetryHandler.parseRetryAfter("-5"));
+        assertEquals(-1, RetryHandler.parseRetryAfter("61"));
+        // would overflow once converted to milliseconds
+        assertEquals(-1, RetryHandler.parseRetryAfter(String.valueOf(Long.MAX_VALUE / 10)));
+        assertEquals(-1, RetryHandler.parseRetryAfter("99999999999999999999"));
+        assertEquals(-1, RetryHandler.parseRetryAfter(
+                DateUtils.formatDate(new Date(System.currentTimeMillis() + 3600000))));
+    }
+
+    @Test
+    public void parseRetryAfterAcceptsSecondsAndDates() {
+        assertEquals(30000, RetryHandler.parseRetryAfter(" 30 "));
+        assertEquals(RetryHandler.DEFAULT_MAX_RETRY_AFTER_MILLIS, RetryHandler.parseRetryAfter("60"));
+        assertEquals(0, RetryHandler.parseRetryAfter("0"));
+        assertEquals(-1, RetryHandler.parseRetryAfter(null));
+        assertEquals(-1, RetryHandler.parseRetryAfter("later"));
+
+        long delay = RetryHandler.parseRetryAfter(
+                DateUtils.formatDate(new Date(System.currentTimeMillis() + 30000)));
+        assertTrue(delay > 25000 && delay <= 30000);
+        assertEquals(0, RetryHandler.parseRetryAfter(
+                DateUtils.formatDate(new Date(System.currentTimeMillis() - 30000))));
+    }
+}
@@ -0,0 +1,169 @@
+package m.vita.module.http;
+
+import android.os.Message;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import m.vita.module.http.client.AbstractHttpClient;
+import m.vita.module.http.client.protocol.BasicHttpProcessor;
+import m.vita.module.http.concurrent.Deadline;
+import m.vita.module.http.entity.BasicHttpEntity;
+import m.vita.module.http.exception.DeadlineExceededException;
+import m.vita.module.http.execute.BasicHttpContext;
+import m.vita.module.http.execute.CloseableHttpResponse;
+import m.vita.module.http.handler.StreamingJEBAsyncHttpResponseHandler;
+import m.vita.module.http.header.Header;
+import m.vita.module.http.header.HttpContext;
+import m.vita.module.http.header.HttpParams;
+import m.vita.module.http.header.HttpUriRequest;
+import m.vita.module.http.method.HttpGet;
+
+import static org.junit.Assert.*;
+
+public class StreamingRequestTest {
+
+    private HttpContext context;
+
+    @Before
+    public void setUp() {
+        JEBAsyncHttpClient.log.setLoggingEnabled(false);
+        context = new BasicHttpContext();
+    }
+
+    /**
+     * Client answering every request with a small body
+     */
+    static class BodyClient extends AbstractHttpClient {
+        BodyClient() {
+            super(null, null);
+        }
+
+        @Override
+        protected HttpParams createHttpParams() {
+            return null;
+        }
+
+        @Override
+        protected BasicHttpProcessor createHttpProcessor() {
+            return null;
+        }
+
+        @Override
+        public CloseableHttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+            HedgePolicyTest.FakeResponse response = new HedgePolicyTest.FakeResponse();
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(new ByteArrayInputStream(new byte[1024]));
+            entity.setContentLength(1024);
+            response.setEntity(entity);
+            return response;
+        }
+    }
+
+    /**
+     * Handler pausing the stream as soon as the headers arrive
+     */
+    static class PausingHandler extends StreamingJEBAsyncHttpResponseHandler {
+        final CountDownLatch paused = new CountDownLatch(1);
+        volatile boolean bodyEnded;
+        volatile boolean succeeded;
+        volatile boolean cancelled;
+        volatile boolean finished;
+        volatile Throwable failure;
+
+        PausingHandler() {
+            super(256, true);
+        }
+
+        @Override
+        protected Message obtainMessage(int responseMessageId, Object responseMessageData) {
+            // the message pool is not available in unit tests
+            Message message = new Message();
+            message.what = responseMessageId;
+            message.obj = responseMessageData;
+            return message;
+        }
+
+        @Override
+        public void onResponseHeaders(int statusCode, Header[] headers, long contentLength) {
+            pause();
+            paused.countDown();
+        }
+
+        @Override
+        public void onBodyChunk(byte[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void onBodyEnd(long totalBytes) {
+            bodyEnded = true;
+        }
+
+        @Override
+        public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+            succeeded = true;
+        }
+
+        @Override
+        public void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+            failure = error;
+        }
+
+        @Override
+        public void onCancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public void onFinish() {
+            finished = true;
+        }
+    }
+
+    private JEBAsyncHttpRequest newRequest(PausingHandler handler) {
+        JEBAsyncHttpRequest request = new JEBAsyncHttpRequest(new BodyClient(), context,
+                new HttpGet("http://example.com/"), handler);
+        request.setRetryHandler(new RetryHandler(0, 0));
+        return request;
+    }
+
+    @Test
+    public void expiredDeadlineFailsPausedStream() throws Exception {
+        PausingHandler handler = new PausingHandler();
+        JEBAsyncHttpRequest request = newRequest(handler);
+        request.setDeadline(Deadline.after(100, TimeUnit.MILLISECONDS));
+
+        Thread thread = new Thread(request);
+        thread.start();
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertTrue(handler.failure instanceof DeadlineExceededException);
+        assertFalse(handler.bodyEnded);
+        assertFalse(handler.succeeded);
+        assertTrue(handler.finished);
+    }
+
+    @Test
+    public void cancelEndsPausedStreamQuietly() throws Exception {
+        PausingHandler handler = new PausingHandler();
+        JEBAsyncHttpRequest request = newRequest(handler);
+
+        Thread thread = new Thread(request);
+        thread.start();
+        assertTrue(handler.paused.await(5, TimeUnit.SECONDS));
+        request.cancel(false);
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertNull(handler.failure);
+        assertFalse(handler.bodyEnded);
+        assertFalse(handler.succeeded);
+        assertTrue(handler.cancelled);
+    }
+}
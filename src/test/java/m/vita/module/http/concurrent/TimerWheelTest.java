@@ -0,0 +1,149 @@
+package m.vita.module.http.concurrent;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    private static TimerWheel newWheel() {
+        // a small wheel, so that the delays below span several rounds
+        return new TimerWheel("TimerWheelTest-", 5, TimeUnit.MILLISECONDS, 8);
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void taskRunsOnceAfterItsDelay() throws Exception {
+        final TimerWheel wheel = newWheel();
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        final TimerWheel.Timeout timeout = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                latch.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+        Thread.sleep(100);
+        assertEquals(1, runs.get());
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.isCancelled());
+    }
+
+    @Test
+    public void tasksRunInDeadlineOrder() throws Exception {
+        final TimerWheel wheel = newWheel();
+        final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch latch = new CountDownLatch(3);
+        final long[] delays = {120, 20, 70};
+        for (int i = 0; i < delays.length; i++) {
+            final int id = i;
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(id);
+                    latch.countDown();
+                }
+            }, delays[i], TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(1, order.get(0).intValue());
+        assertEquals(2, order.get(1).intValue());
+        assertEquals(0, order.get(2).intValue());
+    }
+
+    @Test
+    public void cancelledTaskNeverRuns() throws Exception {
+        final TimerWheel wheel = newWheel();
+        final AtomicInteger runs = new AtomicInteger();
+        final TimerWheel.Timeout timeout = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        final CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(countDown(later), 150, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+        assertFalse(timeout.isExpired());
+    }
+
+    @Test
+    public void cancelAfterExpiryFails() throws Exception {
+        final TimerWheel wheel = newWheel();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final TimerWheel.Timeout timeout = wheel.schedule(countDown(latch), 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+        assertFalse(timeout.isCancelled());
+        assertTrue(timeout.isExpired());
+    }
+
+    @Test
+    public void cancellingOneTaskKeepsTheOthersOfItsBucket() throws Exception {
+        final TimerWheel wheel = newWheel();
+        final CountDownLatch latch = new CountDownLatch(2);
+        final TimerWheel.Timeout first = wheel.schedule(countDown(latch), 60, TimeUnit.MILLISECONDS);
+        final TimerWheel.Timeout second = wheel.schedule(countDown(latch), 60, TimeUnit.MILLISECONDS);
+        final TimerWheel.Timeout third = wheel.schedule(countDown(latch), 60, TimeUnit.MILLISECONDS);
+
+        assertTrue(second.cancel());
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(first.isExpired());
+        assertFalse(second.isExpired());
+        assertTrue(third.isExpired());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheTimer() throws Exception {
+        final TimerWheel wheel = newWheel();
+        final CountDownLatch latch = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Task failure");
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        wheel.schedule(countDown(latch), 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void timerResumesAfterRunningIdle() throws Exception {
+        final TimerWheel wheel = newWheel();
+        final CountDownLatch first = new CountDownLatch(1);
+        wheel.schedule(countDown(first), 0, TimeUnit.MILLISECONDS);
+        assertTrue(first.await(2, TimeUnit.SECONDS));
+
+        Thread.sleep(100);
+        final CountDownLatch second = new CountDownLatch(1);
+        wheel.schedule(countDown(second), 20, TimeUnit.MILLISECONDS);
+        assertTrue(second.await(2, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,209 @@
+package m.vita.module.http.pool;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import m.vita.module.http.connect.PoolEntry;
+
+import static org.junit.Assert.*;
+
+public class AbstractConnPoolTest {
+
+    static class FakeConnection {
+        volatile boolean closed;
+    }
+
+    static class FakeEntry extends PoolEntry<String, FakeConnection> {
+        FakeEntry(final String route, final FakeConnection conn) {
+            super(null, route, conn);
+        }
+
+        @Override
+        public void close() {
+            getConnection().closed = true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return getConnection().closed;
+        }
+    }
+
+    static class FakePool extends AbstractConnPool<String, FakeConnection, FakeEntry> {
+        final AtomicInteger created = new AtomicInteger();
+
+        FakePool(final int defaultMaxPerRoute, final int maxTotal) {
+            super(new ConnFactory<String, FakeConnection>() {
+                @Override
+                public FakeConnection create(final String route) {
+                    return new FakeConnection();
+                }
+            }, defaultMaxPerRoute, maxTotal);
+        }
+
+        @Override
+        protected FakeEntry createEntry(final String route, final FakeConnection conn) {
+            this.created.incrementAndGet();
+            return new FakeEntry(route, conn);
+        }
+    }
+
+    private static FakeEntry lease(final FakePool pool, final String route) throws Exception {
+        return pool.lease(route, null).get(1, TimeUnit.SECONDS);
+    }
+
+    private static int allocated(final PoolStats stats) {
+        return stats.getLeased() + stats.getAvailable();
+    }
+
+    @Test
+    public void releasedConnectionIsLeasedAgain() throws Exception {
+        final FakePool pool = new FakePool(2, 10);
+        final FakeEntry entry = lease(pool, "a");
+        pool.release(entry, true);
+
+        assertSame(entry, lease(pool, "a"));
+        assertEquals(1, pool.created.get());
+        assertEquals(1, pool.getStats("a").getLeased());
+        assertEquals(0, pool.getStats("a").getAvailable());
+    }
+
+    @Test
+    public void nonReusableConnectionIsClosedAndReplaced() throws Exception {
+        final FakePool pool = new FakePool(2, 10);
+        final FakeEntry entry = lease(pool, "a");
+        pool.release(entry, false);
+
+        assertTrue(entry.isClosed());
+        assertEquals(0, allocated(pool.getTotalStats()));
+        assertNotSame(entry, lease(pool, "a"));
+        assertEquals(2, pool.created.get());
+    }
+
+    @Test
+    public void releasingTwiceCountsOnce() throws Exception {
+        final FakePool pool = new FakePool(2, 10);
+        final FakeEntry entry = lease(pool, "a");
+        pool.release(entry, true);
+        pool.release(entry, true);
+
+        assertEquals(0, pool.getStats("a").getLeased());
+        assertEquals(1, pool.getStats("a").getAvailable());
+    }
+
+    @Test
+    public void maxPerRouteIsNeverExceeded() throws Exception {
+        final FakePool pool = new FakePool(2, 10);
+        lease(pool, "a");
+        lease(pool, "a");
+        try {
+            pool.lease("a", null).get(50, TimeUnit.MILLISECONDS);
+            fail("Leased more connections than the route allows");
+        } catch (final TimeoutException expected) {
+        }
+        assertEquals(2, pool.getStats("a").getLeased());
+        assertNotNull(lease(pool, "b"));
+    }
+
+    @Test
+    public void maxTotalIsNeverExceeded() throws Exception {
+        final FakePool pool = new FakePool(5, 3);
+        lease(pool, "a");
+        lease(pool, "b");
+        lease(pool, "c");
+        try {
+            pool.lease("d", null).get(50, TimeUnit.MILLISECONDS);
+            fail("Leased more connections than the pool allows");
+        } catch (final TimeoutException expected) {
+        }
+        assertEquals(3, allocated(pool.getTotalStats()));
+        assertEquals(3, pool.created.get());
+    }
+
+    @Test
+    public void idleConnectionOfAnotherRouteIsClosedWhenFull() throws Exception {
+        final FakePool pool = new FakePool(2, 2);
+        final FakeEntry a1 = lease(pool, "a");
+        final FakeEntry a2 = lease(pool, "a");
+        pool.release(a1, true);
+
+        final FakeEntry b = lease(pool, "b");
+
+        assertTrue(a1.isClosed());
+        assertFalse(a2.isClosed());
+        assertFalse(b.isClosed());
+        assertEquals(2, allocated(pool.getTotalStats()));
+        assertEquals(0, pool.getStats("a").getAvailable());
+    }
+
+    @Test
+    public void releaseHandsConnectionToWaitingLease() throws Exception {
+        final FakePool pool = new FakePool(1, 1);
+        final FakeEntry entry = lease(pool, "a");
+        final Future<FakeEntry> waiting = pool.lease("a", null);
+        final FakeEntry[] leased = new FakeEntry[1];
+        final Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    leased[0] = waiting.get(5, TimeUnit.SECONDS);
+                } catch (final Exception ignore) {
+                }
+            }
+        };
+        waiter.start();
+        while (pool.getStats("a").getPending() == 0 && waiter.isAlive()) {
+            Thread.sleep(5);
+        }
+        pool.release(entry, true);
+        waiter.join(5000);
+
+        assertSame(entry, leased[0]);
+        assertEquals(1, pool.created.get());
+        assertEquals(1, pool.getStats("a").getLeased());
+    }
+
+    @Test
+    public void failedConnectReleasesItsPermit() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final AbstractConnPool<String, FakeConnection, FakeEntry> pool =
+                new AbstractConnPool<String, FakeConnection, FakeEntry>(new ConnFactory<String, FakeConnection>() {
+                    @Override
+                    public FakeConnection create(final String route) throws IOException {
+                        if (attempts.incrementAndGet() == 1) {
+                            throw new IOException("Connect failed");
+                        }
+                        return new FakeConnection();
+                    }
+                }, 1, 1) {
+                    @Override
+                    protected FakeEntry createEntry(final String route, final FakeConnection conn) {
+                        return new FakeEntry(route, conn);
+                    }
+                };
+        try {
+            pool.lease("a", null).get(1, TimeUnit.SECONDS);
+            fail("Connect failure not reported");
+        } catch (final ExecutionException expected) {
+        }
+        assertEquals(0, allocated(pool.getTotalStats()));
+        assertNotNull(pool.lease("a", null).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shutdownClosesAvailableConnections() throws Exception {
+        final FakePool pool = new FakePool(2, 10);
+        final FakeEntry entry = lease(pool, "a");
+        pool.release(entry, true);
+        pool.shutdown();
+
+        assertTrue(entry.isClosed());
+        assertTrue(pool.isShutdown());
+    }
+}
@@ -0,0 +1,217 @@
+package m.vita.module.http.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Base64Test {
+
+    private static final int[] FLAGS = {
+            Base64.DEFAULT,
+            Base64.NO_PADDING,
+            Base64.NO_WRAP,
+            Base64.CRLF,
+            Base64.URL_SAFE,
+            Base64.NO_PADDING | Base64.NO_WRAP,
+            Base64.NO_PADDING | Base64.CRLF,
+            Base64.URL_SAFE | Base64.NO_WRAP,
+            Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP,
+            Base64.URL_SAFE | Base64.CRLF,
+    };
+
+    // encodings of SAMPLE with each of FLAGS, as produced before the table-driven coders
+    private static final String[] SAMPLE_ENCODINGS = {
+            "CzBVep/E6Q4zWH2ix+wRNluApcrvFDleg6jN8hc8YYar0PUaP2SJrtP4HUJnjLHW+yBFao+02f4j\nSG2Stw==\n",
+            "CzBVep/E6Q4zWH2ix+wRNluApcrvFDleg6jN8hc8YYar0PUaP2SJrtP4HUJnjLHW+yBFao+02f4j\nSG2Stw\n",
+            "CzBVep/E6Q4zWH2ix+wRNluApcrvFDleg6jN8hc8YYar0PUaP2SJrtP4HUJnjLHW+yBFao+02f4jSG2Stw==",
+            "CzBVep/E6Q4zWH2ix+wRNluApcrvFDleg6jN8hc8YYar0PUaP2SJrtP4HUJnjLHW+yBFao+02f4j\r\nSG2Stw==\r\n",
+            "CzBVep_E6Q4zWH2ix-wRNluApcrvFDleg6jN8hc8YYar0PUaP2SJrtP4HUJnjLHW-yBFao-02f4j\nSG2Stw==\n",
+            "CzBVep/E6Q4zWH2ix+wRNluApcrvFDleg6jN8hc8YYar0PUaP2SJrtP4HUJnjLHW+yBFao+02f4jSG2Stw",
+            "CzBVep/E6Q4zWH2ix+wRNluApcrvFDleg6jN8hc8YYar0PUaP2SJrtP4HUJnjLHW+yBFao+02f4j\r\nSG2Stw\r\n",
+            "CzBVep_E6Q4zWH2ix-wRNluApcrvFDleg6jN8hc8YYar0PUaP2SJrtP4HUJnjLHW-yBFao-02f4jSG2Stw==",
+            "CzBVep_E6Q4zWH2ix-wRNluApcrvFDleg6jN8hc8YYar0PUaP2SJrtP4HUJnjLHW-yBFao-02f4jSG2Stw",
+            "CzBVep_E6Q4zWH2ix-wRNluApcrvFDleg6jN8hc8YYar0PUaP2SJrtP4HUJnjLHW-yBFao-02f4j\r\nSG2Stw==\r\n",
+    };
+
+    private static final byte[] SAMPLE = new byte[61];
+
+    static {
+        for (int i = 0; i < SAMPLE.length; i++) {
+            SAMPLE[i] = (byte) (i * 37 + 11);
+        }
+    }
+
+    private final Random random = new Random(42);
+
+    private byte[] randomBytes(int len) {
+        byte[] data = new byte[len];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(Charset.forName("US-ASCII"));
+    }
+
+    /**
+     * Encodes the data with java.util.Base64 and applies the wrapping of the given flags
+     */
+    private static String reference(byte[] data, int flags) {
+        java.util.Base64.Encoder encoder = (flags & Base64.URL_SAFE) != 0
+                ? java.util.Base64.getUrlEncoder() : java.util.Base64.getEncoder();
+        if ((flags & Base64.NO_PADDING) != 0) {
+            encoder = encoder.withoutPadding();
+        }
+        String encoded = encoder.encodeToString(data);
+        if ((flags & Base64.NO_WRAP) != 0 || encoded.isEmpty()) {
+            return encoded;
+        }
+        String newline = (flags & Base64.CRLF) != 0 ? "\r\n" : "\n";
+        StringBuilder wrapped = new StringBuilder();
+        for (int i = 0; i < encoded.length(); i += 76) {
+            wrapped.append(encoded, i, Math.min(i + 76, encoded.length())).append(newline);
+        }
+        return wrapped.toString();
+    }
+
+    @Test
+    public void encodesRfc4648Vectors() {
+        String[] plain = {"", "f", "fo", "foo", "foob", "fooba", "foobar"};
+        String[] encoded = {"", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==", "Zm9vYmE=", "Zm9vYmFy"};
+        for (int i = 0; i < plain.length; i++) {
+            assertEquals(encoded[i], Base64.encodeToString(bytes(plain[i]), Base64.NO_WRAP));
+            assertArrayEquals(bytes(plain[i]), Base64.decode(encoded[i], Base64.DEFAULT));
+        }
+    }
+
+    @Test
+    public void encodingMatchesPreviousOutputForEveryFlag() {
+        for (int i = 0; i < FLAGS.length; i++) {
+            assertEquals("flags " + FLAGS[i], SAMPLE_ENCODINGS[i], Base64.encodeToString(SAMPLE, FLAGS[i]));
+            assertArrayEquals(SAMPLE, Base64.decode(SAMPLE_ENCODINGS[i], FLAGS[i]));
+        }
+    }
+
+    @Test
+    public void urlSafeAlphabetReplacesPlusAndSlash() {
+        byte[] data = {(byte) 0xFB, (byte) 0xFF, (byte) 0xBF};
+        assertEquals("+/+/", Base64.encodeToString(data, Base64.NO_WRAP));
+        assertEquals("-_-_", Base64.encodeToString(data, Base64.URL_SAFE | Base64.NO_WRAP));
+        assertArrayEquals(data, Base64.decode("-_-_", Base64.URL_SAFE));
+    }
+
+    @Test
+    public void encodingMatchesReferenceForAllLengths() {
+        for (int len = 0; len < 300; len++) {
+            byte[] data = randomBytes(len);
+            for (int flags : FLAGS) {
+                String expected = reference(data, flags);
+                assertEquals("len " + len + ", flags " + flags, expected, Base64.encodeToString(data, flags));
+                assertEquals(expected.length(), Base64.encodedLength(len, flags));
+                assertArrayEquals(data, Base64.decode(expected, flags));
+            }
+        }
+    }
+
+    @Test
+    public void encodingOfSliceMatchesWholeArray() {
+        byte[] data = randomBytes(1000);
+        for (int i = 0; i < 200; i++) {
+            int offset = random.nextInt(data.length);
+            int len = random.nextInt(data.length - offset);
+            int flags = FLAGS[random.nextInt(FLAGS.length)];
+            byte[] slice = new byte[len];
+            System.arraycopy(data, offset, slice, 0, len);
+            assertArrayEquals(Base64.encode(slice, flags), Base64.encode(data, offset, len, flags));
+        }
+    }
+
+    @Test
+    public void malformedInputIsTreatedAsBefore() {
+        String[] rejected = {"Zg=", "Z", "Zm9v=", "Zm9v====", "Zg==Zg==", "Zm9vYg=x", "===="};
+        for (String input : rejected) {
+            try {
+                Base64.decode(input, Base64.DEFAULT);
+                fail("Accepted " + input);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        // missing padding, whitespace and characters outside the alphabet are skipped
+        assertArrayEquals(bytes("f"), Base64.decode("Zg", Base64.DEFAULT));
+        assertArrayEquals(bytes("foo"), Base64.decode("Zm 9v\n", Base64.DEFAULT));
+        assertArrayEquals(bytes("foo"), Base64.decode("Zm9!v", Base64.DEFAULT));
+        assertArrayEquals(new byte[0], Base64.decode("-_-_", Base64.DEFAULT));
+        assertArrayEquals(new byte[0], Base64.decode("+/+/", Base64.URL_SAFE));
+    }
+
+    @Test
+    public void heapBuffersMatchArrays() {
+        for (int len = 0; len < 100; len++) {
+            byte[] data = randomBytes(len);
+            for (int flags : FLAGS) {
+                ByteBuffer encoded = ByteBuffer.allocate(Base64.encodedLength(len, flags));
+                Base64.encode(ByteBuffer.wrap(data), encoded, flags);
+                assertFalse(encoded.hasRemaining());
+                assertArrayEquals(Base64.encode(data, flags), encoded.array());
+
+                encoded.flip();
+                ByteBuffer decoded = ByteBuffer.allocate(encoded.remaining());
+                Base64.decode(encoded, decoded, flags);
+                decoded.flip();
+                byte[] result = new byte[decoded.remaining()];
+                decoded.get(result);
+                assertArrayEquals(data, result);
+            }
+        }
+    }
+
+    @Test
+    public void directBuffersMatchArrays() {
+        // larger than a chunk, so that the chunks are stitched together
+        byte[] data = randomBytes(50000);
+        for (int flags : FLAGS) {
+            ByteBuffer input = ByteBuffer.allocateDirect(data.length);
+            input.put(data).flip();
+            ByteBuffer encoded = ByteBuffer.allocateDirect(Base64.encodedLength(data.length, flags));
+            Base64.encode(input, encoded, flags);
+            encoded.flip();
+            byte[] result = new byte[encoded.remaining()];
+            encoded.get(result);
+            assertArrayEquals(bytes(reference(data, flags)), result);
+
+            encoded.flip();
+            ByteBuffer decoded = ByteBuffer.allocateDirect(encoded.remaining());
+            Base64.decode(encoded, decoded, flags);
+            decoded.flip();
+            result = new byte[decoded.remaining()];
+            decoded.get(result);
+            assertArrayEquals(data, result);
+        }
+    }
+
+    @Test
+    public void streamMatchesOneShotEncoding() throws Exception {
+        byte[] data = randomBytes(20000);
+        for (int flags : FLAGS) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Base64OutputStream stream = new Base64OutputStream(out, flags);
+            int offset = 0;
+            while (offset < data.length) {
+                int len = Math.min(random.nextInt(3000), data.length - offset);
+                if (len == 1) {
+                    stream.write(data[offset]);
+                } else {
+                    stream.write(data, offset, len);
+                }
+                offset += len;
+            }
+            stream.close();
+            assertArrayEquals(bytes(reference(data, flags)), out.toByteArray());
+        }
+    }
+}